@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import ojw28.orm.PlacedItem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times encoding a floor of items as the binary and XML item lists. Their sizes are
+ * checked by BinaryPayloadTest.
+ * @author ojw28
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ItemListBenchmark {
+
+	private final PlacedItem[] mItems = BinaryPayloadTest.createItems(BinaryPayloadTest.FLOOR_ITEMS);
+
+	@Benchmark
+	public byte[] encodeBinary() throws IOException
+	{
+		return BinaryPayloadTest.encodeItems(mItems, 7000);
+	}
+
+	@Benchmark
+	public byte[] encodeXml() throws IOException
+	{
+		return BinaryPayloadTest.encodeItemsXml(mItems, 7000);
+	}
+
+}
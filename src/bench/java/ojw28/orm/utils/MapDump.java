@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Reads the map which the benchmarks run against from a dump of the building's map, named
+ * by the orm.map system property. The dump is either the full detail XML served by
+ * /getmap, which holds a Map25D element for each floor, or a single Map25D document such
+ * as the one imported by BuildDb.
+ * @author ojw28
+ */
+public class MapDump {
+
+	public static final String PROPERTY = "orm.map";
+
+	/**
+	 * Reads the floors of the map.
+	 * @return A compiled map for each Map25D element in the dump, in document order
+	 * @throws Exception If the dump cannot be read
+	 */
+	public static Map25D[] loadFloors() throws Exception
+	{
+		String lFile = System.getProperty(PROPERTY, "data/wgb.xml");
+		if(!new File(lFile).isFile())
+		{
+			throw new FileNotFoundException("No map dump at " + lFile + ", set -D" + PROPERTY + " to a copy of /getmap");
+		}
+		Document lDocument = XmlHelper.parse(new File(lFile));
+		NodeList lMapNodes = lDocument.getElementsByTagName("Map25D");
+		Map25D[] lFloors = new Map25D[lMapNodes.getLength()];
+		for(int li = 0; li < lFloors.length; li++)
+		{
+			lFloors[li] = new Map25D();
+			lFloors[li].readFromXml((Element) lMapNodes.item(li));
+		}
+		return lFloors;
+	}
+
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times MapLoader loading the building's map, and its first floor alone, from an embedded
+ * database holding a dump of the map. Each statement can be made to wait for a round trip
+ * time, as a query to the database server would, so that the cost of the statements the
+ * loader runs, counted by MapLoaderTest, is included.
+ * @author ojw28
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapLoaderBenchmark {
+
+	//The round trip time of each statement, in microseconds
+	@Param({"0", "500"})
+	public int roundTrip;
+
+	private MapDatabase mDatabase;
+	private Connection mConnection;
+	private final MapLoader mLoader = new MapLoader();
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		mDatabase = new MapDatabase(MapDump.loadFloors());
+		mDatabase.setRoundTrip(TimeUnit.MICROSECONDS.toNanos(roundTrip));
+		mConnection = mDatabase.getConnection();
+	}
+
+	@TearDown
+	public void tearDown() throws SQLException
+	{
+		mConnection.close();
+		mDatabase.close();
+	}
+
+	@Benchmark
+	public Map25D loadMap() throws SQLException
+	{
+		return mLoader.loadMap(mConnection);
+	}
+
+	@Benchmark
+	public Map25D loadSubmap() throws SQLException
+	{
+		return mLoader.loadSubmap(mConnection, 0);
+	}
+
+}
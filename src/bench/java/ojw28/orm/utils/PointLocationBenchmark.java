@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Times finding the room containing points on the building's map: one point at a time
+ * through the grid index and through a linear scan of every polygon, and in bulk through
+ * the sequential and parallel classifiers. The points are spread over each floor and a
+ * margin around it, and some are given a floor which is not on the map.
+ * @author ojw28
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointLocationBenchmark {
+
+	//The number of points located one at a time, which are the first of the bulk points
+	private static final int POINTS = 20000;
+	private static final int BULK_POINTS = 1000000;
+
+	private Map25D[] mFloors;
+	private PolyClassifier[] mClassifiers;
+	private float[] mXs;
+	private float[] mYs;
+	private int[] mPointFloors;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		mFloors = MapDump.loadFloors();
+		mClassifiers = new PolyClassifier[mFloors.length];
+		for(int li = 0; li < mFloors.length; li++)
+		{
+			mClassifiers[li] = new PolyClassifier(mFloors[li]);
+		}
+		mXs = new float[BULK_POINTS];
+		mYs = new float[BULK_POINTS];
+		mPointFloors = new int[BULK_POINTS];
+		Random lRandom = new Random(28);
+		for(int li = 0; li < BULK_POINTS; li++)
+		{
+			//Every floor, and one which is not on the map
+			int lFloor = lRandom.nextInt(mFloors.length + 1);
+			float[] lBounds = mFloors[lFloor % mFloors.length].getBounds();
+			float lMarginX = (lBounds[3] - lBounds[0]) * 0.05f;
+			float lMarginY = (lBounds[4] - lBounds[1]) * 0.05f;
+			mXs[li] = lBounds[0] - lMarginX + lRandom.nextFloat() * (lBounds[3] - lBounds[0] + 2 * lMarginX);
+			mYs[li] = lBounds[1] - lMarginY + lRandom.nextFloat() * (lBounds[4] - lBounds[1] + 2 * lMarginY);
+			mPointFloors[li] = lFloor;
+		}
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		PolyClassifier.shutdown();
+	}
+
+	@Benchmark
+	public void locateGrid(Blackhole iBlackhole)
+	{
+		for(int li = 0; li < POINTS; li++)
+		{
+			if(mPointFloors[li] < mFloors.length)
+			{
+				iBlackhole.consume(mFloors[mPointFloors[li]].locate(mXs[li], mYs[li]));
+			}
+		}
+	}
+
+	@Benchmark
+	public void locateLinear(Blackhole iBlackhole)
+	{
+		for(int li = 0; li < POINTS; li++)
+		{
+			if(mPointFloors[li] < mFloors.length)
+			{
+				iBlackhole.consume(locateLinearly(mFloors[mPointFloors[li]].getFloorPolys(), mXs[li], mYs[li]));
+			}
+		}
+	}
+
+	@Benchmark
+	public int[] classifySequential()
+	{
+		return PolyClassifier.classify(mClassifiers, mXs, mYs, mPointFloors, false);
+	}
+
+	@Benchmark
+	public int[] classifyParallel()
+	{
+		return PolyClassifier.classify(mClassifiers, mXs, mYs, mPointFloors, true);
+	}
+
+	/**
+	 * Finds the polygon containing a point by testing every polygon in turn, as Map25D did
+	 * before it had a grid.
+	 */
+	private static FloorPoly locateLinearly(ArrayList<FloorPoly> iPolys, float iX, float iY)
+	{
+		for(FloorPoly lPoly : iPolys)
+		{
+			if(lPoly.isInside2D(iX, iY))
+			{
+				return lPoly;
+			}
+		}
+		return null;
+	}
+
+}
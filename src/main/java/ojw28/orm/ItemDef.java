@@ -10,6 +10,10 @@
  *******************************************************************************/
 package ojw28.orm;
 
+import java.io.IOException;
+
+import ojw28.orm.utils.XmlResponseWriter;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -125,6 +129,33 @@ public class ItemDef {
 		iParent.appendChild(lFurnitureElement);
 	}
 	
+	/**
+	 * Streams the definition as a Poly element. The attributes are written in the order
+	 * in which writeToXml(Document,Element) would serialize them.
+	 * @param iWriter The writer
+	 * @throws IOException If an IOException occurs
+	 */
+	public void writeToXml(XmlResponseWriter iWriter) throws IOException
+	{
+		iWriter.startElement("Poly");
+		iWriter.attribute("category", ""+mCategory);
+		iWriter.attribute("description", ""+mDescription);
+		iWriter.attribute("field_label", ""+mFieldLabel);
+		iWriter.attribute("flipable", ""+mFlipable);
+		iWriter.attribute("height", ""+mHeight);
+		iWriter.attribute("image_file", ""+mImageFile);
+		iWriter.attribute("item_def_id", ""+mDefId);
+		iWriter.attribute("movable", ""+mMovable);
+		iWriter.attribute("name", ""+mName);
+		iWriter.attribute("ordering", ""+mOrdering);
+		
+		for(int li = 0; li < mPolys.length; li++)
+		{
+			mPolys[li].writeToXml(iWriter);
+		}
+		iWriter.endElement();
+	}
+	
 	public void readFromXml(Element iElement)
 	{
 		mDefId = Integer.parseInt(iElement.getAttribute("id"));
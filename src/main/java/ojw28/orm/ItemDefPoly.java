@@ -10,6 +10,9 @@
  *******************************************************************************/
 package ojw28.orm;
 
+import java.io.IOException;
+
+import ojw28.orm.utils.XmlResponseWriter;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -81,6 +84,28 @@ public class ItemDefPoly {
 		iParent.appendChild(lFurnitureElement);
 	}
 
+	/**
+	 * Streams the polygon as a Poly element, with attributes in serialized DOM order.
+	 * @param iWriter The writer
+	 * @throws IOException If an IOException occurs
+	 */
+	public void writeToXml(XmlResponseWriter iWriter) throws IOException
+	{
+		iWriter.startElement("Poly");
+		iWriter.attribute("edge_alpha", ""+mEdgeAlpha);
+		iWriter.attribute("edge_colour", "0x"+Integer.toHexString(mEdgeColour));
+		iWriter.attribute("fill_alpha", ""+mFillAlpha);
+		iWriter.attribute("fill_colour", "0x"+Integer.toHexString(mFillColour));
+		for(int li = 0; li < mVertices.length; li+=2)
+		{
+			iWriter.startElement("Vertex");
+			iWriter.attribute("x", ""+mVertices[li]);
+			iWriter.attribute("y", ""+mVertices[li+1]);
+			iWriter.endElement();
+		}
+		iWriter.endElement();
+	}
+
 	public void readFromXml(Element iElement)
 	{
 		mFillColour = Integer.parseInt(iElement.getAttribute("fill_colour").substring(2),16);
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm;
+
+/**
+ * The state of a placed item as of a particular update. Instances are immutable; each
+ * update to an item produces a new instance.
+ * @author ojw28
+ */
+public class PlacedItem {
+
+	private final int mUid;
+	private final int mItemDefId;
+	private final float mX;
+	private final float mY;
+	private final int mTheta;
+	private final int mFloor;
+	private final boolean mFlipped;
+	private final boolean mDeleted;
+	private final String mLabel;
+	private final int mUpdateId;
+
+	public PlacedItem(int iUid, int iItemDefId, float iX, float iY, int iTheta, int iFloor, boolean iFlipped, boolean iDeleted, String iLabel, int iUpdateId)
+	{
+		mUid = iUid;
+		mItemDefId = iItemDefId;
+		mX = iX;
+		mY = iY;
+		mTheta = iTheta;
+		mFloor = iFloor;
+		mFlipped = iFlipped;
+		mDeleted = iDeleted;
+		mLabel = iLabel;
+		mUpdateId = iUpdateId;
+	}
+
+	public int getUid()
+	{
+		return mUid;
+	}
+
+	public int getItemDefId()
+	{
+		return mItemDefId;
+	}
+
+	public float getX()
+	{
+		return mX;
+	}
+
+	public float getY()
+	{
+		return mY;
+	}
+
+	public int getTheta()
+	{
+		return mTheta;
+	}
+
+	public int getFloor()
+	{
+		return mFloor;
+	}
+
+	public boolean isFlipped()
+	{
+		return mFlipped;
+	}
+
+	public boolean isDeleted()
+	{
+		return mDeleted;
+	}
+
+	public String getLabel()
+	{
+		return mLabel;
+	}
+
+	/**
+	 * The update which produced this state.
+	 * @return The update id
+	 */
+	public int getUpdateId()
+	{
+		return mUpdateId;
+	}
+
+}
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import ojw28.orm.utils.Metrics;
+
+/**
+ * An immutable, pre-serialized response body. The body is held in both identity and
+ * gzip encoded forms together with a strong entity tag for each, so that a request
+ * can be answered by writing the appropriate array directly to the output stream, or
+ * with a 304 if the client already holds the current version.
+ * @author ojw28
+ */
+public class CachedResponse {
+
+	private final byte[] mIdentityBody;
+	private final byte[] mGzipBody;
+	private final String mContentType;
+	private final String mIdentityETag;
+	private final String mGzipETag;
+
+	/**
+	 * Constructor.
+	 * @param iBody The serialized response body. The array must not be modified after construction
+	 * @param iContentType The content type of the body
+	 * @throws IOException If the body cannot be compressed
+	 */
+	public CachedResponse(byte[] iBody, String iContentType) throws IOException
+	{
+		mIdentityBody = iBody;
+		mContentType = iContentType;
+
+		ByteArrayOutputStream lCompressed = new ByteArrayOutputStream(iBody.length / 4);
+		GZIPOutputStream lGzip = new GZIPOutputStream(lCompressed);
+		lGzip.write(iBody);
+		lGzip.close();
+		mGzipBody = lCompressed.toByteArray();
+
+		String lHash = hash(iBody);
+		mIdentityETag = "\""+lHash+"\"";
+		mGzipETag = "\""+lHash+"-gzip\"";
+	}
+
+	/**
+	 * The entity tag of the uncompressed body.
+	 * @return The quoted entity tag
+	 */
+	public String getETag()
+	{
+		return mIdentityETag;
+	}
+
+	/**
+	 * The uncompressed body.
+	 * @return The body, which must not be modified
+	 */
+	public byte[] getBody()
+	{
+		return mIdentityBody;
+	}
+
+	/**
+	 * Writes the cached body to a response. If the request's If-None-Match header matches
+	 * the current entity tag then a 304 is sent instead. The gzip form is sent if the
+	 * client accepts it.
+	 * @param iRequest The request
+	 * @param iResponse The response
+	 * @throws IOException If an IOException occurs
+	 */
+	public void write(HttpServletRequest iRequest, HttpServletResponse iResponse) throws IOException
+	{
+		boolean lGzip = acceptsGzip(iRequest.getHeader("Accept-Encoding"));
+		String lETag = lGzip ? mGzipETag : mIdentityETag;
+		byte[] lBody = lGzip ? mGzipBody : mIdentityBody;
+
+		iResponse.setHeader("ETag", lETag);
+		iResponse.setHeader("Vary", "Accept, Accept-Encoding");
+
+		if(matches(iRequest.getHeader("If-None-Match")))
+		{
+			iResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		if(lGzip)
+		{
+			iResponse.setHeader("Content-Encoding", "gzip");
+		}
+		iResponse.setContentType(mContentType);
+		iResponse.setContentLength(lBody.length);
+		iResponse.getOutputStream().write(lBody);
+		Metrics lRoute = Metrics.getCurrentRoute();
+		if(lRoute != null)
+		{
+			lRoute.addBytes(lBody.length);
+		}
+	}
+
+	/**
+	 * Tests whether an If-None-Match header matches either form of the body.
+	 * @param iIfNoneMatch The header value, which may be null
+	 * @return True iff the client's copy is current
+	 */
+	private boolean matches(String iIfNoneMatch)
+	{
+		if(iIfNoneMatch == null)
+		{
+			return false;
+		}
+		for(String lTag : iIfNoneMatch.split(","))
+		{
+			lTag = lTag.trim();
+			if(lTag.equals("*") || lTag.equals(mIdentityETag) || lTag.equals(mGzipETag))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean acceptsGzip(String iAcceptEncoding)
+	{
+		if(iAcceptEncoding == null)
+		{
+			return false;
+		}
+		for(String lCoding : iAcceptEncoding.split(","))
+		{
+			String[] lParts = lCoding.trim().split(";");
+			if(lParts[0].trim().equalsIgnoreCase("gzip"))
+			{
+				for(int li = 1; li < lParts.length; li++)
+				{
+					String lParam = lParts[li].trim();
+					if(lParam.startsWith("q="))
+					{
+						try
+						{
+							return Float.parseFloat(lParam.substring(2)) > 0;
+						}
+						catch(NumberFormatException lE)
+						{
+							return false;
+						}
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String hash(byte[] iBody)
+	{
+		try
+		{
+			byte[] lDigest = MessageDigest.getInstance("SHA-1").digest(iBody);
+			StringBuilder lHex = new StringBuilder(lDigest.length * 2);
+			for(byte lByte : lDigest)
+			{
+				lHex.append(Character.forDigit((lByte >> 4) & 0xf, 16));
+				lHex.append(Character.forDigit(lByte & 0xf, 16));
+			}
+			return lHex.toString();
+		}
+		catch(NoSuchAlgorithmException lE)
+		{
+			//SHA-1 is required to be supported by every Java platform
+			throw new IllegalStateException(lE);
+		}
+	}
+
+}
@@ -0,0 +1,583 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import ojw28.orm.ItemDef;
+import ojw28.orm.ItemDefPoly;
+import ojw28.orm.PlacedItem;
+import ojw28.orm.utils.PolyClassifier;
+
+/**
+ * Finds placed items which overlap each other, stick out of the map or straddle a wall.
+ * Each item's footprint is the polygons of its item definition, flipped, rotated by theta
+ * degrees and moved to the item's position. The footprints on each floor are held in a
+ * uniform grid, which is updated as each item update is applied to the item store, so an
+ * item is only tested against the items in the cells its footprint covers.
+ *
+ * Footprints which only touch are not reported as overlapping. An item is outside the
+ * map if a vertex or edge midpoint of its footprint is not in a room, and straddles a
+ * wall if they are in a different room from its position.
+ * @author ojw28
+ */
+public class CollisionChecker implements PlacedItemStore.Listener {
+
+	//The side of a grid cell, in map units
+	private static final float CELL_SIZE = 1f;
+	//Overlaps thinner than this, in map units, are taken to be touching
+	private static final float EPSILON = 1e-3f;
+
+	private final PlacedItemStore mStore;
+	private final MapHandler mMapHandler;
+	private final ItemDefHandler mItemDefs;
+
+	//The library version from which the footprints were built, or null if they have not
+	//been built yet
+	private String mLibraryVersion;
+	private HashMap<Integer, Footprint> mFootprints = new HashMap<Integer, Footprint>();
+	//The footprints overlapping each cell, indexed by floor (submap id) then by cell
+	private HashMap<Integer, HashMap<Long, ArrayList<Footprint>>> mGrids = new HashMap<Integer, HashMap<Long, ArrayList<Footprint>>>();
+	//The snapshot for which mClassifiers were built, with a classifier for each of its
+	//floors indexed by level
+	private MapSnapshot mSnapshot;
+	private PolyClassifier[] mClassifiers;
+
+	/**
+	 * A problem with the placement of an item.
+	 */
+	public static class Problem {
+
+		public static final String OVERLAP = "overlap";
+		public static final String OUTSIDE = "outside";
+		public static final String WALL = "wall";
+
+		private final String mType;
+		private final int mUid;
+		private final int mOtherUid;
+
+		public Problem(String iType, int iUid, int iOtherUid)
+		{
+			mType = iType;
+			mUid = iUid;
+			mOtherUid = iOtherUid;
+		}
+
+		public String getType()
+		{
+			return mType;
+		}
+
+		public int getUid()
+		{
+			return mUid;
+		}
+
+		/**
+		 * The item overlapped.
+		 * @return The other item's uid, or -1 if the problem is not an overlap
+		 */
+		public int getOtherUid()
+		{
+			return mOtherUid;
+		}
+	}
+
+	/**
+	 * Constructor. Registers the checker as a listener on the store.
+	 * @param iStore The item store
+	 * @param iMapHandler The handler holding the current map
+	 * @param iItemDefs The library from which the shape of each item is taken
+	 */
+	public CollisionChecker(PlacedItemStore iStore, MapHandler iMapHandler, ItemDefHandler iItemDefs)
+	{
+		mStore = iStore;
+		mMapHandler = iMapHandler;
+		mItemDefs = iItemDefs;
+		mStore.addListener(this);
+	}
+
+	public synchronized void itemUpdated(PlacedItem iItem)
+	{
+		//Until the footprints are first built there is nothing to keep up to date
+		if(mLibraryVersion != null)
+		{
+			remove(iItem.getUid());
+			if(!iItem.isDeleted())
+			{
+				add(iItem);
+			}
+		}
+	}
+
+	/**
+	 * Checks a placement, which may be of an item which does not exist yet.
+	 * @param iUid The uid of the item being placed, which is not tested against itself, or
+	 * -1 for a new item
+	 * @param iItemDefId The item's definition
+	 * @param iX The x coordinate
+	 * @param iY The y coordinate
+	 * @param iTheta The rotation, in degrees
+	 * @param iFloor The id of the floor's submap, as held in each item
+	 * @param iFlipped Whether the item is flipped
+	 * @param oProblems A list to which the problems found are added
+	 */
+	public synchronized void checkPlacement(int iUid, int iItemDefId, float iX, float iY, int iTheta, int iFloor, boolean iFlipped, List<Problem> oProblems)
+	{
+		checkVersions();
+		Footprint lFootprint = createFootprint(iUid, iItemDefId, iX, iY, iTheta, iFloor, iFlipped);
+		if(lFootprint == null)
+		{
+			return;
+		}
+		checkRooms(lFootprint, oProblems);
+		HashSet<Footprint> lTested = new HashSet<Footprint>();
+		HashMap<Long, ArrayList<Footprint>> lGrid = mGrids.get(iFloor);
+		if(lGrid == null)
+		{
+			return;
+		}
+		for(long lCell : lFootprint.getCells())
+		{
+			ArrayList<Footprint> lOthers = lGrid.get(lCell);
+			if(lOthers == null)
+			{
+				continue;
+			}
+			for(Footprint lOther : lOthers)
+			{
+				if(lOther.mUid != iUid && lTested.add(lOther) && lFootprint.overlaps(lOther))
+				{
+					oProblems.add(new Problem(Problem.OVERLAP, iUid, lOther.mUid));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks every item on a floor. Each overlapping pair is reported once, with the lower
+	 * uid first.
+	 * @param iFloor The id of the floor's submap, as held in each item
+	 * @param oProblems A list to which the problems found are added
+	 */
+	public synchronized void checkFloor(int iFloor, List<Problem> oProblems)
+	{
+		checkVersions();
+		HashMap<Long, ArrayList<Footprint>> lGrid = mGrids.get(iFloor);
+		if(lGrid == null)
+		{
+			return;
+		}
+		HashSet<Footprint> lFloorFootprints = new HashSet<Footprint>();
+		for(ArrayList<Footprint> lCell : lGrid.values())
+		{
+			lFloorFootprints.addAll(lCell);
+		}
+		HashSet<Footprint> lTested = new HashSet<Footprint>();
+		for(Footprint lFootprint : lFloorFootprints)
+		{
+			checkRooms(lFootprint, oProblems);
+			lTested.clear();
+			for(long lCell : lFootprint.getCells())
+			{
+				for(Footprint lOther : lGrid.get(lCell))
+				{
+					if(lOther.mUid > lFootprint.mUid && lTested.add(lOther) && lFootprint.overlaps(lOther))
+					{
+						oProblems.add(new Problem(Problem.OVERLAP, lFootprint.mUid, lOther.mUid));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the footprints if the item library has changed, and the room classifiers if
+	 * the map geometry has changed.
+	 */
+	private void checkVersions()
+	{
+		String lLibraryVersion = mItemDefs.getLibraryVersion();
+		if(!lLibraryVersion.equals(mLibraryVersion))
+		{
+			mLibraryVersion = lLibraryVersion;
+			mFootprints.clear();
+			mGrids.clear();
+			ArrayList<PlacedItem> lItems = new ArrayList<PlacedItem>();
+			mStore.getItems(lItems);
+			for(PlacedItem lItem : lItems)
+			{
+				add(lItem);
+			}
+		}
+
+		MapSnapshot lSnapshot = mMapHandler.getSnapshot();
+		if(mSnapshot == null || !lSnapshot.getGeometryVersion().equals(mSnapshot.getGeometryVersion()))
+		{
+			mSnapshot = lSnapshot;
+			mClassifiers = new PolyClassifier[lSnapshot.getSubmapCount()];
+			for(int li = 0; li < mClassifiers.length; li++)
+			{
+				mClassifiers[li] = new PolyClassifier(lSnapshot.getSubmap(li));
+			}
+		}
+	}
+
+	private void add(PlacedItem iItem)
+	{
+		Footprint lFootprint = createFootprint(iItem.getUid(), iItem.getItemDefId(), iItem.getX(), iItem.getY(),
+				iItem.getTheta(), iItem.getFloor(), iItem.isFlipped());
+		if(lFootprint == null)
+		{
+			return;
+		}
+		mFootprints.put(iItem.getUid(), lFootprint);
+		HashMap<Long, ArrayList<Footprint>> lGrid = mGrids.get(iItem.getFloor());
+		if(lGrid == null)
+		{
+			lGrid = new HashMap<Long, ArrayList<Footprint>>();
+			mGrids.put(iItem.getFloor(), lGrid);
+		}
+		for(long lCell : lFootprint.getCells())
+		{
+			ArrayList<Footprint> lCellFootprints = lGrid.get(lCell);
+			if(lCellFootprints == null)
+			{
+				lCellFootprints = new ArrayList<Footprint>(4);
+				lGrid.put(lCell, lCellFootprints);
+			}
+			lCellFootprints.add(lFootprint);
+		}
+	}
+
+	private void remove(int iUid)
+	{
+		Footprint lFootprint = mFootprints.remove(iUid);
+		if(lFootprint == null)
+		{
+			return;
+		}
+		HashMap<Long, ArrayList<Footprint>> lGrid = mGrids.get(lFootprint.mFloor);
+		for(long lCell : lFootprint.getCells())
+		{
+			ArrayList<Footprint> lCellFootprints = lGrid.get(lCell);
+			lCellFootprints.remove(lFootprint);
+			if(lCellFootprints.isEmpty())
+			{
+				lGrid.remove(lCell);
+			}
+		}
+	}
+
+	/**
+	 * Builds the world space footprint of an item.
+	 * @return The footprint, or null if the item's definition is unknown or has no polygons
+	 */
+	private Footprint createFootprint(int iUid, int iItemDefId, float iX, float iY, int iTheta, int iFloor, boolean iFlipped)
+	{
+		ItemDef lDef = mItemDefs.getItemDef(iItemDefId);
+		if(lDef == null || lDef.getPolys() == null || lDef.getPolys().length == 0)
+		{
+			return null;
+		}
+		double lAngle = Math.toRadians(iTheta);
+		float lCos = (float) Math.cos(lAngle);
+		float lSin = (float) Math.sin(lAngle);
+		ItemDefPoly[] lDefPolys = lDef.getPolys();
+		float[][] lPolys = new float[lDefPolys.length][];
+		for(int li = 0; li < lDefPolys.length; li++)
+		{
+			float[] lLocal = lDefPolys[li].getVertices();
+			float[] lWorld = new float[lLocal.length];
+			for(int lj = 0; lj < lLocal.length; lj += 2)
+			{
+				float lX = iFlipped ? -lLocal[lj] : lLocal[lj];
+				float lY = lLocal[lj + 1];
+				lWorld[lj] = iX + lX * lCos - lY * lSin;
+				lWorld[lj + 1] = iY + lX * lSin + lY * lCos;
+			}
+			lPolys[li] = lWorld;
+		}
+		return new Footprint(iUid, iFloor, iX, iY, lPolys);
+	}
+
+	/**
+	 * Checks that a footprint lies within the room containing the item's position.
+	 */
+	private void checkRooms(Footprint iFootprint, List<Problem> oProblems)
+	{
+		MapSnapshot.Floor lFloor = mSnapshot.findFloor(iFootprint.mFloor);
+		if(lFloor == null)
+		{
+			oProblems.add(new Problem(Problem.OUTSIDE, iFootprint.mUid, -1));
+			return;
+		}
+		PolyClassifier lClassifier = mClassifiers[lFloor.getLevel()];
+		int lRoom = lClassifier.classify(iFootprint.mX, iFootprint.mY);
+		if(lRoom == PolyClassifier.NO_ROOM)
+		{
+			oProblems.add(new Problem(Problem.OUTSIDE, iFootprint.mUid, -1));
+			return;
+		}
+		boolean lWall = false;
+		for(float[] lPoly : iFootprint.mPolys)
+		{
+			//Pull the sample points in slightly, so an item flush against a wall passes
+			float lCx = 0;
+			float lCy = 0;
+			int lCount = lPoly.length / 2;
+			for(int li = 0; li < lCount; li++)
+			{
+				lCx += lPoly[li * 2] / lCount;
+				lCy += lPoly[li * 2 + 1] / lCount;
+			}
+			for(int li = 0; li < lCount * 2; li++)
+			{
+				int lA = li / 2;
+				int lB = (li % 2 == 0) ? lA : (lA + 1) % lCount;
+				float lX = (lPoly[lA * 2] + lPoly[lB * 2]) / 2;
+				float lY = (lPoly[lA * 2 + 1] + lPoly[lB * 2 + 1]) / 2;
+				float lDx = lCx - lX;
+				float lDy = lCy - lY;
+				float lLength = (float) Math.sqrt(lDx * lDx + lDy * lDy);
+				if(lLength > EPSILON)
+				{
+					lX += lDx / lLength * EPSILON * 2;
+					lY += lDy / lLength * EPSILON * 2;
+				}
+				int lSampleRoom = lClassifier.classify(lX, lY);
+				if(lSampleRoom == PolyClassifier.NO_ROOM)
+				{
+					oProblems.add(new Problem(Problem.OUTSIDE, iFootprint.mUid, -1));
+					return;
+				}
+				lWall |= lSampleRoom != lRoom;
+			}
+		}
+		if(lWall)
+		{
+			oProblems.add(new Problem(Problem.WALL, iFootprint.mUid, -1));
+		}
+	}
+
+	/**
+	 * The polygons covered by an item, in world space.
+	 */
+	private static class Footprint {
+
+		private final int mUid;
+		private final int mFloor;
+		//The item's position
+		private final float mX;
+		private final float mY;
+		//Packed (x,y) vertices of each polygon
+		private final float[][] mPolys;
+		private float mMinX = Float.MAX_VALUE;
+		private float mMinY = Float.MAX_VALUE;
+		private float mMaxX = -Float.MAX_VALUE;
+		private float mMaxY = -Float.MAX_VALUE;
+		//Built the first time an exact test is needed
+		private Area mArea;
+
+		private Footprint(int iUid, int iFloor, float iX, float iY, float[][] iPolys)
+		{
+			mUid = iUid;
+			mFloor = iFloor;
+			mX = iX;
+			mY = iY;
+			mPolys = iPolys;
+			for(float[] lPoly : iPolys)
+			{
+				for(int li = 0; li < lPoly.length; li += 2)
+				{
+					mMinX = Math.min(mMinX, lPoly[li]);
+					mMinY = Math.min(mMinY, lPoly[li + 1]);
+					mMaxX = Math.max(mMaxX, lPoly[li]);
+					mMaxY = Math.max(mMaxY, lPoly[li + 1]);
+				}
+			}
+		}
+
+		/**
+		 * The keys of the grid cells which the footprint's bounds cover.
+		 */
+		private long[] getCells()
+		{
+			int lMinCx = (int) Math.floor(mMinX / CELL_SIZE);
+			int lMinCy = (int) Math.floor(mMinY / CELL_SIZE);
+			int lMaxCx = (int) Math.floor(mMaxX / CELL_SIZE);
+			int lMaxCy = (int) Math.floor(mMaxY / CELL_SIZE);
+			long[] lCells = new long[(lMaxCx - lMinCx + 1) * (lMaxCy - lMinCy + 1)];
+			int lIndex = 0;
+			for(int lCx = lMinCx; lCx <= lMaxCx; lCx++)
+			{
+				for(int lCy = lMinCy; lCy <= lMaxCy; lCy++)
+				{
+					lCells[lIndex++] = ((long) lCx << 32) | (lCy & 0xffffffffL);
+				}
+			}
+			return lCells;
+		}
+
+		private boolean overlaps(Footprint iOther)
+		{
+			if(mMaxX - iOther.mMinX <= EPSILON || iOther.mMaxX - mMinX <= EPSILON
+					|| mMaxY - iOther.mMinY <= EPSILON || iOther.mMaxY - mMinY <= EPSILON)
+			{
+				return false;
+			}
+			for(float[] lPoly : mPolys)
+			{
+				for(float[] lOtherPoly : iOther.mPolys)
+				{
+					if(edgesCross(lPoly, lOtherPoly) || hasVertexInside(lPoly, lOtherPoly) || hasVertexInside(lOtherPoly, lPoly))
+					{
+						return true;
+					}
+				}
+			}
+			//What is left are footprints which are apart or only touch, and the rarer
+			//overlaps whose edges lie along each other, which need an exact test
+			Area lIntersection = new Area(getArea());
+			lIntersection.intersect(iOther.getArea());
+			Rectangle2D lBounds = lIntersection.getBounds2D();
+			return lBounds.getWidth() > EPSILON && lBounds.getHeight() > EPSILON;
+		}
+
+		private Area getArea()
+		{
+			if(mArea == null)
+			{
+				Path2D.Float lPath = new Path2D.Float(Path2D.WIND_NON_ZERO);
+				for(float[] lPoly : mPolys)
+				{
+					if(lPoly.length < 6)
+					{
+						continue;
+					}
+					lPath.moveTo(lPoly[0], lPoly[1]);
+					for(int li = 2; li < lPoly.length; li += 2)
+					{
+						lPath.lineTo(lPoly[li], lPoly[li + 1]);
+					}
+					lPath.closePath();
+				}
+				mArea = new Area(lPath);
+			}
+			return mArea;
+		}
+	}
+
+	/**
+	 * Tests whether an edge of one polygon properly crosses an edge of another.
+	 */
+	private static boolean edgesCross(float[] iA, float[] iB)
+	{
+		int lCountA = iA.length / 2;
+		int lCountB = iB.length / 2;
+		for(int li = 0; li < lCountA; li++)
+		{
+			float lAx = iA[li * 2];
+			float lAy = iA[li * 2 + 1];
+			float lBx = iA[((li + 1) % lCountA) * 2];
+			float lBy = iA[((li + 1) % lCountA) * 2 + 1];
+			for(int lj = 0; lj < lCountB; lj++)
+			{
+				float lCx = iB[lj * 2];
+				float lCy = iB[lj * 2 + 1];
+				float lDx = iB[((lj + 1) % lCountB) * 2];
+				float lDy = iB[((lj + 1) % lCountB) * 2 + 1];
+				//Signed distances of each segment's ends from the other's line
+				float lD1 = side(lAx, lAy, lBx, lBy, lCx, lCy);
+				float lD2 = side(lAx, lAy, lBx, lBy, lDx, lDy);
+				float lD3 = side(lCx, lCy, lDx, lDy, lAx, lAy);
+				float lD4 = side(lCx, lCy, lDx, lDy, lBx, lBy);
+				if(((lD1 > EPSILON && lD2 < -EPSILON) || (lD1 < -EPSILON && lD2 > EPSILON))
+						&& ((lD3 > EPSILON && lD4 < -EPSILON) || (lD3 < -EPSILON && lD4 > EPSILON)))
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The signed distance of (iPx,iPy) from the line through (iAx,iAy) and (iBx,iBy).
+	 */
+	private static float side(float iAx, float iAy, float iBx, float iBy, float iPx, float iPy)
+	{
+		float lDx = iBx - iAx;
+		float lDy = iBy - iAy;
+		float lLength = (float) Math.sqrt(lDx * lDx + lDy * lDy);
+		if(lLength == 0)
+		{
+			return 0;
+		}
+		return (lDx * (iPy - iAy) - lDy * (iPx - iAx)) / lLength;
+	}
+
+	/**
+	 * Tests whether a vertex of one polygon lies inside another, further than EPSILON
+	 * from its edges.
+	 */
+	private static boolean hasVertexInside(float[] iPoly, float[] iContainer)
+	{
+		for(int li = 0; li < iPoly.length; li += 2)
+		{
+			if(contains(iContainer, iPoly[li], iPoly[li + 1]))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean contains(float[] iPoly, float iX, float iY)
+	{
+		int lCount = iPoly.length / 2;
+		boolean lInside = false;
+		for(int li = 0, lj = lCount - 1; li < lCount; lj = li++)
+		{
+			float lXi = iPoly[li * 2];
+			float lYi = iPoly[li * 2 + 1];
+			float lXj = iPoly[lj * 2];
+			float lYj = iPoly[lj * 2 + 1];
+			if(segmentDistance(lXj, lYj, lXi, lYi, iX, iY) <= EPSILON)
+			{
+				return false;
+			}
+			if((lYi > iY) != (lYj > iY) && iX < (lXj - lXi) * (iY - lYi) / (lYj - lYi) + lXi)
+			{
+				lInside = !lInside;
+			}
+		}
+		return lInside;
+	}
+
+	private static float segmentDistance(float iAx, float iAy, float iBx, float iBy, float iPx, float iPy)
+	{
+		float lDx = iBx - iAx;
+		float lDy = iBy - iAy;
+		float lLengthSq = lDx * lDx + lDy * lDy;
+		float lT = lLengthSq == 0 ? 0 : Math.max(0, Math.min(1, ((iPx - iAx) * lDx + (iPy - iAy) * lDy) / lLengthSq));
+		float lX = iAx + lT * lDx - iPx;
+		float lY = iAy + lT * lDy - iPy;
+		return (float) Math.sqrt(lX * lX + lY * lY);
+	}
+
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+import ojw28.orm.ItemDef;
+import ojw28.orm.ItemDefPoly;
+import ojw28.orm.PlacedItem;
+import ojw28.orm.utils.FloorPoly;
+import ojw28.orm.utils.Map25D;
+
+/**
+ * Draws a floor of the map and the items placed on it into an image, in the same way as
+ * the client: floor polygons are filled with their walls outlined, and each item's
+ * polygons are drawn in their fill and edge colours after the item has been flipped,
+ * rotated by theta degrees and moved to its position. Map y increases down the image.
+ *
+ * Only offscreen images are drawn into, so rendering works with no display attached. A
+ * renderer holds no state, so one can be used from several threads at once.
+ * @author ojw28
+ */
+public class FloorRenderer {
+
+	private static final Color BACKGROUND = Color.WHITE;
+	private static final Color FLOOR_FILL = new Color(0xeeeeee);
+	private static final Color WALL = new Color(0x333333);
+	//Widths of lines, in pixels
+	private static final float WALL_WIDTH = 2f;
+	private static final float EDGE_WIDTH = 1f;
+
+	private final ItemDefHandler mItemDefs;
+
+	/**
+	 * Constructor.
+	 * @param iItemDefs The library from which the shape of each item is taken
+	 */
+	public FloorRenderer(ItemDefHandler iItemDefs)
+	{
+		mItemDefs = iItemDefs;
+	}
+
+	/**
+	 * Draws a floor.
+	 * @param iSubmap The floor's submap
+	 * @param iItems The items on the floor
+	 * @param iMinX The map x coordinate at the left of the image
+	 * @param iMinY The map y coordinate at the top of the image
+	 * @param iScale The number of pixels per map unit
+	 * @param iWidth The width of the image in pixels
+	 * @param iHeight The height of the image in pixels
+	 * @return The image
+	 */
+	public BufferedImage render(Map25D iSubmap, List<PlacedItem> iItems, float iMinX, float iMinY, float iScale, int iWidth, int iHeight)
+	{
+		BufferedImage lImage = new BufferedImage(iWidth, iHeight, BufferedImage.TYPE_INT_RGB);
+		Graphics2D lGraphics = lImage.createGraphics();
+		try
+		{
+			lGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			lGraphics.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+			lGraphics.setColor(BACKGROUND);
+			lGraphics.fillRect(0, 0, iWidth, iHeight);
+
+			//Draw in map units from here on
+			lGraphics.scale(iScale, iScale);
+			lGraphics.translate(-iMinX, -iMinY);
+			drawFloor(lGraphics, iSubmap, iScale);
+			for(PlacedItem lItem : iItems)
+			{
+				drawItem(lGraphics, lItem, iScale);
+			}
+		}
+		finally
+		{
+			lGraphics.dispose();
+		}
+		return lImage;
+	}
+
+	private void drawFloor(Graphics2D iGraphics, Map25D iSubmap, float iScale)
+	{
+		Path2D.Float lOutline = new Path2D.Float();
+		for(FloorPoly lPoly : iSubmap.getFloorPolys())
+		{
+			appendOutline(lOutline, lPoly.getVertices(), 3);
+		}
+		iGraphics.setColor(FLOOR_FILL);
+		iGraphics.fill(lOutline);
+
+		//Only the walls are outlined, so that the rooms joined by connectors read as one space
+		iGraphics.setColor(WALL);
+		iGraphics.setStroke(new BasicStroke(WALL_WIDTH / iScale, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+		Line2D.Float lWall = new Line2D.Float();
+		for(FloorPoly lPoly : iSubmap.getFloorPolys())
+		{
+			float[] lVertices = lPoly.getVertices();
+			int lCount = lVertices.length / 3;
+			for(int li = 0; li < lCount; li++)
+			{
+				if(lPoly.getConnectionId(li) == null)
+				{
+					int lNext = (li + 1) % lCount;
+					lWall.setLine(lVertices[li * 3], lVertices[li * 3 + 1], lVertices[lNext * 3], lVertices[lNext * 3 + 1]);
+					iGraphics.draw(lWall);
+				}
+			}
+		}
+	}
+
+	private void drawItem(Graphics2D iGraphics, PlacedItem iItem, float iScale)
+	{
+		ItemDef lDef = mItemDefs.getItemDef(iItem.getItemDefId());
+		if(lDef == null || lDef.getPolys() == null)
+		{
+			return;
+		}
+		AffineTransform lSaved = iGraphics.getTransform();
+		iGraphics.translate(iItem.getX(), iItem.getY());
+		iGraphics.rotate(Math.toRadians(iItem.getTheta()));
+		if(iItem.isFlipped())
+		{
+			iGraphics.scale(-1, 1);
+		}
+		iGraphics.setStroke(new BasicStroke(EDGE_WIDTH / iScale));
+		for(ItemDefPoly lPoly : lDef.getPolys())
+		{
+			Path2D.Float lShape = new Path2D.Float();
+			appendOutline(lShape, lPoly.getVertices(), 2);
+			if(lPoly.getFillAlpha() > 0)
+			{
+				iGraphics.setColor(colour(lPoly.getFillColour(), lPoly.getFillAlpha()));
+				iGraphics.fill(lShape);
+			}
+			if(lPoly.getEdgeAlpha() > 0)
+			{
+				iGraphics.setColor(colour(lPoly.getEdgeColour(), lPoly.getEdgeAlpha()));
+				iGraphics.draw(lShape);
+			}
+		}
+		iGraphics.setTransform(lSaved);
+	}
+
+	/**
+	 * Adds a closed outline to a path.
+	 * @param oPath The path
+	 * @param iVertices The packed vertices
+	 * @param iStride The number of floats per vertex, of which the first two are x and y
+	 */
+	private static void appendOutline(Path2D.Float oPath, float[] iVertices, int iStride)
+	{
+		if(iVertices.length < iStride * 2)
+		{
+			return;
+		}
+		oPath.moveTo(iVertices[0], iVertices[1]);
+		for(int li = iStride; li < iVertices.length; li += iStride)
+		{
+			oPath.lineTo(iVertices[li], iVertices[li + 1]);
+		}
+		oPath.closePath();
+	}
+
+	/**
+	 * Converts an item colour, an 0xRRGGBB value with an alpha from 0 to 1, to a Color.
+	 */
+	private static Color colour(int iRgb, float iAlpha)
+	{
+		int lAlpha = Math.max(0, Math.min(255, Math.round(iAlpha * 255)));
+		return new Color((lAlpha << 24) | (iRgb & 0xffffff), true);
+	}
+
+}
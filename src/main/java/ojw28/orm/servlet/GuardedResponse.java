@@ -0,0 +1,338 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A response given to a route which may still be running when its request is answered
+ * by someone else, such as the router on a timeout. Every change to the response and
+ * every write to its body is made while holding the response's monitor, and once the
+ * response is closed they are all dropped, so the route cannot touch the response while
+ * it is being answered, or after it has been answered.
+ * @author ojw28
+ */
+class GuardedResponse extends HttpServletResponseWrapper {
+
+	private boolean mClosed = false;
+	private ServletOutputStream mOutputStream;
+	private PrintWriter mWriter;
+
+	GuardedResponse(HttpServletResponse iResponse)
+	{
+		super(iResponse);
+	}
+
+	/**
+	 * Drops every later change to the response. The caller may answer the request through
+	 * the wrapped response while it holds this response's monitor.
+	 */
+	synchronized void close()
+	{
+		mClosed = true;
+	}
+
+	public synchronized ServletOutputStream getOutputStream() throws IOException
+	{
+		if(mOutputStream == null)
+		{
+			mOutputStream = new GuardedOutputStream(mClosed ? null : super.getOutputStream());
+		}
+		return mOutputStream;
+	}
+
+	public synchronized PrintWriter getWriter() throws IOException
+	{
+		if(mWriter == null)
+		{
+			mWriter = new PrintWriter(new GuardedWriter(mClosed ? null : super.getWriter()));
+		}
+		return mWriter;
+	}
+
+	public synchronized boolean isCommitted()
+	{
+		return mClosed || super.isCommitted();
+	}
+
+	public synchronized void sendError(int iStatus) throws IOException
+	{
+		if(!mClosed)
+		{
+			super.sendError(iStatus);
+		}
+	}
+
+	public synchronized void sendError(int iStatus, String iMessage) throws IOException
+	{
+		if(!mClosed)
+		{
+			super.sendError(iStatus, iMessage);
+		}
+	}
+
+	public synchronized void sendRedirect(String iLocation) throws IOException
+	{
+		if(!mClosed)
+		{
+			super.sendRedirect(iLocation);
+		}
+	}
+
+	public synchronized void setStatus(int iStatus)
+	{
+		if(!mClosed)
+		{
+			super.setStatus(iStatus);
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	public synchronized void setStatus(int iStatus, String iMessage)
+	{
+		if(!mClosed)
+		{
+			super.setStatus(iStatus, iMessage);
+		}
+	}
+
+	public synchronized void setHeader(String iName, String iValue)
+	{
+		if(!mClosed)
+		{
+			super.setHeader(iName, iValue);
+		}
+	}
+
+	public synchronized void addHeader(String iName, String iValue)
+	{
+		if(!mClosed)
+		{
+			super.addHeader(iName, iValue);
+		}
+	}
+
+	public synchronized void setIntHeader(String iName, int iValue)
+	{
+		if(!mClosed)
+		{
+			super.setIntHeader(iName, iValue);
+		}
+	}
+
+	public synchronized void addIntHeader(String iName, int iValue)
+	{
+		if(!mClosed)
+		{
+			super.addIntHeader(iName, iValue);
+		}
+	}
+
+	public synchronized void setDateHeader(String iName, long iDate)
+	{
+		if(!mClosed)
+		{
+			super.setDateHeader(iName, iDate);
+		}
+	}
+
+	public synchronized void addDateHeader(String iName, long iDate)
+	{
+		if(!mClosed)
+		{
+			super.addDateHeader(iName, iDate);
+		}
+	}
+
+	public synchronized void addCookie(Cookie iCookie)
+	{
+		if(!mClosed)
+		{
+			super.addCookie(iCookie);
+		}
+	}
+
+	public synchronized void setContentType(String iType)
+	{
+		if(!mClosed)
+		{
+			super.setContentType(iType);
+		}
+	}
+
+	public synchronized void setContentLength(int iLength)
+	{
+		if(!mClosed)
+		{
+			super.setContentLength(iLength);
+		}
+	}
+
+	public synchronized void setCharacterEncoding(String iEncoding)
+	{
+		if(!mClosed)
+		{
+			super.setCharacterEncoding(iEncoding);
+		}
+	}
+
+	public synchronized void setLocale(Locale iLocale)
+	{
+		if(!mClosed)
+		{
+			super.setLocale(iLocale);
+		}
+	}
+
+	public synchronized void setBufferSize(int iSize)
+	{
+		if(!mClosed)
+		{
+			super.setBufferSize(iSize);
+		}
+	}
+
+	public synchronized void flushBuffer() throws IOException
+	{
+		if(!mClosed)
+		{
+			super.flushBuffer();
+		}
+	}
+
+	public synchronized void reset()
+	{
+		if(!mClosed)
+		{
+			super.reset();
+		}
+	}
+
+	public synchronized void resetBuffer()
+	{
+		if(!mClosed)
+		{
+			super.resetBuffer();
+		}
+	}
+
+	/**
+	 * Writes to the response's output stream until the response is closed.
+	 */
+	private class GuardedOutputStream extends ServletOutputStream
+	{
+		private final ServletOutputStream mOut;
+
+		private GuardedOutputStream(ServletOutputStream iOut)
+		{
+			mOut = iOut;
+		}
+
+		public void write(int iByte) throws IOException
+		{
+			synchronized(GuardedResponse.this)
+			{
+				if(!mClosed)
+				{
+					mOut.write(iByte);
+				}
+			}
+		}
+
+		public void write(byte[] iBytes, int iOffset, int iLength) throws IOException
+		{
+			synchronized(GuardedResponse.this)
+			{
+				if(!mClosed)
+				{
+					mOut.write(iBytes, iOffset, iLength);
+				}
+			}
+		}
+
+		public void flush() throws IOException
+		{
+			synchronized(GuardedResponse.this)
+			{
+				if(!mClosed)
+				{
+					mOut.flush();
+				}
+			}
+		}
+
+		public void close() throws IOException
+		{
+			synchronized(GuardedResponse.this)
+			{
+				if(!mClosed)
+				{
+					mOut.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes to the response's writer until the response is closed.
+	 */
+	private class GuardedWriter extends Writer
+	{
+		private final PrintWriter mOut;
+
+		private GuardedWriter(PrintWriter iOut)
+		{
+			mOut = iOut;
+		}
+
+		public void write(char[] iChars, int iOffset, int iLength)
+		{
+			synchronized(GuardedResponse.this)
+			{
+				if(!mClosed)
+				{
+					mOut.write(iChars, iOffset, iLength);
+				}
+			}
+		}
+
+		public void flush()
+		{
+			synchronized(GuardedResponse.this)
+			{
+				if(!mClosed)
+				{
+					mOut.flush();
+				}
+			}
+		}
+
+		public void close()
+		{
+			synchronized(GuardedResponse.this)
+			{
+				if(!mClosed)
+				{
+					mOut.close();
+				}
+			}
+		}
+	}
+
+}
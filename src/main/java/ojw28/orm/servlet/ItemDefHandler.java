@@ -10,12 +10,20 @@
  *******************************************************************************/
 package ojw28.orm.servlet;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,121 +35,284 @@ import javax.xml.transform.TransformerConfigurationException;
 import ojw28.orm.ItemDef;
 import ojw28.orm.ItemDefPoly;
 import ojw28.orm.utils.DbConnectionPool;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import ojw28.orm.utils.Metrics;
+import ojw28.orm.utils.XmlResponseWriter;
 
 public class ItemDefHandler extends ServletRequestHandler 
 {
     private static Logger mLogger = Logger.getLogger("ojw28.orm.servlet.ItemDefHandler");
 
-	public ItemDefHandler() throws ParserConfigurationException, TransformerConfigurationException, InterruptedException
+	private static final Metrics mVersionMetrics = Metrics.getQuery("component_version");
+	private static final Metrics mPolyMetrics = Metrics.getQuery("component_polygons");
+	private static final Metrics mDefMetrics = Metrics.getQuery("component_definitions");
+
+	//A checksum over the tables from which the component library is built
+	private static final String VERSION_QUERY = "SELECT md5(" +
+			"(SELECT coalesce(string_agg(def_id||':'||name||':'||ordering||':'||category||':'||coalesce(image_file,'')||':'||" +
+			"coalesce(description,'')||':'||height||':'||flipable||':'||field_label||':'||movable, ',' ORDER BY def_id), '') FROM item_definition_table) || '|' || " +
+			"(SELECT coalesce(string_agg(item_def_id||':'||poly_id||':'||fill_colour||':'||fill_alpha||':'||edge_colour||':'||edge_alpha, ',' ORDER BY poly_id), '') FROM item_polygon_table) || '|' || " +
+			"(SELECT coalesce(string_agg(poly_id||':'||vertex_id||':'||x||':'||y, ',' ORDER BY poly_id, vertex_id), '') FROM item_polygon_vertex_table))";
+	
+	//The current library. Replaced as a whole whenever the definitions change.
+	private volatile Library mLibrary;
+	private ScheduledExecutorService mRefresher;
+
+	/**
+	 * Constructor.
+	 * @param iRefreshInterval The interval in seconds at which the database is checked
+	 * for changes to the item definitions, or 0 to disable reloading
+	 */
+	public ItemDefHandler(int iRefreshInterval) throws ParserConfigurationException, TransformerConfigurationException, InterruptedException
 	{		
-		super("/components");
+		refresh();
+		if(mLibrary == null)
+		{
+			throw new IllegalStateException("Failed to load the component library");
+		}
+		if(iRefreshInterval > 0)
+		{
+			mRefresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable iTask)
+				{
+					Thread lThread = new Thread(iTask, "ComponentRefresher");
+					lThread.setDaemon(true);
+					return lThread;
+				}
+			});
+			mRefresher.scheduleWithFixedDelay(new Runnable() {
+				public void run()
+				{
+					refresh();
+				}
+			}, iRefreshInterval, iRefreshInterval, TimeUnit.SECONDS);
+		}
 		mLogger.info("Handler successfully initialised");
 	}
 
-	public void handleRequest(HttpServletRequest request, HttpServletResponse response) {
+	public void addRoutes(RequestRouter iRouter) {
+		iRouter.add("/components", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+			{
+				mLibrary.mResponse.write(request, response);
+			}
+		}, RequestRouter.GET);
+	}
+	
+	/**
+	 * Gets an item definition from the current library.
+	 * @param iItemDefId The definition's id
+	 * @return The definition, or null if there is no such definition
+	 */
+	public ItemDef getItemDef(int iItemDefId)
+	{
+		return mLibrary.mDefsById.get(iItemDefId);
+	}
+	
+	/**
+	 * A checksum of the item definitions in the current library.
+	 * @return The version
+	 */
+	public String getLibraryVersion()
+	{
+		return mLibrary.mVersion;
+	}
+	
+	/**
+	 * Stops the background refresh of the library.
+	 */
+	public void stop()
+	{
+		if(mRefresher != null)
+		{
+			mRefresher.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Reloads and re-serializes the library if the item definitions have changed since
+	 * it was last loaded.
+	 */
+	public synchronized void refresh()
+	{
 		try
 		{
-			Document lDocument = createDocument("ComponentLibrary");
-			Element lRoot = lDocument.getDocumentElement();
-			buildItemDefinitionXml(lDocument, lRoot);
-			writeXmlResponse(lDocument, response);
+			Connection lConnection = DbConnectionPool.getSingleton().getReadConnection();
+			try
+			{
+				String lVersion = queryVersion(lConnection);
+				if(mLibrary != null && mLibrary.mVersion.equals(lVersion))
+				{
+					return;
+				}
+				
+				long lStartTime = System.currentTimeMillis();
+				ItemDef[] lDefs = loadItemDefs(lConnection);
+				mLibrary = new Library(lVersion, lDefs, serializeLibrary(lDefs));
+				mLogger.info("Loaded "+lDefs.length+" item definitions in "+(System.currentTimeMillis() - lStartTime)+"ms");
+			}
+			finally
+			{
+				lConnection.close();
+			}
 		}
 		catch(Exception lE)
-		{                
-			mLogger.log(Level.SEVERE, "Exception caught while handling request :\t"+ request.getPathInfo(), lE);
+		{
+			mLogger.log(Level.SEVERE, "Exception caught while refreshing component library", lE);
+		}
+	}
+	
+	private String queryVersion(Connection iConnection) throws SQLException
+	{
+		long lStartTime = System.nanoTime();
+		int lRows = -1;
+		PreparedStatement lStatement = iConnection.prepareStatement(VERSION_QUERY);
+		try
+		{
+			ResultSet lResult = lStatement.executeQuery();
+			lResult.next();
+			String lVersion = lResult.getString(1);
+			lResult.close();
+			lRows = 1;
+			return lVersion;
+		}
+		finally
+		{
+			lStatement.close();
+			mVersionMetrics.record(lStartTime, lRows);
 		}
 	}
 
-	private void buildItemDefinitionXml(Document iDocument, Element iParent) throws SQLException
+	/**
+	 * Loads every item definition using two queries: one for the definitions and one for
+	 * their polygons joined with the polygon vertices, ordered so that each polygon's
+	 * vertices arrive together and in order.
+	 */
+	private ItemDef[] loadItemDefs(Connection iConnection) throws SQLException
 	{
-		Connection lItemConn = DbConnectionPool.getSingleton().getConnection();
+		HashMap<Integer, ArrayList<ItemDefPoly>> lPolysByDef = new HashMap<Integer, ArrayList<ItemDefPoly>>();
+		long lStartTime = System.nanoTime();
+		int lRows = -1;
+		PreparedStatement lPolyStatement = iConnection.prepareStatement(
+				"SELECT item_polygon_table.*, x, y FROM item_polygon_table " +
+				"LEFT JOIN item_polygon_vertex_table ON item_polygon_table.poly_id = item_polygon_vertex_table.poly_id " +
+				"ORDER BY item_polygon_table.item_def_id, item_polygon_table.poly_id, vertex_id");
 		try
 		{
-			PreparedStatement lPolyStatement = lItemConn.prepareStatement("SELECT * FROM item_polygon_table WHERE item_def_id=?");
-			try
+			ResultSet lPolyRes = lPolyStatement.executeQuery();
+			int lRowCount = 0;
+			boolean lHasRow = lPolyRes.next();
+			float[] lVertices = new float[64];
+			while(lHasRow)
 			{
-				PreparedStatement lVertexStatement = lItemConn.prepareStatement("SELECT * FROM item_polygon_vertex_table WHERE poly_id=?");
-				try
+				int lItemDefId = lPolyRes.getInt("item_def_id");
+				int lPolyId = lPolyRes.getInt("poly_id");
+				int lFillColour = lPolyRes.getInt("fill_colour");
+				float lFillAlpha = lPolyRes.getFloat("fill_alpha");
+				int lEdgeColour = lPolyRes.getInt("edge_colour");
+				float lEdgeAlpha = lPolyRes.getFloat("edge_alpha");
+				
+				int lVertexCount = 0;
+				while(lHasRow && lPolyRes.getInt("poly_id") == lPolyId)
 				{
-					Statement lItemStatement = lItemConn.createStatement();
-					try
+					float lX = lPolyRes.getFloat("x");
+					//A polygon without vertices is joined with a single row of nulls
+					if(!lPolyRes.wasNull())
 					{
-						ResultSet lItemRes = lItemStatement.executeQuery("SELECT * FROM item_definition_table ORDER BY ordering,name");
-
-						while(lItemRes.next())
+						if(lVertexCount + 2 > lVertices.length)
 						{
-							int lItemId = lItemRes.getInt("def_id");
-							String lName = lItemRes.getString("name");
-							int lOrdering = lItemRes.getInt("ordering");
-							String lCategory = lItemRes.getString("category");
-							String lImageFile = lItemRes.getString("image_file");
-							String lDescription = lItemRes.getString("description");
-							String lFieldLabel = lItemRes.getString("field_label");
-							
-							float lHeight = lItemRes.getFloat("height");
-							boolean lFlipable = lItemRes.getBoolean("flipable");
-							boolean lMovable = lItemRes.getBoolean("movable");
-
-							lPolyStatement.setInt(1, lItemId);
-							ResultSet lPolyRes = lPolyStatement.executeQuery();
-							ArrayList<ItemDefPoly> lTempPolys = new ArrayList<ItemDefPoly>();
-
-							while(lPolyRes.next())
-							{
-								int lPolyId = lPolyRes.getInt("poly_id");
-								int lFillColour = lPolyRes.getInt("fill_colour");
-								float lFillAlpha = lPolyRes.getFloat("fill_alpha");
-								int lEdgeColour = lPolyRes.getInt("edge_colour");
-								float lEdgeAlpha = lPolyRes.getFloat("edge_alpha");
-
-								lVertexStatement.setInt(1, lPolyId);
-								ResultSet lVertexRes = lVertexStatement.executeQuery();
-								ArrayList<Float> lTempVertices = new ArrayList<Float>();
-
-								while(lVertexRes.next())
-								{
-									lTempVertices.add(lVertexRes.getFloat("x"));
-									lTempVertices.add(lVertexRes.getFloat("y"));
-								}
-
-								float[] lVertexArray = new float[lTempVertices.size()];
-								for(int li = 0; li < lVertexArray.length; li++)
-								{
-									lVertexArray[li] = lTempVertices.get(li);
-								}
-
-								lTempPolys.add(new ItemDefPoly(lVertexArray,lFillColour,lFillAlpha,lEdgeColour,lEdgeAlpha));
-							}
-
-							ItemDefPoly[] lPolyArray = new ItemDefPoly[lTempPolys.size()];
-							lTempPolys.toArray(lPolyArray);
-
-
-							ItemDef lDef = new ItemDef(lItemId,lName,lOrdering,lCategory,lImageFile,lDescription,lFieldLabel,lFlipable,lMovable,lHeight,lPolyArray);
-							lDef.writeToXml(iDocument, iParent);
+							lVertices = Arrays.copyOf(lVertices, lVertices.length * 2);
 						}
+						lVertices[lVertexCount++] = lX;
+						lVertices[lVertexCount++] = lPolyRes.getFloat("y");
 					}
-					finally
-					{
-						lItemStatement.close();
-					}
+					lHasRow = lPolyRes.next();
+					lRowCount++;
 				}
-				finally
+				
+				ArrayList<ItemDefPoly> lPolys = lPolysByDef.get(lItemDefId);
+				if(lPolys == null)
 				{
-					lVertexStatement.close();
+					lPolys = new ArrayList<ItemDefPoly>();
+					lPolysByDef.put(lItemDefId, lPolys);
 				}
+				lPolys.add(new ItemDefPoly(Arrays.copyOf(lVertices, lVertexCount),lFillColour,lFillAlpha,lEdgeColour,lEdgeAlpha));
 			}
-			finally
+			lPolyRes.close();
+			lRows = lRowCount;
+		}
+		finally
+		{
+			lPolyStatement.close();
+			mPolyMetrics.record(lStartTime, lRows);
+		}
+		
+		ArrayList<ItemDef> lDefs = new ArrayList<ItemDef>();
+		lStartTime = System.nanoTime();
+		lRows = -1;
+		PreparedStatement lItemStatement = iConnection.prepareStatement("SELECT * FROM item_definition_table ORDER BY ordering,name");
+		try
+		{
+			ResultSet lItemRes = lItemStatement.executeQuery();
+			while(lItemRes.next())
 			{
-				lPolyStatement.close();
+				int lItemId = lItemRes.getInt("def_id");
+				String lName = lItemRes.getString("name");
+				int lOrdering = lItemRes.getInt("ordering");
+				String lCategory = lItemRes.getString("category");
+				String lImageFile = lItemRes.getString("image_file");
+				String lDescription = lItemRes.getString("description");
+				String lFieldLabel = lItemRes.getString("field_label");
+				
+				float lHeight = lItemRes.getFloat("height");
+				boolean lFlipable = lItemRes.getBoolean("flipable");
+				boolean lMovable = lItemRes.getBoolean("movable");
+				
+				ArrayList<ItemDefPoly> lPolys = lPolysByDef.get(lItemId);
+				ItemDefPoly[] lPolyArray = lPolys == null ? new ItemDefPoly[0] : lPolys.toArray(new ItemDefPoly[lPolys.size()]);
+				
+				lDefs.add(new ItemDef(lItemId,lName,lOrdering,lCategory,lImageFile,lDescription,lFieldLabel,lFlipable,lMovable,lHeight,lPolyArray));
 			}
+			lItemRes.close();
+			lRows = lDefs.size();
 		}
 		finally
 		{
-			lItemConn.close();
+			lItemStatement.close();
+			mDefMetrics.record(lStartTime, lRows);
+		}
+		return lDefs.toArray(new ItemDef[lDefs.size()]);
+	}
+	
+	private CachedResponse serializeLibrary(ItemDef[] iDefs) throws IOException
+	{
+		ByteArrayOutputStream lBytes = new ByteArrayOutputStream();
+		XmlResponseWriter lWriter = new XmlResponseWriter(new OutputStreamWriter(lBytes, "UTF-8"));
+		lWriter.startElement("ComponentLibrary");
+		for(ItemDef lDef : iDefs)
+		{
+			lDef.writeToXml(lWriter);
+		}
+		lWriter.endDocument();
+		return new CachedResponse(lBytes.toByteArray(), "text/xml; charset=UTF-8");
+	}
+	
+	/**
+	 * An immutable, fully loaded version of the component library.
+	 */
+	private static class Library
+	{
+		private final String mVersion;
+		private final HashMap<Integer, ItemDef> mDefsById = new HashMap<Integer, ItemDef>();
+		private final CachedResponse mResponse;
+		
+		private Library(String iVersion, ItemDef[] iDefs, CachedResponse iResponse)
+		{
+			mVersion = iVersion;
+			for(ItemDef lDef : iDefs)
+			{
+				mDefsById.put(lDef.getItemDefId(), lDef);
+			}
+			mResponse = iResponse;
 		}
 	}
 }
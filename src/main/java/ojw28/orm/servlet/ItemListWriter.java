@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.io.IOException;
+
+import ojw28.orm.PlacedItem;
+import ojw28.orm.utils.BinaryWriter;
+import ojw28.orm.utils.XmlResponseWriter;
+
+/**
+ * Streams a list of placed items, together with an update token, in either the XML or
+ * the binary encoding.
+ * @author ojw28
+ */
+public abstract class ItemListWriter {
+
+	public static final int FLAG_FLIPPED = 1;
+	public static final int FLAG_DELETED = 2;
+
+	/**
+	 * Writes a single item.
+	 * @throws IOException If an IOException occurs
+	 */
+	public abstract void writeItem(int iUid, int iItemDefId, float iX, float iY, int iTheta, int iFloor, boolean iFlipped, boolean iDeleted, String iLabel) throws IOException;
+
+	/**
+	 * Ends the list and flushes the output.
+	 * @throws IOException If an IOException occurs
+	 */
+	public abstract void end() throws IOException;
+
+	public void writeItem(PlacedItem iItem) throws IOException
+	{
+		writeItem(iItem.getUid(), iItem.getItemDefId(), iItem.getX(), iItem.getY(), iItem.getTheta(),
+				iItem.getFloor(), iItem.isFlipped(), iItem.isDeleted(), iItem.getLabel());
+	}
+
+	/**
+	 * Writes each item as an Item element beneath a root element which carries the
+	 * update token.
+	 */
+	public static class Xml extends ItemListWriter {
+
+		private XmlResponseWriter mWriter;
+
+		public Xml(XmlResponseWriter iWriter, String iRootName, int iUpdateToken) throws IOException
+		{
+			mWriter = iWriter;
+			mWriter.startElement(iRootName);
+			mWriter.attribute("updatetoken", ""+iUpdateToken);
+		}
+
+		/**
+		 * The attributes are written in alphabetical order, so that the output matches
+		 * that of the serialized DOM.
+		 */
+		public void writeItem(int iUid, int iItemDefId, float iX, float iY, int iTheta, int iFloor, boolean iFlipped, boolean iDeleted, String iLabel) throws IOException
+		{
+			mWriter.startElement("Item");
+			mWriter.attribute("deleted", ""+iDeleted);
+			mWriter.attribute("flipped", ""+iFlipped);
+			mWriter.attribute("floor", ""+iFloor);
+			mWriter.attribute("item_def_id", ""+iItemDefId);
+			mWriter.attribute("label", iLabel);
+			mWriter.attribute("theta", ""+iTheta);
+			mWriter.attribute("uid", ""+iUid);
+			mWriter.attribute("x", ""+iX);
+			mWriter.attribute("y", ""+iY);
+			mWriter.endElement();
+		}
+
+		public void end() throws IOException
+		{
+			mWriter.endDocument();
+		}
+	}
+
+	/**
+	 * Writes an items payload: the update token as a varint, then each item preceded by
+	 * a 1 byte and encoded as uid (varint), item_def_id (varint), x and y (float),
+	 * theta (svarint), floor (varint), flags (FLAG_FLIPPED | FLAG_DELETED) and label
+	 * (string), then a terminating 0 byte.
+	 */
+	public static class Binary extends ItemListWriter {
+
+		private BinaryWriter mWriter;
+
+		public Binary(BinaryWriter iWriter, int iUpdateToken) throws IOException
+		{
+			mWriter = iWriter;
+			mWriter.writeVarint(iUpdateToken);
+		}
+
+		public void writeItem(int iUid, int iItemDefId, float iX, float iY, int iTheta, int iFloor, boolean iFlipped, boolean iDeleted, String iLabel) throws IOException
+		{
+			mWriter.writeByte(1);
+			mWriter.writeVarint(iUid);
+			mWriter.writeVarint(iItemDefId);
+			mWriter.writeFloat(iX);
+			mWriter.writeFloat(iY);
+			mWriter.writeSignedVarint(iTheta);
+			mWriter.writeVarint(iFloor);
+			mWriter.writeByte((iFlipped ? FLAG_FLIPPED : 0) | (iDeleted ? FLAG_DELETED : 0));
+			mWriter.writeString(iLabel);
+		}
+
+		public void end() throws IOException
+		{
+			mWriter.writeByte(0);
+			mWriter.flush();
+		}
+	}
+
+}
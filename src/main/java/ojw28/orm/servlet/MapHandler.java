@@ -10,20 +10,31 @@
  *******************************************************************************/
 package ojw28.orm.servlet;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
 
+import ojw28.orm.utils.BinaryWriter;
+import ojw28.orm.utils.DbConnectionPool;
+import ojw28.orm.utils.LevelOfDetail;
 import ojw28.orm.utils.Map25D;
 import ojw28.orm.utils.MapLoader;
+import ojw28.orm.utils.Metrics;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -34,79 +45,390 @@ public class MapHandler extends ServletRequestHandler {
 
 	private static Logger mLogger = Logger
 			.getLogger("ojw28.orm.servlet.MapHandler");
-	private Document mDocument;
 
-	public MapHandler() throws ParserConfigurationException,
-			TransformerConfigurationException, SQLException {
-		super("/getmap");
-		buildMapDocument();
+	private static final String XML_CONTENT_TYPE = "text/xml; charset=UTF-8";
+
+	private static final Metrics mVersionMetrics = Metrics
+			.getQuery("map_occupancy_version");
+	private static final Metrics mFloorVersionMetrics = Metrics
+			.getQuery("map_floor_versions");
+	private static final Metrics mOccupancyMetrics = Metrics
+			.getQuery("map_occupancy");
+
+	//The submaps, ordered by id, each with a checksum over the rows from which it is
+	//built, so that a change to one floor only causes that floor to be reloaded.
+	private static final String FLOOR_VERSION_QUERY = "SELECT submap_table.submapid, submap_table.name, md5("
+			+ "coalesce(string_agg(floorpoly_table.polyid||':'||floorpoly_table.vertexnum||':'||x||':'||y||':'||z||':'||coalesce(edgetarget, -1)"
+			+ "||':'||room_table.roomid||':'||coalesce(room_table.name, '')||':'||room_table.accesslevel, ','"
+			+ " ORDER BY floorpoly_table.polyid, floorpoly_table.vertexnum), '')) FROM submap_table"
+			+ " LEFT JOIN submappoly_table ON submap_table.submapid = submappoly_table.submapid"
+			+ " LEFT JOIN roompoly_table ON submappoly_table.polyid = roompoly_table.polyid"
+			+ " LEFT JOIN room_table ON roompoly_table.roomid = room_table.roomid"
+			+ " LEFT JOIN floorpoly_table ON roompoly_table.polyid = floorpoly_table.polyid"
+			+ " GROUP BY submap_table.submapid, submap_table.name ORDER BY submap_table.submapid";
+	//A checksum over the occupancy data
+	private static final String OCCUPANCY_VERSION_QUERY = "SELECT md5(coalesce(string_agg(crsid||':'||roomid, ',' ORDER BY crsid, roomid), '')) FROM occupants_table";
+
+	//The current snapshot. Replaced as a whole whenever the map is reloaded.
+	private volatile MapSnapshot mSnapshot;
+	private ScheduledExecutorService mRefresher;
+
+	/**
+	 * Constructor.
+	 * @param iRefreshInterval The interval in seconds at which the database is checked
+	 * for changes to the map, or 0 to disable reloading
+	 */
+	public MapHandler(int iRefreshInterval) throws ParserConfigurationException,
+			TransformerException, SQLException, IOException {
+		refresh();
+		if (mSnapshot == null) {
+			throw new IllegalStateException("Failed to load the map");
+		}
+		if (iRefreshInterval > 0) {
+			mRefresher = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable iTask) {
+							Thread lThread = new Thread(iTask, "MapRefresher");
+							lThread.setDaemon(true);
+							return lThread;
+						}
+					});
+			mRefresher.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					refresh();
+				}
+			}, iRefreshInterval, iRefreshInterval, TimeUnit.SECONDS);
+		}
 		mLogger.info("Handler successfully initialised");
 	}
 
-	public void handleRequest(HttpServletRequest request,
-			HttpServletResponse response) {
+	public void addRoutes(RequestRouter iRouter) {
+		iRouter.add("/getmap", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response) throws IOException {
+				mapHandler(request, response);
+			}
+		}, RequestRouter.GET);
+		iRouter.add("/getmap/occupancy", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request,
+					HttpServletResponse response) throws IOException {
+				MapSnapshot lSnapshot = mSnapshot;
+				(acceptsBinary(request) ? lSnapshot
+						.getOccupancyBinaryResponse() : lSnapshot
+						.getOccupancyResponse()).write(request, response);
+			}
+		}, RequestRouter.GET);
+	}
+
+	private void mapHandler(HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		MapSnapshot lSnapshot = mSnapshot;
+		boolean lBinary = acceptsBinary(request);
+		String lFloor = request.getParameter("floor");
+		String lLod = request.getParameter("lod");
+		int lTier = lLod == null ? 0 : Math.max(0, Math.min(
+				LevelOfDetail.TIERS.length - 1, Integer.parseInt(lLod)));
+		if (lFloor != null) {
+			int lLevel = Integer.parseInt(lFloor);
+			if (lLevel < 0 || lLevel >= lSnapshot.getSubmapCount()) {
+				throw new IllegalArgumentException("Unknown floor :\t"
+						+ lLevel);
+			}
+			MapSnapshot.Floor lSubmap = lSnapshot.getFloor(lLevel);
+			(lBinary ? lSubmap.getBinaryResponse(lTier) : lSubmap
+					.getResponse(lTier)).write(request, response);
+		} else if (lBinary) {
+			lSnapshot.getBinaryResponse(lTier).write(request, response);
+		} else {
+			lSnapshot.getResponse(lTier).write(request, response);
+		}
+	}
+
+	/**
+	 * The current map snapshot.
+	 * @return The snapshot
+	 */
+	public MapSnapshot getSnapshot() {
+		return mSnapshot;
+	}
+
+	/**
+	 * Stops the background refresh of the map.
+	 */
+	public void stop() {
+		if (mRefresher != null) {
+			mRefresher.shutdownNow();
+		}
+	}
+
+	/**
+	 * Checks whether the map or occupancy data have changed since the current
+	 * snapshot was built and, if so, builds and publishes a new snapshot. Only
+	 * the floors whose geometry has changed are reloaded, and the responses for
+	 * the unchanged floors and occupancy are carried over.
+	 */
+	public synchronized void refresh() {
 		try {
-			writeXmlResponse(mDocument, response);
+			Connection lConnection = DbConnectionPool.getSingleton()
+					.getReadConnection();
+			try {
+				ArrayList<Integer> lSubmapIds = new ArrayList<Integer>();
+				ArrayList<String> lNames = new ArrayList<String>();
+				ArrayList<String> lFloorVersions = new ArrayList<String>();
+				loadFloorVersions(lConnection, lSubmapIds, lNames, lFloorVersions);
+				StringBuilder lGeometryVersion = new StringBuilder();
+				for (int li = 0; li < lSubmapIds.size(); li++) {
+					lGeometryVersion.append(lSubmapIds.get(li)).append(':')
+							.append(lFloorVersions.get(li)).append(',');
+				}
+				String lOccupancyVersion = queryVersion(lConnection,
+						OCCUPANCY_VERSION_QUERY);
+
+				MapSnapshot lCurrent = mSnapshot;
+				if (lCurrent != null
+						&& lCurrent.getGeometryVersion().equals(
+								lGeometryVersion.toString())
+						&& lCurrent.getOccupancyVersion().equals(lOccupancyVersion)) {
+					return;
+				}
+
+				long lStartTime = System.currentTimeMillis();
+				MapLoader lLoader = new MapLoader();
+				MapSnapshot.Floor[] lFloors = new MapSnapshot.Floor[lSubmapIds
+						.size()];
+				Map25D[] lSubmaps = new Map25D[lFloors.length];
+				String[] lNameArray = lNames.toArray(new String[lNames.size()]);
+				int lReloaded = 0;
+				for (int li = 0; li < lFloors.length; li++) {
+					MapSnapshot.Floor lPrevious = lCurrent == null ? null
+							: lCurrent.findFloor(lSubmapIds.get(li));
+					if (lPrevious != null && lPrevious.getLevel() == li
+							&& lPrevious.getVersion().equals(lFloorVersions.get(li))) {
+						lFloors[li] = lPrevious;
+					} else {
+						Map25D lSubmap = lLoader.loadSubmap(lConnection,
+								lSubmapIds.get(li));
+						Map25D[] lOne = new Map25D[] { lSubmap };
+						String[] lOneName = new String[] { lNameArray[li] };
+						lFloors[li] = new MapSnapshot.Floor(lSubmapIds.get(li), li,
+								lNameArray[li], lFloorVersions.get(li), lSubmap,
+								buildResponses(lOne, lOneName, li, null, null, false),
+								buildResponses(lOne, lOneName, li, null, null, true));
+						lReloaded++;
+					}
+					lSubmaps[li] = lFloors[li].getSubmap();
+				}
+
+				ArrayList<String> lCrsids = new ArrayList<String>();
+				ArrayList<Integer> lRooms = new ArrayList<Integer>();
+				loadOccupancy(lConnection, lCrsids, lRooms);
+
+				CachedResponse lOccupancyResponse;
+				CachedResponse lOccupancyBinaryResponse;
+				if (lCurrent != null
+						&& lCurrent.getOccupancyVersion().equals(lOccupancyVersion)) {
+					lOccupancyResponse = lCurrent.getOccupancyResponse();
+					lOccupancyBinaryResponse = lCurrent
+							.getOccupancyBinaryResponse();
+				} else {
+					Map25D[] lNone = new Map25D[0];
+					String[] lNoNames = new String[0];
+					LevelOfDetail lFull = LevelOfDetail.TIERS[0];
+					lOccupancyResponse = new CachedResponse(
+							serializeDocument(buildMapDocument(lNone, lNoNames, 0,
+									lCrsids, lRooms, lFull)), XML_CONTENT_TYPE);
+					lOccupancyBinaryResponse = new CachedResponse(
+							buildMapBinary(lNone, lNoNames, 0, lCrsids, lRooms,
+									lFull), BinaryWriter.CONTENT_TYPE);
+				}
+
+				mSnapshot = new MapSnapshot(lGeometryVersion.toString(),
+						lOccupancyVersion, lFloors, buildResponses(lSubmaps,
+								lNameArray, 0, lCrsids, lRooms, false),
+						buildResponses(lSubmaps, lNameArray, 0, lCrsids, lRooms,
+								true), lOccupancyResponse, lOccupancyBinaryResponse);
+				mLogger.info("Built map snapshot in "
+						+ (System.currentTimeMillis() - lStartTime) + "ms, "
+						+ lReloaded + " of " + lFloors.length
+						+ " floors reloaded");
+			} finally {
+				lConnection.close();
+			}
 		} catch (Exception lE) {
-			mLogger.log(Level.SEVERE,
-					"Exception caught while handling request :\t"
-							+ request.getPathInfo(), lE);
+			mLogger.log(Level.SEVERE, "Exception caught while refreshing map", lE);
 		}
 	}
 
-	public void buildMapDocument() throws SQLException {
-		Document lDocument = createDocument("MapRequestResponse");
+	private String queryVersion(Connection iConnection, String iQuery)
+			throws SQLException {
+		long lStartTime = System.nanoTime();
+		int lRows = -1;
+		PreparedStatement lStatement = iConnection.prepareStatement(iQuery);
+		try {
+			ResultSet lResult = lStatement.executeQuery();
+			lResult.next();
+			String lVersion = lResult.getString(1);
+			lResult.close();
+			lRows = 1;
+			return lVersion;
+		} finally {
+			lStatement.close();
+			mVersionMetrics.record(lStartTime, lRows);
+		}
+	}
 
-		Connection lConnection = ojw28.orm.utils.DbConnectionPool
-				.getSingleton().getConnection();
+	private void loadFloorVersions(Connection iConnection,
+			ArrayList<Integer> oSubmapIds, ArrayList<String> oNames,
+			ArrayList<String> oVersions) throws SQLException {
+		long lStartTime = System.nanoTime();
+		int lRows = -1;
+		PreparedStatement lStatement = iConnection
+				.prepareStatement(FLOOR_VERSION_QUERY);
 		try {
-			MapLoader lLoader = new MapLoader();
+			ResultSet lResult = lStatement.executeQuery();
+			while (lResult.next()) {
+				oSubmapIds.add(lResult.getInt(1));
+				oNames.add(lResult.getString(2));
+				oVersions.add(lResult.getString(2) + ":" + lResult.getString(3));
+			}
+			lResult.close();
+			lRows = oSubmapIds.size();
+		} finally {
+			lStatement.close();
+			mFloorVersionMetrics.record(lStartTime, lRows);
+		}
+	}
 
-			Map25D lGroundMap = lLoader.loadSubmap(lConnection, "Ground");
-			Element lGroundXml = lGroundMap.writeToXml(lDocument);
-			lGroundXml.setAttribute("name", "Ground");
-			lGroundXml.setAttribute("level", "0");
+	private void loadOccupancy(Connection iConnection,
+			ArrayList<String> oCrsids, ArrayList<Integer> oRooms)
+			throws SQLException {
+		long lStartTime = System.nanoTime();
+		int lRows = -1;
+		PreparedStatement lOccupantsStatement = iConnection
+				.prepareStatement("SELECT * FROM occupants_table");
+		try {
+			ResultSet lUpdates = lOccupantsStatement.executeQuery();
+			while (lUpdates.next()) {
+				oCrsids.add(lUpdates.getString("crsid"));
+				oRooms.add(lUpdates.getInt("roomid"));
+			}
+			lUpdates.close();
+			lRows = oCrsids.size();
+		} finally {
+			lOccupantsStatement.close();
+			mOccupancyMetrics.record(lStartTime, lRows);
+		}
+	}
 
-			Map25D lFirstMap = lLoader.loadSubmap(lConnection, "First");
-			Element lFirstXml = lFirstMap.writeToXml(lDocument);
-			lFirstXml.setAttribute("name", "First");
-			lFirstXml.setAttribute("level", "1");
+	/**
+	 * Builds a map response at every level of detail.
+	 * @param iBinary True for the binary encoding, false for XML
+	 * @return The responses, indexed by tier
+	 */
+	private CachedResponse[] buildResponses(Map25D[] iSubmaps, String[] iNames,
+			int iFirstLevel, ArrayList<String> iCrsids,
+			ArrayList<Integer> iRooms, boolean iBinary) throws IOException,
+			TransformerException {
+		CachedResponse[] lResponses = new CachedResponse[LevelOfDetail.TIERS.length];
+		for (int li = 0; li < lResponses.length; li++) {
+			LevelOfDetail lLod = LevelOfDetail.TIERS[li];
+			if (iBinary) {
+				lResponses[li] = new CachedResponse(buildMapBinary(iSubmaps,
+						iNames, iFirstLevel, iCrsids, iRooms, lLod),
+						BinaryWriter.CONTENT_TYPE);
+			} else {
+				lResponses[li] = new CachedResponse(
+						serializeDocument(buildMapDocument(iSubmaps, iNames,
+								iFirstLevel, iCrsids, iRooms, lLod)),
+						XML_CONTENT_TYPE);
+			}
+		}
+		return lResponses;
+	}
 
-			Map25D lSecondMap = lLoader.loadSubmap(lConnection, "Second");
-			Element lSecondXml = lSecondMap.writeToXml(lDocument);
-			lSecondXml.setAttribute("name", "Second");
-			lSecondXml.setAttribute("level", "2");
+	/**
+	 * Builds a map response document. The Map element is only included if
+	 * there are submaps, and the Occupancy element only if there are
+	 * occupancy mappings to include.
+	 * @param iSubmaps The submaps to include
+	 * @param iNames The names of the submaps
+	 * @param iFirstLevel The level of the first submap
+	 * @param iCrsids The occupants, or null to leave out the occupancy
+	 * @param iRooms The room of each occupant
+	 * @param iLod The level of detail at which to write the submaps
+	 */
+	private Document buildMapDocument(Map25D[] iSubmaps, String[] iNames,
+			int iFirstLevel, ArrayList<String> iCrsids,
+			ArrayList<Integer> iRooms, LevelOfDetail iLod) {
+		Document lDocument = createDocument("MapRequestResponse");
 
+		if (iSubmaps.length > 0) {
 			Element lMapElement = lDocument.createElement("Map");
 			lDocument.getDocumentElement().appendChild(lMapElement);
-			lMapElement.appendChild(lGroundXml);
-			lMapElement.appendChild(lFirstXml);
-			lMapElement.appendChild(lSecondXml);
+			for (int li = 0; li < iSubmaps.length; li++) {
+				Element lSubmapXml = iSubmaps[li].writeToXml(lDocument, iLod);
+				lSubmapXml.setAttribute("name", iNames[li]);
+				lSubmapXml.setAttribute("level", "" + (iFirstLevel + li));
+				lMapElement.appendChild(lSubmapXml);
+			}
+		}
 
+		if (iCrsids != null) {
 			Element lOccupancyElement = lDocument.createElement("Occupancy");
 			lDocument.getDocumentElement().appendChild(lOccupancyElement);
 
-			PreparedStatement lOccupantsStatement = lConnection
-					.prepareStatement("SELECT * FROM occupants_table");
-			try {
-				ResultSet lUpdates = lOccupantsStatement.executeQuery();
-				while (lUpdates.next()) {
-					String lCrsid = lUpdates.getString("crsid");
-					int lRoom = lUpdates.getInt("roomid");
-
-					Element lItemElement = lDocument.createElement("Mapping");
-					lItemElement.setAttribute("crsid", "" + lCrsid);
-					lItemElement.setAttribute("roomid", "" + lRoom);
-					lOccupancyElement.appendChild(lItemElement);
-				}
-				lUpdates.close();
-			} finally {
-				lOccupantsStatement.close();
+			for (int li = 0; li < iCrsids.size(); li++) {
+				Element lItemElement = lDocument.createElement("Mapping");
+				lItemElement.setAttribute("crsid", "" + iCrsids.get(li));
+				lItemElement.setAttribute("roomid", "" + iRooms.get(li));
+				lOccupancyElement.appendChild(lItemElement);
 			}
-		} finally {
-			lConnection.close();
 		}
-		mDocument = lDocument;
+		return lDocument;
+	}
+
+	/**
+	 * Encodes the same content as buildMapDocument in the binary format: the
+	 * submap count, then for each submap its name, level and rooms, then the
+	 * occupancy mappings. A response without occupancy has no mappings.
+	 * Below full detail the payload type is TYPE_MAP_LOD, the tier and quantum
+	 * (0 if unquantised) follow the header, and the submaps are written with
+	 * Map25D.writeToBinary(BinaryWriter, LevelOfDetail).
+	 */
+	static byte[] buildMapBinary(Map25D[] iSubmaps, String[] iNames,
+			int iFirstLevel, ArrayList<String> iCrsids,
+			ArrayList<Integer> iRooms, LevelOfDetail iLod) throws IOException {
+		ByteArrayOutputStream lOut = new ByteArrayOutputStream();
+		BinaryWriter lWriter;
+		if (iLod.isFull()) {
+			lWriter = new BinaryWriter(lOut, BinaryWriter.TYPE_MAP);
+		} else {
+			lWriter = new BinaryWriter(lOut, BinaryWriter.TYPE_MAP_LOD);
+			lWriter.writeVarint(iLod.getTier());
+			lWriter.writeFloat(iLod.getQuantum());
+		}
+		lWriter.writeVarint(iSubmaps.length);
+		for (int li = 0; li < iSubmaps.length; li++) {
+			lWriter.writeString(iNames[li]);
+			lWriter.writeVarint(iFirstLevel + li);
+			if (iLod.isFull()) {
+				iSubmaps[li].writeToBinary(lWriter);
+			} else {
+				iSubmaps[li].writeToBinary(lWriter, iLod);
+			}
+		}
+		if (iCrsids == null) {
+			lWriter.writeVarint(0);
+			lWriter.flush();
+			return lOut.toByteArray();
+		}
+		lWriter.writeVarint(iCrsids.size());
+		for (int li = 0; li < iCrsids.size(); li++) {
+			lWriter.writeString(iCrsids.get(li));
+			lWriter.writeVarint(iRooms.get(li));
+		}
+		lWriter.flush();
+		return lOut.toByteArray();
 	}
 
 }
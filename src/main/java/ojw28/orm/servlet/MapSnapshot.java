@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import ojw28.orm.utils.Map25D;
+import ojw28.orm.utils.Room;
+
+/**
+ * An immutable snapshot of the building map, as served by the MapHandler. A snapshot
+ * is built in full before it is published, so a reader holding a reference to one
+ * never observes a partially loaded map.
+ *
+ * Each floor carries its own version and responses, so a new snapshot can reuse the
+ * floors of the previous one which have not changed. The map responses are held at each
+ * level of detail in LevelOfDetail.TIERS, indexed by tier.
+ * @author ojw28
+ */
+public class MapSnapshot {
+
+	private final String mGeometryVersion;
+	private final String mOccupancyVersion;
+	private final Floor[] mFloors;
+	private final CachedResponse[] mResponses;
+	private final CachedResponse[] mBinaryResponses;
+	private final CachedResponse mOccupancyResponse;
+	private final CachedResponse mOccupancyBinaryResponse;
+
+	/**
+	 * Constructor.
+	 * @param iGeometryVersion A checksum of the map geometry from which the snapshot was built
+	 * @param iOccupancyVersion A checksum of the occupancy data from which the snapshot was built
+	 * @param iFloors The floors, ordered by level
+	 * @param iResponses The serialized map response at each level of detail, covering every
+	 * floor and the occupancy
+	 * @param iBinaryResponses The map responses in the binary encoding
+	 * @param iOccupancyResponse The serialized occupancy response
+	 * @param iOccupancyBinaryResponse The occupancy response in the binary encoding
+	 */
+	public MapSnapshot(String iGeometryVersion, String iOccupancyVersion, Floor[] iFloors, CachedResponse[] iResponses, CachedResponse[] iBinaryResponses,
+			CachedResponse iOccupancyResponse, CachedResponse iOccupancyBinaryResponse)
+	{
+		mGeometryVersion = iGeometryVersion;
+		mOccupancyVersion = iOccupancyVersion;
+		mFloors = iFloors;
+		mResponses = iResponses;
+		mBinaryResponses = iBinaryResponses;
+		mOccupancyResponse = iOccupancyResponse;
+		mOccupancyBinaryResponse = iOccupancyBinaryResponse;
+	}
+
+	public String getGeometryVersion()
+	{
+		return mGeometryVersion;
+	}
+
+	public String getOccupancyVersion()
+	{
+		return mOccupancyVersion;
+	}
+
+	/**
+	 * The number of submaps (floors) in the snapshot.
+	 * @return The number of submaps
+	 */
+	public int getSubmapCount()
+	{
+		return mFloors.length;
+	}
+
+	/**
+	 * Gets the submap at a specified level.
+	 * @param iLevel The level
+	 * @return The submap
+	 */
+	public Map25D getSubmap(int iLevel)
+	{
+		return mFloors[iLevel].getSubmap();
+	}
+	
+	/**
+	 * Gets the floor at a specified level.
+	 * @param iLevel The level
+	 * @return The floor
+	 */
+	public Floor getFloor(int iLevel)
+	{
+		return mFloors[iLevel];
+	}
+	
+	/**
+	 * Finds a floor by the id of its submap in the database.
+	 * @param iSubmapId The submap id
+	 * @return The floor, or null if the snapshot has no such floor
+	 */
+	public Floor findFloor(int iSubmapId)
+	{
+		for(Floor lFloor : mFloors)
+		{
+			if(lFloor.getSubmapId() == iSubmapId)
+			{
+				return lFloor;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the room containing a point on a floor.
+	 * @param iX The x coordinate
+	 * @param iY The y coordinate
+	 * @param iFloor The floor (submap level)
+	 * @return The room, or null if the point is not in a room on that floor
+	 */
+	public Room locate(float iX, float iY, int iFloor)
+	{
+		if(iFloor < 0 || iFloor >= mFloors.length)
+		{
+			return null;
+		}
+		return mFloors[iFloor].getSubmap().locateRoom(iX, iY);
+	}
+
+	/**
+	 * Gets a room by its uid, from whichever submap it is on.
+	 * @param iRoomId The room's uid
+	 * @return The room, or null if there is no such room
+	 */
+	public Room getRoom(int iRoomId)
+	{
+		for(Floor lFloor : mFloors)
+		{
+			Room lRoom = lFloor.getSubmap().getRoom(iRoomId);
+			if(lRoom != null)
+			{
+				return lRoom;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the name of the submap at a specified level.
+	 * @param iLevel The level
+	 * @return The submap name
+	 */
+	public String getSubmapName(int iLevel)
+	{
+		return mFloors[iLevel].getName();
+	}
+
+	/**
+	 * The serialized /getmap response for this snapshot.
+	 * @param iTier The level of detail
+	 * @return The response
+	 */
+	public CachedResponse getResponse(int iTier)
+	{
+		return mResponses[iTier];
+	}
+
+	/**
+	 * The /getmap response for this snapshot in the binary encoding.
+	 * @param iTier The level of detail
+	 * @return The response
+	 */
+	public CachedResponse getBinaryResponse(int iTier)
+	{
+		return mBinaryResponses[iTier];
+	}
+
+	/**
+	 * The serialized /getmap/occupancy response for this snapshot.
+	 * @return The response
+	 */
+	public CachedResponse getOccupancyResponse()
+	{
+		return mOccupancyResponse;
+	}
+
+	/**
+	 * The /getmap/occupancy response for this snapshot in the binary encoding.
+	 * @return The response
+	 */
+	public CachedResponse getOccupancyBinaryResponse()
+	{
+		return mOccupancyBinaryResponse;
+	}
+
+	/**
+	 * One floor of the map, with the responses which serve it on its own.
+	 */
+	public static class Floor {
+
+		private final int mSubmapId;
+		private final int mLevel;
+		private final String mName;
+		private final String mVersion;
+		private final Map25D mSubmap;
+		private final CachedResponse[] mResponses;
+		private final CachedResponse[] mBinaryResponses;
+
+		/**
+		 * Constructor.
+		 * @param iSubmapId The id of the submap in the database
+		 * @param iLevel The level of the floor
+		 * @param iName The name of the submap
+		 * @param iVersion A checksum of the floor's geometry
+		 * @param iSubmap The submap
+		 * @param iResponses The serialized /getmap?floor= response at each level of detail
+		 * @param iBinaryResponses The /getmap?floor= responses in the binary encoding
+		 */
+		public Floor(int iSubmapId, int iLevel, String iName, String iVersion, Map25D iSubmap, CachedResponse[] iResponses, CachedResponse[] iBinaryResponses)
+		{
+			mSubmapId = iSubmapId;
+			mLevel = iLevel;
+			mName = iName;
+			mVersion = iVersion;
+			mSubmap = iSubmap;
+			mResponses = iResponses;
+			mBinaryResponses = iBinaryResponses;
+		}
+
+		public int getSubmapId()
+		{
+			return mSubmapId;
+		}
+
+		public int getLevel()
+		{
+			return mLevel;
+		}
+
+		public String getName()
+		{
+			return mName;
+		}
+
+		public String getVersion()
+		{
+			return mVersion;
+		}
+
+		public Map25D getSubmap()
+		{
+			return mSubmap;
+		}
+
+		public CachedResponse getResponse(int iTier)
+		{
+			return mResponses[iTier];
+		}
+
+		public CachedResponse getBinaryResponse(int iTier)
+		{
+			return mBinaryResponses[iTier];
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerConfigurationException;
+
+import ojw28.orm.utils.DbConnectionPool;
+import ojw28.orm.utils.Histogram;
+import ojw28.orm.utils.Metrics;
+
+/**
+ * Reports the metrics of every route and database query, the connection pool and the
+ * request executors in the Prometheus text format. Latencies are reported as histograms
+ * in seconds, with the log-linear bucket bounds of Histogram.
+ * @author ojw28
+ */
+public class MetricsHandler extends ServletRequestHandler {
+
+	private static Logger mLogger = Logger.getLogger("ojw28.orm.servlet.MetricsHandler");
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final RequestRouter mRouter;
+
+	/**
+	 * Constructor.
+	 * @param iRouter The router whose executors are reported
+	 */
+	public MetricsHandler(RequestRouter iRouter) throws TransformerConfigurationException, ParserConfigurationException
+	{
+		mRouter = iRouter;
+		mLogger.info("Handler successfully initialised");
+	}
+
+	public void addRoutes(RequestRouter iRouter)
+	{
+		iRouter.add("/metrics", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+			{
+				metricsHandler(response);
+			}
+		}, RequestRouter.GET);
+	}
+
+	private void metricsHandler(HttpServletResponse response) throws IOException
+	{
+		response.setContentType(CONTENT_TYPE);
+		Writer lOut = response.getWriter();
+
+		List<Metrics> lRoutes = Metrics.getRoutes();
+		writeHistograms(lOut, "orm_request_duration_seconds", "Time from dispatch until the route returned", "route", lRoutes);
+		writeHeader(lOut, "orm_request_response_bytes_total", "Bytes written in responses", "counter");
+		for(Metrics lRoute : lRoutes)
+		{
+			writeSample(lOut, "orm_request_response_bytes_total", "route", lRoute.getName(), null, lRoute.getBytes());
+		}
+		writeHeader(lOut, "orm_request_rows_total", "Database rows read or written while serving requests", "counter");
+		for(Metrics lRoute : lRoutes)
+		{
+			writeSample(lOut, "orm_request_rows_total", "route", lRoute.getName(), null, lRoute.getRows());
+		}
+		writeHeader(lOut, "orm_request_errors_total", "Requests which failed or were turned away", "counter");
+		for(Metrics lRoute : lRoutes)
+		{
+			writeSample(lOut, "orm_request_errors_total", "route", lRoute.getName(), null, lRoute.getErrors());
+		}
+
+		List<Metrics> lQueries = Metrics.getQueries();
+		writeHistograms(lOut, "orm_query_duration_seconds", "Time taken by database queries", "query", lQueries);
+		writeHeader(lOut, "orm_query_rows_total", "Rows read or written by database queries", "counter");
+		for(Metrics lQuery : lQueries)
+		{
+			writeSample(lOut, "orm_query_rows_total", "query", lQuery.getName(), null, lQuery.getRows());
+		}
+		writeHeader(lOut, "orm_query_errors_total", "Database queries which failed", "counter");
+		for(Metrics lQuery : lQueries)
+		{
+			writeSample(lOut, "orm_query_errors_total", "query", lQuery.getName(), null, lQuery.getErrors());
+		}
+
+		DbConnectionPool lPool = DbConnectionPool.getSingleton();
+		writeHeader(lOut, "orm_db_pool_active", "Connections in use", "gauge");
+		writeSample(lOut, "orm_db_pool_active", null, null, null, lPool.getNumActive());
+		writeHeader(lOut, "orm_db_pool_idle", "Open connections not in use", "gauge");
+		writeSample(lOut, "orm_db_pool_idle", null, null, null, lPool.getNumIdle());
+		writeHeader(lOut, "orm_db_pool_failures_total", "Requests for a connection which failed", "counter");
+		writeSample(lOut, "orm_db_pool_failures_total", null, null, null, lPool.getFailures());
+		writeHeader(lOut, "orm_db_pool_rejected_total", "Requests turned away because the pool was full", "counter");
+		writeSample(lOut, "orm_db_pool_rejected_total", null, null, null, lPool.getRejections());
+
+		writeHeader(lOut, "orm_executor_requests", "Requests running or waiting on each handler's executor", "gauge");
+		for(RequestExecutor lExecutor : mRouter.getExecutors())
+		{
+			writeSample(lOut, "orm_executor_requests", "executor", lExecutor.getName(), null, lExecutor.getActive());
+		}
+		writeHeader(lOut, "orm_executor_rejected_total", "Requests turned away because the executor was full", "counter");
+		for(RequestExecutor lExecutor : mRouter.getExecutors())
+		{
+			writeSample(lOut, "orm_executor_rejected_total", "executor", lExecutor.getName(), null, lExecutor.getRejections());
+		}
+		lOut.flush();
+	}
+
+	/**
+	 * Writes the latency histograms of a set of routes or queries, with cumulative bucket
+	 * counts as Prometheus expects. Histogram has hundreds of buckets, so only those up to
+	 * the highest one which has counted a value are written, followed by +Inf.
+	 */
+	private static void writeHistograms(Writer iOut, String iName, String iHelp, String iLabel, List<Metrics> iMetrics) throws IOException
+	{
+		writeHeader(iOut, iName, iHelp, "histogram");
+		for(Metrics lMetrics : iMetrics)
+		{
+			Histogram lLatencies = lMetrics.getLatencies();
+			long[] lCounts = new long[Histogram.BUCKETS];
+			int lHighest = -1;
+			for(int li = 0; li < Histogram.BUCKETS; li++)
+			{
+				lCounts[li] = lLatencies.getCount(li);
+				if(lCounts[li] > 0)
+				{
+					lHighest = li;
+				}
+			}
+			long lCount = 0;
+			for(int li = 0; li < Histogram.BUCKETS; li++)
+			{
+				lCount += lCounts[li];
+				if(li == Histogram.BUCKETS - 1)
+				{
+					writeSample(iOut, iName + "_bucket", iLabel, lMetrics.getName(), "+Inf", lCount);
+				}
+				else if(li <= lHighest)
+				{
+					writeSample(iOut, iName + "_bucket", iLabel, lMetrics.getName(), Double.toString(Histogram.getUpperBound(li) / 1e6), lCount);
+				}
+			}
+			writeLabels(iOut, iName + "_sum", iLabel, lMetrics.getName(), null);
+			iOut.write(Double.toString(lLatencies.getSum() / 1e6));
+			iOut.write('\n');
+			writeSample(iOut, iName + "_count", iLabel, lMetrics.getName(), null, lCount);
+		}
+	}
+
+	private static void writeHeader(Writer iOut, String iName, String iHelp, String iType) throws IOException
+	{
+		iOut.write("# HELP " + iName + " " + iHelp + "\n");
+		iOut.write("# TYPE " + iName + " " + iType + "\n");
+	}
+
+	private static void writeSample(Writer iOut, String iName, String iLabel, String iValue, String iBound, long iSample) throws IOException
+	{
+		writeLabels(iOut, iName, iLabel, iValue, iBound);
+		iOut.write(Long.toString(iSample));
+		iOut.write('\n');
+	}
+
+	/**
+	 * Writes a sample's name and labels, followed by the space before its value.
+	 * @param iLabel The name of the label, or null if there are no labels
+	 * @param iValue The value of the label
+	 * @param iBound The bucket bound, or null if the sample is not a histogram bucket
+	 */
+	private static void writeLabels(Writer iOut, String iName, String iLabel, String iValue, String iBound) throws IOException
+	{
+		iOut.write(iName);
+		if(iLabel != null)
+		{
+			iOut.write('{');
+			iOut.write(iLabel);
+			iOut.write("=\"");
+			for(int li = 0; li < iValue.length(); li++)
+			{
+				char lChar = iValue.charAt(li);
+				switch(lChar)
+				{
+				case '\\': iOut.write("\\\\"); break;
+				case '"': iOut.write("\\\""); break;
+				case '\n': iOut.write("\\n"); break;
+				default: iOut.write(lChar);
+				}
+			}
+			iOut.write('"');
+			if(iBound != null)
+			{
+				iOut.write(",le=\"");
+				iOut.write(iBound);
+				iOut.write('"');
+			}
+			iOut.write('}');
+		}
+		iOut.write(' ');
+	}
+
+}
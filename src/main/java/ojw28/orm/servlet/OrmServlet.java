@@ -12,6 +12,8 @@ package ojw28.orm.servlet;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Properties;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -23,6 +25,9 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.DocumentBuilderFactory;
 
+import ojw28.orm.utils.DbConnectionPool;
+import ojw28.orm.utils.PolyClassifier;
+
 /**
  * Servlet implementation class TestServlet
  */
@@ -32,13 +37,32 @@ public class OrmServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
 	
 	private ArrayList<ServletRequestHandler> mHandlers = new ArrayList<ServletRequestHandler>();
+	private RequestRouter mRouter = new RequestRouter();
 	
 	private MapHandler mMapHandler;
 	private ItemDefHandler mComponentLibrary;
 	private PlacedItemHandler mItemManager;
 	private UserHandler mUserHandler;
+	private RouteHandler mRouteHandler;
+	private RoomSearchHandler mRoomSearchHandler;
+	private TileHandler mTileHandler;
+	private RenderHandler mRenderHandler;
+	private PoolStatsHandler mPoolStatsHandler;
+	private MetricsHandler mMetricsHandler;
 	DocumentBuilderFactory mFactory = DocumentBuilderFactory.newInstance();
 	
+	//The default interval, in seconds, at which the map is checked for changes
+	private static final int DEFAULT_MAP_REFRESH_INTERVAL = 60;
+	//The default interval, in seconds, at which the item definitions are checked for changes
+	private static final int DEFAULT_COMPONENT_REFRESH_INTERVAL = 60;
+	//The default number of threads serving each handler's requests, and of requests to each
+	//handler which may wait for one of them before further requests are turned away. The
+	//item handler's threads each hold a database connection while they run, so with the
+	//connections held by the map and component refreshes they should fit in the pool
+	private static final int DEFAULT_WORKER_THREADS = 4;
+	private static final int DEFAULT_WORKER_QUEUE = 32;
+	private static final int REFRESH_CONNECTIONS = 2;
+	
     /**
      * Default constructor. 
      */
@@ -47,15 +71,23 @@ public class OrmServlet extends HttpServlet {
 	
 	public void init() throws ServletException
 	{
-	    try {
 		ServletContext context = getServletContext();
+	    try {
 		String logFileName = context.getInitParameter("LOG_FILE");
 		if (logFileName == null) throw new ServletException("Please specify init parameter LOG_FILE");
 	        FileHandler lLogger = new FileHandler(logFileName);
 	        Logger.getLogger("ojw28.orm.servlet.OrmServlet").addHandler(lLogger);
+	        Logger.getLogger("ojw28.orm.servlet.RequestRouter").addHandler(lLogger);
+	        Logger.getLogger("ojw28.orm.servlet.RequestExecutor").addHandler(lLogger);
 	        Logger.getLogger("ojw28.orm.servlet.ItemDefHandler").addHandler(lLogger);
 	        Logger.getLogger("ojw28.orm.servlet.MapHandler").addHandler(lLogger);
 	        Logger.getLogger("ojw28.orm.servlet.PlacedItemHandler").addHandler(lLogger);
+	        Logger.getLogger("ojw28.orm.servlet.RouteHandler").addHandler(lLogger);
+	        Logger.getLogger("ojw28.orm.servlet.RoomSearchHandler").addHandler(lLogger);
+	        Logger.getLogger("ojw28.orm.servlet.TileHandler").addHandler(lLogger);
+	        Logger.getLogger("ojw28.orm.servlet.RenderHandler").addHandler(lLogger);
+	        Logger.getLogger("ojw28.orm.servlet.PoolStatsHandler").addHandler(lLogger);
+	        Logger.getLogger("ojw28.orm.servlet.MetricsHandler").addHandler(lLogger);
 	        Logger.getLogger("ojw28.orm.servlet.DbConnectionPool").addHandler(lLogger);
 	    } catch (IOException e) {
 	    	System.err.println("Critical Error : Couldn't create log file");
@@ -65,15 +97,59 @@ public class OrmServlet extends HttpServlet {
 	    
 		try
 		{			
-			mComponentLibrary = new ItemDefHandler();
-			mItemManager = new PlacedItemHandler();
-			mMapHandler = new MapHandler();
+			//Configure the connection pool from the DB_ parameters before anything uses it
+			Properties lPoolSettings = new Properties();
+			Enumeration<?> lNames = context.getInitParameterNames();
+			while(lNames.hasMoreElements())
+			{
+				String lName = (String) lNames.nextElement();
+				if(lName.startsWith("DB_"))
+				{
+					lPoolSettings.setProperty(lName, context.getInitParameter(lName));
+				}
+			}
+			DbConnectionPool.configure(lPoolSettings);
+			
+			String lComponentRefreshInterval = context.getInitParameter("COMPONENT_REFRESH_INTERVAL");
+			mComponentLibrary = new ItemDefHandler(lComponentRefreshInterval == null ? DEFAULT_COMPONENT_REFRESH_INTERVAL : Integer.parseInt(lComponentRefreshInterval));
+			String lRefreshInterval = context.getInitParameter("MAP_REFRESH_INTERVAL");
+			mMapHandler = new MapHandler(lRefreshInterval == null ? DEFAULT_MAP_REFRESH_INTERVAL : Integer.parseInt(lRefreshInterval));
+			mItemManager = new PlacedItemHandler(mMapHandler, mComponentLibrary);
 			mUserHandler = new UserHandler();
+			mRouteHandler = new RouteHandler(mMapHandler);
+			mRoomSearchHandler = new RoomSearchHandler(mMapHandler);
+			mTileHandler = new TileHandler(mMapHandler, mItemManager.getStore());
+			mRenderHandler = new RenderHandler(mMapHandler, mComponentLibrary, mItemManager.getStore());
+			mPoolStatsHandler = new PoolStatsHandler();
+			mMetricsHandler = new MetricsHandler(mRouter);
 			
 			mHandlers.add(mItemManager);
 			mHandlers.add(mMapHandler);
 			mHandlers.add(mComponentLibrary);
 			mHandlers.add(mUserHandler);
+			mHandlers.add(mRouteHandler);
+			mHandlers.add(mRoomSearchHandler);
+			mHandlers.add(mTileHandler);
+			mHandlers.add(mRenderHandler);
+			mHandlers.add(mPoolStatsHandler);
+			mHandlers.add(mMetricsHandler);
+			//Each handler's requests are run on executors of its own, so that one slow
+			//handler cannot hold up the others
+			String lWorkerThreads = context.getInitParameter("WORKER_THREADS");
+			String lWorkerQueue = context.getInitParameter("WORKER_QUEUE");
+			int lThreads = lWorkerThreads == null ? DEFAULT_WORKER_THREADS : Integer.parseInt(lWorkerThreads);
+			int lQueue = lWorkerQueue == null ? DEFAULT_WORKER_QUEUE : Integer.parseInt(lWorkerQueue);
+			int lMaxActive = DbConnectionPool.getSingleton().getMaxActive();
+			if(lThreads + REFRESH_CONNECTIONS > lMaxActive)
+			{
+				mLogger.warning("WORKER_THREADS of " + lThreads + " is more than the " + lMaxActive
+						+ " connections of the pool can serve. Requests beyond that will wait for a connection");
+			}
+			for(ServletRequestHandler lHandler : mHandlers)
+			{
+				mRouter.setExecutor(new RequestExecutor(lHandler.getClass().getSimpleName(), lThreads, lQueue));
+				lHandler.addRoutes(mRouter);
+			}
 			
 			mLogger.info("Servlet successfully initialised");
 		}
@@ -83,20 +159,32 @@ public class OrmServlet extends HttpServlet {
 		}
 	}
 	
-	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+	public void destroy()
 	{
-		String lRequest = request.getPathInfo();
-		if(lRequest != null)
+		if(mMapHandler != null)
 		{
-			for(ServletRequestHandler lHandler : mHandlers)
-			{
-				if(lRequest.startsWith(lHandler.getUrlExt()))
-				{
-					lHandler.handleRequest(request, response);
-					return;
-				}
-			}
+			mMapHandler.stop();
+		}
+		if(mComponentLibrary != null)
+		{
+			mComponentLibrary.stop();
 		}
+		if(mRenderHandler != null)
+		{
+			mRenderHandler.stop();
+		}
+		if(mItemManager != null)
+		{
+			mItemManager.stop();
+		}
+		mRouter.stop();
+		DbConnectionPool.shutdown();
+		PolyClassifier.shutdown();
+	}
+	
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		mRouter.dispatch(request, response);
 	}  	
 	
 	protected void doPost(HttpServletRequest request, HttpServletResponse response) 
@@ -15,9 +15,23 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.DocumentBuilder;
@@ -26,63 +40,166 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 
+import ojw28.orm.PlacedItem;
 import ojw28.orm.utils.DbConnectionPool;
+import ojw28.orm.utils.Metrics;
+import ojw28.orm.utils.Room;
+import ojw28.orm.utils.XmlHelper;
+import ojw28.orm.utils.XmlResponseWriter;
 
 import org.w3c.dom.DOMImplementation;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
 public class PlacedItemHandler extends ServletRequestHandler {
 
     private static Logger mLogger = Logger.getLogger("ojw28.orm.servlet.PlacedItemHandler");
+
+	private static final Metrics mBatchMetrics = Metrics.getQuery("item_batch");
+	private static final Metrics mUpdatesMetrics = Metrics.getQuery("item_updates");
+	private static final Metrics mFloorMetrics = Metrics.getQuery("item_floor");
     
 	private DocumentBuilder mBuilder;
 	private DOMImplementation mBuilderImpl;
 	
-	public PlacedItemHandler() throws ParserConfigurationException, TransformerConfigurationException
+	//The current state of every item. Writes run concurrently; the store holds back each
+	//committed update until those with lower update ids have been applied or abandoned.
+	private PlacedItemStore mStore = new PlacedItemStore();
+	private PlacedItemWriter mWriter = new PlacedItemWriter(mStore);
+	//The room which each item is in
+	private RoomAssignment mRooms;
+	//The footprint of each item, for finding misplaced items
+	private CollisionChecker mCollisions;
+	
+	//The longest time, in milliseconds, for which a fetchupdatesfloor request may wait for an update
+	private static final long MAX_POLL_WAIT = 60000;
+	//The number of rows fetched from the database at a time when streaming items
+	private static final int ITEM_FETCH_SIZE = 256;
+	//The largest number of operations accepted in a single dobatch request
+	private static final int MAX_BATCH_SIZE = 1000;
+	//Long-poll requests which are waiting for an update, indexed by floor
+	private ConcurrentHashMap<Integer, ConcurrentLinkedQueue<PendingPoll>> mPendingPolls = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<PendingPoll>>();
+	//Ends the wait of each long-poll request
+	private ScheduledExecutorService mPollTimer;
+	
+	/**
+	 * Constructor.
+	 * @param iMapHandler The handler holding the current map, used to find which room each item is in
+	 * @param iItemDefs The item library, used to find the footprint of each item
+	 */
+	public PlacedItemHandler(MapHandler iMapHandler, ItemDefHandler iItemDefs) throws ParserConfigurationException, TransformerConfigurationException, SQLException
 	{
-		super("/items");
-		
 		DocumentBuilderFactory mFactory = DocumentBuilderFactory.newInstance();
 		mBuilder = mFactory.newDocumentBuilder();
 		mBuilderImpl = mBuilder.getDOMImplementation();
 		
+		Connection lConnection = DbConnectionPool.getSingleton().getConnection();
+		try
+		{
+			mStore.load(lConnection);
+		}
+		finally
+		{
+			lConnection.close();
+		}
+		
+		mRooms = new RoomAssignment(mStore, iMapHandler);
+		mCollisions = new CollisionChecker(mStore, iMapHandler, iItemDefs);
+		mStore.addListener(new PlacedItemStore.Listener() {
+			public void itemUpdated(PlacedItem iItem)
+			{
+				wakePendingPolls(iItem.getFloor());
+			}
+		});
+		mPollTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable iTask)
+			{
+				Thread lThread = new Thread(iTask, "PollTimer");
+				lThread.setDaemon(true);
+				return lThread;
+			}
+		});
+		
 		mLogger.info("Handler successfully initialised");
 	}
 
-	public void handleRequest(HttpServletRequest request, HttpServletResponse response) {
-		String lRequest = request.getPathInfo();
-		try
-		{
-			if(lRequest.startsWith("/items/fetchupdatesfloor"))
+	/**
+	 * Stops the timer which ends the wait of long-poll requests.
+	 */
+	public void stop()
+	{
+		mPollTimer.shutdownNow();
+	}
+
+	/**
+	 * The in-memory copy of the current state of every placed item.
+	 * @return The store
+	 */
+	public PlacedItemStore getStore()
+	{
+		return mStore;
+	}
+
+	public void addRoutes(RequestRouter iRouter) {
+		iRouter.addPrefix("/items/fetchupdatesfloor", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws Exception
 			{
 				fetchUpdateFloorHandler(request, response);
 			}
-			else if(lRequest.equals("/items/doupdate"))
+		}, RequestRouter.GET);
+		//Older clients send single item changes as GET requests
+		iRouter.add("/items/doupdate", new RequestRouter.DatabaseRoute() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws Exception
 			{
 				updateItemHandler(request, response);
 			}
-			else if(lRequest.equals("/items/doadd"))
+		}, RequestRouter.GET, RequestRouter.POST);
+		iRouter.add("/items/doadd", new RequestRouter.DatabaseRoute() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws Exception
 			{
 				addNewItemHandler(request, response);
 			}
-			else if(lRequest.startsWith("/items/doremove"))
+		}, RequestRouter.GET, RequestRouter.POST);
+		iRouter.addPrefix("/items/doremove", new RequestRouter.DatabaseRoute() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws Exception
 			{
 				removeItemHandler(request, response);
 			}
-			else if(lRequest.startsWith("/items/getitemsfloor"))
+		}, RequestRouter.GET, RequestRouter.POST);
+		iRouter.add("/items/dobatch", new RequestRouter.DatabaseRoute() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws Exception
+			{
+				batchHandler(request, response);
+			}
+		}, RequestRouter.POST);
+		iRouter.addPrefix("/items/getitemsfloor", new RequestRouter.DatabaseRoute() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws Exception
 			{
 				itemRequestFloorHandler(request, response);
 			}
-			else
+		}, RequestRouter.GET);
+		iRouter.add("/items/inroom", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws Exception
 			{
-				mLogger.warning("Unknown request not handled :\t" + lRequest);
+				itemsInRoomHandler(request, response);
 			}
-		}
-		catch(Exception lE)
-		{                
-			mLogger.log(Level.SEVERE, "Exception caught while handling request :\t"+ request.getPathInfo(), lE);
-		}
+		}, RequestRouter.GET);
+		iRouter.add("/items/room", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws Exception
+			{
+				itemRoomHandler(request, response);
+			}
+		}, RequestRouter.GET);
+		iRouter.add("/items/check", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws Exception
+			{
+				checkHandler(request, response);
+			}
+		}, RequestRouter.GET);
 	}
 
 	private void addNewItemHandler(HttpServletRequest request, HttpServletResponse response) throws SQLException, IOException, TransformerException
@@ -97,49 +214,70 @@ public class PlacedItemHandler extends ServletRequestHandler {
 
 		int lAssignedUid = writeNewItemToDb(lItemId,getCrsid(request),lX,lY,lTheta,lFloor,lFlipped,lLabel);
 
-		Document lUpdateXml = createDocument("ItemAdded");
-		Element lRootElement = lUpdateXml.getDocumentElement();
-		lRootElement.setAttribute("uid", ""+lAssignedUid);
-		writeXmlResponse(lUpdateXml, response);
+		XmlResponseWriter lWriter = createXmlWriter(response);
+		lWriter.startElement("ItemAdded");
+		lWriter.attribute("uid", ""+lAssignedUid);
+		lWriter.endDocument();
 	}
 
 	public int writeNewItemToDb(int iItemDefId, String iCrsid, float iX, float iY, int iTheta, int iFloor, boolean iFlipped, String iLabel) throws SQLException
 	{
 		Connection lConnection = DbConnectionPool.getSingleton().getConnection();
+		int[] lUpdateIds = null;
 		try
 		{
-			int lAssignedUid = 0;
-			PreparedStatement lGetPolyId = lConnection.prepareStatement("SELECT nextval('item_id_seq')");
-			try
-			{
-				ResultSet lRes = lGetPolyId.executeQuery();
-				lRes.next();
-				lAssignedUid = lRes.getInt(1);
-				lRes.close();
-
-				PreparedStatement lInsertItem = lConnection.prepareStatement("INSERT INTO " +
-				"placed_item_table(item_id,item_def_id) VALUES(?,?)");
-				try
-				{
-					lInsertItem.setInt(1,lAssignedUid);
-					lInsertItem.setInt(2, iItemDefId);
-					lInsertItem.execute();
+			lUpdateIds = mWriter.allocateUpdateIds(lConnection, 1);
+			PlacedItem lItem = mWriter.writeNewItem(lConnection,lUpdateIds[0],iCrsid,iItemDefId,iX,iY,iTheta,iFloor,iFlipped,iLabel);
+			lConnection.commit();
+			mStore.apply(lItem, DbConnectionPool.getSingleton().getCommitPosition(lConnection));
+			lUpdateIds = null;
+			return lItem.getUid();
+		}
+		catch(SQLException lE)
+		{
+			lConnection.rollback();
+			throw(lE);
+		}
+		finally
+		{
+			abandon(lUpdateIds);
+			lConnection.close();
+		}
+	}
+	
+	/**
+	 * Gives up update ids whose updates were not committed, so that the store does not
+	 * hold back later updates waiting for them.
+	 * @param iUpdateIds The update ids, or null if there are none
+	 */
+	private void abandon(int[] iUpdateIds)
+	{
+		if(iUpdateIds != null)
+		{
+			mStore.abandon(iUpdateIds);
+		}
+	}
+	
+	private void updateItemHandler(HttpServletRequest request, HttpServletResponse response) throws SQLException
+	{
+		int lUid = Integer.parseInt(request.getParameter("uid"));
+		float lX = Float.parseFloat(request.getParameter("x"));
+		float lY = Float.parseFloat(request.getParameter("y"));
+		int lTheta = Integer.parseInt(request.getParameter("theta"));
+		int lFloor = Integer.parseInt(request.getParameter("floor"));
+		boolean lFlipped = Boolean.parseBoolean(request.getParameter("flipped"));
+		String lLabel = request.getParameter("label");
 
-					writeUpdateToDb(lConnection,iCrsid,lAssignedUid,iX,iY,iTheta,iFloor,iFlipped,false,iLabel);
-					
-					lConnection.commit();
-										
-					return lAssignedUid;
-				}
-				finally
-				{
-					lInsertItem.close();
-				}
-			}
-			finally
-			{
-				lGetPolyId.close();
-			}
+		PlacedItem lPrevious = getStoredItem(lUid);
+		Connection lConnection = DbConnectionPool.getSingleton().getConnection();
+		int[] lUpdateIds = null;
+		try
+		{
+			lUpdateIds = mWriter.allocateUpdateIds(lConnection, 1);
+			PlacedItem lItem = mWriter.writeUpdate(lConnection,lUpdateIds[0],getCrsid(request),lUid,lPrevious.getItemDefId(),lX,lY,lTheta,lFloor,lFlipped,false,lLabel);
+			lConnection.commit();
+			mStore.apply(lItem, DbConnectionPool.getSingleton().getCommitPosition(lConnection));
+			lUpdateIds = null;
 		}
 		catch(SQLException lE)
 		{
@@ -148,53 +286,243 @@ public class PlacedItemHandler extends ServletRequestHandler {
 		}
 		finally
 		{
+			abandon(lUpdateIds);
 			lConnection.close();
 		}
 	}
 	
-	private void updateItemHandler(HttpServletRequest request, HttpServletResponse response)
+	/**
+	 * Applies a batch of operations, posted as an XML document whose root element contains
+	 * Add, Update and Remove elements with the same attributes as the parameters of the
+	 * doadd, doupdate and doremove requests. The operations are applied in order in a single
+	 * transaction, so either all of them are committed or none are. The response contains
+	 * a Result element for each operation giving the item's uid and the update token.
+	 */
+	private void batchHandler(HttpServletRequest request, HttpServletResponse response) throws SQLException, IOException, SAXException, ParserConfigurationException
 	{
+		Document lBatch = XmlHelper.parse(new InputSource(request.getInputStream()));
+		NodeList lNodes = lBatch.getDocumentElement().getChildNodes();
+		ArrayList<Element> lOps = new ArrayList<Element>();
+		for(int li = 0; li < lNodes.getLength(); li++)
+		{
+			if(lNodes.item(li).getNodeType() == Node.ELEMENT_NODE)
+			{
+				lOps.add((Element) lNodes.item(li));
+			}
+		}
+		if(lOps.size() > MAX_BATCH_SIZE)
+		{
+			throw new IllegalArgumentException("Batch of "+lOps.size()+" operations exceeds the limit of "+MAX_BATCH_SIZE);
+		}
+		
+		List<PlacedItem> lResults = writeBatchToDb(getCrsid(request), lOps);
+		
+		int lUpdateId = lResults.isEmpty() ? 0 : lResults.get(lResults.size() - 1).getUpdateId();
+		XmlResponseWriter lWriter = createXmlWriter(response);
+		lWriter.startElement("BatchResult");
+		lWriter.attribute("updatetoken", ""+lUpdateId);
+		for(int li = 0; li < lResults.size(); li++)
+		{
+			lWriter.startElement("Result");
+			lWriter.attribute("index", ""+li);
+			lWriter.attribute("uid", ""+lResults.get(li).getUid());
+			lWriter.attribute("updatetoken", ""+lResults.get(li).getUpdateId());
+			lWriter.endElement();
+		}
+		lWriter.endDocument();
+	}
+	
+	/**
+	 * Writes a batch of operations to the database in a single transaction, using one
+	 * JDBC batch per statement and allocating all of the item and update ids up front.
+	 * @param iCrsid The user making the changes
+	 * @param iOps The Add, Update and Remove elements
+	 * @return The new state of the item affected by each operation, in order
+	 * @throws SQLException If a database error occurs, in which case nothing is committed
+	 */
+	public List<PlacedItem> writeBatchToDb(String iCrsid, List<Element> iOps) throws SQLException
+	{
+		//Work out the new state of each item before touching the database, so that an
+		//invalid operation rejects the whole batch. Uids of new items and all update ids
+		//are filled in once they have been allocated.
+		PlacedItem[] lStates = new PlacedItem[iOps.size()];
+		boolean[] lIsAdd = new boolean[iOps.size()];
+		int lAddCount = 0;
+		HashMap<Integer, PlacedItem> lPending = new HashMap<Integer, PlacedItem>();
+		for(int li = 0; li < lStates.length; li++)
+		{
+			Element lOp = iOps.get(li);
+			String lType = lOp.getTagName();
+			if(lType.equals("Add"))
+			{
+				lStates[li] = new PlacedItem(0,
+						Integer.parseInt(lOp.getAttribute("item_def_id")),
+						Float.parseFloat(lOp.getAttribute("x")),
+						Float.parseFloat(lOp.getAttribute("y")),
+						Integer.parseInt(lOp.getAttribute("theta")),
+						Integer.parseInt(lOp.getAttribute("floor")),
+						Boolean.parseBoolean(lOp.getAttribute("flipped")),
+						false, lOp.getAttribute("label"), 0);
+				lIsAdd[li] = true;
+				lAddCount++;
+				continue;
+			}
+			
+			int lUid = Integer.parseInt(lOp.getAttribute("uid"));
+			PlacedItem lPrevious = lPending.get(lUid);
+			if(lPrevious == null)
+			{
+				lPrevious = mStore.getItem(lUid);
+			}
+			if(lPrevious == null)
+			{
+				throw new IllegalArgumentException("Unknown item in batch :\t"+lUid);
+			}
+			if(lType.equals("Update"))
+			{
+				lStates[li] = new PlacedItem(lUid, lPrevious.getItemDefId(),
+						Float.parseFloat(lOp.getAttribute("x")),
+						Float.parseFloat(lOp.getAttribute("y")),
+						Integer.parseInt(lOp.getAttribute("theta")),
+						Integer.parseInt(lOp.getAttribute("floor")),
+						Boolean.parseBoolean(lOp.getAttribute("flipped")),
+						false, lOp.getAttribute("label"), 0);
+			}
+			else if(lType.equals("Remove"))
+			{
+				lStates[li] = new PlacedItem(lUid, lPrevious.getItemDefId(), lPrevious.getX(), lPrevious.getY(),
+						lPrevious.getTheta(), lPrevious.getFloor(), lPrevious.isFlipped(), true, lPrevious.getLabel(), 0);
+			}
+			else
+			{
+				throw new IllegalArgumentException("Unknown operation in batch :\t"+lType);
+			}
+			lPending.put(lUid, lStates[li]);
+		}
+		
+		ArrayList<PlacedItem> lResults = new ArrayList<PlacedItem>(lStates.length);
+		if(lStates.length == 0)
+		{
+			return lResults;
+		}
+		
+		Connection lConnection = DbConnectionPool.getSingleton().getConnection();
+		int[] lUpdateIds = null;
 		try
 		{
-			int lUid = Integer.parseInt(request.getParameter("uid"));
-			float lX = Float.parseFloat(request.getParameter("x"));
-			float lY = Float.parseFloat(request.getParameter("y"));
-			int lTheta = Integer.parseInt(request.getParameter("theta"));
-			int lFloor = Integer.parseInt(request.getParameter("floor"));
-			boolean lFlipped = Boolean.parseBoolean(request.getParameter("flipped"));
-			String lLabel = request.getParameter("label");
-
-			Connection lConnection = DbConnectionPool.getSingleton().getConnection();
+			int[] lItemIds = mWriter.allocateItemIds(lConnection, lAddCount);
+			lUpdateIds = mWriter.allocateUpdateIds(lConnection, lStates.length);
+			
+			PreparedStatement lInsertItem = lConnection.prepareStatement("INSERT INTO " +
+					"placed_item_table(item_id,item_def_id) VALUES(?,?)");
+			PreparedStatement lInsertUpdate = lConnection.prepareStatement("INSERT INTO " +
+					"placed_item_update_table(update_id,crsid,item_id,x,y,theta,floor_id,flipped,deleted,label) VALUES(?,?,?,?,?,?,?,?,?,?)");
+			PreparedStatement lSetUpdate = lConnection.prepareStatement("UPDATE placed_item_table SET last_update = greatest(last_update, ?) WHERE item_id = ?");
+			long lStartTime = System.nanoTime();
+			int lRows = -1;
 			try
 			{
-				writeUpdateToDb(lConnection,getCrsid(request),lUid,lX,lY,lTheta,lFloor,lFlipped,false, lLabel);
+				int lNextItemId = 0;
+				for(int li = 0; li < lStates.length; li++)
+				{
+					PlacedItem lState = lStates[li];
+					int lUid = lIsAdd[li] ? lItemIds[lNextItemId++] : lState.getUid();
+					PlacedItem lResult = new PlacedItem(lUid, lState.getItemDefId(), lState.getX(), lState.getY(), lState.getTheta(),
+							lState.getFloor(), lState.isFlipped(), lState.isDeleted(), lState.getLabel(), lUpdateIds[li]);
+					lResults.add(lResult);
+					
+					if(lIsAdd[li])
+					{
+						lInsertItem.setInt(1, lUid);
+						lInsertItem.setInt(2, lResult.getItemDefId());
+						lInsertItem.addBatch();
+					}
+					
+					lInsertUpdate.setInt(1, lResult.getUpdateId());
+					lInsertUpdate.setString(2, iCrsid);
+					lInsertUpdate.setInt(3, lUid);
+					lInsertUpdate.setFloat(4, lResult.getX());
+					lInsertUpdate.setFloat(5, lResult.getY());
+					lInsertUpdate.setInt(6, lResult.getTheta());
+					lInsertUpdate.setInt(7, lResult.getFloor());
+					lInsertUpdate.setBoolean(8, lResult.isFlipped());
+					lInsertUpdate.setBoolean(9, lResult.isDeleted());
+					lInsertUpdate.setString(10, lResult.getLabel());
+					lInsertUpdate.addBatch();
+					
+					lSetUpdate.setInt(1, lResult.getUpdateId());
+					lSetUpdate.setInt(2, lUid);
+					lSetUpdate.addBatch();
+				}
+				
+				//The foreign keys require the items to exist before their updates, and
+				//the updates to exist before the items refer to them.
+				if(lAddCount > 0)
+				{
+					lInsertItem.executeBatch();
+				}
+				lInsertUpdate.executeBatch();
+				lSetUpdate.executeBatch();
 				lConnection.commit();
+				lRows = lAddCount + 2 * lStates.length;
 			}
-			catch(SQLException lE)
+			finally
 			{
-				lConnection.rollback();
-				throw(lE);
+				lSetUpdate.close();
+				lInsertUpdate.close();
+				lInsertItem.close();
+				mBatchMetrics.record(lStartTime, lRows);
 			}
-			finally
+			long lPosition = DbConnectionPool.getSingleton().getCommitPosition(lConnection);
+			for(PlacedItem lResult : lResults)
 			{
-				lConnection.close();
+				mStore.apply(lResult, lPosition);
 			}
+			lUpdateIds = null;
 		}
-		catch(Exception lE)
+		catch(SQLException lE)
 		{
-			mLogger.log(Level.SEVERE, "Exception caught while handling request :\t"+ request.getPathInfo(), lE);
+			lConnection.rollback();
+			throw(lE);
+		}
+		finally
+		{
+			abandon(lUpdateIds);
+			lConnection.close();
 		}
+		return lResults;
+	}
+	
+	/**
+	 * Gets the current state of an item from the store, which holds every item in the
+	 * database, so that a write needs no query for the item's previous state.
+	 * @throws IllegalArgumentException If there is no such item
+	 */
+	private PlacedItem getStoredItem(int iUid)
+	{
+		PlacedItem lItem = mStore.getItem(iUid);
+		if(lItem == null)
+		{
+			throw new IllegalArgumentException("Unknown item :\t"+iUid);
+		}
+		return lItem;
 	}
 	
 	private void removeItemHandler(HttpServletRequest request, HttpServletResponse response) throws SQLException
 	{
 		int lUid = Integer.parseInt(request.getParameter("uid"));
+		PlacedItem lLast = getStoredItem(lUid);
 
 		Connection lConnection = DbConnectionPool.getSingleton().getConnection();
+		int[] lUpdateIds = null;
 		try
 		{
-			writeRemoveToDb(lConnection,getCrsid(request),lUid);
+			lUpdateIds = mWriter.allocateUpdateIds(lConnection, 1);
+			PlacedItem lRemoved = mWriter.writeUpdate(lConnection,lUpdateIds[0],getCrsid(request),lUid,lLast.getItemDefId(),lLast.getX(),lLast.getY(),
+					lLast.getTheta(),lLast.getFloor(),lLast.isFlipped(),true,lLast.getLabel());
 			lConnection.commit();
+			mStore.apply(lRemoved, DbConnectionPool.getSingleton().getCommitPosition(lConnection));
+			lUpdateIds = null;
 		}
 		catch(SQLException lE)
 		{
@@ -203,6 +531,7 @@ public class PlacedItemHandler extends ServletRequestHandler {
 		}
 		finally
 		{
+			abandon(lUpdateIds);
 			lConnection.close();
 		}
 	}
@@ -211,61 +540,174 @@ public class PlacedItemHandler extends ServletRequestHandler {
 	{
 		int lLastUpdate = Integer.parseInt(request.getParameter("lastupdate"));
 		int lFloor = Integer.parseInt(request.getParameter("floor"));
+		String lWait = request.getParameter("wait");
+		boolean lBinary = acceptsBinary(request);
 
-		Document lUpdateDoc = getUpdatesFloor(lLastUpdate, lFloor);
-		writeXmlResponse(lUpdateDoc, response);
+		if(lWait != null && !mStore.hasUpdatesFloor(lLastUpdate, lFloor))
+		{
+			//Nothing new yet. Park the request until an update arrives or the wait expires.
+			long lWaitTime = Math.min(Long.parseLong(lWait), MAX_POLL_WAIT);
+			if(lWaitTime > 0)
+			{
+				final PendingPoll lPoll = new PendingPoll(lLastUpdate, lFloor, lBinary);
+				lPoll.mContext = RequestRouter.keepOpen(request, lPoll);
+				getPendingPolls(lFloor).add(lPoll);
+				//The context's own timeout cannot be set from this thread
+				lPoll.mExpiry = mPollTimer.schedule(new Runnable() {
+					public void run()
+					{
+						lPoll.wake();
+					}
+				}, lWaitTime, TimeUnit.MILLISECONDS);
+				
+				//An update may have been applied before the poll was registered
+				if(mStore.hasUpdatesFloor(lLastUpdate, lFloor))
+				{
+					lPoll.wake();
+				}
+				return;
+			}
+		}
+		writeUpdatesFloor(lLastUpdate, lFloor, lBinary, response);
 	}
-
-	public Document getUpdatesFloor(int iLastUpdateId, int iFloor) throws SQLException
+	
+	private ConcurrentLinkedQueue<PendingPoll> getPendingPolls(int iFloor)
 	{
-		Document lUpdateXml = mBuilderImpl.createDocument(null, "ItemUpdate", null);
-		Element lRootElement = lUpdateXml.getDocumentElement();
+		ConcurrentLinkedQueue<PendingPoll> lPolls = mPendingPolls.get(iFloor);
+		if(lPolls == null)
+		{
+			mPendingPolls.putIfAbsent(iFloor, new ConcurrentLinkedQueue<PendingPoll>());
+			lPolls = mPendingPolls.get(iFloor);
+		}
+		return lPolls;
+	}
+	
+	/**
+	 * Wakes the long-poll requests which are waiting for an update to a floor.
+	 * @param iFloor The floor
+	 */
+	private void wakePendingPolls(int iFloor)
+	{
+		ConcurrentLinkedQueue<PendingPoll> lPolls = mPendingPolls.get(iFloor);
+		if(lPolls != null)
+		{
+			PendingPoll lPoll;
+			while((lPoll = lPolls.poll()) != null)
+			{
+				lPoll.wake();
+			}
+		}
+	}
+	
+	/**
+	 * A fetchupdatesfloor request which is waiting for an update to its floor. The request
+	 * is answered once, either when it is woken by an update or by the end of its wait, or
+	 * when the context times out. The router passes the context's events on to it.
+	 */
+	private class PendingPoll implements AsyncListener, Runnable
+	{
+		private AsyncContext mContext;
+		private ScheduledFuture<?> mExpiry;
+		private int mLastUpdate;
+		private int mFloor;
+		private boolean mBinary;
+		private AtomicBoolean mDone = new AtomicBoolean(false);
 		
-		int lUpdateId = iLastUpdateId;
+		public PendingPoll(int iLastUpdate, int iFloor, boolean iBinary)
+		{
+			mLastUpdate = iLastUpdate;
+			mFloor = iFloor;
+			mBinary = iBinary;
+		}
 		
-		Connection lConnection = DbConnectionPool.getSingleton().getConnection();
-		try
+		/**
+		 * Answers the request on a container thread.
+		 */
+		public void wake()
 		{
-			PreparedStatement lFetchUpdates = lConnection.prepareStatement(
-					"SELECT * FROM placed_item_table INNER JOIN placed_item_update_table "+
-					"ON placed_item_table.last_update = placed_item_update_table.update_id " +
-					"WHERE last_update > ? AND floor_id = ?");
+			if(!mDone.get())
+			{
+				mContext.start(this);
+			}
+		}
+		
+		public void run()
+		{
+			respond(mContext);
+		}
+		
+		private void respond(AsyncContext iContext)
+		{
+			if(!mDone.compareAndSet(false, true))
+			{
+				return;
+			}
+			cancel();
 			try
 			{
-				lFetchUpdates.setInt(1, iLastUpdateId);
-				lFetchUpdates.setInt(2, iFloor);
-				ResultSet lUpdates = lFetchUpdates.executeQuery();
-				while(lUpdates.next())
-				{
-					int lUid = lUpdates.getInt("item_id");
-					int lItemDefId = lUpdates.getInt("item_def_id");
-					float lX = lUpdates.getFloat("x");
-					float lY = lUpdates.getFloat("y");
-					int lTheta = lUpdates.getInt("theta");
-					int lFloor = lUpdates.getInt("floor_id");
-					boolean lFlipped = lUpdates.getBoolean("flipped");
-					boolean lDeleted = lUpdates.getBoolean("deleted");
-					String lLabel = lUpdates.getString("label");
-
-					lUpdateId = Math.max(lUpdateId, lUpdates.getInt("last_update"));
-
-					writePlacedItemXml(lUpdateXml, lRootElement, lUid, lItemDefId, lX, lY, lTheta, lFloor, lFlipped, lDeleted, lLabel);
-				}
-				lUpdates.close();
+				writeUpdatesFloor(mLastUpdate, mFloor, mBinary, (HttpServletResponse) iContext.getResponse());
+			}
+			catch(Exception lE)
+			{
+				mLogger.log(Level.SEVERE, "Exception caught while answering long-poll request", lE);
 			}
 			finally
 			{
-				lFetchUpdates.close();
+				iContext.complete();
 			}
 		}
-		finally
+		
+		private void cancel()
 		{
-			lConnection.close();
+			getPendingPolls(mFloor).remove(this);
+			if(mExpiry != null)
+			{
+				mExpiry.cancel(false);
+			}
 		}
+
+		public void onTimeout(AsyncEvent iEvent)
+		{
+			//May come before the context has been handed to the poll
+			respond(iEvent.getAsyncContext());
+		}
+
+		public void onError(AsyncEvent iEvent)
+		{
+			mDone.set(true);
+			cancel();
+		}
+
+		public void onComplete(AsyncEvent iEvent)
+		{
+			cancel();
+		}
+
+		public void onStartAsync(AsyncEvent iEvent)
+		{
+		}
+	}
+
+	/**
+	 * Writes the response to a fetchupdatesfloor request from the item store, without
+	 * touching the database.
+	 * @param iLastUpdateId The client's update token
+	 * @param iFloor The floor
+	 * @param iBinary True if the response should use the binary encoding
+	 * @param iResponse The response to which the items on the floor updated since the token are written
+	 * @throws IOException If an IOException occurs
+	 */
+	public void writeUpdatesFloor(int iLastUpdateId, int iFloor, boolean iBinary, HttpServletResponse iResponse) throws IOException
+	{
+		ArrayList<PlacedItem> lItems = new ArrayList<PlacedItem>();
+		int lUpdateId = mStore.getUpdatesFloor(iLastUpdateId, iFloor, lItems);
 		
-		lRootElement.setAttribute("updatetoken", ""+lUpdateId);
-		
-		return lUpdateXml;
+		ItemListWriter lWriter = createItemListWriter(iBinary, iResponse, "ItemUpdate", lUpdateId);
+		for(PlacedItem lItem : lItems)
+		{
+			lWriter.writeItem(lItem);
+		}
+		lWriter.end();
 	}
 	
 	public Document getUpdates(int iLastUpdateId) throws SQLException
@@ -275,19 +717,25 @@ public class PlacedItemHandler extends ServletRequestHandler {
 		
 		int lUpdateId = iLastUpdateId;
 		
-		Connection lConnection = DbConnectionPool.getSingleton().getConnection();
+		//The token returned must be no older than any update this server has committed
+		Connection lConnection = DbConnectionPool.getSingleton().getReadConnection(mStore.getPosition());
 		try
 		{
+			int lMaxToken = mStore.getUpdateToken(DbConnectionPool.getReplayPosition(lConnection));
 			PreparedStatement lFetchUpdates = lConnection.prepareStatement(
 					"SELECT * FROM placed_item_table INNER JOIN placed_item_update_table "+
 					"ON placed_item_table.last_update = placed_item_update_table.update_id " +
 					"WHERE last_update > ?");
+			long lStartTime = System.nanoTime();
+			int lRows = -1;
 			try
 			{
 				lFetchUpdates.setInt(1, iLastUpdateId);
 				ResultSet lUpdates = lFetchUpdates.executeQuery();
+				int lRowCount = 0;
 				while(lUpdates.next())
 				{
+					lRowCount++;
 					int lUid = lUpdates.getInt("item_id");
 					int lItemDefId = lUpdates.getInt("item_def_id");
 					float lX = lUpdates.getFloat("x");
@@ -303,11 +751,16 @@ public class PlacedItemHandler extends ServletRequestHandler {
 					writePlacedItemXml(lUpdateXml, lRootElement, lUid, lItemDefId, lX, lY, lTheta, lFloor, lFlipped, lDeleted, lLabel);
 				}
 				lUpdates.close();
+				lRows = lRowCount;
 			}
 			finally
 			{
 				lFetchUpdates.close();
+				mUpdatesMetrics.record(lStartTime, lRows);
 			}
+			//Rows may include an update committed before a lower one which is still to
+			//come, so the token must not pass the updates the database is known to hold
+			lUpdateId = Math.max(iLastUpdateId, Math.min(lUpdateId, lMaxToken));
 		}
 		finally
 		{
@@ -319,27 +772,129 @@ public class PlacedItemHandler extends ServletRequestHandler {
 		return lUpdateXml;
 	}
 
+	private void itemsInRoomHandler(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		int lRoomId = Integer.parseInt(request.getParameter("roomid"));
+		
+		//Read the token first, so that any update the list misses has a later id
+		int lUpdateId = mStore.getLastUpdateId();
+		ArrayList<PlacedItem> lItems = new ArrayList<PlacedItem>();
+		mRooms.getItems(lRoomId, lItems);
+		
+		ItemListWriter lWriter = createItemListWriter(acceptsBinary(request), response, "Items", lUpdateId);
+		for(PlacedItem lItem : lItems)
+		{
+			lWriter.writeItem(lItem);
+		}
+		lWriter.end();
+	}
+	
+	private void itemRoomHandler(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		int lUid = Integer.parseInt(request.getParameter("uid"));
+		Room lRoom = mRooms.getRoom(lUid);
+		
+		XmlResponseWriter lWriter = createXmlWriter(response);
+		lWriter.startElement("ItemRoom");
+		if(lRoom != null)
+		{
+			lWriter.attribute("name", lRoom.getName());
+			lWriter.attribute("roomid", ""+lRoom.getUid());
+		}
+		lWriter.attribute("uid", ""+lUid);
+		lWriter.endDocument();
+	}
+	
+	/**
+	 * Reports misplaced items. With item_def_id, checks a proposed placement given by the
+	 * same parameters as doadd, and uid if it is a move of an existing item. With uid
+	 * alone, checks an existing item. With floor alone, checks every item on the floor.
+	 */
+	private void checkHandler(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		String lItemDefId = request.getParameter("item_def_id");
+		String lUid = request.getParameter("uid");
+		ArrayList<CollisionChecker.Problem> lProblems = new ArrayList<CollisionChecker.Problem>();
+		if(lItemDefId != null)
+		{
+			mCollisions.checkPlacement(lUid == null ? -1 : Integer.parseInt(lUid),
+					Integer.parseInt(lItemDefId),
+					Float.parseFloat(request.getParameter("x")),
+					Float.parseFloat(request.getParameter("y")),
+					Integer.parseInt(request.getParameter("theta")),
+					Integer.parseInt(request.getParameter("floor")),
+					Boolean.parseBoolean(request.getParameter("flipped")),
+					lProblems);
+		}
+		else if(lUid != null)
+		{
+			PlacedItem lItem = mStore.getItem(Integer.parseInt(lUid));
+			if(lItem == null || lItem.isDeleted())
+			{
+				throw new IllegalArgumentException("Unknown item :\t" + lUid);
+			}
+			mCollisions.checkPlacement(lItem.getUid(), lItem.getItemDefId(), lItem.getX(), lItem.getY(),
+					lItem.getTheta(), lItem.getFloor(), lItem.isFlipped(), lProblems);
+		}
+		else
+		{
+			mCollisions.checkFloor(Integer.parseInt(request.getParameter("floor")), lProblems);
+		}
+		
+		XmlResponseWriter lWriter = createXmlWriter(response);
+		lWriter.startElement("Problems");
+		lWriter.attribute("count", ""+lProblems.size());
+		for(CollisionChecker.Problem lProblem : lProblems)
+		{
+			lWriter.startElement("Problem");
+			if(lProblem.getOtherUid() >= 0)
+			{
+				lWriter.attribute("other", ""+lProblem.getOtherUid());
+			}
+			lWriter.attribute("type", lProblem.getType());
+			lWriter.attribute("uid", ""+lProblem.getUid());
+			lWriter.endElement();
+		}
+		lWriter.endDocument();
+	}
+	
 	private void itemRequestFloorHandler(HttpServletRequest request, HttpServletResponse response) throws SQLException, IOException, TransformerException
 	{
 		int lFloor = Integer.parseInt(request.getParameter("floor"));
+		//A replica may serve the request once it has replayed every update up to the
+		//client's latest token. Without one, it must hold every update this server has
+		//committed.
+		String lToken = request.getParameter("token");
+		long lMinPosition = lToken == null ? mStore.getPosition() : mStore.getPosition(Integer.parseInt(lToken));
 
-		Document lUpdateXml = mBuilderImpl.createDocument(null, "Items", null);
-		Element lRootElement = lUpdateXml.getDocumentElement();
-
-		int lUpdateId = 0;
-
-		Connection lConnection = DbConnectionPool.getSingleton().getConnection();
+		Connection lConnection = DbConnectionPool.getSingleton().getReadConnection(lMinPosition);
 		try
 		{
+			//The rows may include an update committed before a lower one which is still to
+			//come, which the store holds back, so the token is capped at the newest one
+			//whose updates the database had all replayed before the query. A client which
+			//then polls the store for later updates is sent the lower one when it commits.
+			int lMaxToken = mStore.getUpdateToken(DbConnectionPool.getReplayPosition(lConnection));
+			//The update token is written before the items, so the maximum is computed by
+			//the database and returned with every row.
 			PreparedStatement lFetchUpdates = lConnection.prepareStatement(
-					"SELECT * FROM placed_item_table INNER JOIN placed_item_update_table "+
+					"SELECT *, max(last_update) OVER () AS max_update FROM placed_item_table INNER JOIN placed_item_update_table "+
 					"ON placed_item_table.last_update = placed_item_update_table.update_id " +
 					"WHERE NOT deleted AND floor_id = ?");
 			lFetchUpdates.setInt(1,lFloor);
+			lFetchUpdates.setFetchSize(ITEM_FETCH_SIZE);
+			//Includes the time taken to stream the items to the client
+			long lStartTime = System.nanoTime();
+			int lRows = -1;
 			try
 			{
 				ResultSet lUpdates = lFetchUpdates.executeQuery();
-				while(lUpdates.next())
+				int lRowCount = 0;
+				boolean lHasRow = lUpdates.next();
+				int lUpdateId = lHasRow ? Math.min(lUpdates.getInt("max_update"), lMaxToken) : 0;
+				
+				ItemListWriter lWriter = createItemListWriter(acceptsBinary(request), response, "Items", lUpdateId);
+				while(lHasRow)
 				{
 					int lUid = lUpdates.getInt("item_id");
 					int lItemDefId = lUpdates.getInt("item_def_id");
@@ -350,15 +905,18 @@ public class PlacedItemHandler extends ServletRequestHandler {
 					boolean lDeleted = lUpdates.getBoolean("deleted");
 					String lLabel = lUpdates.getString("label");
 
-					lUpdateId = Math.max(lUpdateId, lUpdates.getInt("last_update"));
-
-					writePlacedItemXml(lUpdateXml, lRootElement, lUid, lItemDefId, lX, lY, lTheta, lFloor, lFlipped, lDeleted, lLabel);
+					lWriter.writeItem(lUid, lItemDefId, lX, lY, lTheta, lFloor, lFlipped, lDeleted, lLabel);
+					lHasRow = lUpdates.next();
+					lRowCount++;
 				}
 				lUpdates.close();
+				lWriter.end();
+				lRows = lRowCount;
 			}
 			finally
 			{
 				lFetchUpdates.close();
+				mFloorMetrics.record(lStartTime, lRows);
 			}
 			
 		}
@@ -366,11 +924,8 @@ public class PlacedItemHandler extends ServletRequestHandler {
 		{
 			lConnection.close();
 		}
-
-		lRootElement.setAttribute("updatetoken", ""+lUpdateId);
-
-		writeXmlResponse(lUpdateXml, response);
 	}
+	
 
 	private void writePlacedItemXml(Document iDoc, Element iParent, int iUid, int iItemDefId, float iX, float iY, int iTheta, int iFloor, boolean iFlipped, boolean iDeleted, String iLabel)
 	{
@@ -387,82 +942,6 @@ public class PlacedItemHandler extends ServletRequestHandler {
 		iParent.appendChild(lItemElement);	
 	}	
 	
-	private void writeUpdateToDb(Connection iConnection, String iCrsid, int iUid, float iX, float iY, int iTheta, int iFloor, boolean iFlipped, boolean iDeleted, String iLabel) throws SQLException
-	{
-		PreparedStatement lGetUpdateId = iConnection.prepareStatement("SELECT nextval('item_update_seq')");
-		try
-		{
-			ResultSet lRes = lGetUpdateId.executeQuery();
-			lRes.next();
-			int lLastUpdateToken = lRes.getInt(1);
-			lRes.close();
 
-			PreparedStatement lInsertUpdate = iConnection.prepareStatement("INSERT INTO " +
-					"placed_item_update_table(update_id,crsid,item_id,x,y,theta,floor_id,flipped,deleted,label) VALUES(?,?,?,?,?,?,?,?,?,?)");
-			try
-			{
-				lInsertUpdate.setInt(1, lLastUpdateToken);
-				lInsertUpdate.setString(2, iCrsid);
-				lInsertUpdate.setInt(3,iUid);
-				lInsertUpdate.setFloat(4, iX);
-				lInsertUpdate.setFloat(5, iY);
-				lInsertUpdate.setInt(6, iTheta);
-				lInsertUpdate.setInt(7, iFloor);
-				lInsertUpdate.setBoolean(8, iFlipped);
-				lInsertUpdate.setBoolean(9, iDeleted);
-				lInsertUpdate.setString(10, iLabel);
-				lInsertUpdate.execute();
-
-				PreparedStatement lSetUpdate = iConnection.prepareStatement("UPDATE placed_item_table SET last_update = ? WHERE item_id = ?");
-				try
-				{
-					lSetUpdate.setInt(1, lLastUpdateToken);
-					lSetUpdate.setInt(2, iUid);
-					lSetUpdate.execute();
-				}
-				finally
-				{
-					lSetUpdate.close();
-				}
-			}
-			finally
-			{
-				lInsertUpdate.close();
-			}
-		}
-		finally
-		{
-			lGetUpdateId.close();
-		}
-	}
-
-	private void writeRemoveToDb(Connection iConnection, String iCrsid, int iUid) throws SQLException
-	{			
-		PreparedStatement lFetchLastState = iConnection.prepareStatement(
-				"SELECT * FROM placed_item_table INNER JOIN placed_item_update_table "+
-				"ON placed_item_table.last_update = placed_item_update_table.update_id " +
-				"WHERE placed_item_table.item_id = ?");
-		try
-		{
-			lFetchLastState.setInt(1, iUid);
-			ResultSet lLastState = lFetchLastState.executeQuery();
-			lLastState.next();
-			{
-				float lX = lLastState.getFloat("x");
-				float lY = lLastState.getFloat("y");
-				int lTheta = lLastState.getInt("theta");
-				int lFloor = lLastState.getInt("floor_id");
-				boolean lFlipped = lLastState.getBoolean("flipped");
-				String lLabel = lLastState.getString("label");
-
-				writeUpdateToDb(iConnection, iCrsid, iUid, lX, lY, lTheta, lFloor, lFlipped, true, lLabel);
-			}
-			lLastState.close();
-		}
-		finally
-		{
-			lFetchLastState.close();
-		}
-	}
 
 }
@@ -0,0 +1,635 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ojw28.orm.PlacedItem;
+import ojw28.orm.utils.DbConnectionPool;
+import ojw28.orm.utils.Metrics;
+
+/**
+ * An in-memory copy of the current state of every placed item. For each floor the store
+ * keeps a log of item states ordered by update id, so that the items updated since a
+ * given update token can be found with a binary search rather than a database query.
+ * Log entries which have been superseded by a later update are skipped when read and
+ * periodically compacted away.
+ *
+ * Writers reserve each update id when it is allocated, then either apply the committed
+ * update or abandon the id. Updates are committed in whatever order their transactions
+ * finish, so one committed while a lower id is still reserved is held back until the
+ * lower id has been applied or abandoned. Readers therefore see updates in update id
+ * order, and an update token never skips an update which is still to come.
+ *
+ * Listeners are notified of the updates in the same order. Each batch of updates
+ * released together is given a ticket while the write lock is held, and batches are
+ * notified in ticket order once it has been released, so that listeners may read the
+ * store while they are notified.
+ *
+ * Each update is applied with the position of the primary's write-ahead log after it
+ * committed, and the store keeps the position which covers every update up to each
+ * recent update token, so that a read for a client holding a token can be sent to a
+ * replica which has replayed that far.
+ * @author ojw28
+ */
+public class PlacedItemStore {
+
+	/**
+	 * Notified of each update applied to the store.
+	 */
+	public interface Listener {
+		/**
+		 * Called after an update has been applied. Updates are notified one at a time, in
+		 * update id order.
+		 * @param iItem The new state of the item
+		 */
+		void itemUpdated(PlacedItem iItem);
+	}
+
+	private static final Metrics mLoadMetrics = Metrics.getQuery("item_store_load");
+	//The number of update tokens whose log positions are kept
+	private static final int MAX_POSITIONS = 4096;
+
+	private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+	private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+	private final HashMap<Integer, PlacedItem> mCurrent = new HashMap<Integer, PlacedItem>();
+	private final HashMap<Integer, FloorLog> mFloors = new HashMap<Integer, FloorLog>();
+	private int mLastUpdateId = 0;
+	//Update ids which are reserved but not yet applied or abandoned, and committed updates
+	//held back until every lower reserved id has been
+	private final TreeSet<Integer> mReserved = new TreeSet<Integer>();
+	private final TreeMap<Integer, PlacedItem> mHeld = new TreeMap<Integer, PlacedItem>();
+	private final TreeMap<Integer, Long> mHeldPositions = new TreeMap<Integer, Long>();
+	//The log position which covers every update applied, and that which covered every
+	//update up to each recent value of mLastUpdateId
+	private long mPosition = 0;
+	private final TreeMap<Integer, Long> mPositions = new TreeMap<Integer, Long>();
+	//The ticket of the next batch of updates to be released, guarded by the write lock, and
+	//that of the next batch whose listeners are to be notified, guarded by mNotifyTurn
+	private long mNextTicket = 0;
+	private long mNotifyTicket = 0;
+	private final Object mNotifyTurn = new Object();
+
+	/**
+	 * Fills the store with the current state of every item in the database.
+	 * @param iConnection A connection to the primary database
+	 * @throws SQLException If a database error occurs
+	 */
+	public void load(Connection iConnection) throws SQLException
+	{
+		PreparedStatement lFetchItems = iConnection.prepareStatement(
+				"SELECT * FROM placed_item_table INNER JOIN placed_item_update_table "+
+				"ON placed_item_table.last_update = placed_item_update_table.update_id " +
+				"ORDER BY last_update");
+		long lStartTime = System.nanoTime();
+		int lRows = -1;
+		try
+		{
+			ResultSet lItems = lFetchItems.executeQuery();
+			int lRowCount = 0;
+			while(lItems.next())
+			{
+				lRowCount++;
+				apply(new PlacedItem(
+						lItems.getInt("item_id"),
+						lItems.getInt("item_def_id"),
+						lItems.getFloat("x"),
+						lItems.getFloat("y"),
+						lItems.getInt("theta"),
+						lItems.getInt("floor_id"),
+						lItems.getBoolean("flipped"),
+						lItems.getBoolean("deleted"),
+						lItems.getString("label"),
+						lItems.getInt("last_update")), 0);
+			}
+			lItems.close();
+			lRows = lRowCount;
+		}
+		finally
+		{
+			lFetchItems.close();
+			mLoadMetrics.record(lStartTime, lRows);
+		}
+		//Read after the items, so that it covers every update loaded, in place of the
+		//positions with which they were applied
+		long lPosition = DbConnectionPool.getWalPosition(iConnection);
+		mLock.writeLock().lock();
+		try
+		{
+			mPosition = Math.max(mPosition, lPosition);
+			mPositions.clear();
+			mPositions.put(mLastUpdateId, mPosition);
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Reserves update ids which have just been allocated. Each must later be applied or
+	 * abandoned, and ids must be reserved in the order in which they were allocated.
+	 * @param iUpdateIds The update ids
+	 */
+	public void reserve(int[] iUpdateIds)
+	{
+		mLock.writeLock().lock();
+		try
+		{
+			for(int lUpdateId : iUpdateIds)
+			{
+				mReserved.add(lUpdateId);
+			}
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Records a committed update to an item. The update is held back if a lower update id
+	 * is still reserved.
+	 * @param iItem The new state of the item
+	 * @param iPosition The position of the primary's log after the update committed, from
+	 * DbConnectionPool.getCommitPosition
+	 */
+	public void apply(PlacedItem iItem, long iPosition)
+	{
+		List<PlacedItem> lApplied = new ArrayList<PlacedItem>();
+		long lTicket;
+		mLock.writeLock().lock();
+		try
+		{
+			mReserved.remove(iItem.getUpdateId());
+			mHeld.put(iItem.getUpdateId(), iItem);
+			mHeldPositions.put(iItem.getUpdateId(), iPosition);
+			lTicket = releaseHeld(lApplied);
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+		notifyListeners(lTicket, lApplied);
+	}
+
+	/**
+	 * Gives up reserved update ids whose updates were not committed, releasing any updates
+	 * held back for them. Ids which have already been applied are ignored.
+	 * @param iUpdateIds The update ids
+	 */
+	public void abandon(int[] iUpdateIds)
+	{
+		List<PlacedItem> lApplied = new ArrayList<PlacedItem>();
+		long lTicket;
+		mLock.writeLock().lock();
+		try
+		{
+			for(int lUpdateId : iUpdateIds)
+			{
+				mReserved.remove(lUpdateId);
+			}
+			lTicket = releaseHeld(lApplied);
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+		notifyListeners(lTicket, lApplied);
+	}
+
+	/**
+	 * Applies the held updates whose ids are lower than every reserved id. Must be called
+	 * with the write lock held.
+	 * @param oApplied A list to which the applied updates are added, in order
+	 * @return The ticket with which the updates must be passed to notifyListeners, or -1
+	 * if there were none
+	 */
+	private long releaseHeld(List<PlacedItem> oApplied)
+	{
+		while(!mHeld.isEmpty() && (mReserved.isEmpty() || mHeld.firstKey() < mReserved.first()))
+		{
+			PlacedItem lItem = mHeld.pollFirstEntry().getValue();
+			mPosition = Math.max(mPosition, mHeldPositions.pollFirstEntry().getValue());
+			update(lItem);
+			oApplied.add(lItem);
+		}
+		if(oApplied.isEmpty())
+		{
+			return -1;
+		}
+		mPositions.put(mLastUpdateId, mPosition);
+		if(mPositions.size() > MAX_POSITIONS)
+		{
+			mPositions.pollFirstEntry();
+		}
+		return mNextTicket++;
+	}
+
+	/**
+	 * Notifies the listeners of a batch of updates, once those of every batch with an
+	 * earlier ticket have been notified.
+	 * @param iTicket The batch's ticket from releaseHeld
+	 * @param iApplied The updates, in order
+	 */
+	private void notifyListeners(long iTicket, List<PlacedItem> iApplied)
+	{
+		if(iApplied.isEmpty())
+		{
+			return;
+		}
+		boolean lInterrupted = false;
+		synchronized(mNotifyTurn)
+		{
+			while(mNotifyTicket != iTicket)
+			{
+				try
+				{
+					mNotifyTurn.wait();
+				}
+				catch(InterruptedException lE)
+				{
+					//The turn must still be taken, or every later batch would wait for ever
+					lInterrupted = true;
+				}
+			}
+		}
+		try
+		{
+			for(PlacedItem lItem : iApplied)
+			{
+				for(Listener lListener : mListeners)
+				{
+					lListener.itemUpdated(lItem);
+				}
+			}
+		}
+		finally
+		{
+			synchronized(mNotifyTurn)
+			{
+				mNotifyTicket++;
+				mNotifyTurn.notifyAll();
+			}
+			if(lInterrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Makes an update the current state of its item. Must be called with the write lock
+	 * held.
+	 */
+	private void update(PlacedItem iItem)
+	{
+		PlacedItem lPrevious = mCurrent.put(iItem.getUid(), iItem);
+		if(lPrevious != null)
+		{
+			FloorLog lPreviousLog = mFloors.get(lPrevious.getFloor());
+			lPreviousLog.mStale++;
+			if(lPreviousLog.mStale > lPreviousLog.mSize / 2)
+			{
+				lPreviousLog.compact();
+			}
+		}
+
+		FloorLog lLog = mFloors.get(iItem.getFloor());
+		if(lLog == null)
+		{
+			lLog = new FloorLog();
+			mFloors.put(iItem.getFloor(), lLog);
+		}
+		lLog.insert(iItem);
+		mLastUpdateId = Math.max(mLastUpdateId, iItem.getUpdateId());
+	}
+	
+	public void addListener(Listener iListener)
+	{
+		mListeners.add(iListener);
+	}
+
+	/**
+	 * Gets the current state of an item.
+	 * @param iUid The item's uid
+	 * @return The item's state, or null if the item is unknown
+	 */
+	public PlacedItem getItem(int iUid)
+	{
+		mLock.readLock().lock();
+		try
+		{
+			return mCurrent.get(iUid);
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the current state of every item which has not been deleted.
+	 * @param oItems A list to which the items are added
+	 */
+	public void getItems(List<PlacedItem> oItems)
+	{
+		mLock.readLock().lock();
+		try
+		{
+			for(PlacedItem lItem : mCurrent.values())
+			{
+				if(!lItem.isDeleted())
+				{
+					oItems.add(lItem);
+				}
+			}
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the current state of every item on a floor which has not been deleted. Only the
+	 * floor's log is read, rather than every item in the store.
+	 * @param iFloor The floor
+	 * @param oItems A list to which the items are added, in update order
+	 */
+	public void getItemsFloor(int iFloor, List<PlacedItem> oItems)
+	{
+		mLock.readLock().lock();
+		try
+		{
+			FloorLog lLog = mFloors.get(iFloor);
+			if(lLog != null)
+			{
+				for(int li = 0; li < lLog.mSize; li++)
+				{
+					PlacedItem lItem = lLog.mItems[li];
+					if(!lItem.isDeleted() && mCurrent.get(lItem.getUid()) == lItem)
+					{
+						oItems.add(lItem);
+					}
+				}
+			}
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the current state of the items on a floor whose most recent update is newer
+	 * than a specified update token.
+	 * @param iLastUpdateId The update token
+	 * @param iFloor The floor
+	 * @param oItems A list to which the items are added, in update order
+	 * @return The update token which the client should present next time
+	 */
+	public int getUpdatesFloor(int iLastUpdateId, int iFloor, List<PlacedItem> oItems)
+	{
+		mLock.readLock().lock();
+		try
+		{
+			FloorLog lLog = mFloors.get(iFloor);
+			if(lLog != null)
+			{
+				for(int li = lLog.firstAfter(iLastUpdateId); li < lLog.mSize; li++)
+				{
+					PlacedItem lItem = lLog.mItems[li];
+					if(mCurrent.get(lItem.getUid()) == lItem)
+					{
+						oItems.add(lItem);
+					}
+				}
+			}
+			//Updates are applied in order, so any later update on this floor will have
+			//an id greater than the last one applied to the store.
+			return Math.max(iLastUpdateId, mLastUpdateId);
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Tests whether any item on a floor has been updated since a specified update token.
+	 * @param iLastUpdateId The update token
+	 * @param iFloor The floor
+	 * @return True iff getUpdatesFloor would return at least one item
+	 */
+	public boolean hasUpdatesFloor(int iLastUpdateId, int iFloor)
+	{
+		mLock.readLock().lock();
+		try
+		{
+			FloorLog lLog = mFloors.get(iFloor);
+			if(lLog != null)
+			{
+				for(int li = lLog.firstAfter(iLastUpdateId); li < lLog.mSize; li++)
+				{
+					if(mCurrent.get(lLog.mItems[li].getUid()) == lLog.mItems[li])
+					{
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The id of the most recent update applied to the store.
+	 * @return The update id
+	 */
+	public int getLastUpdateId()
+	{
+		mLock.readLock().lock();
+		try
+		{
+			return mLastUpdateId;
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The position which a replica must have replayed the primary's log to, to hold every
+	 * update up to an update token. For older tokens whose positions are no longer kept,
+	 * a later position is returned.
+	 * @param iUpdateToken The update token
+	 * @return The position, or Long.MAX_VALUE if the token is newer than any update
+	 * applied to the store
+	 */
+	public long getPosition(int iUpdateToken)
+	{
+		mLock.readLock().lock();
+		try
+		{
+			if(iUpdateToken > mLastUpdateId)
+			{
+				return Long.MAX_VALUE;
+			}
+			Map.Entry<Integer, Long> lEntry = mPositions.ceilingEntry(iUpdateToken);
+			return lEntry == null ? mPosition : lEntry.getValue();
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The newest update token which a database is known to hold every update up to, once
+	 * it has replayed the primary's log to a position. A token given with a snapshot read
+	 * from the database must be no newer, or the client would skip an update missing from
+	 * the snapshot.
+	 * @param iPosition The position, from DbConnectionPool.getReplayPosition
+	 * @return The update token, which is no newer than any update applied to the store
+	 */
+	public int getUpdateToken(long iPosition)
+	{
+		mLock.readLock().lock();
+		try
+		{
+			if(iPosition >= mPosition)
+			{
+				return mLastUpdateId;
+			}
+			//Positions only increase with the token, and the newest are the most likely
+			for(Map.Entry<Integer, Long> lEntry : mPositions.descendingMap().entrySet())
+			{
+				if(lEntry.getValue() <= iPosition)
+				{
+					return lEntry.getKey();
+				}
+			}
+			return 0;
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The position which a replica must have replayed the primary's log to, to hold every
+	 * update applied to the store.
+	 * @return The position
+	 */
+	public long getPosition()
+	{
+		mLock.readLock().lock();
+		try
+		{
+			return mPosition;
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The item states whose last update was on a single floor, as parallel arrays
+	 * ordered by update id. Superseded states are only removed on compaction, so readers
+	 * must check each entry against the current state of the item.
+	 */
+	private class FloorLog {
+
+		private int[] mUpdateIds = new int[64];
+		private PlacedItem[] mItems = new PlacedItem[64];
+		private int mSize = 0;
+		private int mStale = 0;
+
+		/**
+		 * Finds the index of the first entry with an update id greater than iUpdateId.
+		 */
+		private int firstAfter(int iUpdateId)
+		{
+			int lLow = 0;
+			int lHigh = mSize;
+			while(lLow < lHigh)
+			{
+				int lMid = (lLow + lHigh) >>> 1;
+				if(mUpdateIds[lMid] <= iUpdateId)
+				{
+					lLow = lMid + 1;
+				}
+				else
+				{
+					lHigh = lMid;
+				}
+			}
+			return lLow;
+		}
+
+		private void insert(PlacedItem iItem)
+		{
+			if(mSize == mItems.length)
+			{
+				mUpdateIds = Arrays.copyOf(mUpdateIds, mSize * 2);
+				mItems = Arrays.copyOf(mItems, mSize * 2);
+			}
+			//Updates normally arrive in order, in which case this is an append
+			int lIndex = firstAfter(iItem.getUpdateId());
+			System.arraycopy(mUpdateIds, lIndex, mUpdateIds, lIndex + 1, mSize - lIndex);
+			System.arraycopy(mItems, lIndex, mItems, lIndex + 1, mSize - lIndex);
+			mUpdateIds[lIndex] = iItem.getUpdateId();
+			mItems[lIndex] = iItem;
+			mSize++;
+		}
+
+		/**
+		 * Removes the superseded entries from the log.
+		 */
+		private void compact()
+		{
+			int lKept = 0;
+			for(int li = 0; li < mSize; li++)
+			{
+				if(mCurrent.get(mItems[li].getUid()) == mItems[li])
+				{
+					mUpdateIds[lKept] = mUpdateIds[li];
+					mItems[lKept] = mItems[li];
+					lKept++;
+				}
+			}
+			Arrays.fill(mItems, lKept, mSize, null);
+			mSize = lKept;
+			mStale = 0;
+		}
+	}
+
+}
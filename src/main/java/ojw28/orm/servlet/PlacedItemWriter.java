@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import ojw28.orm.PlacedItem;
+import ojw28.orm.utils.Metrics;
+import ojw28.orm.utils.SequenceBlock;
+
+/**
+ * Writes placed item changes to the database. Each change is a single statement: the
+ * row in placed_item_update_table is inserted by a data-modifying WITH clause of the
+ * statement which inserts or updates the placed_item_table row, so the foreign keys
+ * between the two tables are checked together at the end of the statement. Item and
+ * update ids are allocated in blocks, so a change normally costs one round trip
+ * before the commit.
+ *
+ * Update ids are reserved in the item store as they are allocated, so the caller must
+ * apply each committed update to the store and abandon the ids of any which are not.
+ * Concurrent changes to one item may commit in either order, so an item's last_update
+ * is only ever moved forwards, to match the store.
+ *
+ * The connection pool keeps prepared statements open per connection, so preparing the
+ * same SQL again on a pooled connection reuses the existing statement.
+ * @author ojw28
+ */
+public class PlacedItemWriter {
+
+	private static final String INSERT_UPDATE =
+			"WITH new_update AS (INSERT INTO placed_item_update_table" +
+			"(update_id,crsid,item_id,x,y,theta,floor_id,flipped,deleted,label) VALUES(?,?,?,?,?,?,?,?,?,?)) ";
+	private static final String NEW_ITEM_SQL = INSERT_UPDATE +
+			"INSERT INTO placed_item_table(item_id,item_def_id,last_update) VALUES(?,?,?)";
+	private static final String UPDATE_ITEM_SQL = INSERT_UPDATE +
+			"UPDATE placed_item_table SET last_update = greatest(last_update, ?) WHERE item_id = ?";
+
+	private static final int ITEM_ID_BLOCK_SIZE = 8;
+	private static final int UPDATE_ID_BLOCK_SIZE = 32;
+
+	//Each change writes two rows: the update and the item
+	private static final Metrics mNewItemMetrics = Metrics.getQuery("item_insert");
+	private static final Metrics mUpdateMetrics = Metrics.getQuery("item_update");
+
+	private SequenceBlock mItemIds = new SequenceBlock("item_id_seq", ITEM_ID_BLOCK_SIZE);
+	private SequenceBlock mUpdateIds = new SequenceBlock("item_update_seq", UPDATE_ID_BLOCK_SIZE);
+	private final PlacedItemStore mStore;
+
+	/**
+	 * Constructor.
+	 * @param iStore The store in which update ids are reserved
+	 */
+	public PlacedItemWriter(PlacedItemStore iStore)
+	{
+		mStore = iStore;
+	}
+
+	/**
+	 * Writes a new item. The caller must commit the transaction.
+	 * @param iUpdateId An update id from allocateUpdateIds
+	 * @return The state of the new item
+	 * @throws SQLException If a database error occurs
+	 */
+	public PlacedItem writeNewItem(Connection iConnection, int iUpdateId, String iCrsid, int iItemDefId, float iX, float iY, int iTheta, int iFloor, boolean iFlipped, String iLabel) throws SQLException
+	{
+		int lUid = mItemIds.next(iConnection);
+		long lStartTime = System.nanoTime();
+		int lRows = -1;
+		PreparedStatement lInsert = iConnection.prepareStatement(NEW_ITEM_SQL);
+		try
+		{
+			setUpdateParameters(lInsert, iUpdateId, iCrsid, lUid, iX, iY, iTheta, iFloor, iFlipped, false, iLabel);
+			lInsert.setInt(11, lUid);
+			lInsert.setInt(12, iItemDefId);
+			lInsert.setInt(13, iUpdateId);
+			lInsert.execute();
+			lRows = 2;
+		}
+		finally
+		{
+			lInsert.close();
+			mNewItemMetrics.record(lStartTime, lRows);
+		}
+		return new PlacedItem(lUid, iItemDefId, iX, iY, iTheta, iFloor, iFlipped, false, iLabel, iUpdateId);
+	}
+
+	/**
+	 * Writes a new state for an existing item. The caller must commit the transaction.
+	 * @param iUpdateId An update id from allocateUpdateIds
+	 * @return The new state of the item
+	 * @throws SQLException If a database error occurs
+	 */
+	public PlacedItem writeUpdate(Connection iConnection, int iUpdateId, String iCrsid, int iUid, int iItemDefId, float iX, float iY, int iTheta, int iFloor, boolean iFlipped, boolean iDeleted, String iLabel) throws SQLException
+	{
+		long lStartTime = System.nanoTime();
+		int lRows = -1;
+		PreparedStatement lUpdate = iConnection.prepareStatement(UPDATE_ITEM_SQL);
+		try
+		{
+			setUpdateParameters(lUpdate, iUpdateId, iCrsid, iUid, iX, iY, iTheta, iFloor, iFlipped, iDeleted, iLabel);
+			lUpdate.setInt(11, iUpdateId);
+			lUpdate.setInt(12, iUid);
+			lUpdate.execute();
+			lRows = 2;
+		}
+		finally
+		{
+			lUpdate.close();
+			mUpdateMetrics.record(lStartTime, lRows);
+		}
+		return new PlacedItem(iUid, iItemDefId, iX, iY, iTheta, iFloor, iFlipped, iDeleted, iLabel, iUpdateId);
+	}
+
+	/**
+	 * Allocates ids for new items.
+	 * @return The ids, in ascending order
+	 */
+	public int[] allocateItemIds(Connection iConnection, int iCount) throws SQLException
+	{
+		return mItemIds.next(iConnection, iCount);
+	}
+
+	/**
+	 * Allocates update ids and reserves them in the store.
+	 * @return The ids, in ascending order
+	 */
+	public int[] allocateUpdateIds(Connection iConnection, int iCount) throws SQLException
+	{
+		//Reserved before the sequence is released, so that no lower id can be handed out
+		//once a higher one has been applied
+		synchronized(mUpdateIds)
+		{
+			int[] lUpdateIds = mUpdateIds.next(iConnection, iCount);
+			mStore.reserve(lUpdateIds);
+			return lUpdateIds;
+		}
+	}
+
+	private static void setUpdateParameters(PreparedStatement iStatement, int iUpdateId, String iCrsid, int iUid, float iX, float iY, int iTheta, int iFloor, boolean iFlipped, boolean iDeleted, String iLabel) throws SQLException
+	{
+		iStatement.setInt(1, iUpdateId);
+		iStatement.setString(2, iCrsid);
+		iStatement.setInt(3, iUid);
+		iStatement.setFloat(4, iX);
+		iStatement.setFloat(5, iY);
+		iStatement.setInt(6, iTheta);
+		iStatement.setInt(7, iFloor);
+		iStatement.setBoolean(8, iFlipped);
+		iStatement.setBoolean(9, iDeleted);
+		iStatement.setString(10, iLabel);
+	}
+
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerConfigurationException;
+
+import ojw28.orm.utils.DbConnectionPool;
+import ojw28.orm.utils.Histogram;
+import ojw28.orm.utils.XmlResponseWriter;
+
+/**
+ * Reports the state of the database connection pool: the numbers of active and idle
+ * connections, and histograms of the time callers wait for a connection and the time
+ * connections are held, in microseconds. The same is reported for each read replica,
+ * together with whether it is in use and the update it had reached when last checked.
+ * @author ojw28
+ */
+public class PoolStatsHandler extends ServletRequestHandler {
+
+	private static Logger mLogger = Logger.getLogger("ojw28.orm.servlet.PoolStatsHandler");
+
+	public PoolStatsHandler() throws TransformerConfigurationException, ParserConfigurationException
+	{
+		mLogger.info("Handler successfully initialised");
+	}
+
+	public void addRoutes(RequestRouter iRouter)
+	{
+		iRouter.add("/poolstats", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+			{
+				statsHandler(response);
+			}
+		}, RequestRouter.GET);
+	}
+
+	private void statsHandler(HttpServletResponse response) throws IOException
+	{
+		DbConnectionPool lPool = DbConnectionPool.getSingleton();
+		XmlResponseWriter lWriter = createXmlWriter(response);
+		lWriter.startElement("PoolStats");
+		lWriter.attribute("active", ""+lPool.getNumActive());
+		lWriter.attribute("failures", ""+lPool.getFailures());
+		lWriter.attribute("idle", ""+lPool.getNumIdle());
+		lWriter.attribute("maxactive", ""+lPool.getMaxActive());
+		lWriter.attribute("primaryreads", ""+lPool.getPrimaryReads());
+		lWriter.attribute("rejected", ""+lPool.getRejections());
+		writeHistogram(lWriter, "checkout", lPool.getCheckoutTimes());
+		writeHistogram(lWriter, "wait", lPool.getWaitTimes());
+		for(DbConnectionPool lReplica : lPool.getReplicas())
+		{
+			lWriter.startElement("Replica");
+			lWriter.attribute("active", ""+lReplica.getNumActive());
+			lWriter.attribute("applied", ""+lReplica.getAppliedPosition());
+			lWriter.attribute("failures", ""+lReplica.getFailures());
+			lWriter.attribute("healthy", ""+lReplica.isHealthy());
+			lWriter.attribute("idle", ""+lReplica.getNumIdle());
+			lWriter.attribute("url", lReplica.getUrl());
+			writeHistogram(lWriter, "checkout", lReplica.getCheckoutTimes());
+			writeHistogram(lWriter, "wait", lReplica.getWaitTimes());
+			lWriter.endElement();
+		}
+		lWriter.endDocument();
+	}
+
+	/**
+	 * Writes a histogram as a Histogram element, with a Bucket element for each non-empty
+	 * bucket giving its upper bound and count.
+	 */
+	static void writeHistogram(XmlResponseWriter iWriter, String iName, Histogram iHistogram) throws IOException
+	{
+		iWriter.startElement("Histogram");
+		iWriter.attribute("count", ""+iHistogram.getCount());
+		iWriter.attribute("name", iName);
+		iWriter.attribute("p50", ""+iHistogram.getQuantile(0.5));
+		iWriter.attribute("p99", ""+iHistogram.getQuantile(0.99));
+		iWriter.attribute("sum", ""+iHistogram.getSum());
+		for(int li = 0; li < Histogram.BUCKETS; li++)
+		{
+			long lCount = iHistogram.getCount(li);
+			if(lCount > 0)
+			{
+				iWriter.startElement("Bucket");
+				iWriter.attribute("count", ""+lCount);
+				iWriter.attribute("le", li == Histogram.BUCKETS - 1 ? "inf" : ""+Histogram.getUpperBound(li));
+				iWriter.endElement();
+			}
+		}
+		iWriter.endElement();
+	}
+
+}
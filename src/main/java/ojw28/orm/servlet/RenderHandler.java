@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerConfigurationException;
+
+import ojw28.orm.PlacedItem;
+import ojw28.orm.utils.Bounds3D;
+import ojw28.orm.utils.LruCache;
+import ojw28.orm.utils.Map25D;
+
+/**
+ * Renders floors of the map with their furniture to PNG images, for displays which
+ * cannot run the interactive client. /render?floor=N draws one floor, and /render/sheet
+ * draws every floor, stacked with the highest at the top. The width parameter sets the
+ * width of the image in pixels. Every floor is drawn at the same scale and position, so
+ * that the floors of a sheet line up. An image which would have more pixels than
+ * MAX_FLOOR_PIXELS for a floor, or MAX_REQUEST_PIXELS in all, is drawn at a smaller scale.
+ *
+ * Floors are given by level, as in /getmap. Images are cached by floor, size and the
+ * update token of the last change to an item on the floor, so an image is only redrawn once something on its floor has changed.
+ * The floors of a sheet are drawn in parallel.
+ *
+ * The container's JVM must be started with -Djava.awt.headless=true, since AWT would
+ * otherwise try to connect to a display when the first image is drawn.
+ * @author ojw28
+ */
+public class RenderHandler extends ServletRequestHandler {
+
+	private static Logger mLogger = Logger.getLogger("ojw28.orm.servlet.RenderHandler");
+
+	private static final String PNG_CONTENT_TYPE = "image/png";
+	private static final int DEFAULT_WIDTH = 1024;
+	//The largest width or height of a single floor's image
+	private static final int MAX_SIZE = 4096;
+	//The most pixels in the image of a floor, and in all the images drawn for a request.
+	//Each pixel takes 4 bytes, and a sheet holds every floor's image and the whole sheet
+	private static final int MAX_FLOOR_PIXELS = 4 * 1024 * 1024;
+	private static final int MAX_REQUEST_PIXELS = 8 * 1024 * 1024;
+	//The largest number of images held in the cache
+	private static final int MAX_CACHED_IMAGES = 64;
+
+	private final MapHandler mMapHandler;
+	private final ItemDefHandler mItemDefs;
+	private final PlacedItemStore mStore;
+	private final FloorRenderer mRenderer;
+	private final ExecutorService mRenderers;
+	private final LruCache<String, CachedResponse> mCache = new LruCache<String, CachedResponse>(MAX_CACHED_IMAGES);
+
+	//The id of the last update which moved an item onto or off each floor, and the floor
+	//each item is on, both by submap id and guarded by mFloorTokens
+	private final HashMap<Integer, Integer> mFloorTokens = new HashMap<Integer, Integer>();
+	private final HashMap<Integer, Integer> mItemFloors = new HashMap<Integer, Integer>();
+
+	/**
+	 * Constructor.
+	 * @param iMapHandler The handler holding the current map
+	 * @param iItemDefs The library from which the shape of each item is taken
+	 * @param iStore The current state of the placed items
+	 */
+	public RenderHandler(MapHandler iMapHandler, ItemDefHandler iItemDefs, PlacedItemStore iStore) throws TransformerConfigurationException, ParserConfigurationException
+	{
+		if(!GraphicsEnvironment.isHeadless())
+		{
+			mLogger.warning("Not running headless, so rendering may need a display. Start the JVM with -Djava.awt.headless=true");
+		}
+		ImageIO.setUseCache(false);
+
+		mMapHandler = iMapHandler;
+		mItemDefs = iItemDefs;
+		mStore = iStore;
+		mRenderer = new FloorRenderer(iItemDefs);
+		mRenderers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			public Thread newThread(Runnable iTask)
+			{
+				Thread lThread = new Thread(iTask, "FloorRenderer");
+				lThread.setDaemon(true);
+				return lThread;
+			}
+		});
+
+		mStore.addListener(new PlacedItemStore.Listener() {
+			public void itemUpdated(PlacedItem iItem)
+			{
+				synchronized(mFloorTokens)
+				{
+					Integer lPrevious = mItemFloors.put(iItem.getUid(), iItem.getFloor());
+					if(lPrevious != null)
+					{
+						mFloorTokens.put(lPrevious, iItem.getUpdateId());
+					}
+					mFloorTokens.put(iItem.getFloor(), iItem.getUpdateId());
+				}
+			}
+		});
+		ArrayList<PlacedItem> lItems = new ArrayList<PlacedItem>();
+		mStore.getItems(lItems);
+		synchronized(mFloorTokens)
+		{
+			for(PlacedItem lItem : lItems)
+			{
+				//Items updated since the listener was added are already recorded
+				if(!mItemFloors.containsKey(lItem.getUid()))
+				{
+					mItemFloors.put(lItem.getUid(), lItem.getFloor());
+				}
+			}
+		}
+		mLogger.info("Handler successfully initialised");
+	}
+
+	public void addRoutes(RequestRouter iRouter)
+	{
+		iRouter.add("/render", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException, InterruptedException, ExecutionException
+			{
+				floorHandler(request, response);
+			}
+		}, RequestRouter.GET);
+		iRouter.add("/render/sheet", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException, InterruptedException, ExecutionException
+			{
+				sheetHandler(request, response);
+			}
+		}, RequestRouter.GET);
+	}
+
+	/**
+	 * Stops the threads which draw the floors of a sheet.
+	 */
+	public void stop()
+	{
+		mRenderers.shutdownNow();
+	}
+
+	private void floorHandler(HttpServletRequest request, HttpServletResponse response) throws IOException, InterruptedException, ExecutionException
+	{
+		MapSnapshot lSnapshot = mMapHandler.getSnapshot();
+		int lFloor = Integer.parseInt(request.getParameter("floor"));
+		if(lFloor < 0 || lFloor >= lSnapshot.getSubmapCount())
+		{
+			throw new IllegalArgumentException("Unknown floor :\t" + lFloor);
+		}
+		render(lSnapshot, new int[] {lFloor}, parseWidth(request)).write(request, response);
+	}
+
+	private void sheetHandler(HttpServletRequest request, HttpServletResponse response) throws IOException, InterruptedException, ExecutionException
+	{
+		MapSnapshot lSnapshot = mMapHandler.getSnapshot();
+		int[] lFloors = new int[lSnapshot.getSubmapCount()];
+		for(int li = 0; li < lFloors.length; li++)
+		{
+			lFloors[li] = lFloors.length - 1 - li;
+		}
+		render(lSnapshot, lFloors, parseWidth(request)).write(request, response);
+	}
+
+	private static int parseWidth(HttpServletRequest request)
+	{
+		String lWidth = request.getParameter("width");
+		return lWidth == null ? DEFAULT_WIDTH : Math.max(1, Math.min(MAX_SIZE, Integer.parseInt(lWidth)));
+	}
+
+	/**
+	 * Gets an image of some floors, stacked from the top down, from the cache or by
+	 * drawing it.
+	 * @param iSnapshot The map
+	 * @param iFloors The levels of the floors
+	 * @param iWidth The requested width in pixels
+	 * @return The PNG image
+	 */
+	private CachedResponse render(MapSnapshot iSnapshot, int[] iFloors, int iWidth) throws IOException, InterruptedException, ExecutionException
+	{
+		//Read the tokens before the items, so that an image is never cached under a
+		//token newer than the items drawn in it
+		int[] lFloorIds = new int[iFloors.length];
+		for(int li = 0; li < iFloors.length; li++)
+		{
+			lFloorIds[li] = iSnapshot.getFloor(iFloors[li]).getSubmapId();
+		}
+		StringBuilder lKey = new StringBuilder();
+		synchronized(mFloorTokens)
+		{
+			for(int lFloorId : lFloorIds)
+			{
+				Integer lToken = mFloorTokens.get(lFloorId);
+				lKey.append(lFloorId).append(':').append(lToken == null ? 0 : lToken).append(',');
+			}
+		}
+		lKey.append(iWidth).append(',').append(iSnapshot.getGeometryVersion()).append(',').append(mItemDefs.getLibraryVersion());
+		CachedResponse lCached = mCache.get(lKey.toString());
+		if(lCached != null)
+		{
+			return lCached;
+		}
+
+		long lStartTime = System.currentTimeMillis();
+		//Lay every floor out in the square enclosing all of them
+		Bounds3D lBounds = new Bounds3D();
+		for(int li = 0; li < iSnapshot.getSubmapCount(); li++)
+		{
+			if(iSnapshot.getSubmap(li).getFloorPolys().size() > 0)
+			{
+				lBounds.expand(new Bounds3D(iSnapshot.getSubmap(li).getBounds()));
+			}
+		}
+		if(lBounds.getMinX() > lBounds.getMaxX())
+		{
+			lBounds = new Bounds3D(new float[] {0, 0, 0, 1, 1, 0});
+		}
+		final float lMinX = lBounds.getMinX();
+		final float lMinY = lBounds.getMinY();
+		float lMapWidth = Math.max(lBounds.getMaxX() - lMinX, 1e-3f);
+		float lMapHeight = Math.max(lBounds.getMaxY() - lMinY, 1e-3f);
+		float lFitScale = Math.min(iWidth / lMapWidth, MAX_SIZE / lMapHeight);
+		double lMaxPixels = Math.min(MAX_FLOOR_PIXELS, MAX_REQUEST_PIXELS / Math.max(1, iFloors.length));
+		double lPixels = (double) (lMapWidth * lFitScale) * (lMapHeight * lFitScale);
+		final float lScale = lPixels > lMaxPixels ? lFitScale * (float) Math.sqrt(lMaxPixels / lPixels) : lFitScale;
+		final int lWidth = Math.max(1, Math.round(lMapWidth * lScale));
+		final int lHeight = Math.max(1, Math.round(lMapHeight * lScale));
+
+		HashMap<Integer, List<PlacedItem>> lItems = new HashMap<Integer, List<PlacedItem>>();
+		for(int lFloorId : lFloorIds)
+		{
+			lItems.put(lFloorId, new ArrayList<PlacedItem>());
+		}
+		ArrayList<PlacedItem> lAll = new ArrayList<PlacedItem>();
+		mStore.getItems(lAll);
+		for(PlacedItem lItem : lAll)
+		{
+			List<PlacedItem> lFloorItems = lItems.get(lItem.getFloor());
+			if(lFloorItems != null)
+			{
+				lFloorItems.add(lItem);
+			}
+		}
+
+		BufferedImage lImage;
+		if(iFloors.length == 1)
+		{
+			lImage = mRenderer.render(iSnapshot.getSubmap(iFloors[0]), lItems.get(lFloorIds[0]), lMinX, lMinY, lScale, lWidth, lHeight);
+		}
+		else
+		{
+			ArrayList<Future<BufferedImage>> lFutures = new ArrayList<Future<BufferedImage>>();
+			for(int li = 0; li < iFloors.length; li++)
+			{
+				final Map25D lSubmap = iSnapshot.getSubmap(iFloors[li]);
+				final List<PlacedItem> lFloorItems = lItems.get(lFloorIds[li]);
+				lFutures.add(mRenderers.submit(new Callable<BufferedImage>() {
+					public BufferedImage call()
+					{
+						return mRenderer.render(lSubmap, lFloorItems, lMinX, lMinY, lScale, lWidth, lHeight);
+					}
+				}));
+			}
+			lImage = new BufferedImage(lWidth, lHeight * Math.max(1, iFloors.length), BufferedImage.TYPE_INT_RGB);
+			Graphics2D lGraphics = lImage.createGraphics();
+			try
+			{
+				for(int li = 0; li < lFutures.size(); li++)
+				{
+					lGraphics.drawImage(lFutures.get(li).get(), 0, li * lHeight, null);
+				}
+			}
+			finally
+			{
+				lGraphics.dispose();
+			}
+		}
+
+		ByteArrayOutputStream lOut = new ByteArrayOutputStream();
+		ImageIO.write(lImage, "png", lOut);
+		CachedResponse lResponse = new CachedResponse(lOut.toByteArray(), PNG_CONTENT_TYPE);
+		mCache.put(lKey.toString(), lResponse);
+		mLogger.fine("Rendered "+iFloors.length+" floors at "+lWidth+"x"+lHeight+" in "+(System.currentTimeMillis() - lStartTime)+"ms");
+		return lResponse;
+	}
+
+}
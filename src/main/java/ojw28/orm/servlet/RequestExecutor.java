@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Runs the requests of one handler off the container's threads, so that a handler
+ * blocked on the database cannot take every thread the container has. At most a fixed
+ * number of requests are accepted at once, counting those running and those waiting for
+ * a thread, and any beyond that are refused rather than queued.
+ *
+ * Where the JVM has virtual threads, each request is given one of its own and the limit
+ * is on requests alone. Otherwise a fixed number of threads serve the requests in turn.
+ * @author ojw28
+ */
+public class RequestExecutor {
+
+	private static Logger mLogger = Logger.getLogger("ojw28.orm.servlet.RequestExecutor");
+
+	private final String mName;
+	private final ExecutorService mExecutor;
+	//A permit for each request which may be running or waiting at once
+	private final Semaphore mPermits;
+	private final int mMaxRequests;
+	private final AtomicLong mRejections = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 * @param iName The name of the executor, which is given to its threads
+	 * @param iThreads The number of threads, if virtual threads are not available
+	 * @param iQueue The number of requests which may wait for a thread
+	 */
+	public RequestExecutor(final String iName, int iThreads, int iQueue)
+	{
+		mName = iName;
+		mMaxRequests = iThreads + iQueue;
+		mPermits = new Semaphore(mMaxRequests);
+		ExecutorService lExecutor = createVirtualExecutor();
+		if(lExecutor == null)
+		{
+			lExecutor = Executors.newFixedThreadPool(iThreads, new ThreadFactory() {
+				public Thread newThread(Runnable iTask)
+				{
+					Thread lThread = new Thread(iTask, iName);
+					lThread.setDaemon(true);
+					return lThread;
+				}
+			});
+			mLogger.info("Created executor " + iName + " with " + iThreads + " threads for up to " + mMaxRequests + " requests");
+		}
+		else
+		{
+			mLogger.info("Created executor " + iName + " with virtual threads for up to " + mMaxRequests + " requests");
+		}
+		mExecutor = lExecutor;
+	}
+
+	/**
+	 * Creates an executor which starts a virtual thread for each task, found by reflection
+	 * so that the servlet still runs on JVMs without virtual threads.
+	 * @return The executor, or null if virtual threads are not available
+	 */
+	private static ExecutorService createVirtualExecutor()
+	{
+		try
+		{
+			Method lFactory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) lFactory.invoke(null);
+		}
+		catch(Exception lE)
+		{
+			//Not in this JVM, or present but disabled as a preview feature
+			return null;
+		}
+	}
+
+	/**
+	 * Runs a task, unless the executor already has as many as it accepts.
+	 * @param iTask The task
+	 * @return True if the task will be run, or false if it was refused
+	 */
+	public boolean tryExecute(final Runnable iTask)
+	{
+		if(!mPermits.tryAcquire())
+		{
+			mRejections.incrementAndGet();
+			return false;
+		}
+		try
+		{
+			mExecutor.execute(new Runnable() {
+				public void run()
+				{
+					try
+					{
+						iTask.run();
+					}
+					finally
+					{
+						mPermits.release();
+					}
+				}
+			});
+			return true;
+		}
+		catch(RejectedExecutionException lE)
+		{
+			//Stopped
+			mPermits.release();
+			mRejections.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * Stops the threads. Requests already accepted are abandoned.
+	 */
+	public void stop()
+	{
+		mExecutor.shutdownNow();
+	}
+
+	public String getName()
+	{
+		return mName;
+	}
+
+	/**
+	 * The number of requests running or waiting for a thread.
+	 * @return The number of requests
+	 */
+	public int getActive()
+	{
+		return mMaxRequests - mPermits.availablePermits();
+	}
+
+	public int getMaxRequests()
+	{
+		return mMaxRequests;
+	}
+
+	/**
+	 * The number of requests refused because the executor was full.
+	 * @return The number of requests
+	 */
+	public long getRejections()
+	{
+		return mRejections.get();
+	}
+
+}
@@ -0,0 +1,616 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import ojw28.orm.utils.DbConnectionPool;
+import ojw28.orm.utils.Metrics;
+
+/**
+ * Maps request paths to the routes which serve them. Paths are held in a tree with a node
+ * for each path segment, so a request is resolved in one walk down the tree whatever the
+ * number of routes. A route either matches its path exactly, or as a prefix, in which case
+ * it also matches every path below it. Where both match, an exact route is chosen over a
+ * prefix route, and a longer prefix over a shorter one.
+ *
+ * Each route accepts only the methods it was added with. A request for a path with no
+ * route is answered with 404 Not Found, and one for a path whose route does not accept
+ * its method with 405 Method Not Allowed. HEAD requests are served by GET routes.
+ *
+ * Routes added after setExecutor are run asynchronously on that executor, which frees the
+ * container's thread as soon as the request is handed over. A DatabaseRoute is only run
+ * once the connection pool admits it. A request which the executor or the pool turns
+ * away is answered with 503 Service Unavailable and a Retry-After header, as is one which
+ * is still running after REQUEST_TIMEOUT. A route which times out is interrupted, along
+ * with its database query, and nothing it writes to its response after the 503 is sent.
+ * The request is only completed once the route has returned, since its request and
+ * response may be reused for another request after that.
+ *
+ * A route which throws an IllegalArgumentException, such as the NumberFormatException
+ * from a parameter which is not a number, is answered with 400 Bad Request, and one which
+ * throws any other exception with 500 Internal Server Error, unless it has already
+ * committed its response.
+ *
+ * The latency of each route, from its dispatch to the return of its route, is recorded
+ * in its Metrics along with the requests which failed or were turned away.
+ *
+ * Routes must all be added before the first request is dispatched.
+ * @author ojw28
+ */
+public class RequestRouter {
+
+	private static Logger mLogger = Logger.getLogger("ojw28.orm.servlet.RequestRouter");
+
+	public static final String GET = "GET";
+	public static final String POST = "POST";
+	private static final String HEAD = "HEAD";
+
+	//The longest time, in milliseconds, for which an asynchronous request may run
+	private static final long REQUEST_TIMEOUT = 120000;
+	//The time, in seconds, after which a client turned away should try again
+	private static final int RETRY_AFTER = 2;
+	private static final String DISPATCH_ATTRIBUTE = "ojw28.orm.servlet.RequestRouter.Dispatch";
+	//Counts the requests for paths with no route
+	private static final Metrics mUnmatched = Metrics.getRoute("unmatched");
+
+	/**
+	 * Serves the requests for a path.
+	 */
+	public interface Route
+	{
+		public void handle(HttpServletRequest request, HttpServletResponse response) throws Exception;
+	}
+
+	/**
+	 * A route which uses the database, and is admitted by the connection pool.
+	 */
+	public interface DatabaseRoute extends Route
+	{
+	}
+
+	private static class Target
+	{
+		private final Route mRoute;
+		private final RequestExecutor mExecutor;
+		private final Metrics mMetrics;
+
+		private Target(Route iRoute, RequestExecutor iExecutor, Metrics iMetrics)
+		{
+			mRoute = iRoute;
+			mExecutor = iExecutor;
+			mMetrics = iMetrics;
+		}
+	}
+
+	private static class Node
+	{
+		private final HashMap<String, Node> mChildren = new HashMap<String, Node>();
+		//The routes matching exactly this path, and every path below it, by method
+		private HashMap<String, Target> mExact;
+		private HashMap<String, Target> mPrefix;
+	}
+
+	private final Node mRoot = new Node();
+	private RequestExecutor mExecutor;
+	private final ArrayList<RequestExecutor> mExecutors = new ArrayList<RequestExecutor>();
+
+	/**
+	 * Sets the executor on which the routes added next are run.
+	 * @param iExecutor The executor, or null to run them on the container's thread
+	 */
+	public void setExecutor(RequestExecutor iExecutor)
+	{
+		mExecutor = iExecutor;
+		if(iExecutor != null && !mExecutors.contains(iExecutor))
+		{
+			mExecutors.add(iExecutor);
+		}
+	}
+
+	/**
+	 * The executors on which routes are run.
+	 * @return The executors, which must not be modified
+	 */
+	public ArrayList<RequestExecutor> getExecutors()
+	{
+		return mExecutors;
+	}
+
+	/**
+	 * Stops every executor on which routes are run.
+	 */
+	public void stop()
+	{
+		for(RequestExecutor lExecutor : mExecutors)
+		{
+			lExecutor.stop();
+		}
+	}
+
+	/**
+	 * Adds a route which serves exactly one path.
+	 * @param iPath The path, such as /items/doupdate
+	 * @param iRoute The route
+	 * @param iMethods The methods accepted
+	 */
+	public void add(String iPath, Route iRoute, String... iMethods)
+	{
+		Node lNode = getNode(iPath);
+		if(lNode.mExact == null)
+		{
+			lNode.mExact = new HashMap<String, Target>();
+		}
+		addMethods(lNode.mExact, iPath, iPath, iRoute, iMethods);
+	}
+
+	/**
+	 * Adds a route which serves a path and every path below it.
+	 * @param iPath The path, such as /tiles
+	 * @param iRoute The route
+	 * @param iMethods The methods accepted
+	 */
+	public void addPrefix(String iPath, Route iRoute, String... iMethods)
+	{
+		Node lNode = getNode(iPath);
+		if(lNode.mPrefix == null)
+		{
+			lNode.mPrefix = new HashMap<String, Target>();
+		}
+		addMethods(lNode.mPrefix, iPath, iPath + "/*", iRoute, iMethods);
+	}
+
+	private void addMethods(HashMap<String, Target> iRoutes, String iPath, String iName, Route iRoute, String[] iMethods)
+	{
+		Target lTarget = new Target(iRoute, mExecutor, Metrics.getRoute(iName));
+		for(String lMethod : iMethods)
+		{
+			if(iRoutes.put(lMethod, lTarget) != null)
+			{
+				throw new IllegalArgumentException("Duplicate route :\t" + lMethod + " " + iPath);
+			}
+		}
+	}
+
+	/**
+	 * Finds the node for a path, creating it and its parents if they do not exist.
+	 */
+	private Node getNode(String iPath)
+	{
+		if(!iPath.startsWith("/"))
+		{
+			throw new IllegalArgumentException("Path must start with / :\t" + iPath);
+		}
+		Node lNode = mRoot;
+		int lStart = 1;
+		while(lStart <= iPath.length())
+		{
+			int lEnd = iPath.indexOf('/', lStart);
+			if(lEnd < 0)
+			{
+				lEnd = iPath.length();
+			}
+			String lSegment = iPath.substring(lStart, lEnd);
+			Node lChild = lNode.mChildren.get(lSegment);
+			if(lChild == null)
+			{
+				lChild = new Node();
+				lNode.mChildren.put(lSegment, lChild);
+			}
+			lNode = lChild;
+			lStart = lEnd + 1;
+		}
+		return lNode;
+	}
+
+	/**
+	 * Finds the routes for a path.
+	 * @param iPath The path
+	 * @return The routes by method, or null if no route matches the path
+	 */
+	private HashMap<String, Target> find(String iPath)
+	{
+		Node lNode = mRoot;
+		HashMap<String, Target> lPrefix = null;
+		int lStart = 1;
+		while(lStart <= iPath.length())
+		{
+			if(lNode.mPrefix != null)
+			{
+				lPrefix = lNode.mPrefix;
+			}
+			int lEnd = iPath.indexOf('/', lStart);
+			if(lEnd < 0)
+			{
+				lEnd = iPath.length();
+			}
+			lNode = lNode.mChildren.get(iPath.substring(lStart, lEnd));
+			if(lNode == null)
+			{
+				return lPrefix;
+			}
+			lStart = lEnd + 1;
+		}
+		if(lNode.mExact != null)
+		{
+			return lNode.mExact;
+		}
+		return lNode.mPrefix != null ? lNode.mPrefix : lPrefix;
+	}
+
+	/**
+	 * Serves a request with the route matching its path and method, or with an error
+	 * status if there is none.
+	 * @param request The request
+	 * @param response The response
+	 * @throws IOException If the error status cannot be sent
+	 */
+	public void dispatch(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		long lStartTime = System.nanoTime();
+		String lPath = request.getPathInfo();
+		HashMap<String, Target> lRoutes = lPath == null || !lPath.startsWith("/") ? null : find(lPath);
+		if(lRoutes == null)
+		{
+			mLogger.warning("Unknown request not handled :\t" + lPath);
+			mUnmatched.recordError();
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		String lMethod = request.getMethod();
+		Target lTarget = lRoutes.get(lMethod.equals(HEAD) ? GET : lMethod);
+		if(lTarget == null)
+		{
+			StringBuilder lAllow = new StringBuilder();
+			for(String lAllowed : new TreeSet<String>(lRoutes.keySet()))
+			{
+				lAllow.append(lAllow.length() == 0 ? "" : ", ").append(lAllowed);
+				if(lAllowed.equals(GET))
+				{
+					lAllow.append(", ").append(HEAD);
+				}
+			}
+			response.setHeader("Allow", lAllow.toString());
+			response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+
+		DbConnectionPool lPool = null;
+		if(lTarget.mRoute instanceof DatabaseRoute)
+		{
+			lPool = DbConnectionPool.getSingleton();
+			if(!lPool.tryAdmit())
+			{
+				mLogger.fine("Connection pool full, turned away :\t" + lPath);
+				lTarget.mMetrics.recordError();
+				sendUnavailable(response);
+				return;
+			}
+		}
+		if(lTarget.mExecutor == null)
+		{
+			new Dispatch(null, lTarget, lPool, lPath, lStartTime).handle(request, response);
+			return;
+		}
+		AsyncContext lContext = request.startAsync(request, response);
+		lContext.setTimeout(REQUEST_TIMEOUT);
+		Dispatch lDispatch = new Dispatch(lContext, lTarget, lPool, lPath, lStartTime);
+		lContext.addListener(lDispatch);
+		request.setAttribute(DISPATCH_ATTRIBUTE, lDispatch);
+		if(!lTarget.mExecutor.tryExecute(lDispatch))
+		{
+			if(lPool != null)
+			{
+				lPool.release();
+			}
+			mLogger.fine(lTarget.mExecutor.getName() + " full, turned away :\t" + lPath);
+			lTarget.mMetrics.recordError();
+			request.removeAttribute(DISPATCH_ATTRIBUTE);
+			lDispatch.mFinished.set(true);
+			sendUnavailable(response);
+			lContext.complete();
+		}
+	}
+
+	private static void sendUnavailable(HttpServletResponse response) throws IOException
+	{
+		response.setHeader("Retry-After", "" + RETRY_AFTER);
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+	}
+
+	/**
+	 * Gets the asynchronous context of a request, starting one if the request is being
+	 * served on the container's thread, and leaves the request open once its route
+	 * returns. The caller must complete the context when it has answered the request.
+	 *
+	 * A listener can only be added to the context, and its timeout set, in the dispatch
+	 * which started it, so the caller cannot do either once it is running on an executor.
+	 * Instead the router passes the context's events on to the listener given here, and
+	 * the context times out after REQUEST_TIMEOUT.
+	 * @param request The request
+	 * @param iListener The listener to which the context's events are passed
+	 * @return The context
+	 * @throws IllegalStateException If the request has already timed out
+	 */
+	public static AsyncContext keepOpen(HttpServletRequest request, AsyncListener iListener)
+	{
+		Dispatch lDispatch = (Dispatch) request.getAttribute(DISPATCH_ATTRIBUTE);
+		if(lDispatch == null)
+		{
+			AsyncContext lContext = request.startAsync();
+			lContext.setTimeout(REQUEST_TIMEOUT);
+			lContext.addListener(iListener);
+			return lContext;
+		}
+		lDispatch.mKeeper = iListener;
+		//Set after the listener, so that a timeout either sees the listener or is seen here
+		if(lDispatch.mFinished.get())
+		{
+			throw new IllegalStateException("Request has already timed out");
+		}
+		return lDispatch.mContext;
+	}
+
+	/**
+	 * Runs a route for one request and records it, then ends its admission to the
+	 * connection pool and, if it was made asynchronous by the router, completes it.
+	 *
+	 * If the request times out first it is answered with 503, and the route's response is
+	 * closed so that its later writes are dropped. A route which has not started is never
+	 * run, and the request is completed at once. Otherwise the route's thread is
+	 * interrupted and its query cancelled, and the request is completed once the route has
+	 * returned.
+	 */
+	private static class Dispatch implements Runnable, AsyncListener
+	{
+		private final AsyncContext mContext;
+		private final Target mTarget;
+		private final DbConnectionPool mPool;
+		private final String mPath;
+		private final long mStartTime;
+		//The listener of the route if it kept the request open, in which case the route
+		//completes the request itself
+		private volatile AsyncListener mKeeper;
+		//Set once the router has completed the request, or is about to
+		private final AtomicBoolean mFinished = new AtomicBoolean(false);
+		//Whether the route has been started, the thread running it until it returns, and
+		//the response it was given, all guarded by the dispatch's monitor
+		private boolean mStarted = false;
+		private Thread mThread;
+		private GuardedResponse mResponse;
+		//Counted down once the route has returned
+		private final CountDownLatch mReturned = new CountDownLatch(1);
+
+		private Dispatch(AsyncContext iContext, Target iTarget, DbConnectionPool iPool, String iPath, long iStartTime)
+		{
+			mContext = iContext;
+			mTarget = iTarget;
+			mPool = iPool;
+			mPath = iPath;
+			mStartTime = iStartTime;
+		}
+
+		public void run()
+		{
+			synchronized(this)
+			{
+				if(mFinished.get())
+				{
+					//Timed out while waiting for a thread, and already completed
+					if(mPool != null)
+					{
+						mPool.release();
+					}
+					return;
+				}
+				mStarted = true;
+				mThread = Thread.currentThread();
+				mResponse = new GuardedResponse((HttpServletResponse) mContext.getResponse());
+			}
+			try
+			{
+				handle((HttpServletRequest) mContext.getRequest(), mResponse);
+			}
+			finally
+			{
+				synchronized(this)
+				{
+					mThread = null;
+				}
+				//Clear an interrupt from a timeout, so that it does not reach the next request run on this thread
+				Thread.interrupted();
+				mReturned.countDown();
+			}
+		}
+
+		private void handle(HttpServletRequest request, HttpServletResponse response)
+		{
+			Metrics.setCurrentRoute(mTarget.mMetrics);
+			int lRows = -1;
+			try
+			{
+				mTarget.mRoute.handle(request, response);
+				lRows = 0;
+			}
+			catch(IllegalArgumentException lE)
+			{
+				mLogger.warning("Bad request :\t" + mPath + " :\t" + lE.getMessage());
+				sendError(response, HttpServletResponse.SC_BAD_REQUEST);
+			}
+			catch(Exception lE)
+			{
+				mLogger.log(Level.SEVERE, "Exception caught while handling request :\t"+ mPath, lE);
+				sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			}
+			finally
+			{
+				//The rows fetched have already been added by the queries
+				mTarget.mMetrics.record(mStartTime, lRows);
+				Metrics.setCurrentRoute(null);
+				if(mPool != null)
+				{
+					mPool.release();
+				}
+				if(mContext != null && mKeeper == null && mFinished.compareAndSet(false, true))
+				{
+					mContext.complete();
+				}
+			}
+		}
+
+		/**
+		 * Answers a request whose route failed with an error status, if the route has not
+		 * already committed the response.
+		 */
+		private void sendError(HttpServletResponse response, int iStatus)
+		{
+			if(mFinished.get() || response.isCommitted())
+			{
+				return;
+			}
+			try
+			{
+				response.sendError(iStatus);
+			}
+			catch(IOException lE)
+			{
+				mLogger.log(Level.FINE, "Could not send error status :\t"+ mPath, lE);
+			}
+		}
+
+		public void onTimeout(AsyncEvent iEvent) throws IOException
+		{
+			//A route which kept the request open answers its own timeout
+			AsyncListener lKeeper = mKeeper;
+			if(lKeeper != null)
+			{
+				lKeeper.onTimeout(iEvent);
+				return;
+			}
+			if(!mFinished.compareAndSet(false, true))
+			{
+				return;
+			}
+			mLogger.warning("Request timed out :\t" + mPath);
+			mTarget.mMetrics.recordError();
+			HttpServletResponse response = (HttpServletResponse) iEvent.getSuppliedResponse();
+			boolean lStarted;
+			GuardedResponse lGuard;
+			synchronized(this)
+			{
+				lStarted = mStarted;
+				lGuard = mResponse;
+			}
+			try
+			{
+				if(lGuard == null)
+				{
+					if(!response.isCommitted())
+					{
+						sendUnavailable(response);
+					}
+				}
+				else
+				{
+					//Waits for a write by the route to finish, and drops those after it
+					synchronized(lGuard)
+					{
+						lGuard.close();
+						if(!response.isCommitted())
+						{
+							sendUnavailable(response);
+						}
+					}
+				}
+			}
+			finally
+			{
+				if(lStarted)
+				{
+					stopRoute();
+				}
+				mContext.complete();
+			}
+		}
+
+		/**
+		 * Interrupts a route which has timed out and cancels its query, then waits for it
+		 * to return.
+		 */
+		private void stopRoute()
+		{
+			synchronized(this)
+			{
+				if(mThread != null)
+				{
+					mThread.interrupt();
+					if(mPool != null)
+					{
+						mPool.cancel(mThread);
+					}
+				}
+			}
+			boolean lInterrupted = false;
+			while(true)
+			{
+				try
+				{
+					mReturned.await();
+					break;
+				}
+				catch(InterruptedException lE)
+				{
+					lInterrupted = true;
+				}
+			}
+			if(lInterrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void onError(AsyncEvent iEvent) throws IOException
+		{
+			AsyncListener lKeeper = mKeeper;
+			if(lKeeper != null)
+			{
+				lKeeper.onError(iEvent);
+			}
+		}
+
+		public void onComplete(AsyncEvent iEvent) throws IOException
+		{
+			AsyncListener lKeeper = mKeeper;
+			if(lKeeper != null)
+			{
+				lKeeper.onComplete(iEvent);
+			}
+		}
+
+		public void onStartAsync(AsyncEvent iEvent)
+		{
+		}
+	}
+
+}
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import ojw28.orm.PlacedItem;
+import ojw28.orm.utils.PolyClassifier;
+import ojw28.orm.utils.Room;
+
+/**
+ * Tracks which room each placed item is in. The assignment is updated as each item
+ * update is applied to the item store, and is recomputed in full if the map geometry
+ * changes.
+ * @author ojw28
+ */
+public class RoomAssignment implements PlacedItemStore.Listener {
+
+	private final PlacedItemStore mStore;
+	private final MapHandler mMapHandler;
+
+	//The snapshot whose geometry the assignment was computed against, or null if the
+	//assignment has not been computed yet
+	private MapSnapshot mSnapshot;
+	//A classifier for each floor of mSnapshot, indexed by level
+	private PolyClassifier[] mClassifiers;
+	private HashMap<Integer, Integer> mRoomOfItem = new HashMap<Integer, Integer>();
+	private HashMap<Integer, LinkedHashSet<Integer>> mItemsInRoom = new HashMap<Integer, LinkedHashSet<Integer>>();
+
+	/**
+	 * Constructor. Registers the assignment as a listener on the store.
+	 * @param iStore The item store
+	 * @param iMapHandler The handler holding the current map
+	 */
+	public RoomAssignment(PlacedItemStore iStore, MapHandler iMapHandler)
+	{
+		mStore = iStore;
+		mMapHandler = iMapHandler;
+		mStore.addListener(this);
+	}
+
+	public synchronized void itemUpdated(PlacedItem iItem)
+	{
+		//Until the assignment is first computed there is nothing to keep up to date
+		if(mSnapshot != null)
+		{
+			assign(iItem);
+		}
+	}
+
+	/**
+	 * Gets the room which an item is in.
+	 * @param iUid The item's uid
+	 * @return The room, or null if the item does not exist or is not in a room
+	 */
+	public synchronized Room getRoom(int iUid)
+	{
+		checkGeometry();
+		Integer lRoomId = mRoomOfItem.get(iUid);
+		return lRoomId == null ? null : mSnapshot.getRoom(lRoomId);
+	}
+
+	/**
+	 * Gets the items in a room.
+	 * @param iRoomId The room's uid
+	 * @param oItems A list to which the current state of each item in the room is added
+	 */
+	public synchronized void getItems(int iRoomId, List<PlacedItem> oItems)
+	{
+		checkGeometry();
+		LinkedHashSet<Integer> lItems = mItemsInRoom.get(iRoomId);
+		if(lItems != null)
+		{
+			for(Integer lUid : lItems)
+			{
+				oItems.add(mStore.getItem(lUid));
+			}
+		}
+	}
+
+	/**
+	 * Recomputes the assignment if the map geometry has changed since it was computed.
+	 */
+	private void checkGeometry()
+	{
+		MapSnapshot lCurrent = mMapHandler.getSnapshot();
+		if(mSnapshot != null && mSnapshot.getGeometryVersion().equals(lCurrent.getGeometryVersion()))
+		{
+			return;
+		}
+		mSnapshot = lCurrent;
+		mClassifiers = new PolyClassifier[lCurrent.getSubmapCount()];
+		for(int li = 0; li < mClassifiers.length; li++)
+		{
+			mClassifiers[li] = new PolyClassifier(lCurrent.getSubmap(li));
+		}
+		mRoomOfItem.clear();
+		mItemsInRoom.clear();
+		
+		//Classify every item in one parallel pass
+		ArrayList<PlacedItem> lItems = new ArrayList<PlacedItem>();
+		mStore.getItems(lItems);
+		float[] lXs = new float[lItems.size()];
+		float[] lYs = new float[lItems.size()];
+		int[] lFloors = new int[lItems.size()];
+		for(int li = 0; li < lXs.length; li++)
+		{
+			lXs[li] = lItems.get(li).getX();
+			lYs[li] = lItems.get(li).getY();
+			lFloors[li] = getLevel(lItems.get(li));
+		}
+		int[] lRooms = PolyClassifier.classify(mClassifiers, lXs, lYs, lFloors, true);
+		for(int li = 0; li < lRooms.length; li++)
+		{
+			if(lRooms[li] != PolyClassifier.NO_ROOM)
+			{
+				addToRoom(lItems.get(li).getUid(), lRooms[li]);
+			}
+		}
+	}
+
+	private void assign(PlacedItem iItem)
+	{
+		Integer lPrevious = mRoomOfItem.remove(iItem.getUid());
+		if(lPrevious != null)
+		{
+			LinkedHashSet<Integer> lPreviousItems = mItemsInRoom.get(lPrevious);
+			lPreviousItems.remove(iItem.getUid());
+			if(lPreviousItems.isEmpty())
+			{
+				mItemsInRoom.remove(lPrevious);
+			}
+		}
+		if(iItem.isDeleted())
+		{
+			return;
+		}
+
+		int lLevel = getLevel(iItem);
+		if(lLevel >= 0)
+		{
+			int lRoomId = mClassifiers[lLevel].classify(iItem.getX(), iItem.getY());
+			if(lRoomId != PolyClassifier.NO_ROOM)
+			{
+				addToRoom(iItem.getUid(), lRoomId);
+			}
+		}
+	}
+	
+	/**
+	 * Finds the level in mSnapshot of an item's floor, which is held as the id of its submap.
+	 * @param iItem The item
+	 * @return The level, or -1 if the item's floor is not in the map
+	 */
+	private int getLevel(PlacedItem iItem)
+	{
+		MapSnapshot.Floor lFloor = mSnapshot.findFloor(iItem.getFloor());
+		return lFloor == null ? -1 : lFloor.getLevel();
+	}
+
+	private void addToRoom(int iUid, int iRoomId)
+	{
+		mRoomOfItem.put(iUid, iRoomId);
+		LinkedHashSet<Integer> lItems = mItemsInRoom.get(iRoomId);
+		if(lItems == null)
+		{
+			lItems = new LinkedHashSet<Integer>();
+			mItemsInRoom.put(iRoomId, lItems);
+		}
+		lItems.add(iUid);
+	}
+
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerConfigurationException;
+
+import ojw28.orm.utils.Room;
+import ojw28.orm.utils.XmlResponseWriter;
+
+/**
+ * Searches the rooms of the current map by name, for clients which look rooms up as the
+ * user types. Rooms whose names start with the query come first, followed by rooms whose
+ * names contain it elsewhere.
+ * @author ojw28
+ */
+public class RoomSearchHandler extends ServletRequestHandler {
+
+	private static Logger mLogger = Logger.getLogger("ojw28.orm.servlet.RoomSearchHandler");
+
+	private static final int DEFAULT_LIMIT = 20;
+	private static final int MAX_LIMIT = 100;
+
+	private final MapHandler mMapHandler;
+
+	public RoomSearchHandler(MapHandler iMapHandler) throws TransformerConfigurationException, ParserConfigurationException
+	{
+		mMapHandler = iMapHandler;
+		mLogger.info("Handler successfully initialised");
+	}
+
+	public void addRoutes(RequestRouter iRouter)
+	{
+		iRouter.add("/rooms/search", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+			{
+				searchHandler(request, response);
+			}
+		}, RequestRouter.GET);
+	}
+
+	private void searchHandler(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		String lQuery = request.getParameter("q");
+		if(lQuery == null)
+		{
+			lQuery = "";
+		}
+		String lLimit = request.getParameter("limit");
+		int lMax = lLimit == null ? DEFAULT_LIMIT : Math.max(0, Math.min(MAX_LIMIT, Integer.parseInt(lLimit)));
+
+		//Search each floor for prefix matches, then each floor for other matches
+		MapSnapshot lSnapshot = mMapHandler.getSnapshot();
+		ArrayList<Room> lRooms = new ArrayList<Room>();
+		ArrayList<Integer> lFloors = new ArrayList<Integer>();
+		for(int lPass = 0; lPass < 2; lPass++)
+		{
+			for(int lFloor = 0; lFloor < lSnapshot.getSubmapCount() && lRooms.size() < lMax; lFloor++)
+			{
+				int lBefore = lRooms.size();
+				lSnapshot.getSubmap(lFloor).searchRooms(lQuery, lPass == 0, lMax - lBefore, lRooms);
+				for(int li = lBefore; li < lRooms.size(); li++)
+				{
+					lFloors.add(lFloor);
+				}
+			}
+		}
+
+		XmlResponseWriter lWriter = createXmlWriter(response);
+		lWriter.startElement("RoomSearch");
+		lWriter.attribute("q", lQuery);
+		for(int li = 0; li < lRooms.size(); li++)
+		{
+			Room lRoom = lRooms.get(li);
+			float[] lCentroid = lRoom.getCentroid();
+			lWriter.startElement("Room");
+			lWriter.attribute("floor", ""+lFloors.get(li));
+			lWriter.attribute("name", lRoom.getName());
+			lWriter.attribute("roomid", ""+lRoom.getUid());
+			lWriter.attribute("submap", lSnapshot.getSubmapName(lFloors.get(li)));
+			lWriter.attribute("x", ""+lCentroid[0]);
+			lWriter.attribute("y", ""+lCentroid[1]);
+			lWriter.attribute("z", ""+lCentroid[2]);
+			lWriter.endElement();
+		}
+		lWriter.endDocument();
+	}
+
+}
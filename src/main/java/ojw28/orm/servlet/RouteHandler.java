@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerConfigurationException;
+
+import ojw28.orm.utils.FloorPoly;
+import ojw28.orm.utils.Map25D;
+import ojw28.orm.utils.RouteGraph;
+import ojw28.orm.utils.XmlResponseWriter;
+
+/**
+ * Finds walking routes between rooms. The route graph is built from the current map
+ * snapshot when it is first needed, and rebuilt if the map geometry changes.
+ * @author ojw28
+ */
+public class RouteHandler extends ServletRequestHandler {
+
+	private static Logger mLogger = Logger.getLogger("ojw28.orm.servlet.RouteHandler");
+
+	private final MapHandler mMapHandler;
+
+	//The geometry version of the snapshot from which mGraph was built
+	private String mGraphVersion;
+	private RouteGraph mGraph;
+
+	public RouteHandler(MapHandler iMapHandler) throws TransformerConfigurationException, ParserConfigurationException
+	{
+		mMapHandler = iMapHandler;
+		mLogger.info("Handler successfully initialised");
+	}
+
+	public void addRoutes(RequestRouter iRouter)
+	{
+		iRouter.add("/route", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+			{
+				routeHandler(request, response);
+			}
+		}, RequestRouter.GET);
+		iRouter.add("/route/distances", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+			{
+				distancesHandler(request, response);
+			}
+		}, RequestRouter.GET);
+	}
+
+	/**
+	 * Gets the route graph for the current map, building it if the geometry has changed.
+	 * @return The graph
+	 */
+	public synchronized RouteGraph getGraph()
+	{
+		MapSnapshot lSnapshot = mMapHandler.getSnapshot();
+		if(mGraph == null || !mGraphVersion.equals(lSnapshot.getGeometryVersion()))
+		{
+			long lStartTime = System.currentTimeMillis();
+			Map25D[] lSubmaps = new Map25D[lSnapshot.getSubmapCount()];
+			for(int li = 0; li < lSubmaps.length; li++)
+			{
+				lSubmaps[li] = lSnapshot.getSubmap(li);
+			}
+			mGraph = new RouteGraph(lSubmaps);
+			mGraphVersion = lSnapshot.getGeometryVersion();
+			mLogger.info("Built route graph in "+(System.currentTimeMillis() - lStartTime)+"ms");
+		}
+		return mGraph;
+	}
+
+	private void routeHandler(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		int lFrom = Integer.parseInt(request.getParameter("from"));
+		int lTo = Integer.parseInt(request.getParameter("to"));
+		RouteGraph.Route lRoute = getGraph().findRoute(lFrom, lTo);
+
+		XmlResponseWriter lWriter = createXmlWriter(response);
+		lWriter.startElement("Route");
+		if(lRoute != null)
+		{
+			lWriter.attribute("distance", ""+lRoute.getDistance());
+		}
+		lWriter.attribute("from", ""+lFrom);
+		lWriter.attribute("to", ""+lTo);
+		if(lRoute != null)
+		{
+			//The first waypoint is the start polygon's centroid, the rest are the portals
+			//into each following polygon, and the last is the goal polygon's centroid
+			FloorPoly[] lPolys = lRoute.getPolys();
+			int[] lFloors = lRoute.getFloors();
+			float[] lPoints = lRoute.getPoints();
+			for(int li = 0; li < lPoints.length / 3; li++)
+			{
+				int lPoly = Math.min(li, lPolys.length - 1);
+				lWriter.startElement("Waypoint");
+				lWriter.attribute("floor", ""+lFloors[lPoly]);
+				lWriter.attribute("poly", ""+lPolys[lPoly].getUid());
+				lWriter.attribute("roomid", ""+lPolys[lPoly].getContainingRoom().getUid());
+				lWriter.attribute("x", ""+lPoints[li * 3]);
+				lWriter.attribute("y", ""+lPoints[li * 3 + 1]);
+				lWriter.attribute("z", ""+lPoints[li * 3 + 2]);
+				lWriter.endElement();
+			}
+		}
+		lWriter.endDocument();
+	}
+
+	private void distancesHandler(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		int lFrom = Integer.parseInt(request.getParameter("from"));
+		ArrayList<Integer> lRoomIds = new ArrayList<Integer>();
+		ArrayList<Float> lDistances = new ArrayList<Float>();
+		getGraph().getDistances(lFrom, lRoomIds, lDistances);
+
+		XmlResponseWriter lWriter = createXmlWriter(response);
+		lWriter.startElement("RoomDistances");
+		lWriter.attribute("from", ""+lFrom);
+		for(int li = 0; li < lRoomIds.size(); li++)
+		{
+			lWriter.startElement("Room");
+			lWriter.attribute("distance", ""+lDistances.get(li));
+			lWriter.attribute("roomid", ""+lRoomIds.get(li));
+			lWriter.endElement();
+		}
+		lWriter.endDocument();
+	}
+
+}
@@ -10,6 +10,7 @@
  *******************************************************************************/
 package ojw28.orm.servlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import javax.servlet.http.HttpServletRequest;
@@ -24,6 +25,10 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
+import ojw28.orm.utils.BinaryWriter;
+import ojw28.orm.utils.Metrics;
+import ojw28.orm.utils.XmlResponseWriter;
+
 import org.w3c.dom.DOMImplementation;
 import org.w3c.dom.Document;
 
@@ -31,12 +36,9 @@ public abstract class ServletRequestHandler {
 		
 	private DOMImplementation mBuilderImpl;
 	private TransformerFactory mTransformerFactory;
-	private String mUrlExt;
 	
-	public ServletRequestHandler(String iUrlExt) throws ParserConfigurationException, TransformerConfigurationException
+	public ServletRequestHandler() throws ParserConfigurationException, TransformerConfigurationException
 	{	
-		mUrlExt = iUrlExt;
-		
 		DocumentBuilderFactory lFactory = DocumentBuilderFactory.newInstance();
 		DocumentBuilder lBuilder = lFactory.newDocumentBuilder();
 		mBuilderImpl = lBuilder.getDOMImplementation();
@@ -52,6 +54,84 @@ public abstract class ServletRequestHandler {
 		lTransformer.transform(domSource, streamResult); 
 	}  	
 	
+	/**
+	 * Creates a writer which streams an XML document directly to a response.
+	 * @param response The response
+	 * @return The writer, which has already written the XML declaration
+	 * @throws IOException If an IOException occurs
+	 */
+	protected XmlResponseWriter createXmlWriter(HttpServletResponse response) throws IOException
+	{
+		XmlResponseWriter lWriter = new XmlResponseWriter(response.getWriter());
+		lWriter.setRoute(Metrics.getCurrentRoute());
+		return lWriter;
+	}
+	
+	/**
+	 * Tests whether a request asks for the binary encoding rather than XML, either with a
+	 * format=binary parameter or with an Accept header naming the binary content type.
+	 * A format=xml parameter overrides the Accept header.
+	 * @param request The request
+	 * @return True iff the response should be binary encoded
+	 */
+	protected boolean acceptsBinary(HttpServletRequest request)
+	{
+		String lFormat = request.getParameter("format");
+		if(lFormat != null)
+		{
+			return lFormat.equals("binary");
+		}
+		String lAccept = request.getHeader("Accept");
+		return lAccept != null && lAccept.contains(BinaryWriter.CONTENT_TYPE);
+	}
+	
+	/**
+	 * Creates a writer which streams a binary encoded payload directly to a response.
+	 * @param response The response
+	 * @param iType The payload type
+	 * @return The writer, which has already written the payload header
+	 * @throws IOException If an IOException occurs
+	 */
+	protected BinaryWriter createBinaryWriter(HttpServletResponse response, int iType) throws IOException
+	{
+		response.setContentType(BinaryWriter.CONTENT_TYPE);
+		BinaryWriter lWriter = new BinaryWriter(response.getOutputStream(), iType);
+		lWriter.setRoute(Metrics.getCurrentRoute());
+		return lWriter;
+	}
+	
+	/**
+	 * Creates a writer for a list of placed items in the encoding requested.
+	 * @param iBinary True if the binary encoding should be used
+	 * @param response The response
+	 * @param iRootName The name of the root element, if the list is written as XML
+	 * @param iUpdateToken The update token to send with the list
+	 * @return The writer
+	 * @throws IOException If an IOException occurs
+	 */
+	protected ItemListWriter createItemListWriter(boolean iBinary, HttpServletResponse response, String iRootName, int iUpdateToken) throws IOException
+	{
+		if(iBinary)
+		{
+			return new ItemListWriter.Binary(createBinaryWriter(response, BinaryWriter.TYPE_ITEMS), iUpdateToken);
+		}
+		return new ItemListWriter.Xml(createXmlWriter(response), iRootName, iUpdateToken);
+	}
+	
+	/**
+	 * Serializes a document into a UTF-8 encoded byte array.
+	 * @param iDocument The document
+	 * @return The serialized document
+	 * @throws TransformerException If the document cannot be serialized
+	 */
+	protected byte[] serializeDocument(Document iDocument) throws TransformerException
+	{
+		ByteArrayOutputStream lBytes = new ByteArrayOutputStream();
+		Transformer lTransformer = mTransformerFactory.newTransformer();
+		lTransformer.transform(new DOMSource(iDocument), new StreamResult(lBytes));
+		return lBytes.toByteArray();
+	}
+	
 	protected Document createDocument(String iName)
 	{
 		return mBuilderImpl.createDocument(null, iName, null);
@@ -70,12 +150,11 @@ public abstract class ServletRequestHandler {
 		}
 	}
 	
-	public String getUrlExt()
-	{
-		return mUrlExt;
-	}
-	
-	public abstract void handleRequest(HttpServletRequest request, HttpServletResponse response);
+	/**
+	 * Adds a route to a router for each request this handler serves.
+	 * @param iRouter The router
+	 */
+	public abstract void addRoutes(RequestRouter iRouter);
 	
 
 }
\ No newline at end of file
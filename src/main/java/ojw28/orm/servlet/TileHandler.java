@@ -0,0 +1,405 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerConfigurationException;
+
+import ojw28.orm.PlacedItem;
+import ojw28.orm.utils.BinaryWriter;
+import ojw28.orm.utils.Bounds3D;
+import ojw28.orm.utils.FloorPoly;
+import ojw28.orm.utils.LruCache;
+import ojw28.orm.utils.RectClipper;
+import ojw28.orm.utils.XmlResponseWriter;
+
+/**
+ * Serves the map and the placed items one square tile at a time, so that a client
+ * showing part of a floor fetches only what is in view. At zoom level z the building is
+ * divided into 2^z by 2^z tiles, covering the square which encloses the bounds of every
+ * floor. A request for /tiles/{floor}/{z}/{x}/{y} returns the floor polygons clipped to
+ * tile (x,y), and the items whose position lies inside it, in the binary encoding. The
+ * floor in the path is the level of the submap, as in /getmap, while tiles are cached
+ * under the submap id which each placed item holds as its floor.
+ *
+ * Tiles are built when first requested and held in a bounded LRU cache. When an item
+ * moves, the tiles containing its old and new positions are removed from the cache at
+ * every zoom level, and the whole cache is discarded when the map geometry changes.
+ * @author ojw28
+ */
+public class TileHandler extends ServletRequestHandler {
+
+	private static Logger mLogger = Logger.getLogger("ojw28.orm.servlet.TileHandler");
+
+	//The deepest zoom level served
+	public static final int MAX_ZOOM = 10;
+	//The number of units across a tile in which coordinates are written
+	public static final int EXTENT = 4096;
+	//The largest number of tiles held in the cache
+	private static final int MAX_CACHED_TILES = 4096;
+
+	private final MapHandler mMapHandler;
+	private final PlacedItemStore mStore;
+	private final LruCache<Long, CachedResponse> mCache = new LruCache<Long, CachedResponse>(MAX_CACHED_TILES);
+
+	//Guards the tile grid, the item positions and mGeneration
+	private final Object mTileLock = new Object();
+	//The geometry version of the snapshot for which the grid was laid out
+	private String mGridVersion;
+	private float mMinX;
+	private float mMinY;
+	private float mSide;
+	//The last state seen of each item, so that the tile it has moved out of is known
+	private final HashMap<Integer, PlacedItem> mPositions = new HashMap<Integer, PlacedItem>();
+	//Incremented on every invalidation. A tile is only cached if no invalidation happened
+	//while it was being built, since it may have been built from the old item positions
+	private long mGeneration = 0;
+
+	/**
+	 * Constructor.
+	 * @param iMapHandler The handler holding the current map
+	 * @param iStore The current state of the placed items
+	 */
+	public TileHandler(MapHandler iMapHandler, PlacedItemStore iStore) throws TransformerConfigurationException, ParserConfigurationException
+	{
+		mMapHandler = iMapHandler;
+		mStore = iStore;
+
+		synchronized(mTileLock)
+		{
+			ArrayList<PlacedItem> lItems = new ArrayList<PlacedItem>();
+			mStore.getItems(lItems);
+			for(PlacedItem lItem : lItems)
+			{
+				mPositions.put(lItem.getUid(), lItem);
+			}
+			mStore.addListener(new PlacedItemStore.Listener() {
+				public void itemUpdated(PlacedItem iItem)
+				{
+					invalidate(iItem);
+				}
+			});
+		}
+		mLogger.info("Handler successfully initialised");
+	}
+
+	public void addRoutes(RequestRouter iRouter)
+	{
+		iRouter.add("/tiles", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+			{
+				gridHandler(request, response);
+			}
+		}, RequestRouter.GET);
+		iRouter.addPrefix("/tiles", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+			{
+				tileHandler(request.getPathInfo().substring("/tiles/".length()), request, response);
+			}
+		}, RequestRouter.GET);
+	}
+
+	/**
+	 * Describes the tile grid, so that a client can work out which tiles cover its view.
+	 */
+	private void gridHandler(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		MapSnapshot lSnapshot = mMapHandler.getSnapshot();
+		XmlResponseWriter lWriter = createXmlWriter(response);
+		synchronized(mTileLock)
+		{
+			layOutGrid(lSnapshot);
+			lWriter.startElement("Tiles");
+			lWriter.attribute("extent", ""+EXTENT);
+			lWriter.attribute("floors", ""+lSnapshot.getSubmapCount());
+			lWriter.attribute("maxzoom", ""+MAX_ZOOM);
+			lWriter.attribute("minx", ""+mMinX);
+			lWriter.attribute("miny", ""+mMinY);
+			lWriter.attribute("side", ""+mSide);
+		}
+		lWriter.endDocument();
+	}
+
+	private void tileHandler(String iPath, HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		String[] lParts = iPath.split("/");
+		if(lParts.length != 4)
+		{
+			throw new IllegalArgumentException("Expected /tiles/{floor}/{z}/{x}/{y}");
+		}
+		int lLevel = Integer.parseInt(lParts[0]);
+		int lZoom = Integer.parseInt(lParts[1]);
+		int lX = Integer.parseInt(lParts[2]);
+		int lY = Integer.parseInt(lParts[3]);
+		MapSnapshot lSnapshot = mMapHandler.getSnapshot();
+		if(lLevel < 0 || lLevel >= lSnapshot.getSubmapCount())
+		{
+			throw new IllegalArgumentException("Unknown floor: " + lLevel);
+		}
+		MapSnapshot.Floor lFloor = lSnapshot.getFloor(lLevel);
+		if(lZoom < 0 || lZoom > MAX_ZOOM || lX < 0 || lY < 0 || lX >= (1 << lZoom) || lY >= (1 << lZoom))
+		{
+			throw new IllegalArgumentException("Tile out of range: " + iPath);
+		}
+
+		Long lKey = tileKey(lFloor.getSubmapId(), lZoom, lX, lY);
+		CachedResponse lCached;
+		long lGeneration;
+		float lGridMinX;
+		float lGridMinY;
+		float lSide;
+		synchronized(mTileLock)
+		{
+			layOutGrid(lSnapshot);
+			lCached = mCache.get(lKey);
+			lGeneration = mGeneration;
+			lGridMinX = mMinX;
+			lGridMinY = mMinY;
+			lSide = mSide;
+		}
+		if(lCached != null)
+		{
+			lCached.write(request, response);
+			return;
+		}
+
+		CachedResponse lTile = new CachedResponse(buildTile(lFloor, mStore, lZoom, lX, lY, lGridMinX, lGridMinY, lSide),
+				BinaryWriter.CONTENT_TYPE);
+		synchronized(mTileLock)
+		{
+			if(mGeneration == lGeneration)
+			{
+				mCache.put(lKey, lTile);
+			}
+		}
+		lTile.write(request, response);
+	}
+
+	/**
+	 * Encodes a tile. After the header come the floor level, z, x and y of the tile, the extent,
+	 * the tile's minimum x and y and its side in map units (floats), and the update token
+	 * from which the client can fetch later changes to the items. Then:
+	 *
+	 * The polygon count, then for each polygon its uid, the uid of its room, its vertex
+	 * count, the svarint deltas between successive vertices in tile units (0 to EXTENT
+	 * across the tile), and for each vertex the kind of the edge leaving it as a varint: 0
+	 * for a wall, 1 for an edge along the side of the tile, or 2 + the target polygon's uid
+	 * for a connector.
+	 *
+	 * The item count, then for each item its uid, item def id, position in tile units
+	 * (varints), theta (svarint), flags (bit 0 flipped) and label.
+	 */
+	static byte[] buildTile(MapSnapshot.Floor iFloor, PlacedItemStore iStore, int iZoom, int iX, int iY, float iGridMinX, float iGridMinY, float iSide) throws IOException
+	{
+		//Read the token before the items, so that no update is missed by a client using it
+		int lUpdateId = iStore.getLastUpdateId();
+		float lSize = iSide / (1 << iZoom);
+		float lMinX = iGridMinX + iX * lSize;
+		float lMinY = iGridMinY + iY * lSize;
+		float lMaxX = lMinX + lSize;
+		float lMaxY = lMinY + lSize;
+		float lScale = EXTENT / lSize;
+
+		ByteArrayOutputStream lOut = new ByteArrayOutputStream();
+		BinaryWriter lWriter = new BinaryWriter(lOut, BinaryWriter.TYPE_TILE);
+		lWriter.writeVarint(iFloor.getLevel());
+		lWriter.writeVarint(iZoom);
+		lWriter.writeVarint(iX);
+		lWriter.writeVarint(iY);
+		lWriter.writeVarint(EXTENT);
+		lWriter.writeFloat(lMinX);
+		lWriter.writeFloat(lMinY);
+		lWriter.writeFloat(lSize);
+		lWriter.writeVarint(lUpdateId);
+
+		//Clip every polygon whose bounds meet the tile, keeping the outlines which are
+		//left so that the count can be written first
+		RectClipper lClipper = new RectClipper();
+		ArrayList<FloorPoly> lPolys = new ArrayList<FloorPoly>();
+		ArrayList<int[]> lOutlines = new ArrayList<int[]>();
+		for(FloorPoly lPoly : iFloor.getSubmap().getFloorPolys())
+		{
+			Bounds3D lBounds = lPoly.getBounds();
+			//A polygon which only touches the tile would be clipped to a zero area outline
+			if(lBounds.getMaxX() <= lMinX || lBounds.getMinX() >= lMaxX
+					|| lBounds.getMaxY() <= lMinY || lBounds.getMinY() >= lMaxY)
+			{
+				continue;
+			}
+			int lCount = lClipper.clip(lPoly, lMinX, lMinY, lMaxX, lMaxY);
+			if(lCount < 3)
+			{
+				continue;
+			}
+			//(x,y,kind) per vertex
+			int[] lOutline = new int[lCount * 3];
+			for(int li = 0; li < lCount; li++)
+			{
+				lOutline[li * 3] = Math.round((lClipper.getX(li) - lMinX) * lScale);
+				lOutline[li * 3 + 1] = Math.round((lClipper.getY(li) - lMinY) * lScale);
+				lOutline[li * 3 + 2] = lClipper.getKind(li);
+			}
+			lPolys.add(lPoly);
+			lOutlines.add(lOutline);
+		}
+		lWriter.writeVarint(lPolys.size());
+		for(int li = 0; li < lPolys.size(); li++)
+		{
+			int[] lOutline = lOutlines.get(li);
+			int lCount = lOutline.length / 3;
+			lWriter.writeVarint(lPolys.get(li).getUid());
+			lWriter.writeVarint(lPolys.get(li).getContainingRoom().getUid());
+			lWriter.writeVarint(lCount);
+			int lLastX = 0;
+			int lLastY = 0;
+			for(int lj = 0; lj < lCount; lj++)
+			{
+				lWriter.writeSignedVarint(lOutline[lj * 3] - lLastX);
+				lWriter.writeSignedVarint(lOutline[lj * 3 + 1] - lLastY);
+				lLastX = lOutline[lj * 3];
+				lLastY = lOutline[lj * 3 + 1];
+			}
+			for(int lj = 0; lj < lCount; lj++)
+			{
+				lWriter.writeVarint(lOutline[lj * 3 + 2]);
+			}
+		}
+
+		ArrayList<PlacedItem> lFloorItems = new ArrayList<PlacedItem>();
+		iStore.getItemsFloor(iFloor.getSubmapId(), lFloorItems);
+		ArrayList<PlacedItem> lItems = new ArrayList<PlacedItem>();
+		for(PlacedItem lItem : lFloorItems)
+		{
+			//Use the same test as invalidate(), so an item is in exactly one tile per zoom
+			if(tileOf(lItem.getX(), iGridMinX, iSide, iZoom) == iX && tileOf(lItem.getY(), iGridMinY, iSide, iZoom) == iY)
+			{
+				lItems.add(lItem);
+			}
+		}
+		lWriter.writeVarint(lItems.size());
+		for(PlacedItem lItem : lItems)
+		{
+			lWriter.writeVarint(lItem.getUid());
+			lWriter.writeVarint(lItem.getItemDefId());
+			lWriter.writeVarint(Math.max(0, Math.min(EXTENT - 1, (int) ((lItem.getX() - lMinX) * lScale))));
+			lWriter.writeVarint(Math.max(0, Math.min(EXTENT - 1, (int) ((lItem.getY() - lMinY) * lScale))));
+			lWriter.writeSignedVarint(lItem.getTheta());
+			lWriter.writeByte(lItem.isFlipped() ? 1 : 0);
+			lWriter.writeString(lItem.getLabel());
+		}
+		lWriter.flush();
+		return lOut.toByteArray();
+	}
+
+	/**
+	 * Lays the tile grid out over the current map if the geometry has changed since it was
+	 * last laid out, discarding every cached tile. Must be called holding mTileLock.
+	 * @param iSnapshot The current map snapshot
+	 */
+	private void layOutGrid(MapSnapshot iSnapshot)
+	{
+		if(iSnapshot.getGeometryVersion().equals(mGridVersion))
+		{
+			return;
+		}
+		Bounds3D lBounds = new Bounds3D();
+		for(int li = 0; li < iSnapshot.getSubmapCount(); li++)
+		{
+			if(iSnapshot.getSubmap(li).getFloorPolys().size() > 0)
+			{
+				lBounds.expand(new Bounds3D(iSnapshot.getSubmap(li).getBounds()));
+			}
+		}
+		if(lBounds.getMinX() > lBounds.getMaxX())
+		{
+			//An empty map still needs a grid to serve empty tiles from
+			lBounds = new Bounds3D(new float[] {0, 0, 0, 1, 1, 0});
+		}
+		mMinX = lBounds.getMinX();
+		mMinY = lBounds.getMinY();
+		mSide = Math.max(Math.max(lBounds.getMaxX() - mMinX, lBounds.getMaxY() - mMinY), 1e-3f);
+		mGridVersion = iSnapshot.getGeometryVersion();
+		mCache.clear();
+		mGeneration++;
+	}
+
+	/**
+	 * Removes the tiles containing an item's old and new positions from the cache.
+	 * @param iItem The new state of the item
+	 */
+	private void invalidate(PlacedItem iItem)
+	{
+		synchronized(mTileLock)
+		{
+			mGeneration++;
+			PlacedItem lPrevious = mPositions.put(iItem.getUid(), iItem);
+			if(mGridVersion == null)
+			{
+				//Nothing has been cached yet
+				return;
+			}
+			if(lPrevious != null && !lPrevious.isDeleted())
+			{
+				invalidate(lPrevious.getFloor(), lPrevious.getX(), lPrevious.getY());
+			}
+			if(!iItem.isDeleted())
+			{
+				invalidate(iItem.getFloor(), iItem.getX(), iItem.getY());
+			}
+		}
+	}
+
+	private void invalidate(int iFloor, float iX, float iY)
+	{
+		for(int lZoom = 0; lZoom <= MAX_ZOOM; lZoom++)
+		{
+			int lX = tileOf(iX, mMinX, mSide, lZoom);
+			int lY = tileOf(iY, mMinY, mSide, lZoom);
+			if(lX >= 0 && lY >= 0)
+			{
+				mCache.remove(tileKey(iFloor, lZoom, lX, lY));
+			}
+		}
+	}
+
+	/**
+	 * The column (or row) of the tile containing a coordinate.
+	 * @param iValue The x (or y) coordinate
+	 * @param iGridMin The lower x (or y) bound of the grid
+	 * @param iSide The side of the grid
+	 * @param iZoom The zoom level
+	 * @return The tile column (or row), or -1 if the coordinate is off the grid
+	 */
+	private static int tileOf(float iValue, float iGridMin, float iSide, int iZoom)
+	{
+		float lU = (iValue - iGridMin) / iSide;
+		if(lU < 0 || lU > 1)
+		{
+			return -1;
+		}
+		int lTiles = 1 << iZoom;
+		return Math.min(lTiles - 1, (int) (lU * lTiles));
+	}
+
+	private static long tileKey(int iFloor, int iZoom, int iX, int iY)
+	{
+		return ((long) iFloor << 48) | ((long) iZoom << 40) | ((long) iX << 20) | iY;
+	}
+
+}
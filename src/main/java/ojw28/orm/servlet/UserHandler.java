@@ -10,7 +10,7 @@
  *******************************************************************************/
 package ojw28.orm.servlet;
 
-import java.util.logging.Level;
+import java.io.IOException;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
@@ -18,7 +18,8 @@ import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerConfigurationException;
 
-import org.w3c.dom.Document;
+import ojw28.orm.utils.XmlResponseWriter;
+
 
 public class UserHandler extends ServletRequestHandler {
 
@@ -26,21 +27,19 @@ public class UserHandler extends ServletRequestHandler {
 	
 	public UserHandler() throws TransformerConfigurationException, ParserConfigurationException
 	{
-		super("/whoami");
 		mLogger.info("Handler successfully initialised");
 	}
 
-	public void handleRequest(HttpServletRequest request, HttpServletResponse response) {
-		try
-		{
-			Document lXml = createDocument("WhoAmIResponse");
-			lXml.getDocumentElement().setAttribute("crsid", super.getCrsid(request));
-			writeXmlResponse(lXml, response);
-		}
-		catch(Exception lE)
-		{                
-			mLogger.log(Level.SEVERE, "Exception caught while handling request :\t"+ request.getPathInfo(), lE);
-		}
+	public void addRoutes(RequestRouter iRouter) {
+		iRouter.add("/whoami", new RequestRouter.Route() {
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+			{
+				XmlResponseWriter lWriter = createXmlWriter(response);
+				lWriter.startElement("WhoAmIResponse");
+				lWriter.attribute("crsid", getCrsid(request));
+				lWriter.endDocument();
+			}
+		}, RequestRouter.GET);
 	}  
 	
 }
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Reads the binary encoding written by BinaryWriter.
+ * @author ojw28
+ */
+public class BinaryReader {
+
+	private InputStream mIn;
+	private ArrayList<String> mStrings = new ArrayList<String>();
+
+	/**
+	 * Constructor. Reads and checks the payload header.
+	 * @param iIn The stream from which the payload is read
+	 * @param iType The expected payload type
+	 * @throws IOException If an IOException occurs, or the header is not as expected
+	 */
+	public BinaryReader(InputStream iIn, int iType) throws IOException
+	{
+		mIn = iIn;
+		if(readByte() != 'O' || readByte() != 'R' || readByte() != 'M')
+		{
+			throw new IOException("Not a binary ORM payload");
+		}
+		int lVersion = readByte();
+		if(lVersion != BinaryWriter.VERSION)
+		{
+			throw new IOException("Unsupported payload version "+lVersion);
+		}
+		int lType = readByte();
+		if(lType != iType)
+		{
+			throw new IOException("Unexpected payload type "+(char) lType);
+		}
+	}
+
+	public int readByte() throws IOException
+	{
+		int lValue = mIn.read();
+		if(lValue < 0)
+		{
+			throw new EOFException();
+		}
+		return lValue;
+	}
+
+	public int readVarint() throws IOException
+	{
+		int lValue = 0;
+		for(int lShift = 0; lShift < 35; lShift += 7)
+		{
+			int lByte = readByte();
+			lValue |= (lByte & 0x7f) << lShift;
+			if((lByte & 0x80) == 0)
+			{
+				return lValue;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	public int readSignedVarint() throws IOException
+	{
+		int lValue = readVarint();
+		return (lValue >>> 1) ^ -(lValue & 1);
+	}
+
+	public float readFloat() throws IOException
+	{
+		int lBits = (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+		return Float.intBitsToFloat(lBits);
+	}
+
+	public String readString() throws IOException
+	{
+		int lIndex = readVarint();
+		if(lIndex == 0)
+		{
+			return null;
+		}
+		if(lIndex <= mStrings.size())
+		{
+			return mStrings.get(lIndex - 1);
+		}
+		if(lIndex != mStrings.size() + 1)
+		{
+			throw new IOException("String reference out of range: "+lIndex);
+		}
+		byte[] lBytes = new byte[readVarint()];
+		for(int li = 0; li < lBytes.length; li++)
+		{
+			lBytes[li] = (byte) readByte();
+		}
+		String lValue = new String(lBytes, BinaryWriter.UTF8);
+		mStrings.add(lValue);
+		return lValue;
+	}
+
+}
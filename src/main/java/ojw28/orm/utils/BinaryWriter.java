@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * Writes the compact binary encoding which may be requested in place of XML. A payload
+ * consists of the magic bytes "ORM", a version byte and a payload type byte, followed
+ * by values of the following kinds:
+ *
+ * varint - an unsigned LEB128 integer (7 bits per byte, least significant group first)
+ * svarint - a zigzag encoded signed integer, written as a varint
+ * float - an IEEE 754 float32, big-endian
+ * flags - a single byte bitset
+ * string - a varint reference into a string table which is built up as the payload is
+ * written. 0 denotes null, 1..N denote the Nth string already in the table, and N+1
+ * denotes a new string whose UTF-8 length (a varint) and bytes follow, and which is then
+ * added to the table. Repeated labels and names are therefore sent only once.
+ * @author ojw28
+ */
+public class BinaryWriter {
+
+	public static final String CONTENT_TYPE = "application/x-orm-binary";
+	public static final int VERSION = 1;
+
+	public static final int TYPE_ITEMS = 'I';
+	public static final int TYPE_MAP = 'M';
+	public static final int TYPE_MAP_LOD = 'L';
+	public static final int TYPE_TILE = 'T';
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private OutputStream mOut;
+	private byte[] mBuffer = new byte[8192];
+	private int mCount = 0;
+	private HashMap<String, Integer> mStrings = new HashMap<String, Integer>();
+	//The route to whose byte count the bytes written are added
+	private Metrics mRoute;
+
+	/**
+	 * Constructor. Writes the payload header.
+	 * @param iOut The stream to which the payload is written
+	 * @param iType The payload type
+	 * @throws IOException If an IOException occurs
+	 */
+	public BinaryWriter(OutputStream iOut, int iType) throws IOException
+	{
+		mOut = iOut;
+		writeByte('O');
+		writeByte('R');
+		writeByte('M');
+		writeByte(VERSION);
+		writeByte(iType);
+	}
+
+	public void writeByte(int iValue) throws IOException
+	{
+		if(mCount == mBuffer.length)
+		{
+			flushBuffer();
+		}
+		mBuffer[mCount++] = (byte) iValue;
+	}
+
+	public void writeVarint(int iValue) throws IOException
+	{
+		while((iValue & ~0x7f) != 0)
+		{
+			writeByte((iValue & 0x7f) | 0x80);
+			iValue >>>= 7;
+		}
+		writeByte(iValue);
+	}
+
+	public void writeSignedVarint(int iValue) throws IOException
+	{
+		writeVarint((iValue << 1) ^ (iValue >> 31));
+	}
+
+	public void writeFloat(float iValue) throws IOException
+	{
+		int lBits = Float.floatToIntBits(iValue);
+		writeByte(lBits >>> 24);
+		writeByte(lBits >>> 16);
+		writeByte(lBits >>> 8);
+		writeByte(lBits);
+	}
+
+	public void writeString(String iValue) throws IOException
+	{
+		if(iValue == null)
+		{
+			writeVarint(0);
+			return;
+		}
+		Integer lIndex = mStrings.get(iValue);
+		if(lIndex != null)
+		{
+			writeVarint(lIndex);
+			return;
+		}
+		int lNewIndex = mStrings.size() + 1;
+		mStrings.put(iValue, lNewIndex);
+		writeVarint(lNewIndex);
+		byte[] lBytes = iValue.getBytes(UTF8);
+		writeVarint(lBytes.length);
+		for(byte lByte : lBytes)
+		{
+			writeByte(lByte);
+		}
+	}
+
+	/**
+	 * Sets the route to whose byte count the bytes written are added.
+	 * @param iRoute The route's metrics, or null if they are not counted
+	 */
+	public void setRoute(Metrics iRoute)
+	{
+		mRoute = iRoute;
+	}
+
+	/**
+	 * Writes any buffered bytes and flushes the underlying stream.
+	 * @throws IOException If an IOException occurs
+	 */
+	public void flush() throws IOException
+	{
+		flushBuffer();
+		mOut.flush();
+	}
+
+	private void flushBuffer() throws IOException
+	{
+		mOut.write(mBuffer, 0, mCount);
+		if(mRoute != null)
+		{
+			mRoute.addBytes(mCount);
+		}
+		mCount = 0;
+	}
+
+}
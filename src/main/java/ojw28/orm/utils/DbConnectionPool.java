@@ -11,16 +11,39 @@
 package ojw28.orm.utils;
 
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.sql.DataSource;
+
 import org.apache.commons.dbcp.ConnectionFactory;
 import org.apache.commons.dbcp.DriverConnectionFactory;
 import org.apache.commons.dbcp.PoolableConnectionFactory;
-import org.apache.commons.dbcp.PoolingDriver;
+import org.apache.commons.dbcp.PoolingDataSource;
 import org.apache.commons.pool.KeyedObjectPoolFactory;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
 import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 
@@ -28,74 +51,731 @@ import org.apache.commons.pool.impl.GenericObjectPool;
  * A pool of connections to the openroommap database. Connections are
  * not in auto-commit mode by default, so it is necessary to peform a
  * commit or rollback before returning the connection to the pool.
+ *
+ * The pool is configured from a set of properties, normally the servlet's context
+ * parameters, whose names and defaults are given by the SETTING_ constants. A caller
+ * waiting for a connection gives up with an SQLException after SETTING_MAX_WAIT, and
+ * idle connections are validated in the background. Each connection caches its prepared
+ * statements, so preparing the same SQL again on a connection is cheap.
+ *
+ * The pool records how long each caller waits for a connection and how long each
+ * connection is held, in microseconds, so that it can be sized from its behaviour under
+ * load.
+ *
+ * The statement last prepared on each connection a thread holds can be cancelled from
+ * another thread with cancel, so that a request which has run for too long gives up its
+ * query rather than leaving it to run.
+ *
+ * Requests which will use the database are admitted with tryAdmit before they start.
+ * Once as many are admitted as there are connections, plus SETTING_MAX_QUEUE which may
+ * wait for one, further requests are turned away rather than left to queue.
+ *
+ * Read replicas of the database may be listed in SETTING_REPLICA_URLS, each of which is
+ * given a pool of its own with the same settings. Reads which can be served from a
+ * replica take a connection from getReadConnection, which picks the replicas in turn.
+ * Each replica is checked in the background, and is only used while its last check
+ * succeeded and it has replayed the primary's write-ahead log up to the position the
+ * reader needs; otherwise the read goes to the primary. Update ids cannot be used for
+ * this, since concurrent transactions commit out of update id order and a replica may
+ * hold one update without a lower one. The log is replayed in commit order, so a replica
+ * which has passed the position read by getCommitPosition after a transaction commits
+ * holds that transaction and every one committed before it.
+ * A replica which cannot be reached does not stop the pool being configured, but is left
+ * out until a check finds it working, and only replicas in use add to the requests which
+ * tryAdmit accepts.
  * @author ojw28
  */
 public class DbConnectionPool {
 
-    private static Logger mLogger = Logger.getLogger("ojw28.orm.servlet.DbConnectionPool");
+	private static Logger mLogger = Logger.getLogger("ojw28.orm.servlet.DbConnectionPool");
+
+	public static final String SETTING_URL = "DB_URL";
+	public static final String SETTING_USER = "DB_USER";
+	public static final String SETTING_PASSWORD = "DB_PASSWORD";
+	//The largest number of connections open at once
+	public static final String SETTING_MAX_ACTIVE = "DB_POOL_MAX_ACTIVE";
+	//The largest and smallest numbers of idle connections kept open
+	public static final String SETTING_MAX_IDLE = "DB_POOL_MAX_IDLE";
+	public static final String SETTING_MIN_IDLE = "DB_POOL_MIN_IDLE";
+	//The longest time, in milliseconds, for which a caller waits for a connection
+	public static final String SETTING_MAX_WAIT = "DB_POOL_MAX_WAIT";
+	//The query with which idle connections are validated
+	public static final String SETTING_VALIDATION_QUERY = "DB_POOL_VALIDATION_QUERY";
+	//The interval, in seconds, at which idle connections are validated
+	public static final String SETTING_VALIDATION_INTERVAL = "DB_POOL_VALIDATION_INTERVAL";
+	//The largest number of prepared statements cached for each distinct SQL string on a connection
+	public static final String SETTING_STATEMENT_CACHE = "DB_POOL_STATEMENT_CACHE";
+	//The largest number of admitted requests which may wait for a connection, by default
+	//the number of connections
+	public static final String SETTING_MAX_QUEUE = "DB_POOL_MAX_QUEUE";
+	//A comma separated list of the JDBC URLs of read replicas
+	public static final String SETTING_REPLICA_URLS = "DB_REPLICA_URLS";
+	//The interval, in seconds, at which replicas are checked
+	public static final String SETTING_REPLICA_CHECK_INTERVAL = "DB_REPLICA_CHECK_INTERVAL";
+
+	//The replay position of a replica, or the current position of a database which is not
+	//replaying a log, as a byte offset
+	private static final String REPLICA_CHECK_QUERY = "SELECT coalesce(pg_last_wal_replay_lsn(), pg_current_wal_lsn()) - '0/0'";
+	private static final String WAL_POSITION_QUERY = "SELECT pg_current_wal_lsn() - '0/0'";
+	//The longest time, in seconds, for which a replica check may run
+	private static final int REPLICA_CHECK_TIMEOUT = 2;
+
+	private static final String DEFAULT_URL = "jdbc:postgresql://localhost:5432/openroommap";
+
 	private static DbConnectionPool mSingleton = null;
 
-	private GenericObjectPool mPool;
-	private int mAccessCount = 0;
-	
-	static
+	private final String mUrl;
+	private final GenericObjectPool mPool;
+	private final DataSource mDataSource;
+	private final int mMaxActive;
+	//For a replica, the pool of the primary, and null for the primary
+	private final DbConnectionPool mPrimary;
+
+	//The pools of the read replicas, and the index of the next one to try
+	private final List<DbConnectionPool> mReplicas = new ArrayList<DbConnectionPool>();
+	private final AtomicInteger mNextReplica = new AtomicInteger();
+	private ScheduledExecutorService mReplicaMonitor;
+	//For a replica, whether its last check succeeded and the log position it had replayed
+	private volatile boolean mHealthy = false;
+	private volatile long mAppliedPosition = 0;
+	//The number of reads which went to the primary because no replica could serve them
+	private final AtomicLong mPrimaryReads = new AtomicLong();
+
+	private final Histogram mWaitTimes = new Histogram();
+	private final Histogram mCheckoutTimes = new Histogram();
+	private final AtomicLong mFailures = new AtomicLong();
+	//The connections taken from the pool and not yet closed
+	private final Set<CheckoutTimer> mCheckouts = Collections.newSetFromMap(new ConcurrentHashMap<CheckoutTimer, Boolean>());
+
+	//A permit for each connection, and each request which may wait for one
+	private final AdmissionLimit mAdmissions;
+	private final AtomicLong mRejections = new AtomicLong();
+
+	/**
+	 * Replaces the pool with one configured from a set of properties. Settings which are
+	 * not given take their defaults.
+	 * @param iSettings The settings
+	 * @throws SQLException If the pool cannot be created
+	 */
+	public static synchronized void configure(Properties iSettings) throws SQLException
 	{
-		try {
-			mSingleton = new DbConnectionPool();
-		} catch (Exception e) {
-			e.printStackTrace();
+		DbConnectionPool lPool = new DbConnectionPool(iSettings, iSettings.getProperty(SETTING_URL, DEFAULT_URL), null);
+		lPool.fill();
+		lPool.startReplicas(iSettings);
+		DbConnectionPool lPrevious = mSingleton;
+		mSingleton = lPool;
+		if(lPrevious != null)
+		{
+			lPrevious.close();
 		}
 	}
-	
-	private DbConnectionPool() throws Exception
+
+	/**
+	 * Gets the pool, creating it with the default settings if it has not been configured.
+	 * @return The pool
+	 */
+	public static synchronized DbConnectionPool getSingleton()
 	{
-		createPool();
+		if(mSingleton == null)
+		{
+			try
+			{
+				DbConnectionPool lPool = new DbConnectionPool(new Properties(), DEFAULT_URL, null);
+				lPool.fill();
+				mSingleton = lPool;
+			}
+			catch(SQLException lE)
+			{
+				mLogger.log(Level.SEVERE, "Failed to create connection pool", lE);
+			}
+		}
+		return mSingleton;
 	}
-	
-	public static DbConnectionPool getSingleton()
+
+	/**
+	 * Closes the pool and those of its replicas, and stops checking the replicas. A pool
+	 * with the default settings is created if it is used again.
+	 */
+	public static synchronized void shutdown()
 	{
-		return mSingleton;
+		if(mSingleton != null)
+		{
+			mSingleton.close();
+			mSingleton = null;
+		}
+	}
+
+	/**
+	 * Creates a pool of connections to one database. No connections are opened until
+	 * they are needed, or fill is called.
+	 * @param iSettings The settings
+	 * @param iUrl The JDBC URL of the database
+	 * @param iPrimary The primary database's pool if the database is a read replica, or
+	 * null if it is the primary
+	 * @throws SQLException If the pool cannot be created
+	 */
+	private DbConnectionPool(Properties iSettings, String iUrl, DbConnectionPool iPrimary) throws SQLException
+	{
+		mUrl = iUrl;
+		mPrimary = iPrimary;
+		Properties lProps = new Properties();
+		lProps.setProperty("user", iSettings.getProperty(SETTING_USER, "orm"));
+		lProps.setProperty("password", iSettings.getProperty(SETTING_PASSWORD, "openroommap"));
+		ConnectionFactory lConnectionFactory = new DriverConnectionFactory(new org.postgresql.Driver(), iUrl, lProps);
+
+		mMaxActive = getInt(iSettings, SETTING_MAX_ACTIVE, 10);
+		mPool = new GenericObjectPool();
+		mPool.setMaxActive(mMaxActive);
+		mPool.setMaxIdle(getInt(iSettings, SETTING_MAX_IDLE, mMaxActive));
+		mPool.setMinIdle(getInt(iSettings, SETTING_MIN_IDLE, 2));
+		mPool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+		mPool.setMaxWait(getInt(iSettings, SETTING_MAX_WAIT, 5000));
+		mPool.setTestOnBorrow(false);
+		mPool.setTestWhileIdle(true);
+		mPool.setTimeBetweenEvictionRunsMillis(getInt(iSettings, SETTING_VALIDATION_INTERVAL, 60) * 1000L);
+		mPool.setNumTestsPerEvictionRun(mMaxActive);
+		mAdmissions = new AdmissionLimit(mMaxActive + getInt(iSettings, SETTING_MAX_QUEUE, mMaxActive));
+
+		int lStatementCache = getInt(iSettings, SETTING_STATEMENT_CACHE, 10);
+		KeyedObjectPoolFactory lStatementPoolFactory = lStatementCache <= 0 ? null
+				: new GenericKeyedObjectPoolFactory(null, lStatementCache, GenericKeyedObjectPool.WHEN_EXHAUSTED_GROW, 0, lStatementCache);
+
+		//Registers itself as the pool's factory
+		new PoolableConnectionFactory(lConnectionFactory, mPool, lStatementPoolFactory,
+				iSettings.getProperty(SETTING_VALIDATION_QUERY, "SELECT 1"), iPrimary != null, false);
+		mDataSource = new PoolingDataSource(mPool);
+
+		mLogger.info("Created connection pool of up to " + mMaxActive + " connections to " + iUrl);
+	}
+
+	/**
+	 * Opens the pool's minimum number of idle connections, so that a database which cannot
+	 * be reached is found when the pool is created rather than by the first request.
+	 * @throws SQLException If a connection cannot be opened
+	 */
+	private void fill() throws SQLException
+	{
+		try
+		{
+			for(int li = 0; li < mPool.getMinIdle(); li++)
+			{
+				mPool.addObject();
+			}
+		}
+		catch(Exception lE)
+		{
+			throw new SQLException("Failed to open initial connections: " + lE.getMessage());
+		}
+		mLogger.info("Active\t"+mPool.getNumActive()+"\tIdle\t"+mPool.getNumIdle());
 	}
 
+	/**
+	 * Takes a connection from the pool, waiting if every connection is in use. The
+	 * connection is returned to the pool when it is closed.
+	 * @return The connection
+	 * @throws SQLException If no connection becomes free within the maximum wait, or a
+	 * new connection cannot be opened
+	 */
 	public Connection getConnection() throws SQLException
 	{
-		mAccessCount++;
-		if((mAccessCount % 100) == 0)
+		long lStartTime = System.nanoTime();
+		Connection lConnection;
+		try
 		{
-			mLogger.fine("Active\t"+mPool.getNumActive()+"\tIdle\t"+mPool.getNumIdle());
+			lConnection = mDataSource.getConnection();
 		}
-		return java.sql.DriverManager.getConnection("jdbc:apache:commons:dbcp:openroommap");
+		catch(SQLException lE)
+		{
+			mFailures.incrementAndGet();
+			throw lE;
+		}
+		long lCheckoutTime = System.nanoTime();
+		mWaitTimes.record((lCheckoutTime - lStartTime) / 1000);
+		CheckoutTimer lCheckout = new CheckoutTimer(lConnection, lCheckoutTime);
+		mCheckouts.add(lCheckout);
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] {Connection.class}, lCheckout);
 	}
-		
-	private void createPool() throws Exception
+
+	/**
+	 * Cancels the statement last prepared on each connection which a thread holds from
+	 * this pool or those of its replicas, so that a query it is running fails with an
+	 * SQLException. Statements which are not running are left as they are.
+	 * @param iThread The thread
+	 */
+	public void cancel(Thread iThread)
 	{
-		mPool = new GenericObjectPool();
+		for(CheckoutTimer lCheckout : mCheckouts)
+		{
+			Statement lStatement = lCheckout.mStatement;
+			if(lCheckout.mThread == iThread && lStatement != null)
+			{
+				try
+				{
+					lStatement.cancel();
+				}
+				catch(SQLException lE)
+				{
+					//Already closed, or the cancel could not be sent
+					mLogger.log(Level.FINE, "Could not cancel statement", lE);
+				}
+			}
+		}
+		for(DbConnectionPool lReplica : mReplicas)
+		{
+			lReplica.cancel(iThread);
+		}
+	}
 
-		Properties props = new Properties();
-		props.setProperty("user", "orm");
-		props.setProperty("password", "openroommap");
-		ConnectionFactory cf =
-			new DriverConnectionFactory(new org.postgresql.Driver(),
-					"jdbc:postgresql://localhost:5432/openroommap",
-					props);
+	/**
+	 * Takes a connection for a read which has no need to see recent item updates, from a
+	 * replica if one is healthy.
+	 * @return The connection, which should not be written through
+	 * @throws SQLException If no connection can be taken from the primary either
+	 */
+	public Connection getReadConnection() throws SQLException
+	{
+		return getReadConnection(0);
+	}
 
-		KeyedObjectPoolFactory kopf = new GenericKeyedObjectPoolFactory(null, 10);
+	/**
+	 * Takes a connection for a read, from a replica if one is healthy and has replayed the
+	 * primary's log up to a given position, and otherwise from the primary. A client which
+	 * reads from the position of its own writes therefore always sees them.
+	 * @param iMinPosition The log position which the database read must have replayed, from
+	 * getCommitPosition
+	 * @return The connection, which should not be written through
+	 * @throws SQLException If no connection can be taken from the primary either
+	 */
+	public Connection getReadConnection(long iMinPosition) throws SQLException
+	{
+		int lCount = mReplicas.size();
+		int lStart = mNextReplica.getAndIncrement() & Integer.MAX_VALUE;
+		for(int li = 0; li < lCount; li++)
+		{
+			DbConnectionPool lReplica = mReplicas.get((lStart + li) % lCount);
+			if(lReplica.mHealthy && lReplica.mAppliedPosition >= iMinPosition)
+			{
+				try
+				{
+					return lReplica.getConnection();
+				}
+				catch(SQLException lE)
+				{
+					//Leave it out until the next check finds it working again
+					lReplica.setHealthy(false);
+					mLogger.log(Level.WARNING, "Replica unavailable :\t" + lReplica.mUrl, lE);
+				}
+			}
+		}
+		if(lCount > 0)
+		{
+			mPrimaryReads.incrementAndGet();
+		}
+		return getConnection();
+	}
 
-		new PoolableConnectionFactory(cf,mPool,kopf,null,false,false);
+	/**
+	 * Finds the position which the primary's write-ahead log has reached, after a
+	 * transaction committed on one of its connections. A replica which has replayed the
+	 * log to this position holds the transaction. If the position cannot be read from the
+	 * connection it is read from another, and if that fails too, Long.MAX_VALUE is
+	 * returned so that reads which need the transaction go to the primary.
+	 * @param iConnection The connection, whose transaction has just been committed
+	 * @return The position, as a byte offset
+	 */
+	public long getCommitPosition(Connection iConnection)
+	{
+		try
+		{
+			return getWalPosition(iConnection);
+		}
+		catch(SQLException lE)
+		{
+			mLogger.log(Level.WARNING, "Could not read log position, trying another connection", lE);
+		}
+		try
+		{
+			Connection lConnection = getConnection();
+			try
+			{
+				return getWalPosition(lConnection);
+			}
+			finally
+			{
+				lConnection.close();
+			}
+		}
+		catch(SQLException lE)
+		{
+			mLogger.log(Level.SEVERE, "Could not read log position, replicas will not serve reads which need the update", lE);
+			return Long.MAX_VALUE;
+		}
+	}
 
-		for(int i = 0; i < 5; i++) {
-			mPool.addObject();
+	/**
+	 * Reads the position which a primary database's write-ahead log has reached, which is
+	 * past every transaction committed before the call. The connection is left with no
+	 * transaction open.
+	 * @param iConnection A connection to the primary
+	 * @return The position, as a byte offset
+	 * @throws SQLException If a database error occurs
+	 */
+	public static long getWalPosition(Connection iConnection) throws SQLException
+	{
+		PreparedStatement lQuery = iConnection.prepareStatement(WAL_POSITION_QUERY);
+		try
+		{
+			ResultSet lResult = lQuery.executeQuery();
+			lResult.next();
+			long lPosition = lResult.getLong(1);
+			lResult.close();
+			return lPosition;
+		}
+		finally
+		{
+			lQuery.close();
+			iConnection.rollback();
 		}
+	}
 
-		// PoolingDataSource pds = new PoolingDataSource(gPool);
-		PoolingDriver pd = new PoolingDriver();
-		pd.registerPool("openroommap", mPool);
+	/**
+	 * Reads the position up to which a database has replayed the primary's log, or for the
+	 * primary itself the position its log has reached. A query run afterwards on the same
+	 * connection sees every transaction committed before that position.
+	 * @param iConnection A connection to the database
+	 * @return The position, as a byte offset
+	 * @throws SQLException If a database error occurs
+	 */
+	public static long getReplayPosition(Connection iConnection) throws SQLException
+	{
+		PreparedStatement lQuery = iConnection.prepareStatement(REPLICA_CHECK_QUERY);
+		try
+		{
+			ResultSet lResult = lQuery.executeQuery();
+			lResult.next();
+			long lPosition = lResult.getLong(1);
+			lResult.close();
+			return lPosition;
+		}
+		finally
+		{
+			lQuery.close();
+		}
+	}
 
-		for(int i = 0; i < 5; i++) {
-			mPool.addObject();
+	/**
+	 * Admits a request which will use the database, unless the pool already has as many
+	 * as it can serve or queue. Each admitted request must be ended with release.
+	 * @return True if the request was admitted, or false if it should be turned away
+	 */
+	public boolean tryAdmit()
+	{
+		if(mAdmissions.tryAcquire())
+		{
+			return true;
 		}
-		
-		mLogger.info("Created connection pool");
-		mLogger.info("Active\t"+mPool.getNumActive()+"\tIdle\t"+mPool.getNumIdle());
+		mRejections.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Ends a request admitted by tryAdmit.
+	 */
+	public void release()
+	{
+		mAdmissions.release();
 	}
+
+	/**
+	 * The number of requests turned away by tryAdmit.
+	 * @return The number of requests
+	 */
+	public long getRejections()
+	{
+		return mRejections.get();
+	}
+
+	/**
+	 * The pools of the read replicas.
+	 * @return The replicas, which must not be modified
+	 */
+	public List<DbConnectionPool> getReplicas()
+	{
+		return mReplicas;
+	}
+
+	public String getUrl()
+	{
+		return mUrl;
+	}
+
+	/**
+	 * Whether the last check of a replica succeeded.
+	 * @return True iff the replica is in use
+	 */
+	public boolean isHealthy()
+	{
+		return mHealthy;
+	}
+
+	/**
+	 * The position up to which a replica had replayed the primary's log at its last check.
+	 * @return The position, as a byte offset
+	 */
+	public long getAppliedPosition()
+	{
+		return mAppliedPosition;
+	}
+
+	/**
+	 * The number of reads which went to the primary because no replica could serve them.
+	 * @return The number of reads
+	 */
+	public long getPrimaryReads()
+	{
+		return mPrimaryReads.get();
+	}
+
+	/**
+	 * The number of connections currently in use.
+	 * @return The number of active connections
+	 */
+	public int getNumActive()
+	{
+		return mPool.getNumActive();
+	}
+
+	/**
+	 * The number of open connections not currently in use.
+	 * @return The number of idle connections
+	 */
+	public int getNumIdle()
+	{
+		return mPool.getNumIdle();
+	}
+
+	public int getMaxActive()
+	{
+		return mMaxActive;
+	}
+
+	/**
+	 * The number of requests for a connection which failed, including those which timed
+	 * out waiting.
+	 * @return The number of failures
+	 */
+	public long getFailures()
+	{
+		return mFailures.get();
+	}
+
+	/**
+	 * The times, in microseconds, for which callers have waited for a connection.
+	 * @return The histogram
+	 */
+	public Histogram getWaitTimes()
+	{
+		return mWaitTimes;
+	}
+
+	/**
+	 * The times, in microseconds, for which connections have been held.
+	 * @return The histogram
+	 */
+	public Histogram getCheckoutTimes()
+	{
+		return mCheckoutTimes;
+	}
+
+	/**
+	 * Creates the pools of the replicas listed in the settings, and starts checking them.
+	 * Each is out of use until its first check succeeds.
+	 */
+	private void startReplicas(Properties iSettings) throws SQLException
+	{
+		String lUrls = iSettings.getProperty(SETTING_REPLICA_URLS, "").trim();
+		if(lUrls.length() == 0)
+		{
+			return;
+		}
+		for(String lUrl : lUrls.split(","))
+		{
+			mReplicas.add(new DbConnectionPool(iSettings, lUrl.trim(), this));
+		}
+		mReplicaMonitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable iTask)
+			{
+				Thread lThread = new Thread(iTask, "ReplicaMonitor");
+				lThread.setDaemon(true);
+				return lThread;
+			}
+		});
+		int lInterval = getInt(iSettings, SETTING_REPLICA_CHECK_INTERVAL, 5);
+		mReplicaMonitor.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				for(DbConnectionPool lReplica : mReplicas)
+				{
+					lReplica.check();
+				}
+			}
+		}, 0, lInterval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Checks that a replica answers, and finds the log position it has replayed.
+	 */
+	private void check()
+	{
+		try
+		{
+			Connection lConnection = getConnection();
+			try
+			{
+				PreparedStatement lQuery = lConnection.prepareStatement(REPLICA_CHECK_QUERY);
+				try
+				{
+					lQuery.setQueryTimeout(REPLICA_CHECK_TIMEOUT);
+					ResultSet lResult = lQuery.executeQuery();
+					lResult.next();
+					mAppliedPosition = lResult.getLong(1);
+					lResult.close();
+				}
+				finally
+				{
+					lQuery.close();
+				}
+				lConnection.rollback();
+			}
+			finally
+			{
+				lConnection.close();
+			}
+			if(!mHealthy)
+			{
+				mLogger.info("Replica available :\t" + mUrl);
+			}
+			setHealthy(true);
+		}
+		catch(SQLException lE)
+		{
+			if(mHealthy)
+			{
+				mLogger.log(Level.WARNING, "Replica check failed :\t" + mUrl, lE);
+			}
+			setHealthy(false);
+		}
+	}
+
+	/**
+	 * Puts a replica in or out of use. While it is in use, the primary admits as many more
+	 * requests as the replica has connections, since reads which the replica serves take
+	 * none of the primary's connections.
+	 */
+	private synchronized void setHealthy(boolean iHealthy)
+	{
+		if(iHealthy == mHealthy)
+		{
+			return;
+		}
+		mHealthy = iHealthy;
+		if(iHealthy)
+		{
+			mPrimary.mAdmissions.release(mMaxActive);
+		}
+		else
+		{
+			mPrimary.mAdmissions.reduce(mMaxActive);
+		}
+	}
+
+	private void close()
+	{
+		if(mReplicaMonitor != null)
+		{
+			mReplicaMonitor.shutdownNow();
+		}
+		for(DbConnectionPool lReplica : mReplicas)
+		{
+			lReplica.close();
+		}
+		try
+		{
+			mPool.close();
+		}
+		catch(Exception lE)
+		{
+			mLogger.log(Level.WARNING, "Exception caught while closing connection pool", lE);
+		}
+	}
+
+	/**
+	 * A semaphore whose permits can be taken away while some are held, leaving fewer to be
+	 * acquired once they are released.
+	 */
+	private static class AdmissionLimit extends Semaphore
+	{
+		private static final long serialVersionUID = 1L;
+
+		private AdmissionLimit(int iPermits)
+		{
+			super(iPermits);
+		}
+
+		private void reduce(int iPermits)
+		{
+			reducePermits(iPermits);
+		}
+	}
+
+	private static int getInt(Properties iSettings, String iName, int iDefault)
+	{
+		String lValue = iSettings.getProperty(iName);
+		return lValue == null ? iDefault : Integer.parseInt(lValue.trim());
+	}
+
+	/**
+	 * Passes calls through to a pooled connection, recording how long the connection was
+	 * held when it is closed, and the statement last prepared on it so that it can be
+	 * cancelled.
+	 */
+	private class CheckoutTimer implements InvocationHandler
+	{
+		private final Connection mConnection;
+		private final long mCheckoutTime;
+		private final Thread mThread = Thread.currentThread();
+		private volatile Statement mStatement;
+		private boolean mClosed = false;
+
+		private CheckoutTimer(Connection iConnection, long iCheckoutTime)
+		{
+			mConnection = iConnection;
+			mCheckoutTime = iCheckoutTime;
+		}
+
+		public Object invoke(Object iProxy, Method iMethod, Object[] iArgs) throws Throwable
+		{
+			if(iMethod.getName().equals("close") && !mClosed)
+			{
+				mClosed = true;
+				mCheckouts.remove(this);
+				mCheckoutTimes.record((System.nanoTime() - mCheckoutTime) / 1000);
+			}
+			try
+			{
+				Object lResult = iMethod.invoke(mConnection, iArgs);
+				if(lResult instanceof Statement)
+				{
+					mStatement = (Statement) lResult;
+				}
+				return lResult;
+			}
+			catch(InvocationTargetException lE)
+			{
+				throw lE.getCause();
+			}
+		}
+	}
+
 }
@@ -163,6 +163,17 @@ public class FloorPoly extends PlanarPoly {
 	{
 		return mConnections[iWallIndex];
 	}	
+	
+	/**
+	 * The uid of the floor polygon which is connected to an edge. Unlike getConnection,
+	 * this is available for targets which are not part of the same map.
+	 * @param iWallIndex The index I of the first vertex of the edge
+	 * @return The target uid, or null if the edge is a wall
+	 */
+	public Integer getConnectionId(int iWallIndex)
+	{
+		return mConnectionIds[iWallIndex];
+	}
 			
 	/**
 	 * The room to which this floor polygon belongs.
@@ -195,6 +206,49 @@ public class FloorPoly extends PlanarPoly {
 		return mParentRoom.getName()+" : "+mUid;
 	}
 		
+	public Element writeToXml(Document iDoc, LevelOfDetail iLod)
+	{
+		if(iLod.isFull())
+		{
+			return writeToXml(iDoc);
+		}
+		
+		//A flat polygon's height is written once, on the polygon
+		Element lPolyElement = iDoc.createElement("Poly");
+		lPolyElement.setAttribute("uid", ""+mUid);
+		if(isFlat())
+		{
+			lPolyElement.setAttribute("z", formatCoordinate(mVertices[2], iLod));
+		}
+		for(int lVertex : iLod.simplify(mVertices, mConnectionIds))
+		{
+			int li = lVertex * 3;
+			Element lVertexElement = iDoc.createElement("Vertex");
+			lVertexElement.setAttribute("x", formatCoordinate(mVertices[li], iLod));
+			lVertexElement.setAttribute("y", formatCoordinate(mVertices[li+1], iLod));
+			if(!isFlat())
+			{
+				lVertexElement.setAttribute("z", formatCoordinate(mVertices[li+2], iLod));
+			}
+			if(mConnectionIds[lVertex] != null)
+			{
+				lVertexElement.setAttribute("edgetype", "connector");
+				lVertexElement.setAttribute("target", ""+mConnectionIds[lVertex]);
+			}
+			else
+			{
+				lVertexElement.setAttribute("edgetype", "wall");
+			}
+			lPolyElement.appendChild(lVertexElement);
+		}
+		return lPolyElement;
+	}
+	
+	private static String formatCoordinate(float iValue, LevelOfDetail iLod)
+	{
+		return iLod.isQuantised() ? ""+iLod.quantise(iValue) : ""+iValue;
+	}
+	
 	public Element writeToXml(Document iDoc)
 	{
 		Element lRoomElement = iDoc.createElement("Poly");
@@ -222,6 +276,103 @@ public class FloorPoly extends PlanarPoly {
 		return lRoomElement;
 	}
 	
+	/**
+	 * Writes the polygon in the binary encoding: the uid, the vertex count, the packed
+	 * vertices, a bitset marking the connector edges and the targets of those edges.
+	 */
+	public void writeToBinary(BinaryWriter iWriter) throws IOException
+	{
+		int lVertexCount = mVertices.length / 3;
+		iWriter.writeVarint(mUid);
+		iWriter.writeVarint(lVertexCount);
+		for(int li = 0; li < mVertices.length; li++)
+		{
+			iWriter.writeFloat(mVertices[li]);
+		}
+		for(int li = 0; li < lVertexCount; li += 8)
+		{
+			int lBits = 0;
+			for(int lj = li; lj < Math.min(li + 8, lVertexCount); lj++)
+			{
+				if(mConnectionIds[lj] != null)
+				{
+					lBits |= 1 << (lj - li);
+				}
+			}
+			iWriter.writeByte(lBits);
+		}
+		for(int li = 0; li < lVertexCount; li++)
+		{
+			if(mConnectionIds[li] != null)
+			{
+				iWriter.writeVarint(mConnectionIds[li]);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the polygon in the binary encoding at a level of detail below full detail:
+	 * the uid, the vertex count, a flags byte (1 if the polygon is flat), the height if
+	 * the polygon is flat, the vertices, then the connector bitset and targets as in the
+	 * full encoding. Quantised x and y are written as zigzag varint deltas from the
+	 * previous vertex (the first from zero), and unquantised coordinates as floats. The
+	 * z of each vertex is only written if the polygon is not flat.
+	 */
+	public void writeToBinary(BinaryWriter iWriter, LevelOfDetail iLod) throws IOException
+	{
+		int[] lKept = iLod.simplify(mVertices, mConnectionIds);
+		iWriter.writeVarint(mUid);
+		iWriter.writeVarint(lKept.length);
+		iWriter.writeByte(isFlat() ? 1 : 0);
+		if(isFlat())
+		{
+			iWriter.writeFloat(mVertices[2]);
+		}
+		int lLastX = 0;
+		int lLastY = 0;
+		for(int lVertex : lKept)
+		{
+			int li = lVertex * 3;
+			if(iLod.isQuantised())
+			{
+				int lX = iLod.quantise(mVertices[li]);
+				int lY = iLod.quantise(mVertices[li+1]);
+				iWriter.writeSignedVarint(lX - lLastX);
+				iWriter.writeSignedVarint(lY - lLastY);
+				lLastX = lX;
+				lLastY = lY;
+			}
+			else
+			{
+				iWriter.writeFloat(mVertices[li]);
+				iWriter.writeFloat(mVertices[li+1]);
+			}
+			if(!isFlat())
+			{
+				iWriter.writeFloat(mVertices[li+2]);
+			}
+		}
+		for(int li = 0; li < lKept.length; li += 8)
+		{
+			int lBits = 0;
+			for(int lj = li; lj < Math.min(li + 8, lKept.length); lj++)
+			{
+				if(mConnectionIds[lKept[lj]] != null)
+				{
+					lBits |= 1 << (lj - li);
+				}
+			}
+			iWriter.writeByte(lBits);
+		}
+		for(int lVertex : lKept)
+		{
+			if(mConnectionIds[lVertex] != null)
+			{
+				iWriter.writeVarint(mConnectionIds[lVertex]);
+			}
+		}
+	}
+	
 	public static FloorPoly readFromXml(Element iElement)
 	{
 		int lUid = Integer.parseInt(iElement.getAttribute("uid"));
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values with log-linear bucket bounds, which can be recorded
+ * into from any number of threads without locking. Values up to SUB_BUCKETS each have a
+ * bucket of their own, with 0 counted as 1. Above that each range from 2^k up to 2^(k+1)
+ * is split into SUB_BUCKETS buckets of equal width, so a bucket's upper bound is never
+ * more than 1/SUB_BUCKETS above a value it counts, and quantiles estimated from the bounds
+ * are as close. The last bucket counts every value above MAX_VALUE.
+ * @author ojw28
+ */
+public class Histogram {
+
+	//The number of buckets each power of two range is split into, as a power of two
+	private static final int SUB_BITS = 3;
+	public static final int SUB_BUCKETS = 1 << SUB_BITS;
+	//The largest value which is not in the last bucket. For latencies in microseconds this
+	//is about four and a half minutes, well beyond any request timeout
+	public static final long MAX_VALUE = 1L << 28;
+	public static final int BUCKETS = getBucket(MAX_VALUE) + 2;
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mSum = new AtomicLong();
+
+	public void record(long iValue)
+	{
+		mBuckets.incrementAndGet(Math.min(getBucket(iValue), BUCKETS - 1));
+		mCount.incrementAndGet();
+		mSum.addAndGet(iValue);
+	}
+
+	/**
+	 * The bucket which counts a value, ignoring the last bucket.
+	 * @param iValue The value
+	 * @return The bucket, which may be BUCKETS - 1 or more for values above MAX_VALUE
+	 */
+	private static int getBucket(long iValue)
+	{
+		if(iValue <= SUB_BUCKETS)
+		{
+			return (int) Math.max(iValue - 1, 0);
+		}
+		//Buckets count values above their lower bound up to their upper bound, so work
+		//with one less than the value
+		long lValue = iValue - 1;
+		int lShift = 63 - Long.numberOfLeadingZeros(lValue) - SUB_BITS;
+		int lSubBucket = (int) (lValue >> lShift) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + lShift * SUB_BUCKETS + lSubBucket;
+	}
+
+	/**
+	 * The largest value counted by a bucket.
+	 * @param iBucket The bucket
+	 * @return The bound, or Long.MAX_VALUE for the last bucket
+	 */
+	public static long getUpperBound(int iBucket)
+	{
+		if(iBucket == BUCKETS - 1)
+		{
+			return Long.MAX_VALUE;
+		}
+		if(iBucket < SUB_BUCKETS)
+		{
+			return iBucket + 1;
+		}
+		int lShift = (iBucket - SUB_BUCKETS) / SUB_BUCKETS;
+		int lSubBucket = (iBucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + lSubBucket + 1) << lShift;
+	}
+
+	/**
+	 * The number of values recorded in a bucket.
+	 * @param iBucket The bucket
+	 * @return The count
+	 */
+	public long getCount(int iBucket)
+	{
+		return mBuckets.get(iBucket);
+	}
+
+	/**
+	 * The number of values recorded.
+	 * @return The count
+	 */
+	public long getCount()
+	{
+		return mCount.get();
+	}
+
+	/**
+	 * The sum of the values recorded.
+	 * @return The sum
+	 */
+	public long getSum()
+	{
+		return mSum.get();
+	}
+
+	/**
+	 * Estimates a quantile of the values recorded, as the upper bound of the bucket in
+	 * which it falls.
+	 * @param iQuantile The quantile, from 0 to 1
+	 * @return The estimate, or 0 if nothing has been recorded
+	 */
+	public long getQuantile(double iQuantile)
+	{
+		long[] lCounts = new long[BUCKETS];
+		long lTotal = 0;
+		for(int li = 0; li < BUCKETS; li++)
+		{
+			lCounts[li] = mBuckets.get(li);
+			lTotal += lCounts[li];
+		}
+		if(lTotal == 0)
+		{
+			return 0;
+		}
+		long lRank = (long) Math.ceil(iQuantile * lTotal);
+		long lSeen = 0;
+		for(int li = 0; li < BUCKETS; li++)
+		{
+			lSeen += lCounts[li];
+			if(lSeen >= lRank && lCounts[li] > 0)
+			{
+				return getUpperBound(li);
+			}
+		}
+		return getUpperBound(BUCKETS - 1);
+	}
+
+}
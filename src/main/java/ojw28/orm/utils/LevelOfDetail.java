@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+/**
+ * A level of detail at which map geometry is written out. Polygon outlines are simplified
+ * with the Douglas-Peucker algorithm, and coordinates can be quantised to a fixed grid so
+ * that they can be sent as integers. The vertices at either end of a connector edge are
+ * always kept, so simplified polygons still meet their neighbours exactly.
+ * @author ojw28
+ */
+public class LevelOfDetail {
+
+	/**
+	 * The tiers served to clients, from full detail down. Distances are in map units
+	 * (metres). Tier 1 only removes vertices which are collinear to within a millimetre.
+	 */
+	public static final LevelOfDetail[] TIERS = {
+		new LevelOfDetail(0, 0, 0),
+		new LevelOfDetail(1, 0.001f, 0),
+		new LevelOfDetail(2, 0.02f, 0.01f),
+		new LevelOfDetail(3, 0.1f, 0.05f)
+	};
+
+	private final int mTier;
+	private final float mTolerance;
+	private final float mQuantum;
+
+	/**
+	 * Constructor.
+	 * @param iTier The tier number
+	 * @param iTolerance The largest distance a removed vertex may lie from the simplified
+	 * outline, or 0 to keep every vertex
+	 * @param iQuantum The spacing of the grid to which coordinates are quantised, or 0 to
+	 * write coordinates at full precision
+	 */
+	public LevelOfDetail(int iTier, float iTolerance, float iQuantum)
+	{
+		mTier = iTier;
+		mTolerance = iTolerance;
+		mQuantum = iQuantum;
+	}
+
+	public int getTier()
+	{
+		return mTier;
+	}
+
+	/**
+	 * Tests whether this is full detail, which is written in the original format.
+	 * @return True iff no simplification or quantisation is applied
+	 */
+	public boolean isFull()
+	{
+		return mTolerance == 0 && mQuantum == 0;
+	}
+
+	public boolean isQuantised()
+	{
+		return mQuantum > 0;
+	}
+
+	public float getQuantum()
+	{
+		return mQuantum;
+	}
+
+	/**
+	 * Quantises a coordinate.
+	 * @param iValue The coordinate
+	 * @return The coordinate in units of the quantum
+	 */
+	public int quantise(float iValue)
+	{
+		return Math.round(iValue / mQuantum);
+	}
+
+	/**
+	 * Chooses the vertices of a polygon to keep at this level of detail.
+	 * @param iVertices The packed vertices (x0,y0,z0 . . . xN,yN,zN)
+	 * @param iConnections The connection on the edge starting at each vertex, or null for a wall
+	 * @return The indices of the vertices to keep, in order
+	 */
+	public int[] simplify(float[] iVertices, Integer[] iConnections)
+	{
+		int lCount = iVertices.length / 3;
+		boolean[] lAnchor = new boolean[lCount];
+		boolean[] lKeep = new boolean[lCount];
+		int lAnchors = 0;
+		for(int li = 0; li < lCount; li++)
+		{
+			if(iConnections[li] != null)
+			{
+				lAnchor[li] = true;
+				lAnchor[(li + 1) % lCount] = true;
+			}
+		}
+		for(int li = 0; li < lCount; li++)
+		{
+			if(lAnchor[li])
+			{
+				lKeep[li] = true;
+				lAnchors++;
+			}
+		}
+
+		if(mTolerance <= 0 || lCount <= 3)
+		{
+			for(int li = 0; li < lCount; li++)
+			{
+				lKeep[li] = true;
+			}
+		}
+		else
+		{
+			//A closed outline needs at least two fixed points to be split into chains
+			if(lAnchors == 0)
+			{
+				lKeep[0] = true;
+			}
+			if(lAnchors < 2)
+			{
+				int lFirst = 0;
+				while(!lKeep[lFirst])
+				{
+					lFirst++;
+				}
+				int lFarthest = lFirst;
+				float lBest = -1;
+				for(int li = 0; li < lCount; li++)
+				{
+					float lDx = iVertices[li * 3] - iVertices[lFirst * 3];
+					float lDy = iVertices[li * 3 + 1] - iVertices[lFirst * 3 + 1];
+					if(lDx * lDx + lDy * lDy > lBest)
+					{
+						lBest = lDx * lDx + lDy * lDy;
+						lFarthest = li;
+					}
+				}
+				lKeep[lFarthest] = true;
+			}
+
+			//Simplify each chain between consecutive fixed points
+			int lStart = 0;
+			while(!lKeep[lStart])
+			{
+				lStart++;
+			}
+			int lFrom = lStart;
+			do
+			{
+				int lTo = (lFrom + 1) % lCount;
+				while(!lKeep[lTo])
+				{
+					lTo = (lTo + 1) % lCount;
+				}
+				simplifyChain(iVertices, lCount, lFrom, lTo, lKeep);
+				lFrom = lTo;
+			}
+			while(lFrom != lStart);
+		}
+
+		//Drop vertices which quantise onto the vertex before them
+		if(isQuantised())
+		{
+			int lPrevious = -1;
+			for(int li = lCount - 1; li >= 0 && lPrevious < 0; li--)
+			{
+				if(lKeep[li])
+				{
+					lPrevious = li;
+				}
+			}
+			for(int li = 0; li < lCount; li++)
+			{
+				if(!lKeep[li])
+				{
+					continue;
+				}
+				if(li != lPrevious && !lAnchor[li]
+						&& quantise(iVertices[li * 3]) == quantise(iVertices[lPrevious * 3])
+						&& quantise(iVertices[li * 3 + 1]) == quantise(iVertices[lPrevious * 3 + 1]))
+				{
+					lKeep[li] = false;
+				}
+				else
+				{
+					lPrevious = li;
+				}
+			}
+		}
+
+		int lKept = 0;
+		for(int li = 0; li < lCount; li++)
+		{
+			if(lKeep[li])
+			{
+				lKept++;
+			}
+		}
+		if(lKept < 3)
+		{
+			//Too coarse for this polygon, so keep it whole
+			lKept = lCount;
+			for(int li = 0; li < lCount; li++)
+			{
+				lKeep[li] = true;
+			}
+		}
+		int[] lIndices = new int[lKept];
+		int lIndex = 0;
+		for(int li = 0; li < lCount; li++)
+		{
+			if(lKeep[li])
+			{
+				lIndices[lIndex++] = li;
+			}
+		}
+		return lIndices;
+	}
+
+	/**
+	 * Douglas-Peucker over the vertices strictly between iFrom and iTo, walking forwards
+	 * around the outline.
+	 */
+	private void simplifyChain(float[] iVertices, int iCount, int iFrom, int iTo, boolean[] oKeep)
+	{
+		int lSteps = (iTo - iFrom + iCount) % iCount;
+		if(lSteps < 2)
+		{
+			return;
+		}
+		float lX0 = iVertices[iFrom * 3];
+		float lY0 = iVertices[iFrom * 3 + 1];
+		float lDx = iVertices[iTo * 3] - lX0;
+		float lDy = iVertices[iTo * 3 + 1] - lY0;
+		float lLength = (float) Math.sqrt(lDx * lDx + lDy * lDy);
+
+		int lWorst = -1;
+		float lWorstDistance = mTolerance;
+		for(int lStep = 1; lStep < lSteps; lStep++)
+		{
+			int li = (iFrom + lStep) % iCount;
+			float lPx = iVertices[li * 3] - lX0;
+			float lPy = iVertices[li * 3 + 1] - lY0;
+			float lDistance;
+			if(lLength == 0)
+			{
+				lDistance = (float) Math.sqrt(lPx * lPx + lPy * lPy);
+			}
+			else
+			{
+				lDistance = Math.abs(lPx * lDy - lPy * lDx) / lLength;
+			}
+			if(lDistance > lWorstDistance)
+			{
+				lWorstDistance = lDistance;
+				lWorst = li;
+			}
+		}
+		if(lWorst >= 0)
+		{
+			oKeep[lWorst] = true;
+			simplifyChain(iVertices, iCount, iFrom, lWorst, oKeep);
+			simplifyChain(iVertices, iCount, lWorst, iTo, oKeep);
+		}
+	}
+
+}
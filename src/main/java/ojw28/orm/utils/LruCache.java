@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache holding a bounded number of entries, which discards the least recently used
+ * entry when it is full. All methods are synchronized.
+ * @author ojw28
+ */
+public class LruCache<K, V> {
+
+	private final LinkedHashMap<K, V> mEntries;
+
+	/**
+	 * Constructor.
+	 * @param iCapacity The largest number of entries to hold
+	 */
+	public LruCache(final int iCapacity)
+	{
+		mEntries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<K, V> iEldest)
+			{
+				return size() > iCapacity;
+			}
+		};
+	}
+
+	/**
+	 * Gets an entry, marking it as the most recently used.
+	 * @param iKey The key
+	 * @return The value, or null if there is no entry for the key
+	 */
+	public synchronized V get(K iKey)
+	{
+		return mEntries.get(iKey);
+	}
+
+	public synchronized void put(K iKey, V iValue)
+	{
+		mEntries.put(iKey, iValue);
+	}
+
+	public synchronized void remove(K iKey)
+	{
+		mEntries.remove(iKey);
+	}
+
+	public synchronized void clear()
+	{
+		mEntries.clear();
+	}
+
+	public synchronized int size()
+	{
+		return mEntries.size();
+	}
+
+}
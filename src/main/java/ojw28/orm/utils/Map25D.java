@@ -17,6 +17,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Random;
 
 import org.w3c.dom.Document;
@@ -39,10 +40,16 @@ public class Map25D {
 	private Hashtable<Integer, FloorPoly> mIndexedPolys = new Hashtable<Integer, FloorPoly>();
 	private ArrayList<Room> mRooms = new ArrayList<Room>();
 	private Hashtable<Integer, Room> mIndexedRooms = new Hashtable<Integer, Room>();
+	private Hashtable<String, Room> mNamedRooms = new Hashtable<String, Room>();
 		
 	private Bounds3D mBounds = new Bounds3D();
 	private float mTotalArea = 0;
 	
+	//Spatial index over the floor polygons, built by compileMap()
+	private PolyGrid<FloorPoly> mGrid;
+	//Index of the room names, built by compileMap()
+	private RoomNameIndex mNameIndex;
+	
 	/**
 	 * Constructor.
 	 */
@@ -89,9 +96,28 @@ public class Map25D {
 		return mFloorPolys;
 	}
 
-	public Room getRoom(String mName)
+	/**
+	 * Gets a room by its exact name. If several rooms share the name then the first one
+	 * added is returned. The map must have been compiled.
+	 * @param iName The room's name
+	 * @return The room, or null if there is no room with that name
+	 */
+	public Room getRoom(String iName)
 	{
-		return mIndexedRooms.get(mName);
+		return mNamedRooms.get(iName);
+	}
+	
+	/**
+	 * Finds rooms whose names match a query, ignoring case. The map must have been compiled.
+	 * @param iQuery The text to search for
+	 * @param iPrefix True to find names which start with the query, false to find names
+	 * which contain the query other than at their start
+	 * @param iLimit The maximum number of rooms to add to oRooms
+	 * @param oRooms Receives the rooms found
+	 */
+	public void searchRooms(String iQuery, boolean iPrefix, int iLimit, List<Room> oRooms)
+	{
+		mNameIndex.search(iQuery, iPrefix, iLimit, oRooms);
 	}
 	
 	public ArrayList<Room> getRooms()
@@ -163,18 +189,56 @@ public class Map25D {
 	}
 	
 	public Element writeToXml(Document iDoc)
+	{
+		return writeToXml(iDoc, LevelOfDetail.TIERS[0]);
+	}
+	
+	/**
+	 * Writes the map at a level of detail. Below full detail the element carries the
+	 * tier and, if coordinates are quantised, the quantum by which they are scaled.
+	 */
+	public Element writeToXml(Document iDoc, LevelOfDetail iLod)
 	{
 		Element lMapElement = iDoc.createElement("Map25D");
 		lMapElement.setAttribute("version", "1.0");
+		if(!iLod.isFull())
+		{
+			lMapElement.setAttribute("lod", ""+iLod.getTier());
+			if(iLod.isQuantised())
+			{
+				lMapElement.setAttribute("quantum", ""+iLod.getQuantum());
+			}
+		}
 		
 		for(Room lRoom : mRooms)
 		{
-			Element lRoomXml = lRoom.writeToXml(iDoc);
+			Element lRoomXml = lRoom.writeToXml(iDoc, iLod);
 			lMapElement.appendChild(lRoomXml);
 		}
 		return lMapElement;
 	}
 	
+	public void writeToBinary(BinaryWriter iWriter) throws IOException
+	{
+		iWriter.writeVarint(mRooms.size());
+		for(Room lRoom : mRooms)
+		{
+			lRoom.writeToBinary(iWriter);
+		}
+	}
+	
+	/**
+	 * Writes the map in the binary encoding at a level of detail below full detail.
+	 */
+	public void writeToBinary(BinaryWriter iWriter, LevelOfDetail iLod) throws IOException
+	{
+		iWriter.writeVarint(mRooms.size());
+		for(Room lRoom : mRooms)
+		{
+			lRoom.writeToBinary(iWriter, iLod);
+		}
+	}
+	
 	public void saveRoomsToFile(String iFile) throws IOException
 	{
 		PrintWriter lOut = new PrintWriter(new FileWriter(iFile));
@@ -196,6 +260,50 @@ public class Map25D {
 		{
 			lPoly.compileConnections();
 		}		
+		mGrid = new PolyGrid<FloorPoly>(mFloorPolys, mBounds);
+		
+		mNamedRooms.clear();
+		for(Room lRoom : mRooms)
+		{
+			if(lRoom.getName() != null && !mNamedRooms.containsKey(lRoom.getName()))
+			{
+				mNamedRooms.put(lRoom.getName(), lRoom);
+			}
+		}
+		mNameIndex = new RoomNameIndex(mRooms);
+	}
+	
+	/**
+	 * Finds the floor polygon containing a point in the (x,y) plane. The map must have
+	 * been compiled.
+	 * @param iX The x coordinate
+	 * @param iY The y coordinate
+	 * @return The floor polygon, or null if the point is not on the map
+	 */
+	public FloorPoly locate(float iX, float iY)
+	{
+		return mGrid.locate(iX, iY);
+	}
+	
+	/**
+	 * The spatial index built by compileMap().
+	 * @return The index
+	 */
+	PolyGrid<FloorPoly> getGrid()
+	{
+		return mGrid;
+	}
+	
+	/**
+	 * Finds the room containing a point in the (x,y) plane. The map must have been compiled.
+	 * @param iX The x coordinate
+	 * @param iY The y coordinate
+	 * @return The room, or null if the point is not on the map
+	 */
+	public Room locateRoom(float iX, float iY)
+	{
+		FloorPoly lPoly = locate(iX, iY);
+		return lPoly == null ? null : lPoly.getContainingRoom();
 	}
 
 	public void loadRoomsFromFile(String iFile) throws IOException
@@ -13,8 +13,18 @@ package ojw28.orm.utils;
 import java.sql.*;
 import java.util.*;
 
+/**
+ * Loads a Map25D from the openroommap database. The rooms and all of the floor polygon
+ * vertices for a map are fetched in a fixed number of ordered queries, and the polygons
+ * and rooms are built in a single pass over the results.
+ * @author ojw28
+ */
 public class MapLoader {
 	
+	private static final Metrics mSubmapMetrics = Metrics.getQuery("map_submap");
+	private static final Metrics mRoomMetrics = Metrics.getQuery("map_rooms");
+	private static final Metrics mVertexMetrics = Metrics.getQuery("map_vertices");
+	
 	public Map25D loadMap(Connection iConnection) throws SQLException
 	{
 		return loadMap(iConnection, null);
@@ -22,133 +32,154 @@ public class MapLoader {
 
 	public Map25D loadSubmap(Connection iConnection, String iSubmap) throws SQLException
 	{		
-		Statement st = iConnection.createStatement();
+		int lSubmapId;
+		long lStartTime = System.nanoTime();
+		int lRows = -1;
+		PreparedStatement st = iConnection.prepareStatement("SELECT submapid FROM submap_table WHERE name = ?");
 		try
 		{			
-			ResultSet res = null;
-			res = st.executeQuery("SELECT (submapid) FROM submap_table WHERE name = '"+iSubmap+"'");
+			st.setString(1, iSubmap);
+			ResultSet res = st.executeQuery();
 			res.next();
-			int lSubmapId = res.getInt(1);
-			st.close();
-			Map25D lMap =  loadMap(iConnection, lSubmapId);			
-			return lMap;
-		}
-		catch (SQLException lE)
-		{
-			throw lE;
+			lSubmapId = res.getInt(1);
+			res.close();
+			lRows = 1;
 		}
 		finally
 		{
 			st.close();
+			mSubmapMetrics.record(lStartTime, lRows);
 		}
+		return loadMap(iConnection, lSubmapId);
+	}
+	
+	/**
+	 * Loads a submap by its id in submap_table.
+	 * @param iConnection The database connection
+	 * @param iSubmapId The submap id
+	 * @return The loaded submap
+	 * @throws SQLException If a database error occurs
+	 */
+	public Map25D loadSubmap(Connection iConnection, int iSubmapId) throws SQLException
+	{
+		return loadMap(iConnection, (Integer) iSubmapId);
 	}
 	
+	/**
+	 * Loads a map using two queries: one for the rooms and one for the vertices of every
+	 * floor polygon in the map, ordered by room, polygon and vertex number. The polygons
+	 * and rooms are then built as the vertex results are streamed.
+	 * @param iDbConnection The database connection
+	 * @param iSubmap The submap to load, or null to load every room
+	 * @return The loaded map
+	 * @throws SQLException If a database error occurs
+	 */
 	private Map25D loadMap(Connection iDbConnection, Integer iSubmap) throws SQLException
-	{				
+	{
 		Map25D lMap = new Map25D();
-		Hashtable<Integer,ArrayList<FloorPoly>> lRoomPolys = new Hashtable<Integer,ArrayList<FloorPoly>>();
-
-		Statement st = iDbConnection.createStatement();
+		Hashtable<Integer,String> lRoomNames = new Hashtable<Integer,String>();
+		Hashtable<Integer,Integer> lRoomAccessLevels = new Hashtable<Integer,Integer>();
+		
+		String lSubmapJoin = iSubmap != null ?
+				" INNER JOIN submappoly_table ON roompoly_table.polyid = submappoly_table.polyid WHERE submapid = ?" : "";
+		
+		long lStartTime = System.nanoTime();
+		int lRows = -1;
+		PreparedStatement lRoomStatement = iDbConnection.prepareStatement(
+				"SELECT DISTINCT room_table.roomid, room_table.name, room_table.accesslevel FROM room_table " +
+				"INNER JOIN roompoly_table ON room_table.roomid = roompoly_table.roomid" + lSubmapJoin);
 		try
 		{
-			ResultSet res = null;
 			if(iSubmap != null)
 			{
-				res = st.executeQuery("SELECT * FROM submappoly_table INNER JOIN roompoly_table ON submappoly_table.polyid = roompoly_table.polyid WHERE submapid = "+iSubmap);
+				lRoomStatement.setInt(1, iSubmap);
 			}
-			else
+			ResultSet res = lRoomStatement.executeQuery();
+			while(res.next())
 			{
-				res = st.executeQuery("SELECT * FROM roompoly_table");	
-			}
-
-			while (res.next()) {
-				int lPolyId = res.getInt("polyid");
 				int lRoomId = res.getInt("roomid");
-				if(!lRoomPolys.containsKey(lRoomId))
-				{
-					lRoomPolys.put(lRoomId, new ArrayList<FloorPoly>());
-				}
-
-				FloorPoly lPoly = loadPoly(iDbConnection, lPolyId);
-				lRoomPolys.get(lRoomId).add(lPoly);
-			}	
-			res.close();
-
-			Enumeration<Integer> lKeys = lRoomPolys.keys();
-			while(lKeys.hasMoreElements())
-			{
-				int lRoomId = lKeys.nextElement();
-				ArrayList<FloorPoly> lChildren = lRoomPolys.get(lRoomId);
-				FloorPoly[] lChildrenArray = new FloorPoly[lChildren.size()];
-				lChildren.toArray(lChildrenArray);
-				lMap.addRoom(loadRoom(iDbConnection, lMap, lRoomId, lChildrenArray));
+				lRoomNames.put(lRoomId, res.getString("name"));
+				lRoomAccessLevels.put(lRoomId, res.getInt("accesslevel"));
 			}
-
-			lMap.compileMap();
-		}
-		finally
-		{
-			st.close();
-		}
-
-		return lMap;
-	}
-	
-	private Room loadRoom(Connection conn, Map25D iParentMap, int iRoomId, FloorPoly[] iChildren) throws SQLException
-	{
-		Statement st = conn.createStatement();
-		try
-		{
-			ResultSet res = st.executeQuery("SELECT * FROM room_table WHERE roomid = "+iRoomId);
-			res.next();
-			String lRoomName = res.getString("name");
-			int lAccessLevel = res.getInt("accesslevel");
-
-			Room lRoom = new Room(iRoomId, lRoomName, lAccessLevel,iChildren);
-			lRoom.setParentMap(iParentMap);
-			return lRoom;
+			res.close();
+			lRows = lRoomNames.size();
 		}
 		finally
 		{
-			st.close();
+			lRoomStatement.close();
+			mRoomMetrics.record(lStartTime, lRows);
 		}
-	}
-	
-	private FloorPoly loadPoly(Connection conn, int iPolyId) throws SQLException
-	{
-		Statement st = conn.createStatement();
+		
+		lStartTime = System.nanoTime();
+		lRows = -1;
+		PreparedStatement lVertexStatement = iDbConnection.prepareStatement(
+				"SELECT roompoly_table.roomid, floorpoly_table.polyid, x, y, z, edgetarget FROM roompoly_table " +
+				"INNER JOIN floorpoly_table ON roompoly_table.polyid = floorpoly_table.polyid" + lSubmapJoin +
+				" ORDER BY roompoly_table.roomid, floorpoly_table.polyid, vertexnum");
 		try
 		{
-			ResultSet res = st.executeQuery("SELECT COUNT(*) FROM floorpoly_table WHERE polyid = "+iPolyId);
-			res.next();
-			int lVertexCount = res.getInt(1);
-			float[] lVertices = new float[lVertexCount * 3];
-			Integer[] lConnections = new Integer[lVertexCount];
-			res.close();
-
-			res = st.executeQuery("SELECT * FROM floorpoly_table WHERE polyid = "+iPolyId+" ORDER BY vertexnum");
-			for(int li = 0; li < lVertices.length; li+=3)
+			if(iSubmap != null)
 			{
-				res.next();
-				lVertices[li] = res.getFloat("x");
-				lVertices[li + 1] = res.getFloat("y");
-				lVertices[li + 2] = res.getFloat("z");
-				int lEdgeTarget = res.getInt("edgetarget");
-				boolean lIsConnection = !res.wasNull();
-				if(lIsConnection)
+				lVertexStatement.setInt(1, iSubmap);
+			}
+			ResultSet res = lVertexStatement.executeQuery();
+			
+			ArrayList<FloorPoly> lRoomPolys = new ArrayList<FloorPoly>();
+			float[] lVertices = new float[48];
+			ArrayList<Integer> lConnections = new ArrayList<Integer>();
+			int lCurrentRoom = -1;
+			int lCurrentPoly = -1;
+			int lRowCount = 0;
+			boolean lHasRow = res.next();
+			while(lHasRow)
+			{
+				int lRoomId = res.getInt(1);
+				int lPolyId = res.getInt(2);
+				if(lConnections.size() * 3 == lVertices.length)
 				{
-					lConnections[li/3] = lEdgeTarget;
+					lVertices = Arrays.copyOf(lVertices, lVertices.length * 2);
+				}
+				int lIndex = lConnections.size() * 3;
+				lVertices[lIndex] = res.getFloat(3);
+				lVertices[lIndex + 1] = res.getFloat(4);
+				lVertices[lIndex + 2] = res.getFloat(5);
+				int lEdgeTarget = res.getInt(6);
+				lConnections.add(res.wasNull() ? null : lEdgeTarget);
+				lCurrentRoom = lRoomId;
+				lCurrentPoly = lPolyId;
+				lRowCount++;
+				
+				lHasRow = res.next();
+				if(!lHasRow || res.getInt(2) != lCurrentPoly)
+				{
+					//End of the current polygon's vertices
+					Integer[] lConnectionArray = new Integer[lConnections.size()];
+					lConnections.toArray(lConnectionArray);
+					lRoomPolys.add(new FloorPoly(lCurrentPoly, Arrays.copyOf(lVertices, lConnectionArray.length * 3), lConnectionArray));
+					lConnections.clear();
+				}
+				if(!lHasRow || res.getInt(1) != lCurrentRoom)
+				{
+					//End of the current room's polygons
+					FloorPoly[] lChildrenArray = new FloorPoly[lRoomPolys.size()];
+					lRoomPolys.toArray(lChildrenArray);
+					Room lRoom = new Room(lCurrentRoom, lRoomNames.get(lCurrentRoom), lRoomAccessLevels.get(lCurrentRoom), lChildrenArray);
+					lRoom.setParentMap(lMap);
+					lMap.addRoom(lRoom);
+					lRoomPolys.clear();
 				}
 			}
 			res.close();
-
-			FloorPoly lPoly = new FloorPoly(iPolyId, lVertices, lConnections);
-			return lPoly;
+			lRows = lRowCount;
 		}
 		finally
 		{
-			st.close();
+			lVertexStatement.close();
+			mVertexMetrics.record(lStartTime, lRows);
 		}
+		
+		lMap.compileMap();
+		return lMap;
 	}
 	
 	@SuppressWarnings("unused")
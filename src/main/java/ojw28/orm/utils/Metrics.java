@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latencies, response sizes, rows fetched and errors of a route or of a database
+ * query. Each route and query has one instance, registered once with getRoute or getQuery
+ * and kept by its caller, so that recording into it involves no lookup and allocates
+ * nothing.
+ *
+ * While a route is being served, the thread serving it holds the route's metrics as the
+ * current route, to which the rows fetched by queries and the bytes written by the
+ * response writers are also added.
+ * @author ojw28
+ */
+public class Metrics {
+
+	private static final List<Metrics> mRoutes = new CopyOnWriteArrayList<Metrics>();
+	private static final List<Metrics> mQueries = new CopyOnWriteArrayList<Metrics>();
+	private static final ThreadLocal<Metrics> mCurrentRoute = new ThreadLocal<Metrics>();
+
+	private final String mName;
+	//In microseconds
+	private final Histogram mLatencies = new Histogram();
+	private final AtomicLong mBytes = new AtomicLong();
+	private final AtomicLong mRows = new AtomicLong();
+	private final AtomicLong mErrors = new AtomicLong();
+
+	private Metrics(String iName)
+	{
+		mName = iName;
+	}
+
+	/**
+	 * Gets the metrics of a route, registering them if this is the first request for them.
+	 * @param iName The route, such as /items/getitemsfloor, or /tiles/* for a prefix route
+	 * @return The metrics
+	 */
+	public static Metrics getRoute(String iName)
+	{
+		return get(mRoutes, iName);
+	}
+
+	/**
+	 * Gets the metrics of a database query, registering them if this is the first request
+	 * for them.
+	 * @param iName The name of the query
+	 * @return The metrics
+	 */
+	public static Metrics getQuery(String iName)
+	{
+		return get(mQueries, iName);
+	}
+
+	private static synchronized Metrics get(List<Metrics> iList, String iName)
+	{
+		for(Metrics lMetrics : iList)
+		{
+			if(lMetrics.mName.equals(iName))
+			{
+				return lMetrics;
+			}
+		}
+		Metrics lMetrics = new Metrics(iName);
+		iList.add(lMetrics);
+		return lMetrics;
+	}
+
+	/**
+	 * The metrics of every route, in the order in which they were registered.
+	 * @return The metrics, which must not be modified
+	 */
+	public static List<Metrics> getRoutes()
+	{
+		return mRoutes;
+	}
+
+	/**
+	 * The metrics of every query, in the order in which they were registered.
+	 * @return The metrics, which must not be modified
+	 */
+	public static List<Metrics> getQueries()
+	{
+		return mQueries;
+	}
+
+	/**
+	 * Sets the route being served by the calling thread.
+	 * @param iRoute The route's metrics, or null once it has been served
+	 */
+	public static void setCurrentRoute(Metrics iRoute)
+	{
+		if(iRoute == null)
+		{
+			mCurrentRoute.remove();
+		}
+		else
+		{
+			mCurrentRoute.set(iRoute);
+		}
+	}
+
+	/**
+	 * The route being served by the calling thread.
+	 * @return The route's metrics, or null if the thread is not serving a route
+	 */
+	public static Metrics getCurrentRoute()
+	{
+		return mCurrentRoute.get();
+	}
+
+	/**
+	 * Records a request or query which has finished. The rows are also added to the
+	 * current route if this is a query.
+	 * @param iStartTime The value of System.nanoTime when it started
+	 * @param iRows The number of rows fetched, or -1 if it failed
+	 */
+	public void record(long iStartTime, int iRows)
+	{
+		mLatencies.record((System.nanoTime() - iStartTime) / 1000);
+		if(iRows < 0)
+		{
+			mErrors.incrementAndGet();
+			return;
+		}
+		mRows.addAndGet(iRows);
+		Metrics lRoute = mCurrentRoute.get();
+		if(lRoute != null && lRoute != this)
+		{
+			lRoute.mRows.addAndGet(iRows);
+		}
+	}
+
+	/**
+	 * Adds to the bytes written in response to a route.
+	 * @param iBytes The number of bytes
+	 */
+	public void addBytes(long iBytes)
+	{
+		mBytes.addAndGet(iBytes);
+	}
+
+	/**
+	 * Records an error which happened without the request or query being started.
+	 */
+	public void recordError()
+	{
+		mErrors.incrementAndGet();
+	}
+
+	public String getName()
+	{
+		return mName;
+	}
+
+	/**
+	 * The latencies recorded, in microseconds.
+	 * @return The histogram
+	 */
+	public Histogram getLatencies()
+	{
+		return mLatencies;
+	}
+
+	public long getBytes()
+	{
+		return mBytes.get();
+	}
+
+	public long getRows()
+	{
+		return mRows.get();
+	}
+
+	public long getErrors()
+	{
+		return mErrors.get();
+	}
+
+}
@@ -94,13 +94,27 @@ public class PlanarPoly {
 		}
 		else
 		{
-			float[] lTop = new float[] {mVertices[0] - iPosition[0],mVertices[1] - iPosition[1],mVertices[2]};
-			float[] lBot = new float[] {0,0,1};
-			float lU = (float) (SlocMath.dotProduct(mNormalVector, lTop)/SlocMath.dotProduct(mNormalVector, lBot));
+			//The dot products of the normal with (v0 - p) and with (0,0,1), written out
+			//so that no temporary arrays are needed
+			double lTop = 0;
+			lTop += mNormalVector[0]*(mVertices[0] - iPosition[0]);
+			lTop += mNormalVector[1]*(mVertices[1] - iPosition[1]);
+			lTop += mNormalVector[2]*mVertices[2];
+			double lBot = mNormalVector[2];
+			float lU = (float) (lTop/lBot);
 			return lU;
 		}
 	}
 	
+	/**
+	 * Tests whether the polygon is horizontal, in which case every vertex has the same z.
+	 * @return True iff the polygon is flat
+	 */
+	public boolean isFlat()
+	{
+		return mIsFlat;
+	}
+	
 	/**
 	 * The centroid of the polygon.
 	 * @return The centroid (x,y,z)
@@ -165,15 +179,26 @@ public class PlanarPoly {
 	 * @return True iff (x,y) lies on the polygon's surface in the x,y plane
 	 */
 	public boolean isInside2D(float[] iPosition)
+	{
+		return isInside2D(iPosition[0], iPosition[1]);
+	}
+
+	/**
+	 * Tests whether the specified position (x,y) lies on the polygon's surface in the x,y plane
+	 * @param iX The x coordinate
+	 * @param iY The y coordinate
+	 * @return True iff (x,y) lies on the polygon's surface in the x,y plane
+	 */
+	public boolean isInside2D(float iX, float iY)
 	{
 		int lCrossings = 0;
 		for(int li = 0; li < mVertices.length - 3; li+=3)
 		{
-			lCrossings += pointCrossingsForLine(iPosition,
+			lCrossings += pointCrossingsForLine(iX, iY,
 					mVertices[li],mVertices[li + 1],
 					mVertices[li + 3],mVertices[li + 4]);
 		}
-		lCrossings += pointCrossingsForLine(iPosition,
+		lCrossings += pointCrossingsForLine(iX, iY,
 				mVertices[mVertices.length - 3],mVertices[mVertices.length - 2],
 				mVertices[0],mVertices[1]);
 		return lCrossings % 2 == 1;
@@ -181,21 +206,21 @@ public class PlanarPoly {
 
     /**
      * Calculates the number of times the line from (x0,y0) to (x1,y1)
-     * crosses the ray extending to the right from (iPosition[0],iPosition[1]).
+     * crosses the ray extending to the right from (iX,iY).
      * If the point lies on the line, then no crossings are recorded.
      * +1 is returned for a crossing where the Y coordinate is increasing
      * -1 is returned for a crossing where the Y coordinate is decreasing
      */
-    private int pointCrossingsForLine(float[] iPosition,
+    private int pointCrossingsForLine(float iX, float iY,
                                             double x0, double y0,
                                             double x1, double y1)
     {
-        if (iPosition[1] <  y0 && iPosition[1] <  y1) return 0;
-        if (iPosition[1] >= y0 && iPosition[1] >= y1) return 0;
-        if (iPosition[0] >= x0 && iPosition[0] >= x1) return 0;
-        if (iPosition[0] <  x0 && iPosition[0] <  x1) return 1;
-        double xintercept = x0 + (iPosition[1] - y0) * (x1 - x0) / (y1 - y0);
-        if (iPosition[0] >= xintercept) return 0;
+        if (iY <  y0 && iY <  y1) return 0;
+        if (iY >= y0 && iY >= y1) return 0;
+        if (iX >= x0 && iX >= x1) return 0;
+        if (iX <  x0 && iX <  x1) return 1;
+        double xintercept = x0 + (iY - y0) * (x1 - x0) / (y1 - y0);
+        if (iX >= xintercept) return 0;
         return 1;
     }
     
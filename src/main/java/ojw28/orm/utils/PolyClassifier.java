@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Classifies many points at once by the room they fall in. The edges, bounds and room
+ * ids of a map's floor polygons are copied into flat arrays when the classifier is
+ * built, so classifying a point walks primitive arrays only and allocates nothing. The
+ * containment rule is the same as PlanarPoly.isInside2D, and where polygons overlap the
+ * first in map order wins, as with Map25D.locate.
+ * @author ojw28
+ */
+public class PolyClassifier {
+
+	//The room id returned for a point which is not in any room
+	public static final int NO_ROOM = -1;
+
+	//The number of points below which a task is not split further
+	private static final int SPLIT_THRESHOLD = 4096;
+
+	//The threads which classify points in parallel, created when first needed and shut
+	//down with the servlet
+	private static ForkJoinPool mPool;
+
+	private final int[] mCellStart;
+	private final int[] mCellPolys;
+	private final PolyGrid<FloorPoly> mGrid;
+	//(minX,minY,maxX,maxY) for each polygon
+	private final float[] mPolyBounds;
+	//The edges of polygon p are mEdges[4*mEdgeStart[p]] .. mEdges[4*mEdgeStart[p+1]-1], as (x0,y0,x1,y1)
+	private final int[] mEdgeStart;
+	private final float[] mEdges;
+	private final int[] mRoomIds;
+
+	/**
+	 * Constructor.
+	 * @param iMap The map, which must have been compiled
+	 */
+	public PolyClassifier(Map25D iMap)
+	{
+		ArrayList<FloorPoly> lPolys = iMap.getFloorPolys();
+		mGrid = iMap.getGrid();
+		mCellStart = mGrid.getCellStart();
+		mCellPolys = mGrid.getCellPolys();
+
+		mPolyBounds = new float[lPolys.size() * 4];
+		mEdgeStart = new int[lPolys.size() + 1];
+		mRoomIds = new int[lPolys.size()];
+		for(int li = 0; li < lPolys.size(); li++)
+		{
+			mEdgeStart[li + 1] = mEdgeStart[li] + lPolys.get(li).getVertices().length / 3;
+		}
+		mEdges = new float[mEdgeStart[lPolys.size()] * 4];
+
+		for(int li = 0; li < lPolys.size(); li++)
+		{
+			FloorPoly lPoly = lPolys.get(li);
+			Bounds3D lBounds = lPoly.getBounds();
+			mPolyBounds[li * 4] = lBounds.getMinX();
+			mPolyBounds[li * 4 + 1] = lBounds.getMinY();
+			mPolyBounds[li * 4 + 2] = lBounds.getMaxX();
+			mPolyBounds[li * 4 + 3] = lBounds.getMaxY();
+			mRoomIds[li] = lPoly.getContainingRoom().getUid();
+
+			float[] lVertices = lPoly.getVertices();
+			int lEdge = mEdgeStart[li] * 4;
+			for(int lj = 0; lj < lVertices.length; lj += 3)
+			{
+				int lNext = (lj + 3) % lVertices.length;
+				mEdges[lEdge++] = lVertices[lj];
+				mEdges[lEdge++] = lVertices[lj + 1];
+				mEdges[lEdge++] = lVertices[lNext];
+				mEdges[lEdge++] = lVertices[lNext + 1];
+			}
+		}
+	}
+
+	/**
+	 * Classifies a range of points.
+	 * @param iXs The x coordinates
+	 * @param iYs The y coordinates
+	 * @param iStart The index of the first point
+	 * @param iEnd One past the index of the last point
+	 * @param oRoomIds Receives the room id of each point, or NO_ROOM, at the point's index
+	 */
+	public void classify(float[] iXs, float[] iYs, int iStart, int iEnd, int[] oRoomIds)
+	{
+		for(int li = iStart; li < iEnd; li++)
+		{
+			oRoomIds[li] = classify(iXs[li], iYs[li]);
+		}
+	}
+
+	/**
+	 * Classifies a single point.
+	 * @return The room id, or NO_ROOM
+	 */
+	public int classify(float iX, float iY)
+	{
+		int lCell = mGrid.cellOf(iX, iY);
+		if(lCell < 0)
+		{
+			return NO_ROOM;
+		}
+		for(int li = mCellStart[lCell]; li < mCellStart[lCell + 1]; li++)
+		{
+			int lPoly = mCellPolys[li];
+			int lB = lPoly * 4;
+			if(iX >= mPolyBounds[lB] && iY >= mPolyBounds[lB + 1]
+					&& iX <= mPolyBounds[lB + 2] && iY <= mPolyBounds[lB + 3]
+					&& isInside(lPoly, iX, iY))
+			{
+				return mRoomIds[lPoly];
+			}
+		}
+		return NO_ROOM;
+	}
+
+	/**
+	 * The crossing test of PlanarPoly.isInside2D over the packed edges of a polygon.
+	 */
+	private boolean isInside(int iPoly, float iX, float iY)
+	{
+		int lCrossings = 0;
+		for(int li = mEdgeStart[iPoly] * 4; li < mEdgeStart[iPoly + 1] * 4; li += 4)
+		{
+			double x0 = mEdges[li];
+			double y0 = mEdges[li + 1];
+			double x1 = mEdges[li + 2];
+			double y1 = mEdges[li + 3];
+			if (iY <  y0 && iY <  y1) continue;
+			if (iY >= y0 && iY >= y1) continue;
+			if (iX >= x0 && iX >= x1) continue;
+			if (iX <  x0 && iX <  x1) { lCrossings++; continue; }
+			double xintercept = x0 + (iY - y0) * (x1 - x0) / (y1 - y0);
+			if (iX < xintercept) lCrossings++;
+		}
+		return lCrossings % 2 == 1;
+	}
+
+	/**
+	 * Classifies points spread over several floors. The points are grouped by floor and,
+	 * if requested, the groups (and large groups in pieces) are classified in parallel.
+	 * @param iFloors The classifier for each floor, indexed by floor
+	 * @param iXs The x coordinates
+	 * @param iYs The y coordinates
+	 * @param iPointFloors The floor of each point. Points on unknown floors are given NO_ROOM
+	 * @param iParallel True if the points should be classified in parallel
+	 * @return The room id of each point, or NO_ROOM
+	 */
+	public static int[] classify(PolyClassifier[] iFloors, float[] iXs, float[] iYs, int[] iPointFloors, boolean iParallel)
+	{
+		int lCount = iXs.length;
+
+		//Counting sort of the point indices by floor, so that each floor's points are
+		//contiguous and can be classified against a single set of arrays
+		int[] lFloorStart = new int[iFloors.length + 1];
+		for(int li = 0; li < lCount; li++)
+		{
+			int lFloor = iPointFloors[li];
+			if(lFloor >= 0 && lFloor < iFloors.length)
+			{
+				lFloorStart[lFloor + 1]++;
+			}
+		}
+		for(int li = 1; li < lFloorStart.length; li++)
+		{
+			lFloorStart[li] += lFloorStart[li - 1];
+		}
+		int lSorted = lFloorStart[iFloors.length];
+		int[] lOrder = new int[lSorted];
+		float[] lXs = new float[lSorted];
+		float[] lYs = new float[lSorted];
+		int[] lFill = lFloorStart.clone();
+		for(int li = 0; li < lCount; li++)
+		{
+			int lFloor = iPointFloors[li];
+			if(lFloor >= 0 && lFloor < iFloors.length)
+			{
+				int lIndex = lFill[lFloor]++;
+				lOrder[lIndex] = li;
+				lXs[lIndex] = iXs[li];
+				lYs[lIndex] = iYs[li];
+			}
+		}
+
+		int[] lSortedRooms = new int[lSorted];
+		final ClassifyTask[] lTasks = new ClassifyTask[iFloors.length];
+		for(int lFloor = 0; lFloor < iFloors.length; lFloor++)
+		{
+			lTasks[lFloor] = new ClassifyTask(iFloors[lFloor], lXs, lYs,
+					lFloorStart[lFloor], lFloorStart[lFloor + 1], lSortedRooms);
+		}
+		if(iParallel)
+		{
+			getPool().invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				protected void compute()
+				{
+					invokeAll(lTasks);
+				}
+			});
+		}
+		else
+		{
+			for(ClassifyTask lTask : lTasks)
+			{
+				lTask.classifySequentially();
+			}
+		}
+
+		int[] lRooms = new int[lCount];
+		Arrays.fill(lRooms, NO_ROOM);
+		for(int li = 0; li < lSorted; li++)
+		{
+			lRooms[lOrder[li]] = lSortedRooms[li];
+		}
+		return lRooms;
+	}
+
+	private static synchronized ForkJoinPool getPool()
+	{
+		if(mPool == null)
+		{
+			mPool = new ForkJoinPool();
+		}
+		return mPool;
+	}
+
+	/**
+	 * Stops the threads which classify points in parallel. They are started again by the
+	 * next parallel classification.
+	 */
+	public static synchronized void shutdown()
+	{
+		if(mPool != null)
+		{
+			mPool.shutdownNow();
+			mPool = null;
+		}
+	}
+
+	/**
+	 * Classifies a contiguous range of points against one floor, splitting large ranges.
+	 */
+	private static class ClassifyTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final PolyClassifier mClassifier;
+		private final float[] mXs;
+		private final float[] mYs;
+		private final int mStart;
+		private final int mEnd;
+		private final int[] mRoomIds;
+
+		private ClassifyTask(PolyClassifier iClassifier, float[] iXs, float[] iYs, int iStart, int iEnd, int[] oRoomIds)
+		{
+			mClassifier = iClassifier;
+			mXs = iXs;
+			mYs = iYs;
+			mStart = iStart;
+			mEnd = iEnd;
+			mRoomIds = oRoomIds;
+		}
+
+		protected void compute()
+		{
+			if(mEnd - mStart <= SPLIT_THRESHOLD)
+			{
+				classifySequentially();
+				return;
+			}
+			int lMid = (mStart + mEnd) >>> 1;
+			invokeAll(new ClassifyTask(mClassifier, mXs, mYs, mStart, lMid, mRoomIds),
+					new ClassifyTask(mClassifier, mXs, mYs, lMid, mEnd, mRoomIds));
+		}
+
+		private void classifySequentially()
+		{
+			mClassifier.classify(mXs, mYs, mStart, mEnd, mRoomIds);
+		}
+	}
+
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import java.util.List;
+
+/**
+ * A uniform grid over the (x,y) bounds of a set of polygons, used to find the polygon
+ * containing a point without testing every polygon. Each cell lists the polygons whose
+ * bounds overlap it, so a lookup only tests the few polygons near the point. The cell
+ * lists are held in a single array, with a second array of offsets into it.
+ * @author ojw28
+ */
+public class PolyGrid<T extends PlanarPoly> {
+
+	//The average number of polygons per cell that the grid is sized for
+	private static final float POLYS_PER_CELL = 1.0f;
+
+	private final List<T> mPolys;
+	private final float mMinX;
+	private final float mMinY;
+	private final float mCellWidth;
+	private final float mCellHeight;
+	private final int mColumns;
+	private final int mRows;
+	//The polygons overlapping cell c are mCellPolys[mCellStart[c]] .. mCellPolys[mCellStart[c+1]-1]
+	private final int[] mCellStart;
+	private final int[] mCellPolys;
+
+	/**
+	 * Constructor.
+	 * @param iPolys The polygons to index. The list must not be modified afterwards
+	 * @param iBounds Bounds enclosing every polygon
+	 */
+	public PolyGrid(List<T> iPolys, Bounds3D iBounds)
+	{
+		mPolys = iPolys;
+		mMinX = iBounds.getMinX();
+		mMinY = iBounds.getMinY();
+		float lWidth = Math.max(iBounds.getMaxX() - mMinX, Float.MIN_NORMAL);
+		float lHeight = Math.max(iBounds.getMaxY() - mMinY, Float.MIN_NORMAL);
+
+		//Choose roughly square cells, with about POLYS_PER_CELL polygons per cell
+		float lCellSize = (float) Math.sqrt(lWidth * lHeight * POLYS_PER_CELL / Math.max(iPolys.size(), 1));
+		mColumns = Math.max(1, Math.min(1024, (int) Math.ceil(lWidth / lCellSize)));
+		mRows = Math.max(1, Math.min(1024, (int) Math.ceil(lHeight / lCellSize)));
+		mCellWidth = lWidth / mColumns;
+		mCellHeight = lHeight / mRows;
+
+		//Count the polygons overlapping each cell, then fill in the lists
+		mCellStart = new int[mColumns * mRows + 1];
+		for(T lPoly : iPolys)
+		{
+			Bounds3D lBounds = lPoly.getBounds();
+			for(int lRow = row(lBounds.getMinY()); lRow <= row(lBounds.getMaxY()); lRow++)
+			{
+				for(int lColumn = column(lBounds.getMinX()); lColumn <= column(lBounds.getMaxX()); lColumn++)
+				{
+					mCellStart[lRow * mColumns + lColumn + 1]++;
+				}
+			}
+		}
+		for(int li = 1; li < mCellStart.length; li++)
+		{
+			mCellStart[li] += mCellStart[li - 1];
+		}
+		mCellPolys = new int[mCellStart[mCellStart.length - 1]];
+		int[] lFill = new int[mColumns * mRows];
+		for(int lIndex = 0; lIndex < iPolys.size(); lIndex++)
+		{
+			Bounds3D lBounds = iPolys.get(lIndex).getBounds();
+			for(int lRow = row(lBounds.getMinY()); lRow <= row(lBounds.getMaxY()); lRow++)
+			{
+				for(int lColumn = column(lBounds.getMinX()); lColumn <= column(lBounds.getMaxX()); lColumn++)
+				{
+					int lCell = lRow * mColumns + lColumn;
+					mCellPolys[mCellStart[lCell] + lFill[lCell]++] = lIndex;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the polygon containing a point. If several polygons contain the point then
+	 * the one which comes first in the list passed to the constructor is returned.
+	 * @param iX The x coordinate
+	 * @param iY The y coordinate
+	 * @return The polygon, or null if the point is outside every polygon
+	 */
+	public T locate(float iX, float iY)
+	{
+		int lCell = cellOf(iX, iY);
+		if(lCell < 0)
+		{
+			return null;
+		}
+		for(int li = mCellStart[lCell]; li < mCellStart[lCell + 1]; li++)
+		{
+			T lPoly = mPolys.get(mCellPolys[li]);
+			Bounds3D lBounds = lPoly.getBounds();
+			if(iX >= lBounds.getMinX() && iX <= lBounds.getMaxX()
+					&& iY >= lBounds.getMinY() && iY <= lBounds.getMaxY()
+					&& lPoly.isInside2D(iX, iY))
+			{
+				return lPoly;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the cell containing a point.
+	 * @param iX The x coordinate
+	 * @param iY The y coordinate
+	 * @return The cell index, or -1 if the point is outside the grid
+	 */
+	public int cellOf(float iX, float iY)
+	{
+		if(iX < mMinX || iY < mMinY || iX > mMinX + mCellWidth * mColumns || iY > mMinY + mCellHeight * mRows)
+		{
+			return -1;
+		}
+		return row(iY) * mColumns + column(iX);
+	}
+
+	/**
+	 * The offsets of each cell's list in getCellPolys(). The polygons overlapping cell c
+	 * are at indices getCellStart()[c] to getCellStart()[c+1]-1.
+	 * @return The offsets, which must not be modified
+	 */
+	public int[] getCellStart()
+	{
+		return mCellStart;
+	}
+
+	/**
+	 * The concatenated cell lists, as indices into the polygon list.
+	 * @return The lists, which must not be modified
+	 */
+	public int[] getCellPolys()
+	{
+		return mCellPolys;
+	}
+
+	private int column(float iX)
+	{
+		return Math.max(0, Math.min(mColumns - 1, (int) ((iX - mMinX) / mCellWidth)));
+	}
+
+	private int row(float iY)
+	{
+		return Math.max(0, Math.min(mRows - 1, (int) ((iY - mMinY) / mCellHeight)));
+	}
+
+}
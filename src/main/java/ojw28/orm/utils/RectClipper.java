@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import java.util.Arrays;
+
+/**
+ * Clips polygon outlines in the (x,y) plane to an axis-aligned rectangle, using the
+ * Sutherland-Hodgman algorithm. Each edge of the outline carries a kind, which is kept
+ * for the parts of the edge inside the rectangle; edges introduced along the rectangle's
+ * sides are given EDGE_CLIP. A clipper reuses its buffers between calls, so it must
+ * not be shared between threads.
+ * @author ojw28
+ */
+public class RectClipper {
+
+	//The kind of a wall edge
+	public static final int EDGE_WALL = 0;
+	//The kind of an edge running along the clip rectangle
+	public static final int EDGE_CLIP = 1;
+	//Connector edges have the kind EDGE_CONNECTOR + the uid of the target polygon
+	public static final int EDGE_CONNECTOR = 2;
+
+	private float[] mXs;
+	private float[] mYs;
+	private int[] mKinds;
+	private int mCount;
+
+	//Scratch buffers for the output of each clipping stage
+	private float[] mNextXs = new float[16];
+	private float[] mNextYs = new float[16];
+	private int[] mNextKinds = new int[16];
+
+	/**
+	 * Clips the outline of a floor polygon. The result is read with getCount(), getX(),
+	 * getY() and getKind(), and is valid until the next call.
+	 * @param iPoly The polygon
+	 * @return The number of vertices in the clipped outline, which is less than 3 if
+	 * nothing of the polygon lies inside the rectangle
+	 */
+	public int clip(FloorPoly iPoly, float iMinX, float iMinY, float iMaxX, float iMaxY)
+	{
+		float[] lVertices = iPoly.getVertices();
+		int lCount = lVertices.length / 3;
+		if(mXs == null || mXs.length < lCount)
+		{
+			mXs = new float[Math.max(16, lCount * 2)];
+			mYs = new float[mXs.length];
+			mKinds = new int[mXs.length];
+		}
+		for(int li = 0; li < lCount; li++)
+		{
+			mXs[li] = lVertices[li * 3];
+			mYs[li] = lVertices[li * 3 + 1];
+			Integer lTarget = iPoly.getConnectionId(li);
+			mKinds[li] = lTarget == null ? EDGE_WALL : EDGE_CONNECTOR + lTarget;
+		}
+		mCount = lCount;
+
+		clipStage(0, iMinX, 1);
+		clipStage(0, iMaxX, -1);
+		clipStage(1, iMinY, 1);
+		clipStage(1, iMaxY, -1);
+		return mCount;
+	}
+
+	public int getCount()
+	{
+		return mCount;
+	}
+
+	public float getX(int iIndex)
+	{
+		return mXs[iIndex];
+	}
+
+	public float getY(int iIndex)
+	{
+		return mYs[iIndex];
+	}
+
+	/**
+	 * The kind of the edge from a vertex to the next.
+	 * @param iIndex The index of the vertex
+	 * @return The edge kind
+	 */
+	public int getKind(int iIndex)
+	{
+		return mKinds[iIndex];
+	}
+
+	/**
+	 * Clips the current outline against one side of the rectangle.
+	 * @param iAxis 0 to clip in x, 1 to clip in y
+	 * @param iBound The position of the side
+	 * @param iSign 1 to keep the coordinates above iBound, -1 to keep those below
+	 */
+	private void clipStage(int iAxis, float iBound, int iSign)
+	{
+		if(mCount == 0)
+		{
+			return;
+		}
+		int lOut = 0;
+		int lPrevious = mCount - 1;
+		for(int li = 0; li < mCount; li++)
+		{
+			boolean lInside = inside(li, iAxis, iBound, iSign);
+			boolean lPreviousInside = inside(lPrevious, iAxis, iBound, iSign);
+			if(lOut + 2 > mNextXs.length)
+			{
+				grow();
+			}
+			if(lInside)
+			{
+				if(!lPreviousInside)
+				{
+					//Entering: the remainder of the previous edge keeps its kind
+					intersect(lPrevious, li, iAxis, iBound, lOut, mKinds[lPrevious]);
+					lOut++;
+				}
+				mNextXs[lOut] = mXs[li];
+				mNextYs[lOut] = mYs[li];
+				mNextKinds[lOut] = mKinds[li];
+				lOut++;
+			}
+			else if(lPreviousInside)
+			{
+				//Leaving: the outline follows the side until it re-enters
+				intersect(lPrevious, li, iAxis, iBound, lOut, EDGE_CLIP);
+				lOut++;
+			}
+			lPrevious = li;
+		}
+
+		float[] lXs = mXs;
+		float[] lYs = mYs;
+		int[] lKinds = mKinds;
+		mXs = mNextXs;
+		mYs = mNextYs;
+		mKinds = mNextKinds;
+		mNextXs = lXs;
+		mNextYs = lYs;
+		mNextKinds = lKinds;
+		mCount = lOut;
+	}
+
+	private boolean inside(int iIndex, int iAxis, float iBound, int iSign)
+	{
+		float lValue = iAxis == 0 ? mXs[iIndex] : mYs[iIndex];
+		return iSign > 0 ? lValue >= iBound : lValue <= iBound;
+	}
+
+	private void intersect(int iFrom, int iTo, int iAxis, float iBound, int iOut, int iKind)
+	{
+		float lX0 = mXs[iFrom];
+		float lY0 = mYs[iFrom];
+		float lX1 = mXs[iTo];
+		float lY1 = mYs[iTo];
+		if(iAxis == 0)
+		{
+			mNextXs[iOut] = iBound;
+			mNextYs[iOut] = lY0 + (lY1 - lY0) * (iBound - lX0) / (lX1 - lX0);
+		}
+		else
+		{
+			mNextXs[iOut] = lX0 + (lX1 - lX0) * (iBound - lY0) / (lY1 - lY0);
+			mNextYs[iOut] = iBound;
+		}
+		mNextKinds[iOut] = iKind;
+	}
+
+	private void grow()
+	{
+		int lLength = mNextXs.length * 2;
+		mNextXs = Arrays.copyOf(mNextXs, lLength);
+		mNextYs = Arrays.copyOf(mNextYs, lLength);
+		mNextKinds = Arrays.copyOf(mNextKinds, lLength);
+	}
+
+}
@@ -68,6 +68,11 @@ public class Room {
 	}
 	
 	public Element writeToXml(Document iDoc)
+	{
+		return writeToXml(iDoc, LevelOfDetail.TIERS[0]);
+	}
+	
+	public Element writeToXml(Document iDoc, LevelOfDetail iLod)
 	{
 		Element lRoomElement = iDoc.createElement("Room");
 		lRoomElement.setAttribute("name", mName);
@@ -76,13 +81,37 @@ public class Room {
 			
 		for(FloorPoly lPoly : mFloorPolys)
 		{
-			Element lPolyXml = lPoly.writeToXml(iDoc);
+			Element lPolyXml = lPoly.writeToXml(iDoc, iLod);
 			lRoomElement.appendChild(lPolyXml);
 		}
 		
 		return lRoomElement;
 	}
 
+	public void writeToBinary(BinaryWriter iWriter) throws IOException
+	{
+		iWriter.writeVarint(mUid);
+		iWriter.writeString(mName);
+		iWriter.writeSignedVarint(mAccessLevel);
+		iWriter.writeVarint(mFloorPolys.length);
+		for(FloorPoly lPoly : mFloorPolys)
+		{
+			lPoly.writeToBinary(iWriter);
+		}
+	}
+
+	public void writeToBinary(BinaryWriter iWriter, LevelOfDetail iLod) throws IOException
+	{
+		iWriter.writeVarint(mUid);
+		iWriter.writeString(mName);
+		iWriter.writeSignedVarint(mAccessLevel);
+		iWriter.writeVarint(mFloorPolys.length);
+		for(FloorPoly lPoly : mFloorPolys)
+		{
+			lPoly.writeToBinary(iWriter, iLod);
+		}
+	}
+
 	public static Room readFromXml(Element iElement)
 	{
 		String lRoomName = iElement.getAttribute("name");
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A case-insensitive index of room names. The names are held in sorted order, so the
+ * names starting with a string are found by a binary search followed by a scan of the
+ * adjacent names. Every suffix of every name is held in a second sorted array, so the
+ * names containing a string are found in the same way.
+ * @author ojw28
+ */
+public class RoomNameIndex {
+
+	//The rooms, sorted by name
+	private final Room[] mRooms;
+	private final String[] mNames;
+	//Suffix s is mNames[mSuffixRoom[s]].substring(mSuffixOffset[s])
+	private final int[] mSuffixRoom;
+	private final int[] mSuffixOffset;
+
+	/**
+	 * Constructor.
+	 * @param iRooms The rooms to index. Rooms without names are left out
+	 */
+	public RoomNameIndex(List<Room> iRooms)
+	{
+		ArrayList<Room> lRooms = new ArrayList<Room>();
+		for(Room lRoom : iRooms)
+		{
+			if(lRoom.getName() != null)
+			{
+				lRooms.add(lRoom);
+			}
+		}
+		Collections.sort(lRooms, new Comparator<Room>() {
+			public int compare(Room iA, Room iB)
+			{
+				return normalise(iA.getName()).compareTo(normalise(iB.getName()));
+			}
+		});
+		mRooms = lRooms.toArray(new Room[lRooms.size()]);
+		mNames = new String[mRooms.length];
+		int lSuffixCount = 0;
+		for(int li = 0; li < mRooms.length; li++)
+		{
+			mNames[li] = normalise(mRooms[li].getName());
+			lSuffixCount += mNames[li].length();
+		}
+
+		//Sort the suffixes, then unpack them into the two parallel arrays
+		Integer[] lSuffixes = new Integer[lSuffixCount];
+		final int[] lRoomOf = new int[lSuffixCount];
+		final int[] lOffsetOf = new int[lSuffixCount];
+		int lSuffix = 0;
+		for(int li = 0; li < mNames.length; li++)
+		{
+			for(int lj = 0; lj < mNames[li].length(); lj++)
+			{
+				lSuffixes[lSuffix] = lSuffix;
+				lRoomOf[lSuffix] = li;
+				lOffsetOf[lSuffix] = lj;
+				lSuffix++;
+			}
+		}
+		Arrays.sort(lSuffixes, new Comparator<Integer>() {
+			public int compare(Integer iA, Integer iB)
+			{
+				return compareSuffix(mNames[lRoomOf[iA]], lOffsetOf[iA], mNames[lRoomOf[iB]], lOffsetOf[iB]);
+			}
+		});
+		mSuffixRoom = new int[lSuffixCount];
+		mSuffixOffset = new int[lSuffixCount];
+		for(int li = 0; li < lSuffixCount; li++)
+		{
+			mSuffixRoom[li] = lRoomOf[lSuffixes[li]];
+			mSuffixOffset[li] = lOffsetOf[lSuffixes[li]];
+		}
+	}
+
+	/**
+	 * Finds rooms by name.
+	 * @param iQuery The text to search for, in any case
+	 * @param iPrefix True to find names which start with the query, false to find names
+	 * which contain the query other than at their start
+	 * @param iLimit The maximum number of rooms to add to oRooms
+	 * @param oRooms Receives the rooms found, in name order for a prefix search
+	 */
+	public void search(String iQuery, boolean iPrefix, int iLimit, List<Room> oRooms)
+	{
+		String lQuery = normalise(iQuery);
+		if(lQuery.length() == 0)
+		{
+			return;
+		}
+		int lFound = 0;
+		if(iPrefix)
+		{
+			for(int li = lowerBound(lQuery); li < mNames.length && lFound < iLimit && mNames[li].startsWith(lQuery); li++)
+			{
+				oRooms.add(mRooms[li]);
+				lFound++;
+			}
+			return;
+		}
+
+		//A name can contain the query more than once, so note which have been added
+		boolean[] lAdded = new boolean[mNames.length];
+		for(int li = lowerSuffixBound(lQuery); li < mSuffixRoom.length && lFound < iLimit; li++)
+		{
+			String lName = mNames[mSuffixRoom[li]];
+			if(!lName.startsWith(lQuery, mSuffixOffset[li]))
+			{
+				break;
+			}
+			if(!lAdded[mSuffixRoom[li]] && !lName.startsWith(lQuery))
+			{
+				lAdded[mSuffixRoom[li]] = true;
+				oRooms.add(mRooms[mSuffixRoom[li]]);
+				lFound++;
+			}
+		}
+	}
+
+	/**
+	 * The index of the first name which is not less than a query.
+	 */
+	private int lowerBound(String iQuery)
+	{
+		int lLow = 0;
+		int lHigh = mNames.length;
+		while(lLow < lHigh)
+		{
+			int lMid = (lLow + lHigh) >>> 1;
+			if(mNames[lMid].compareTo(iQuery) < 0)
+			{
+				lLow = lMid + 1;
+			}
+			else
+			{
+				lHigh = lMid;
+			}
+		}
+		return lLow;
+	}
+
+	/**
+	 * The index of the first suffix which is not less than a query.
+	 */
+	private int lowerSuffixBound(String iQuery)
+	{
+		int lLow = 0;
+		int lHigh = mSuffixRoom.length;
+		while(lLow < lHigh)
+		{
+			int lMid = (lLow + lHigh) >>> 1;
+			if(compareSuffix(mNames[mSuffixRoom[lMid]], mSuffixOffset[lMid], iQuery, 0) < 0)
+			{
+				lLow = lMid + 1;
+			}
+			else
+			{
+				lHigh = lMid;
+			}
+		}
+		return lLow;
+	}
+
+	private static int compareSuffix(String iA, int iAOffset, String iB, int iBOffset)
+	{
+		int lLength = Math.min(iA.length() - iAOffset, iB.length() - iBOffset);
+		for(int li = 0; li < lLength; li++)
+		{
+			char lA = iA.charAt(iAOffset + li);
+			char lB = iB.charAt(iBOffset + li);
+			if(lA != lB)
+			{
+				return lA - lB;
+			}
+		}
+		return (iA.length() - iAOffset) - (iB.length() - iBOffset);
+	}
+
+	private static String normalise(String iName)
+	{
+		return iName.toLowerCase(Locale.ENGLISH);
+	}
+
+}
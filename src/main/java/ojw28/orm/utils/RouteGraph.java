@@ -0,0 +1,495 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The walking graph of a building. Each floor polygon of each submap is a node, and each
+ * connector edge is an arc between the centroids of the two polygons it joins, passing
+ * through the midpoint of the edge (the portal). Connector targets are resolved across
+ * all of the submaps, so stairs and lifts which join floors are followed.
+ *
+ * The graph is held in compressed sparse row form: the arcs leaving node n are
+ * mArcStart[n] .. mArcStart[n+1]-1.
+ * @author ojw28
+ */
+public class RouteGraph {
+
+	private final FloorPoly[] mPolys;
+	private final int[] mPolyFloor;
+	private final int[] mPolyRoom;
+	//The centroid (x,y,z) of each node
+	private final float[] mPositions;
+
+	private final int[] mArcStart;
+	private final int[] mArcTarget;
+	private final float[] mArcLength;
+	//The portal (x,y,z) which each arc passes through
+	private final float[] mArcPortal;
+
+	private final Room[] mRooms;
+	private final HashMap<Integer, Integer> mRoomIndex = new HashMap<Integer, Integer>();
+	//The nodes of room r are mRoomStart[r] .. mRoomStart[r+1]-1, since each room's
+	//polygons are added to the graph together
+	private final int[] mRoomStart;
+
+	//The distances from each room to every other room, computed as they are first needed
+	private final AtomicReferenceArray<float[]> mRoomDistances;
+
+	/**
+	 * Constructor.
+	 * @param iSubmaps The compiled submaps, indexed by floor
+	 */
+	public RouteGraph(Map25D[] iSubmaps)
+	{
+		ArrayList<FloorPoly> lPolys = new ArrayList<FloorPoly>();
+		ArrayList<Integer> lFloors = new ArrayList<Integer>();
+		ArrayList<Room> lRooms = new ArrayList<Room>();
+		HashMap<Integer, Integer> lPolyIndex = new HashMap<Integer, Integer>();
+		for(int lFloor = 0; lFloor < iSubmaps.length; lFloor++)
+		{
+			for(Room lRoom : iSubmaps[lFloor].getRooms())
+			{
+				mRoomIndex.put(lRoom.getUid(), lRooms.size());
+				lRooms.add(lRoom);
+				for(FloorPoly lPoly : lRoom.getFloorPolys())
+				{
+					lPolyIndex.put(lPoly.getUid(), lPolys.size());
+					lPolys.add(lPoly);
+					lFloors.add(lFloor);
+				}
+			}
+		}
+		mPolys = lPolys.toArray(new FloorPoly[lPolys.size()]);
+		mRooms = lRooms.toArray(new Room[lRooms.size()]);
+		mPolyFloor = new int[mPolys.length];
+		mPolyRoom = new int[mPolys.length];
+		mPositions = new float[mPolys.length * 3];
+		mRoomStart = new int[mRooms.length + 1];
+		for(int li = 0; li < mPolys.length; li++)
+		{
+			mPolyFloor[li] = lFloors.get(li);
+			mPolyRoom[li] = mRoomIndex.get(mPolys[li].getContainingRoom().getUid());
+			System.arraycopy(mPolys[li].getCentroid(), 0, mPositions, li * 3, 3);
+			mRoomStart[mPolyRoom[li] + 1]++;
+		}
+		for(int li = 1; li < mRoomStart.length; li++)
+		{
+			mRoomStart[li] += mRoomStart[li - 1];
+		}
+
+		//Count the resolvable connectors of each polygon, then fill in the arcs
+		mArcStart = new int[mPolys.length + 1];
+		for(int li = 0; li < mPolys.length; li++)
+		{
+			int lEdges = mPolys[li].getVertices().length / 3;
+			for(int lEdge = 0; lEdge < lEdges; lEdge++)
+			{
+				if(target(mPolys[li], lEdge, lPolyIndex) >= 0)
+				{
+					mArcStart[li + 1]++;
+				}
+			}
+		}
+		for(int li = 1; li < mArcStart.length; li++)
+		{
+			mArcStart[li] += mArcStart[li - 1];
+		}
+		int lArcCount = mArcStart[mPolys.length];
+		mArcTarget = new int[lArcCount];
+		mArcLength = new float[lArcCount];
+		mArcPortal = new float[lArcCount * 3];
+		int lArc = 0;
+		for(int li = 0; li < mPolys.length; li++)
+		{
+			float[] lVertices = mPolys[li].getVertices();
+			for(int lEdge = 0; lEdge < lVertices.length / 3; lEdge++)
+			{
+				int lTarget = target(mPolys[li], lEdge, lPolyIndex);
+				if(lTarget < 0)
+				{
+					continue;
+				}
+				int lV0 = lEdge * 3;
+				int lV1 = (lEdge * 3 + 3) % lVertices.length;
+				for(int lj = 0; lj < 3; lj++)
+				{
+					mArcPortal[lArc * 3 + lj] = (lVertices[lV0 + lj] + lVertices[lV1 + lj]) / 2;
+				}
+				mArcTarget[lArc] = lTarget;
+				mArcLength[lArc] = distance(mPositions, li * 3, mArcPortal, lArc * 3)
+						+ distance(mArcPortal, lArc * 3, mPositions, lTarget * 3);
+				lArc++;
+			}
+		}
+
+		mRoomDistances = new AtomicReferenceArray<float[]>(mRooms.length);
+	}
+
+	private static int target(FloorPoly iPoly, int iEdge, HashMap<Integer, Integer> iPolyIndex)
+	{
+		Integer lTargetUid = iPoly.getConnectionId(iEdge);
+		if(lTargetUid == null || lTargetUid == iPoly.getUid())
+		{
+			return -1;
+		}
+		Integer lTarget = iPolyIndex.get(lTargetUid);
+		return lTarget == null ? -1 : lTarget;
+	}
+
+	private static float distance(float[] iA, int iAOffset, float[] iB, int iBOffset)
+	{
+		float lDx = iA[iAOffset] - iB[iBOffset];
+		float lDy = iA[iAOffset + 1] - iB[iBOffset + 1];
+		float lDz = iA[iAOffset + 2] - iB[iBOffset + 2];
+		return (float) Math.sqrt(lDx * lDx + lDy * lDy + lDz * lDz);
+	}
+
+	/**
+	 * Gets a room by its uid.
+	 * @param iRoomId The room's uid
+	 * @return The room, or null if the room is not part of the graph
+	 */
+	public Room getRoom(int iRoomId)
+	{
+		Integer lIndex = mRoomIndex.get(iRoomId);
+		return lIndex == null ? null : mRooms[lIndex];
+	}
+
+	/**
+	 * Finds the shortest route between two rooms, using A* search.
+	 * @param iFromRoomId The uid of the room to start in
+	 * @param iToRoomId The uid of the room to finish in
+	 * @return The route, or null if either room is unknown or there is no route between them
+	 */
+	public Route findRoute(int iFromRoomId, int iToRoomId)
+	{
+		Integer lFrom = mRoomIndex.get(iFromRoomId);
+		Integer lTo = mRoomIndex.get(iToRoomId);
+		if(lFrom == null || lTo == null)
+		{
+			return null;
+		}
+
+		float[] lDistance = new float[mPolys.length];
+		int[] lPrevArc = new int[mPolys.length];
+		int lGoal = search(lFrom, lTo, lDistance, lPrevArc);
+		if(lGoal < 0)
+		{
+			return null;
+		}
+
+		//Walk back along the arcs to recover the route
+		ArrayList<Integer> lArcs = new ArrayList<Integer>();
+		int lNode = lGoal;
+		while(lPrevArc[lNode] >= 0)
+		{
+			lArcs.add(lPrevArc[lNode]);
+			lNode = source(lPrevArc[lNode]);
+		}
+		FloorPoly[] lPolys = new FloorPoly[lArcs.size() + 1];
+		int[] lFloors = new int[lPolys.length];
+		float[] lPoints = new float[(lArcs.size() + 2) * 3];
+		lPolys[0] = mPolys[lNode];
+		lFloors[0] = mPolyFloor[lNode];
+		System.arraycopy(mPositions, lNode * 3, lPoints, 0, 3);
+		for(int li = 0; li < lArcs.size(); li++)
+		{
+			int lArc = lArcs.get(lArcs.size() - 1 - li);
+			lPolys[li + 1] = mPolys[mArcTarget[lArc]];
+			lFloors[li + 1] = mPolyFloor[mArcTarget[lArc]];
+			System.arraycopy(mArcPortal, lArc * 3, lPoints, (li + 1) * 3, 3);
+		}
+		System.arraycopy(mPositions, lGoal * 3, lPoints, lPoints.length - 3, 3);
+		return new Route(lDistance[lGoal], lPolys, lFloors, lPoints);
+	}
+
+	/**
+	 * Gets the walking distance between two rooms. The distances from a room to every
+	 * other room are computed together the first time any of them is needed, and kept.
+	 * @param iFromRoomId The uid of the room to start in
+	 * @param iToRoomId The uid of the room to finish in
+	 * @return The distance, or Float.POSITIVE_INFINITY if either room is unknown or there
+	 * is no route between them
+	 */
+	public float getDistance(int iFromRoomId, int iToRoomId)
+	{
+		Integer lFrom = mRoomIndex.get(iFromRoomId);
+		Integer lTo = mRoomIndex.get(iToRoomId);
+		if(lFrom == null || lTo == null)
+		{
+			return Float.POSITIVE_INFINITY;
+		}
+		return getDistances(lFrom)[lTo];
+	}
+
+	/**
+	 * Gets the walking distances from a room to every room.
+	 * @param iFromRoomId The uid of the room to start in
+	 * @param oRoomIds Receives the uid of each room which can be reached
+	 * @param oDistances Receives the distance to each room in oRoomIds
+	 */
+	public void getDistances(int iFromRoomId, ArrayList<Integer> oRoomIds, ArrayList<Float> oDistances)
+	{
+		Integer lFrom = mRoomIndex.get(iFromRoomId);
+		if(lFrom == null)
+		{
+			return;
+		}
+		float[] lDistances = getDistances(lFrom);
+		for(int li = 0; li < lDistances.length; li++)
+		{
+			if(lDistances[li] != Float.POSITIVE_INFINITY)
+			{
+				oRoomIds.add(mRooms[li].getUid());
+				oDistances.add(lDistances[li]);
+			}
+		}
+	}
+
+	private float[] getDistances(int iFrom)
+	{
+		float[] lRoomDistances = mRoomDistances.get(iFrom);
+		if(lRoomDistances == null)
+		{
+			//Two threads may compute the same row, but they compute the same values
+			float[] lDistance = new float[mPolys.length];
+			search(iFrom, -1, lDistance, new int[mPolys.length]);
+			lRoomDistances = new float[mRooms.length];
+			Arrays.fill(lRoomDistances, Float.POSITIVE_INFINITY);
+			for(int li = 0; li < mPolys.length; li++)
+			{
+				lRoomDistances[mPolyRoom[li]] = Math.min(lRoomDistances[mPolyRoom[li]], lDistance[li]);
+			}
+			mRoomDistances.set(iFrom, lRoomDistances);
+		}
+		return lRoomDistances;
+	}
+
+	/**
+	 * Searches outwards from every node of a room. With a goal room this is A*, guided by
+	 * the (x,y) distance to the goal room's bounds, which never overestimates because every
+	 * arc is at least as long as its (x,y) extent. Without a goal it is Dijkstra's algorithm
+	 * over the whole graph.
+	 * @param iFrom The index of the room to start in
+	 * @param iTo The index of the goal room, or -1 to find the distance to every node
+	 * @param oDistance Receives the distance to each node settled by the search
+	 * @param oPrevArc Receives the arc by which each settled node was reached, or -1 for
+	 * the start nodes
+	 * @return The first node of the goal room to be reached, or -1 if it is not reached
+	 */
+	private int search(int iFrom, int iTo, float[] oDistance, int[] oPrevArc)
+	{
+		Arrays.fill(oDistance, Float.POSITIVE_INFINITY);
+		boolean[] lSettled = new boolean[mPolys.length];
+		NodeHeap lOpen = new NodeHeap();
+		Bounds3D lGoalBounds = iTo >= 0 ? mRooms[iTo].getBounds() : null;
+
+		for(int lNode = mRoomStart[iFrom]; lNode < mRoomStart[iFrom + 1]; lNode++)
+		{
+			oDistance[lNode] = 0;
+			oPrevArc[lNode] = -1;
+			lOpen.push(lNode, estimate(lNode, lGoalBounds));
+		}
+		while(lOpen.size() > 0)
+		{
+			int lNode = lOpen.pop();
+			if(lSettled[lNode])
+			{
+				continue;
+			}
+			lSettled[lNode] = true;
+			if(mPolyRoom[lNode] == iTo)
+			{
+				return lNode;
+			}
+			for(int lArc = mArcStart[lNode]; lArc < mArcStart[lNode + 1]; lArc++)
+			{
+				int lTarget = mArcTarget[lArc];
+				float lDistance = oDistance[lNode] + mArcLength[lArc];
+				if(!lSettled[lTarget] && lDistance < oDistance[lTarget])
+				{
+					oDistance[lTarget] = lDistance;
+					oPrevArc[lTarget] = lArc;
+					lOpen.push(lTarget, lDistance + estimate(lTarget, lGoalBounds));
+				}
+			}
+		}
+		return -1;
+	}
+
+	private float estimate(int iNode, Bounds3D iGoalBounds)
+	{
+		if(iGoalBounds == null)
+		{
+			return 0;
+		}
+		float lX = mPositions[iNode * 3];
+		float lY = mPositions[iNode * 3 + 1];
+		float lDx = Math.max(0, Math.max(iGoalBounds.getMinX() - lX, lX - iGoalBounds.getMaxX()));
+		float lDy = Math.max(0, Math.max(iGoalBounds.getMinY() - lY, lY - iGoalBounds.getMaxY()));
+		return (float) Math.sqrt(lDx * lDx + lDy * lDy);
+	}
+
+	/**
+	 * The node which an arc leaves, found by binary search of the row offsets.
+	 */
+	private int source(int iArc)
+	{
+		int lLow = 0;
+		int lHigh = mPolys.length - 1;
+		while(lLow < lHigh)
+		{
+			int lMid = (lLow + lHigh + 1) >>> 1;
+			if(mArcStart[lMid] <= iArc)
+			{
+				lLow = lMid;
+			}
+			else
+			{
+				lHigh = lMid - 1;
+			}
+		}
+		return lLow;
+	}
+
+	/**
+	 * A route through the building.
+	 */
+	public static class Route {
+
+		private final float mDistance;
+		private final FloorPoly[] mPolys;
+		private final int[] mFloors;
+		private final float[] mPoints;
+
+		private Route(float iDistance, FloorPoly[] iPolys, int[] iFloors, float[] iPoints)
+		{
+			mDistance = iDistance;
+			mPolys = iPolys;
+			mFloors = iFloors;
+			mPoints = iPoints;
+		}
+
+		/**
+		 * The length of the route, measured through the centroid of each polygon passed
+		 * through, so it is never shorter than the path through getPoints().
+		 * @return The length
+		 */
+		public float getDistance()
+		{
+			return mDistance;
+		}
+
+		/**
+		 * The floor polygons passed through, in order.
+		 * @return The polygons
+		 */
+		public FloorPoly[] getPolys()
+		{
+			return mPolys;
+		}
+
+		/**
+		 * The floor of each polygon returned by getPolys().
+		 * @return The floors
+		 */
+		public int[] getFloors()
+		{
+			return mFloors;
+		}
+
+		/**
+		 * The points along the route, as a packed array (x0,y0,z0 . . . xN,yN,zN). The
+		 * route starts at the centroid of the first polygon, passes through the portal
+		 * into each following polygon and ends at the centroid of the last polygon.
+		 * @return The points
+		 */
+		public float[] getPoints()
+		{
+			return mPoints;
+		}
+	}
+
+	/**
+	 * A binary min-heap of nodes keyed by estimated route length. Nodes are not removed
+	 * when their key improves; the stale entry is skipped when it is popped.
+	 */
+	private static class NodeHeap {
+
+		private int[] mNodes = new int[64];
+		private float[] mKeys = new float[64];
+		private int mSize = 0;
+
+		public int size()
+		{
+			return mSize;
+		}
+
+		public void push(int iNode, float iKey)
+		{
+			if(mSize == mNodes.length)
+			{
+				mNodes = Arrays.copyOf(mNodes, mSize * 2);
+				mKeys = Arrays.copyOf(mKeys, mSize * 2);
+			}
+			int lIndex = mSize++;
+			while(lIndex > 0)
+			{
+				int lParent = (lIndex - 1) >>> 1;
+				if(mKeys[lParent] <= iKey)
+				{
+					break;
+				}
+				mNodes[lIndex] = mNodes[lParent];
+				mKeys[lIndex] = mKeys[lParent];
+				lIndex = lParent;
+			}
+			mNodes[lIndex] = iNode;
+			mKeys[lIndex] = iKey;
+		}
+
+		public int pop()
+		{
+			int lTop = mNodes[0];
+			int lNode = mNodes[--mSize];
+			float lKey = mKeys[mSize];
+			int lIndex = 0;
+			while(true)
+			{
+				int lChild = lIndex * 2 + 1;
+				if(lChild >= mSize)
+				{
+					break;
+				}
+				if(lChild + 1 < mSize && mKeys[lChild + 1] < mKeys[lChild])
+				{
+					lChild++;
+				}
+				if(mKeys[lChild] >= lKey)
+				{
+					break;
+				}
+				mNodes[lIndex] = mNodes[lChild];
+				mKeys[lIndex] = mKeys[lChild];
+				lIndex = lChild;
+			}
+			mNodes[lIndex] = lNode;
+			mKeys[lIndex] = lKey;
+			return lTop;
+		}
+	}
+
+}
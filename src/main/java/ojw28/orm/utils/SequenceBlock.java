@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Hands out values from a database sequence, fetching them in blocks so that most
+ * allocations need no database round trip. Values are handed out in ascending order.
+ * Values which are fetched but never used (for instance because the server is
+ * restarted) leave gaps in the sequence, just as a rolled back nextval does.
+ * @author ojw28
+ */
+public class SequenceBlock {
+
+	private static final Metrics mMetrics = Metrics.getQuery("sequence_block");
+
+	private final String mQuery;
+	private final int mBlockSize;
+	private int[] mValues = new int[0];
+	private int mNext = 0;
+
+	/**
+	 * Constructor.
+	 * @param iSequence The name of the sequence
+	 * @param iBlockSize The number of values to fetch at a time
+	 */
+	public SequenceBlock(String iSequence, int iBlockSize)
+	{
+		mQuery = "SELECT nextval('"+iSequence+"') FROM generate_series(1, ?)";
+		mBlockSize = iBlockSize;
+	}
+
+	/**
+	 * Allocates a single value.
+	 * @param iConnection The connection to use if a new block must be fetched
+	 * @return The value
+	 * @throws SQLException If a database error occurs
+	 */
+	public synchronized int next(Connection iConnection) throws SQLException
+	{
+		if(mNext == mValues.length)
+		{
+			fetch(iConnection, mBlockSize);
+		}
+		return mValues[mNext++];
+	}
+
+	/**
+	 * Allocates a number of values, fetching them in a single round trip if the current
+	 * block does not hold enough.
+	 * @param iConnection The connection to use if a new block must be fetched
+	 * @param iCount The number of values
+	 * @return The values, in ascending order
+	 * @throws SQLException If a database error occurs
+	 */
+	public synchronized int[] next(Connection iConnection, int iCount) throws SQLException
+	{
+		int[] lValues = new int[iCount];
+		for(int li = 0; li < iCount; li++)
+		{
+			if(mNext == mValues.length)
+			{
+				fetch(iConnection, Math.max(mBlockSize, iCount - li));
+			}
+			lValues[li] = mValues[mNext++];
+		}
+		return lValues;
+	}
+
+	private void fetch(Connection iConnection, int iCount) throws SQLException
+	{
+		int[] lValues = new int[iCount];
+		long lStartTime = System.nanoTime();
+		int lRows = -1;
+		PreparedStatement lFetch = iConnection.prepareStatement(mQuery);
+		try
+		{
+			lFetch.setInt(1, iCount);
+			ResultSet lRes = lFetch.executeQuery();
+			for(int li = 0; li < iCount; li++)
+			{
+				lRes.next();
+				lValues[li] = lRes.getInt(1);
+			}
+			lRes.close();
+			lRows = iCount;
+		}
+		finally
+		{
+			lFetch.close();
+			mMetrics.record(lStartTime, lRows);
+		}
+		Arrays.sort(lValues);
+		mValues = lValues;
+		mNext = 0;
+	}
+
+}
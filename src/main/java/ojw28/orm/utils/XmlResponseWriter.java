@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * Writes an XML document directly to a stream, element by element, without building a
+ * DOM. The output is identical to that produced by serializing the equivalent DOM with
+ * the default Transformer, provided that the attributes of each element are written in
+ * alphabetical order of name (which is the order in which the DOM holds them).
+ * @author ojw28
+ */
+public class XmlResponseWriter {
+
+	private Writer mOut;
+	private ArrayList<String> mOpenElements = new ArrayList<String>();
+	private boolean mInStartTag = false;
+	//The number of characters written, and the route to whose byte count they are added
+	private long mCount = 0;
+	private Metrics mRoute;
+
+	/**
+	 * Constructor. Writes the XML declaration.
+	 * @param iOut The stream to which the document is written
+	 * @throws IOException If an IOException occurs
+	 */
+	public XmlResponseWriter(Writer iOut) throws IOException
+	{
+		mOut = iOut;
+		write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>");
+	}
+
+	/**
+	 * Opens an element. Attributes may be written until the element's first child is
+	 * started or the element is ended.
+	 * @param iName The element name
+	 * @throws IOException If an IOException occurs
+	 */
+	public void startElement(String iName) throws IOException
+	{
+		closeStartTag();
+		write('<');
+		write(iName);
+		mOpenElements.add(iName);
+		mInStartTag = true;
+	}
+
+	/**
+	 * Writes an attribute of the element which was most recently opened.
+	 * @param iName The attribute name
+	 * @param iValue The attribute value
+	 * @throws IOException If an IOException occurs
+	 */
+	public void attribute(String iName, String iValue) throws IOException
+	{
+		write(' ');
+		write(iName);
+		write("=\"");
+		writeEscaped(iValue);
+		write('"');
+	}
+
+	/**
+	 * Closes the most recently opened element.
+	 * @throws IOException If an IOException occurs
+	 */
+	public void endElement() throws IOException
+	{
+		String lName = mOpenElements.remove(mOpenElements.size() - 1);
+		if(mInStartTag)
+		{
+			write("/>");
+			mInStartTag = false;
+		}
+		else
+		{
+			write("</");
+			write(lName);
+			write('>');
+		}
+	}
+
+	/**
+	 * Closes any open elements and flushes the stream.
+	 * @throws IOException If an IOException occurs
+	 */
+	public void endDocument() throws IOException
+	{
+		while(!mOpenElements.isEmpty())
+		{
+			endElement();
+		}
+		mOut.flush();
+		if(mRoute != null)
+		{
+			mRoute.addBytes(mCount);
+		}
+	}
+
+	/**
+	 * Sets the route to whose byte count the characters written are added once the
+	 * document is ended, which is one byte each in the container's default encoding.
+	 * @param iRoute The route's metrics, or null if they are not counted
+	 */
+	public void setRoute(Metrics iRoute)
+	{
+		mRoute = iRoute;
+	}
+
+	private void closeStartTag() throws IOException
+	{
+		if(mInStartTag)
+		{
+			write('>');
+			mInStartTag = false;
+		}
+	}
+
+	private void write(char iChar) throws IOException
+	{
+		mOut.write(iChar);
+		mCount++;
+	}
+
+	private void write(String iString) throws IOException
+	{
+		mOut.write(iString);
+		mCount += iString.length();
+	}
+
+	private void write(String iString, int iOffset, int iLength) throws IOException
+	{
+		mOut.write(iString, iOffset, iLength);
+		mCount += iLength;
+	}
+
+	private void writeEscaped(String iValue) throws IOException
+	{
+		if(iValue == null)
+		{
+			return;
+		}
+		int lLength = iValue.length();
+		int lStart = 0;
+		for(int li = 0; li < lLength; li++)
+		{
+			char lChar = iValue.charAt(li);
+			String lEscape = null;
+			switch(lChar)
+			{
+			case '&': lEscape = "&amp;"; break;
+			case '<': lEscape = "&lt;"; break;
+			case '>': lEscape = "&gt;"; break;
+			case '"': lEscape = "&quot;"; break;
+			default:
+				if(lChar < 0x20)
+				{
+					lEscape = "&#"+(int) lChar+";";
+				}
+				else if(Character.isHighSurrogate(lChar) && li + 1 < lLength && Character.isLowSurrogate(iValue.charAt(li + 1)))
+				{
+					write(iValue, lStart, li - lStart);
+					write("&#"+Character.toCodePoint(lChar, iValue.charAt(li + 1))+";");
+					li++;
+					lStart = li + 1;
+					continue;
+				}
+			}
+			if(lEscape != null)
+			{
+				write(iValue, lStart, li - lStart);
+				write(lEscape);
+				lStart = li + 1;
+			}
+		}
+		write(iValue, lStart, lLength - lStart);
+	}
+
+}
@@ -0,0 +1,419 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ojw28.orm.PlacedItem;
+import ojw28.orm.utils.BinaryReader;
+import ojw28.orm.utils.BinaryWriter;
+import ojw28.orm.utils.FloorPoly;
+import ojw28.orm.utils.LevelOfDetail;
+import ojw28.orm.utils.Map25D;
+import ojw28.orm.utils.Room;
+import ojw28.orm.utils.XmlResponseWriter;
+
+import org.junit.Test;
+
+/**
+ * Checks that the items, map, level of detail and tile payloads decode with BinaryReader
+ * to what was encoded, and that the binary item list is much smaller than the XML one.
+ * The time taken to encode each is measured by ItemListBenchmark.
+ * @author ojw28
+ */
+public class BinaryPayloadTest {
+
+	private static final PlacedItem[] ITEMS = {
+		new PlacedItem(1, 4, 1.5f, -2.25f, 90, 0, false, false, "desk", 10),
+		new PlacedItem(300, 4, 1e6f, 0, -45, 2, true, false, "desk", 11),
+		new PlacedItem(70000, 12, 0, 3.125f, 0, 1, false, true, null, 12),
+		new PlacedItem(5, 1, 7, 7, 359, 0, true, true, "\u00e9tag\u00e8re", 13)
+	};
+	//The number of items on a large floor
+	static final int FLOOR_ITEMS = 2000;
+
+	@Test
+	public void testItemsRoundTrip() throws IOException
+	{
+		byte[] lPayload = encodeItems(ITEMS, 13);
+
+		BinaryReader lReader = new BinaryReader(new ByteArrayInputStream(lPayload), BinaryWriter.TYPE_ITEMS);
+		assertEquals(13, lReader.readVarint());
+		for(PlacedItem lItem : ITEMS)
+		{
+			assertEquals(1, lReader.readByte());
+			assertEquals(lItem.getUid(), lReader.readVarint());
+			assertEquals(lItem.getItemDefId(), lReader.readVarint());
+			assertEquals(lItem.getX(), lReader.readFloat(), 0);
+			assertEquals(lItem.getY(), lReader.readFloat(), 0);
+			assertEquals(lItem.getTheta(), lReader.readSignedVarint());
+			assertEquals(lItem.getFloor(), lReader.readVarint());
+			int lFlags = lReader.readByte();
+			assertEquals(lItem.isFlipped(), (lFlags & ItemListWriter.FLAG_FLIPPED) != 0);
+			assertEquals(lItem.isDeleted(), (lFlags & ItemListWriter.FLAG_DELETED) != 0);
+			assertEquals(lItem.getLabel(), lReader.readString());
+		}
+		assertEquals(0, lReader.readByte());
+	}
+
+	@Test(expected = IOException.class)
+	public void testWrongPayloadType() throws IOException
+	{
+		new BinaryReader(new ByteArrayInputStream(encodeItems(ITEMS, 0)), BinaryWriter.TYPE_MAP);
+	}
+
+	@Test
+	public void testMapRoundTrip() throws IOException
+	{
+		Map25D lMap = createMap();
+		ArrayList<String> lCrsids = new ArrayList<String>(Arrays.asList("abc12", "xyz99"));
+		ArrayList<Integer> lRooms = new ArrayList<Integer>(Arrays.asList(100, 101));
+		byte[] lPayload = MapHandler.buildMapBinary(new Map25D[] {lMap}, new String[] {"Ground"}, 0, lCrsids, lRooms, LevelOfDetail.TIERS[0]);
+
+		BinaryReader lReader = new BinaryReader(new ByteArrayInputStream(lPayload), BinaryWriter.TYPE_MAP);
+		assertEquals(1, lReader.readVarint());
+		assertEquals("Ground", lReader.readString());
+		assertEquals(0, lReader.readVarint());
+		assertEquals(lMap.getRooms().size(), lReader.readVarint());
+		for(Room lRoom : lMap.getRooms())
+		{
+			readRoomHeader(lReader, lRoom);
+			for(FloorPoly lPoly : lRoom.getFloorPolys())
+			{
+				int lCount = lPoly.getVertices().length / 3;
+				assertEquals(lPoly.getUid(), lReader.readVarint());
+				assertEquals(lCount, lReader.readVarint());
+				for(float lValue : lPoly.getVertices())
+				{
+					assertEquals(lValue, lReader.readFloat(), 0);
+				}
+				int[] lKept = new int[lCount];
+				for(int li = 0; li < lCount; li++)
+				{
+					lKept[li] = li;
+				}
+				readConnections(lReader, lPoly, lKept);
+			}
+		}
+		assertEquals(2, lReader.readVarint());
+		for(int li = 0; li < lCrsids.size(); li++)
+		{
+			assertEquals(lCrsids.get(li), lReader.readString());
+			assertEquals((int) lRooms.get(li), lReader.readVarint());
+		}
+	}
+
+	@Test
+	public void testMapLodRoundTrip() throws IOException
+	{
+		Map25D lMap = createMap();
+		for(int lTier = 1; lTier < LevelOfDetail.TIERS.length; lTier++)
+		{
+			LevelOfDetail lLod = LevelOfDetail.TIERS[lTier];
+			byte[] lPayload = MapHandler.buildMapBinary(new Map25D[] {lMap}, new String[] {"Ground"}, 3, null, null, lLod);
+
+			BinaryReader lReader = new BinaryReader(new ByteArrayInputStream(lPayload), BinaryWriter.TYPE_MAP_LOD);
+			assertEquals(lTier, lReader.readVarint());
+			assertEquals(lLod.getQuantum(), lReader.readFloat(), 0);
+			assertEquals(1, lReader.readVarint());
+			assertEquals("Ground", lReader.readString());
+			assertEquals(3, lReader.readVarint());
+			assertEquals(lMap.getRooms().size(), lReader.readVarint());
+			for(Room lRoom : lMap.getRooms())
+			{
+				readRoomHeader(lReader, lRoom);
+				for(FloorPoly lPoly : lRoom.getFloorPolys())
+				{
+					float[] lVertices = lPoly.getVertices();
+					Integer[] lConnections = new Integer[lVertices.length / 3];
+					for(int li = 0; li < lConnections.length; li++)
+					{
+						lConnections[li] = lPoly.getConnectionId(li);
+					}
+					int[] lKept = lLod.simplify(lVertices, lConnections);
+					assertEquals(lPoly.getUid(), lReader.readVarint());
+					assertEquals(lKept.length, lReader.readVarint());
+					assertEquals(lPoly.isFlat() ? 1 : 0, lReader.readByte());
+					if(lPoly.isFlat())
+					{
+						assertEquals(lVertices[2], lReader.readFloat(), 0);
+					}
+					int lX = 0;
+					int lY = 0;
+					for(int lVertex : lKept)
+					{
+						if(lLod.isQuantised())
+						{
+							lX += lReader.readSignedVarint();
+							lY += lReader.readSignedVarint();
+							assertEquals(lLod.quantise(lVertices[lVertex * 3]), lX);
+							assertEquals(lLod.quantise(lVertices[lVertex * 3 + 1]), lY);
+						}
+						else
+						{
+							assertEquals(lVertices[lVertex * 3], lReader.readFloat(), 0);
+							assertEquals(lVertices[lVertex * 3 + 1], lReader.readFloat(), 0);
+						}
+						if(!lPoly.isFlat())
+						{
+							assertEquals(lVertices[lVertex * 3 + 2], lReader.readFloat(), 0);
+						}
+					}
+					readConnections(lReader, lPoly, lKept);
+				}
+			}
+			//No occupancy
+			assertEquals(0, lReader.readVarint());
+		}
+	}
+
+	@Test
+	public void testTileRoundTrip() throws IOException
+	{
+		//Items hold the submap id as their floor, which is not the level of the submap
+		MapSnapshot.Floor lFloor = new MapSnapshot.Floor(7, 1, "First", "v", createMap(), null, null);
+		PlacedItemStore lStore = new PlacedItemStore();
+		lStore.apply(new PlacedItem(1, 4, 2.5f, 2.5f, -90, 7, true, false, "desk", 1), 0);
+		lStore.apply(new PlacedItem(2, 4, 7.5f, 2.5f, 0, 7, false, false, "desk", 2), 0);
+		lStore.apply(new PlacedItem(3, 4, 2.5f, 2.5f, 0, 1, false, false, "desk", 3), 0);
+		lStore.apply(new PlacedItem(4, 4, 1, 1, 0, 7, false, true, "desk", 4), 0);
+
+		//The south west quarter of a 20 unit grid at zoom 1 covers (0,0) to (10,10)
+		byte[] lPayload = TileHandler.buildTile(lFloor, lStore, 1, 0, 0, 0, 0, 20);
+
+		BinaryReader lReader = new BinaryReader(new ByteArrayInputStream(lPayload), BinaryWriter.TYPE_TILE);
+		assertEquals(1, lReader.readVarint());
+		assertEquals(1, lReader.readVarint());
+		assertEquals(0, lReader.readVarint());
+		assertEquals(0, lReader.readVarint());
+		assertEquals(TileHandler.EXTENT, lReader.readVarint());
+		assertEquals(0, lReader.readFloat(), 0);
+		assertEquals(0, lReader.readFloat(), 0);
+		assertEquals(10, lReader.readFloat(), 0);
+		assertEquals(4, lReader.readVarint());
+
+		//Only the room at (0,0) to (10,10) lies in the tile, the other just touching it.
+		//Its vertex at (5,10.01) is clipped to the top of the tile.
+		assertEquals(1, lReader.readVarint());
+		assertEquals(10, lReader.readVarint());
+		assertEquals(100, lReader.readVarint());
+		int lCount = lReader.readVarint();
+		assertTrue(lCount >= 9);
+		int lX = 0;
+		int lY = 0;
+		for(int li = 0; li < lCount; li++)
+		{
+			lX += lReader.readSignedVarint();
+			lY += lReader.readSignedVarint();
+			assertTrue(lX >= 0 && lX <= TileHandler.EXTENT);
+			assertTrue(lY >= 0 && lY <= TileHandler.EXTENT);
+		}
+		boolean lConnector = false;
+		for(int li = 0; li < lCount; li++)
+		{
+			int lKind = lReader.readVarint();
+			assertTrue(lKind <= 1 || lKind == 2 + 11);
+			lConnector |= lKind == 2 + 11;
+		}
+		assertTrue(lConnector);
+
+		//Items 1 and 2 are on the floor in the tile, but 3 is on the submap whose id is the
+		//tile's level and 4 is deleted
+		assertEquals(2, lReader.readVarint());
+		for(int li = 0; li < 2; li++)
+		{
+			int lUid = lReader.readVarint();
+			assertEquals(4, lReader.readVarint());
+			int lItemX = lReader.readVarint();
+			assertEquals(TileHandler.EXTENT / 4, lReader.readVarint());
+			if(lUid == 1)
+			{
+				assertEquals(TileHandler.EXTENT / 4, lItemX);
+				assertEquals(-90, lReader.readSignedVarint());
+				assertEquals(1, lReader.readByte());
+			}
+			else
+			{
+				assertEquals(2, lUid);
+				assertEquals(TileHandler.EXTENT * 3 / 4, lItemX);
+				assertEquals(0, lReader.readSignedVarint());
+				assertEquals(0, lReader.readByte());
+			}
+			assertEquals("desk", lReader.readString());
+		}
+	}
+
+	@Test
+	public void testEmptyTile() throws IOException
+	{
+		MapSnapshot.Floor lFloor = new MapSnapshot.Floor(0, 0, "Ground", "v", createMap(), null, null);
+		byte[] lPayload = TileHandler.buildTile(lFloor, new PlacedItemStore(), 1, 1, 1, 0, 0, 20);
+
+		BinaryReader lReader = new BinaryReader(new ByteArrayInputStream(lPayload), BinaryWriter.TYPE_TILE);
+		for(int li = 0; li < 5; li++)
+		{
+			lReader.readVarint();
+		}
+		for(int li = 0; li < 3; li++)
+		{
+			lReader.readFloat();
+		}
+		assertEquals(0, lReader.readVarint());
+		assertEquals(0, lReader.readVarint());
+		assertEquals(0, lReader.readVarint());
+	}
+
+	@Test
+	public void testNullString() throws IOException
+	{
+		ByteArrayOutputStream lOut = new ByteArrayOutputStream();
+		BinaryWriter lWriter = new BinaryWriter(lOut, BinaryWriter.TYPE_ITEMS);
+		lWriter.writeString(null);
+		lWriter.writeString("a");
+		lWriter.writeString("a");
+		lWriter.flush();
+		//The header, then 0 for null, then a new string, then a reference to it
+		assertEquals(5 + 1 + 3 + 1, lOut.size());
+
+		BinaryReader lReader = new BinaryReader(new ByteArrayInputStream(lOut.toByteArray()), BinaryWriter.TYPE_ITEMS);
+		assertNull(lReader.readString());
+		assertEquals("a", lReader.readString());
+		assertEquals("a", lReader.readString());
+	}
+
+	/**
+	 * Checks that the binary item list for a floor of items is at most a quarter of the
+	 * size of the XML one. Their labels repeat, as they do on a real floor.
+	 */
+	@Test
+	public void testItemsSize() throws IOException
+	{
+		PlacedItem[] lItems = createItems(FLOOR_ITEMS);
+		assertTrue(encodeItems(lItems, 7000).length * 4 <= encodeItemsXml(lItems, 7000).length);
+	}
+
+	static byte[] encodeItems(PlacedItem[] iItems, int iUpdateToken) throws IOException
+	{
+		ByteArrayOutputStream lOut = new ByteArrayOutputStream();
+		ItemListWriter lWriter = new ItemListWriter.Binary(new BinaryWriter(lOut, BinaryWriter.TYPE_ITEMS), iUpdateToken);
+		for(PlacedItem lItem : iItems)
+		{
+			lWriter.writeItem(lItem);
+		}
+		lWriter.end();
+		return lOut.toByteArray();
+	}
+
+	static byte[] encodeItemsXml(PlacedItem[] iItems, int iUpdateToken) throws IOException
+	{
+		StringWriter lOut = new StringWriter();
+		ItemListWriter lWriter = new ItemListWriter.Xml(new XmlResponseWriter(lOut), "ItemUpdates", iUpdateToken);
+		for(PlacedItem lItem : iItems)
+		{
+			lWriter.writeItem(lItem);
+		}
+		lWriter.end();
+		return lOut.toString().getBytes("UTF-8");
+	}
+
+	/**
+	 * Creates a floor of items laid out in rows of 50, of 40 kinds, with 20 labels and
+	 * some unlabelled.
+	 */
+	static PlacedItem[] createItems(int iCount)
+	{
+		PlacedItem[] lItems = new PlacedItem[iCount];
+		for(int li = 0; li < lItems.length; li++)
+		{
+			lItems[li] = new PlacedItem(1000 + li, li % 40, (li % 50) * 1.37f, (li / 50) * 2.11f, (li * 15) % 360, 0, li % 3 == 0, false,
+					li % 5 == 0 ? null : "label" + (li % 20), 5000 + li);
+		}
+		return lItems;
+	}
+
+	private static void readRoomHeader(BinaryReader iReader, Room iRoom) throws IOException
+	{
+		assertEquals(iRoom.getUid(), iReader.readVarint());
+		assertEquals(iRoom.getName(), iReader.readString());
+		assertEquals(iRoom.getAccessLevel(), iReader.readSignedVarint());
+		assertEquals(iRoom.getFloorPolys().length, iReader.readVarint());
+	}
+
+	/**
+	 * Reads the connector bitset and targets of a polygon's kept vertices.
+	 */
+	private static void readConnections(BinaryReader iReader, FloorPoly iPoly, int[] iKept) throws IOException
+	{
+		boolean[] lConnector = new boolean[iKept.length];
+		for(int li = 0; li < iKept.length; li += 8)
+		{
+			int lBits = iReader.readByte();
+			for(int lj = li; lj < Math.min(li + 8, iKept.length); lj++)
+			{
+				lConnector[lj] = (lBits & (1 << (lj - li))) != 0;
+			}
+		}
+		for(int li = 0; li < iKept.length; li++)
+		{
+			Integer lTarget = iPoly.getConnectionId(iKept[li]);
+			assertEquals(lTarget != null, lConnector[li]);
+			if(lTarget != null)
+			{
+				assertEquals((int) lTarget, iReader.readVarint());
+			}
+		}
+	}
+
+	/**
+	 * Creates a map of two rooms side by side, joined by a doorway. The first is a flat
+	 * 10 unit square with extra vertices along its walls, and the second a sloping 10 by 5
+	 * rectangle with an unnamed, negative access level.
+	 */
+	private static Map25D createMap()
+	{
+		FloorPoly lFirst = new FloorPoly(10, new float[] {
+				0, 0, 0,
+				5, 0, 0,
+				10, 0, 0,
+				10, 4, 0,
+				10, 6, 0,
+				10, 10, 0,
+				5, 10.01f, 0,
+				0, 10, 0,
+				0, 5, 0},
+				new Integer[] {null, null, null, 11, null, null, null, null, null});
+		FloorPoly lSecond = new FloorPoly(11, new float[] {
+				10, 0, 0,
+				15, 0, 0.5f,
+				15, 5, 0.5f,
+				10, 5, 0},
+				new Integer[] {null, null, null, 10});
+		Map25D lMap = new Map25D();
+		Room lRoomA = new Room(100, "FE11", 0, new FloorPoly[] {lFirst});
+		Room lRoomB = new Room(101, null, -1, new FloorPoly[] {lSecond});
+		lRoomA.setParentMap(lMap);
+		lRoomB.setParentMap(lMap);
+		lMap.addRoom(lRoomA);
+		lMap.addRoom(lRoomB);
+		lMap.compileMap();
+		return lMap;
+	}
+
+}
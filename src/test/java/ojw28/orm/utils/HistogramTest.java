@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that every value is counted by the bucket whose bounds contain it, and that
+ * quantiles estimated from the buckets are within 1/SUB_BUCKETS of the true ones.
+ * @author ojw28
+ */
+public class HistogramTest
+{
+	private static final int VALUES = 100000;
+
+	@Test
+	public void testValuesWithinBucketBounds()
+	{
+		long lLowerBound = 0;
+		for(int li = 0; li < Histogram.BUCKETS; li++)
+		{
+			long lUpperBound = Histogram.getUpperBound(li);
+			assertTrue(lUpperBound > lLowerBound);
+			//The first and last values above the lower bound are counted by this bucket
+			assertBucket(li, lLowerBound + 1);
+			if(li < Histogram.BUCKETS - 1)
+			{
+				assertBucket(li, lUpperBound);
+				assertTrue(lUpperBound - lLowerBound <= Math.max(1, lLowerBound / Histogram.SUB_BUCKETS));
+			}
+			lLowerBound = lUpperBound;
+		}
+		assertEquals(Histogram.MAX_VALUE, Histogram.getUpperBound(Histogram.BUCKETS - 2));
+		assertBucket(0, 0);
+		assertBucket(Histogram.BUCKETS - 1, Long.MAX_VALUE / 2);
+	}
+
+	@Test
+	public void testQuantiles()
+	{
+		Histogram lHistogram = new Histogram();
+		long[] lValues = new long[VALUES];
+		Random lRandom = new Random(28);
+		for(int li = 0; li < VALUES; li++)
+		{
+			//Spread over several orders of magnitude, as latencies are
+			lValues[li] = (long) Math.exp(lRandom.nextGaussian() * 2 + 8);
+			lHistogram.record(lValues[li]);
+		}
+		Arrays.sort(lValues);
+		double[] lQuantiles = new double[] {0.01, 0.5, 0.9, 0.99, 0.999};
+		for(double lQuantile : lQuantiles)
+		{
+			long lActual = lValues[(int) Math.ceil(lQuantile * VALUES) - 1];
+			long lEstimate = lHistogram.getQuantile(lQuantile);
+			assertTrue(lEstimate >= lActual);
+			assertTrue(lEstimate - lActual <= Math.max(1, lActual / Histogram.SUB_BUCKETS));
+		}
+	}
+
+	private static void assertBucket(int iBucket, long iValue)
+	{
+		Histogram lHistogram = new Histogram();
+		lHistogram.record(iValue);
+		assertEquals(1, lHistogram.getCount(iBucket));
+	}
+
+}
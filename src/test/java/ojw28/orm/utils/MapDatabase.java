@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An embedded in-memory database holding a map in the openroommap map tables, with each
+ * floor as a submap named "Floor n", for MapLoader to be run against. The connections it
+ * hands out count every statement executed through them, and can be made to wait for a
+ * set round trip time on each, as a query to a remote database would.
+ * @author ojw28
+ */
+public class MapDatabase {
+
+	private static final AtomicInteger mDatabases = new AtomicInteger();
+
+	private final String mUrl;
+	//An in-memory database is dropped when its last connection is closed
+	private final Connection mConnection;
+	private final AtomicInteger mStatements = new AtomicInteger();
+	private volatile long mRoundTripNanos = 0;
+
+	public MapDatabase(Map25D[] iFloors) throws SQLException
+	{
+		mUrl = "jdbc:h2:mem:map" + mDatabases.incrementAndGet();
+		mConnection = DriverManager.getConnection(mUrl);
+		try
+		{
+			createTables();
+			insertFloors(iFloors);
+		}
+		catch(SQLException lE)
+		{
+			mConnection.close();
+			throw lE;
+		}
+	}
+
+	/**
+	 * Opens a connection whose statements are counted.
+	 * @return The connection
+	 * @throws SQLException If a database error occurs
+	 */
+	public Connection getConnection() throws SQLException
+	{
+		final Connection lConnection = DriverManager.getConnection(mUrl);
+		return (Connection) Proxy.newProxyInstance(MapDatabase.class.getClassLoader(),
+				new Class<?>[] {Connection.class}, new InvocationHandler() {
+			public Object invoke(Object iProxy, Method iMethod, Object[] iArgs) throws Throwable
+			{
+				Object lResult = call(lConnection, iMethod, iArgs);
+				if(lResult instanceof Statement)
+				{
+					return countStatement((Statement) lResult, iMethod.getReturnType());
+				}
+				return lResult;
+			}
+		});
+	}
+
+	/**
+	 * The number of statements executed through the connections handed out.
+	 * @return The count
+	 */
+	public int getStatementCount()
+	{
+		return mStatements.get();
+	}
+
+	/**
+	 * Sets the time each statement executed through the connections handed out waits
+	 * before it is run.
+	 * @param iNanos The round trip time in nanoseconds
+	 */
+	public void setRoundTrip(long iNanos)
+	{
+		mRoundTripNanos = iNanos;
+	}
+
+	/**
+	 * Drops the database. Connections handed out should be closed first.
+	 * @throws SQLException If a database error occurs
+	 */
+	public void close() throws SQLException
+	{
+		mConnection.close();
+	}
+
+	private Object countStatement(final Statement iStatement, Class<?> iType)
+	{
+		return Proxy.newProxyInstance(MapDatabase.class.getClassLoader(),
+				new Class<?>[] {iType}, new InvocationHandler() {
+			public Object invoke(Object iProxy, Method iMethod, Object[] iArgs) throws Throwable
+			{
+				if(iMethod.getName().startsWith("execute"))
+				{
+					mStatements.incrementAndGet();
+					long lRoundTrip = mRoundTripNanos;
+					if(lRoundTrip > 0)
+					{
+						LockSupport.parkNanos(lRoundTrip);
+					}
+				}
+				return call(iStatement, iMethod, iArgs);
+			}
+		});
+	}
+
+	private static Object call(Object iTarget, Method iMethod, Object[] iArgs) throws Throwable
+	{
+		try
+		{
+			return iMethod.invoke(iTarget, iArgs);
+		}
+		catch(InvocationTargetException lE)
+		{
+			throw lE.getCause();
+		}
+	}
+
+	/**
+	 * Creates the map tables, as BuildDb does.
+	 */
+	private void createTables() throws SQLException
+	{
+		Statement lS = mConnection.createStatement();
+		try
+		{
+			lS.executeUpdate("CREATE TABLE room_table (roomid INT NOT NULL,"+
+					"name VARCHAR(255) UNIQUE,"+
+					"accesslevel INT NOT NULL,"+
+					"PRIMARY KEY(roomid))");
+			lS.executeUpdate("CREATE TABLE roompoly_table (polyid INT NOT NULL UNIQUE,"+
+					"roomid INT NOT NULL,"+
+					"FOREIGN KEY (roomid) REFERENCES room_table(roomid))");
+			lS.executeUpdate("CREATE TABLE floorpoly_table (polyid INT NOT NULL,"+
+					"vertexnum INT NOT NULL,"+
+					"x FLOAT NOT NULL,"+
+					"y FLOAT NOT NULL,"+
+					"z FLOAT NOT NULL,"+
+					"edgetarget INT,"+
+					"FOREIGN KEY (polyid) REFERENCES roompoly_table(polyid),"+
+					"PRIMARY KEY(polyid,vertexnum))");
+			lS.executeUpdate("CREATE TABLE submap_table ("+
+					"submapid INT NOT NULL UNIQUE,"+
+					"name VARCHAR(255) NOT NULL,"+
+					"PRIMARY KEY(submapid))");
+			lS.executeUpdate("CREATE TABLE submappoly_table (submapid INT NOT NULL,"+
+					"polyid INT NOT NULL,"+
+					"FOREIGN KEY (submapid) REFERENCES submap_table(submapid),"+
+					"FOREIGN KEY (polyid) REFERENCES roompoly_table(polyid),"+
+					"PRIMARY KEY(submapid,polyid))");
+		}
+		finally
+		{
+			lS.close();
+		}
+	}
+
+	/**
+	 * Inserts the rooms of every floor. A room or polygon on more than one floor is only
+	 * inserted once, and added to the submap of each.
+	 */
+	private void insertFloors(Map25D[] iFloors) throws SQLException
+	{
+		PreparedStatement lInsertSubmap = mConnection.prepareStatement("INSERT INTO submap_table VALUES(?,?)");
+		PreparedStatement lInsertRoom = mConnection.prepareStatement("INSERT INTO room_table VALUES(?,?,?)");
+		PreparedStatement lInsertRoomPoly = mConnection.prepareStatement("INSERT INTO roompoly_table VALUES(?,?)");
+		PreparedStatement lInsertVertex = mConnection.prepareStatement("INSERT INTO floorpoly_table VALUES(?,?,?,?,?,?)");
+		PreparedStatement lInsertSubmapPoly = mConnection.prepareStatement("INSERT INTO submappoly_table VALUES(?,?)");
+		try
+		{
+			HashSet<Integer> lRooms = new HashSet<Integer>();
+			HashSet<Integer> lPolys = new HashSet<Integer>();
+			for(int lFloor = 0; lFloor < iFloors.length; lFloor++)
+			{
+				lInsertSubmap.setInt(1, lFloor);
+				lInsertSubmap.setString(2, "Floor " + lFloor);
+				lInsertSubmap.executeUpdate();
+				for(Room lRoom : iFloors[lFloor].getRooms())
+				{
+					if(lRooms.add(lRoom.getUid()))
+					{
+						lInsertRoom.setInt(1, lRoom.getUid());
+						lInsertRoom.setString(2, lRoom.getName());
+						lInsertRoom.setInt(3, lRoom.getAccessLevel());
+						lInsertRoom.executeUpdate();
+					}
+					for(FloorPoly lPoly : lRoom.getFloorPolys())
+					{
+						if(lPolys.add(lPoly.getUid()))
+						{
+							lInsertRoomPoly.setInt(1, lPoly.getUid());
+							lInsertRoomPoly.setInt(2, lRoom.getUid());
+							lInsertRoomPoly.executeUpdate();
+							float[] lVertices = lPoly.getVertices();
+							lInsertVertex.setInt(1, lPoly.getUid());
+							for(int li = 0; li < lVertices.length / 3; li++)
+							{
+								lInsertVertex.setInt(2, li);
+								lInsertVertex.setFloat(3, lVertices[li * 3]);
+								lInsertVertex.setFloat(4, lVertices[li * 3 + 1]);
+								lInsertVertex.setFloat(5, lVertices[li * 3 + 2]);
+								if(lPoly.getConnectionId(li) != null)
+								{
+									lInsertVertex.setInt(6, lPoly.getConnectionId(li));
+								}
+								else
+								{
+									lInsertVertex.setNull(6, Types.INTEGER);
+								}
+								lInsertVertex.addBatch();
+							}
+							lInsertVertex.executeBatch();
+						}
+						lInsertSubmapPoly.setInt(1, lFloor);
+						lInsertSubmapPoly.setInt(2, lPoly.getUid());
+						lInsertSubmapPoly.executeUpdate();
+					}
+				}
+			}
+		}
+		finally
+		{
+			lInsertSubmap.close();
+			lInsertRoom.close();
+			lInsertRoomPoly.close();
+			lInsertVertex.close();
+			lInsertSubmapPoly.close();
+		}
+	}
+
+}
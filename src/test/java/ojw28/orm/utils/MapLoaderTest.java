@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/**
+ * Loads maps of different sizes from an embedded database, and checks that MapLoader runs
+ * the same number of statements whatever the size of the map, and that every room and
+ * polygon is read back as it was written. The load time on the building's map is measured
+ * by MapLoaderBenchmark.
+ * @author ojw28
+ */
+public class MapLoaderTest
+{
+	private static final int FLOORS = 3;
+	//The maps have SIDE by SIDE rooms on each floor
+	private static final int[] SIDES = new int[] {2, 10};
+
+	@Test
+	public void testStatementsIndependentOfSize() throws Exception
+	{
+		for(int lSide : SIDES)
+		{
+			Map25D[] lFloors = createFloors(lSide);
+			MapDatabase lDatabase = new MapDatabase(lFloors);
+			try
+			{
+				Connection lConnection = lDatabase.getConnection();
+				try
+				{
+					MapLoader lLoader = new MapLoader();
+					int lStatements = lDatabase.getStatementCount();
+					Map25D lMap = lLoader.loadMap(lConnection);
+					assertEquals(2, lDatabase.getStatementCount() - lStatements);
+					assertEquals(FLOORS * lSide * lSide, lMap.getRooms().size());
+					for(Map25D lFloor : lFloors)
+					{
+						assertRoomsLoaded(lFloor, lMap);
+					}
+
+					for(int li = 0; li < FLOORS; li++)
+					{
+						lStatements = lDatabase.getStatementCount();
+						Map25D lSubmap = lLoader.loadSubmap(lConnection, li);
+						assertEquals(2, lDatabase.getStatementCount() - lStatements);
+						assertEquals(lSide * lSide, lSubmap.getRooms().size());
+						assertRoomsLoaded(lFloors[li], lSubmap);
+
+						//The id is looked up by name first
+						lStatements = lDatabase.getStatementCount();
+						lSubmap = lLoader.loadSubmap(lConnection, "Floor " + li);
+						assertEquals(3, lDatabase.getStatementCount() - lStatements);
+						assertRoomsLoaded(lFloors[li], lSubmap);
+					}
+				}
+				finally
+				{
+					lConnection.close();
+				}
+			}
+			finally
+			{
+				lDatabase.close();
+			}
+		}
+	}
+
+	/**
+	 * Checks that every room of a floor has been loaded with the same name, access level
+	 * and polygons.
+	 */
+	private static void assertRoomsLoaded(Map25D iFloor, Map25D iMap)
+	{
+		for(Room lExpected : iFloor.getRooms())
+		{
+			Room lRoom = iMap.getRoom(lExpected.getUid());
+			assertNotNull(lRoom);
+			assertEquals(lExpected.getName(), lRoom.getName());
+			assertEquals(lExpected.getAccessLevel(), lRoom.getAccessLevel());
+			assertEquals(lExpected.getFloorPolys().length, lRoom.getFloorPolys().length);
+			for(int li = 0; li < lExpected.getFloorPolys().length; li++)
+			{
+				FloorPoly lExpectedPoly = lExpected.getFloorPolys()[li];
+				FloorPoly lPoly = lRoom.getFloorPolys()[li];
+				assertEquals(lExpectedPoly.getUid(), lPoly.getUid());
+				assertArrayEquals(lExpectedPoly.getVertices(), lPoly.getVertices(), 0);
+				for(int lj = 0; lj < lExpectedPoly.getVertices().length / 3; lj++)
+				{
+					assertEquals(lExpectedPoly.getConnectionId(lj), lPoly.getConnectionId(lj));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates FLOORS floors of iSide by iSide rooms laid out in rows. Each room is a 2 unit
+	 * square split into two polygons, joined by a connector along the split.
+	 */
+	private static Map25D[] createFloors(int iSide)
+	{
+		Map25D[] lFloors = new Map25D[FLOORS];
+		for(int lFloor = 0; lFloor < FLOORS; lFloor++)
+		{
+			lFloors[lFloor] = new Map25D();
+			for(int li = 0; li < iSide; li++)
+			{
+				for(int lj = 0; lj < iSide; lj++)
+				{
+					int lRoomId = (lFloor * iSide + li) * iSide + lj;
+					float lX = li * 2;
+					float lY = lj * 2;
+					float lZ = lFloor * -3.5f;
+					ArrayList<FloorPoly> lPolys = new ArrayList<FloorPoly>();
+					for(int lk = 0; lk < 2; lk++)
+					{
+						float lLeft = lX + lk;
+						lPolys.add(new FloorPoly(lRoomId * 2 + lk, new float[] {
+								lLeft, lY + 2, lZ,
+								lLeft + 1, lY + 2, lZ,
+								lLeft + 1, lY, lZ,
+								lLeft, lY, lZ},
+								lk == 0 ? new Integer[] {null, lRoomId * 2 + 1, null, null}
+										: new Integer[] {null, null, null, lRoomId * 2}));
+					}
+					Room lRoom = new Room(lRoomId, "R" + lRoomId, lRoomId % 3, lPolys.toArray(new FloorPoly[2]));
+					lRoom.setParentMap(lFloors[lFloor]);
+					lFloors[lFloor].addRoom(lRoom);
+				}
+			}
+			lFloors[lFloor].compileMap();
+		}
+		return lFloors;
+	}
+
+}
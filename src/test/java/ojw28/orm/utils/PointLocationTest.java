@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright 2014 Digital Technology Group, Computer Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *******************************************************************************/
+package ojw28.orm.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the spatial index used to find the room containing a point against a linear
+ * scan of every polygon, and the parallel bulk classifier against the sequential one. Their
+ * timings on the building's map are measured by PointLocationBenchmark.
+ * @author ojw28
+ */
+public class PointLocationTest
+{
+	//The map has SIDE by SIDE rooms
+	private static final int SIDE = 40;
+	private static final int POINTS = 20000;
+	//The number of floors and points given to the bulk classifier, enough to be split
+	//between several tasks
+	private static final int FLOORS = 4;
+	private static final int BULK_POINTS = 100000;
+	//The bulk classifier is run again after its pool has been shut down
+	private static final int RUNS = 2;
+
+	@Test
+	public void testGridMatchesLinearScan()
+	{
+		Map25D lMap = createMap();
+		float[] lXs = new float[POINTS];
+		float[] lYs = new float[POINTS];
+		createPoints(lXs, lYs);
+
+		for(int li = 0; li < POINTS; li++)
+		{
+			assertSame(locateLinearly(lMap.getFloorPolys(), lXs[li], lYs[li]), lMap.locate(lXs[li], lYs[li]));
+		}
+	}
+
+	@Test
+	public void testParallelMatchesSequential()
+	{
+		Map25D lMap = createMap();
+		PolyClassifier[] lClassifiers = new PolyClassifier[FLOORS];
+		for(int li = 0; li < FLOORS; li++)
+		{
+			lClassifiers[li] = new PolyClassifier(lMap);
+		}
+		float[] lXs = new float[BULK_POINTS];
+		float[] lYs = new float[BULK_POINTS];
+		createPoints(lXs, lYs);
+		//Every floor, and one which is not on the map
+		int[] lFloors = new int[BULK_POINTS];
+		for(int li = 0; li < BULK_POINTS; li++)
+		{
+			lFloors[li] = li % (FLOORS + 1);
+		}
+
+		for(int lRun = 0; lRun < RUNS; lRun++)
+		{
+			int[] lSequential = PolyClassifier.classify(lClassifiers, lXs, lYs, lFloors, false);
+			int[] lParallel = PolyClassifier.classify(lClassifiers, lXs, lYs, lFloors, true);
+			assertArrayEquals(lSequential, lParallel);
+			if(lRun == 0)
+			{
+				for(int li = 0; li < BULK_POINTS; li += 97)
+				{
+					Room lRoom = lFloors[li] < FLOORS ? lMap.locateRoom(lXs[li], lYs[li]) : null;
+					assertEquals(lRoom == null ? PolyClassifier.NO_ROOM : lRoom.getUid(), lSequential[li]);
+				}
+			}
+			//The pool is started again after a shutdown
+			PolyClassifier.shutdown();
+		}
+	}
+
+	/**
+	 * Finds the polygon containing a point by testing every polygon in turn, as Map25D did
+	 * before it had a grid.
+	 */
+	private static FloorPoly locateLinearly(ArrayList<FloorPoly> iPolys, float iX, float iY)
+	{
+		for(FloorPoly lPoly : iPolys)
+		{
+			if(lPoly.isInside2D(iX, iY))
+			{
+				return lPoly;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Fills in points spread over the map and a margin around it, so that some are in no
+	 * room. The same points are made each time.
+	 */
+	private static void createPoints(float[] oXs, float[] oYs)
+	{
+		Random lRandom = new Random(28);
+		for(int li = 0; li < oXs.length; li++)
+		{
+			oXs[li] = lRandom.nextFloat() * (SIDE * 2 + 2) - 1;
+			oYs[li] = lRandom.nextFloat() * (SIDE * 2 + 2) - 1;
+		}
+	}
+
+	/**
+	 * Creates a map of SIDE by SIDE rooms laid out in rows, each an octagon just inside a 2
+	 * unit square, so that points between the rooms are in none.
+	 */
+	private static Map25D createMap()
+	{
+		Map25D lMap = new Map25D();
+		for(int li = 0; li < SIDE; li++)
+		{
+			for(int lj = 0; lj < SIDE; lj++)
+			{
+				float lX = li * 2;
+				float lY = lj * 2;
+				FloorPoly lPoly = new FloorPoly(li * SIDE + lj, new float[] {
+						lX + 0.6f, lY + 0.1f, 0,
+						lX + 1.4f, lY + 0.1f, 0,
+						lX + 1.9f, lY + 0.6f, 0,
+						lX + 1.9f, lY + 1.4f, 0,
+						lX + 1.4f, lY + 1.9f, 0,
+						lX + 0.6f, lY + 1.9f, 0,
+						lX + 0.1f, lY + 1.4f, 0,
+						lX + 0.1f, lY + 0.6f, 0},
+						new Integer[8]);
+				Room lRoom = new Room(li * SIDE + lj, "R" + li + "." + lj, 0, new FloorPoly[] {lPoly});
+				lRoom.setParentMap(lMap);
+				lMap.addRoom(lRoom);
+			}
+		}
+		lMap.compileMap();
+		return lMap;
+	}
+
+}